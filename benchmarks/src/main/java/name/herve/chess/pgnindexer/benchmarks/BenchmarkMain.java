@@ -0,0 +1,42 @@
+package name.herve.chess.pgnindexer.benchmarks;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the usual JMH command line options. Unless a result
+ * format is given with -rf, the results are also written as JSON to
+ * jmh-results/&lt;timestamp&gt;.json, so that the runs of two commits can be
+ * compared.
+ *
+ * <pre>
+ * mvn install
+ * mvn -f benchmarks/pom.xml package
+ * java -jar benchmarks/target/benchmarks.jar [regexp] [JMH options]
+ * </pre>
+ */
+public class BenchmarkMain {
+	public static void main(String[] args) throws Exception {
+		CommandLineOptions cmd = new CommandLineOptions(args);
+		if (cmd.shouldHelp()) {
+			cmd.showHelp();
+			return;
+		}
+
+		ChainedOptionsBuilder options = new OptionsBuilder().parent(cmd);
+		if (!cmd.getResultFormat().hasValue()) {
+			File dir = new File("jmh-results");
+			dir.mkdirs();
+			String name = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".json";
+			options.resultFormat(ResultFormatType.JSON).result(new File(dir, name).getPath());
+		}
+		new Runner(options.build()).run();
+	}
+}
@@ -0,0 +1,223 @@
+package name.herve.chess.pgnindexer.benchmarks;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import com.github.bhlangonijr.chesslib.Board;
+import com.github.bhlangonijr.chesslib.move.Move;
+import com.github.bhlangonijr.chesslib.move.MoveConversionException;
+import com.github.bhlangonijr.chesslib.move.MoveList;
+
+import name.herve.chess.pgnindexer.CompactBoard;
+import name.herve.chess.pgnindexer.ExternalIndexBuilder;
+import name.herve.chess.pgnindexer.IndexFile;
+import name.herve.chess.pgnindexer.IntArrayBuffer;
+import name.herve.chess.pgnindexer.LongArrayBuffer;
+import name.herve.chess.pgnindexer.PersistenceToolbox;
+import name.herve.chess.pgnindexer.PersistenceWriter;
+import name.herve.chess.pgnindexer.PgnScanner;
+import name.herve.chess.pgnindexer.PositionFingerprints;
+
+/**
+ * Synthetic PGN files and indexes the benchmarks run on. The games are random
+ * legal games, drawn from a small opening tree so that the early positions are
+ * shared by many games as in real databases. They only depend on the number of
+ * games and on the seed, and are generated once in the fixtures directory
+ * (pgnindexer.fixtures system property, a directory of java.io.tmpdir by
+ * default), then reused by the following runs.
+ */
+public class Fixtures {
+	private final static String[] RESULTS = { "1-0", "0-1", "1/2-1/2" };
+	private final static int OPENING_PLIES = 8;
+	private final static int OPENING_BRANCHES = 3;
+	private final static int MIN_PLIES = 20;
+	private final static int MAX_PLIES = 120;
+	private final static long INDEX_MEMORY = 64 * 1024 * 1024;
+
+	public final static long SEED = 20211017L;
+
+	private static File getDirectory() {
+		File dir = new File(System.getProperty("pgnindexer.fixtures", new File(System.getProperty("java.io.tmpdir"), "pgnindexer-fixtures").getPath()));
+		dir.mkdirs();
+		return dir;
+	}
+
+	/**
+	 * @return an index of the positions of {@link #getPgn(int)}, with native
+	 *         keys and their {@link PositionFingerprints}, rebuilt when the
+	 *         index format changes
+	 */
+	public static synchronized File getIndex(int nbGames) throws IOException {
+		File idx = new File(getDirectory(), "games-" + nbGames + "-" + SEED + "-v" + IndexFile.VERSION + ".idx");
+		if (!idx.exists() || !PositionFingerprints.getFile(idx).exists()) {
+			File tmp = new File(idx.getPath() + ".tmp");
+			try (ExternalIndexBuilder builder = new ExternalIndexBuilder(tmp, INDEX_MEMORY, PersistenceWriter.DEFAULT_BUFFER_SIZE)) {
+				builder.setNativeKeys(true);
+				builder.setFingerprintsFile(PositionFingerprints.getFile(tmp));
+				ByteBuffer buf = map(getPgn(nbGames));
+				PgnScanner scanner = new PgnScanner();
+				scanner.reset(buf, 0, buf.limit());
+				CompactBoard board = new CompactBoard();
+				LongArrayBuffer positions = new LongArrayBuffer();
+				IntArrayBuffer fingerprints = new IntArrayBuffer();
+				int game = 0;
+				while (hashGame(scanner, board, positions, fingerprints)) {
+					game++;
+					builder.getCatalog().add(game, "[" + game + "]");
+					int nb = positions.sortAndDedup(fingerprints);
+					builder.addGame(game, positions.getValues(), null, fingerprints.getValues(), nb, null);
+				}
+			}
+			rename(PositionFingerprints.getFile(tmp), PositionFingerprints.getFile(idx));
+			rename(tmp, idx);
+		}
+		return idx;
+	}
+
+	/**
+	 * @return a PGN file of nbGames random games
+	 */
+	public static synchronized File getPgn(int nbGames) throws IOException {
+		File pgn = new File(getDirectory(), "games-" + nbGames + "-" + SEED + ".pgn");
+		if (!pgn.exists()) {
+			File tmp = new File(pgn.getPath() + ".tmp");
+			Random random = new Random(SEED);
+			try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.US_ASCII))) {
+				for (int g = 1; g <= nbGames; g++) {
+					writeGame(out, g, random);
+				}
+			}
+			rename(tmp, pgn);
+		}
+		return pgn;
+	}
+
+	/**
+	 * @return a directory of two copies of {@link #getPgn(int)}, the first one
+	 *         compressed with gzip, so that an indexing run streams a
+	 *         compressed file and maps a plain one
+	 */
+	public static synchronized File getPgnDirectory(int nbGames) throws IOException {
+		File dir = new File(getDirectory(), "games-" + nbGames + "-" + SEED);
+		File compressed = new File(dir, "0.pgn.gz");
+		File plain = new File(dir, "1.pgn");
+		if (!compressed.exists() || !plain.exists()) {
+			dir.mkdirs();
+			File pgn = getPgn(nbGames);
+			// written next to the directory, as all its files are indexed
+			File tmp = new File(dir.getPath() + "-0.tmp");
+			try (OutputStream out = new GZIPOutputStream(new FileOutputStream(tmp))) {
+				Files.copy(pgn.toPath(), out);
+			}
+			rename(tmp, compressed);
+			tmp = new File(dir.getPath() + "-1.tmp");
+			Files.copy(pgn.toPath(), tmp.toPath());
+			rename(tmp, plain);
+		}
+		return dir;
+	}
+
+	/**
+	 * Hashes the positions of the next game of the scanner, as the indexer does.
+	 *
+	 * @return false once there are no more games
+	 */
+	public static boolean hashGame(PgnScanner scanner, CompactBoard board, LongArrayBuffer positions) {
+		return hashGame(scanner, board, positions, null);
+	}
+
+	/**
+	 * @param fingerprints
+	 *            receives the {@link PositionFingerprints} of the positions as
+	 *            well, if it is not null
+	 */
+	public static boolean hashGame(PgnScanner scanner, CompactBoard board, LongArrayBuffer positions, IntArrayBuffer fingerprints) {
+		return hashGame(scanner, board, CompactBoard.KeyPolicy.FIDE, positions, fingerprints);
+	}
+
+	/**
+	 * @param policy
+	 *            what identifies the positions, as given to the indexer
+	 */
+	public static boolean hashGame(PgnScanner scanner, CompactBoard board, CompactBoard.KeyPolicy policy, LongArrayBuffer positions, IntArrayBuffer fingerprints) {
+		if (!scanner.nextGame()) {
+			return false;
+		}
+		board.reset();
+		positions.clear();
+		if (fingerprints != null) {
+			fingerprints.clear();
+		}
+		int len;
+		while ((len = scanner.nextSan()) > 0) {
+			if (!board.doSan(scanner.getSan(), 0, len)) {
+				break;
+			}
+			positions.add(board.getKey(policy));
+			if (fingerprints != null) {
+				fingerprints.add(PositionFingerprints.of(board, policy));
+			}
+		}
+		return true;
+	}
+
+	public static MappedByteBuffer map(File file) throws IOException {
+		try (FileChannel channel = PersistenceToolbox.getFile(file, false).getChannel()) {
+			return channel.map(MapMode.READ_ONLY, 0, channel.size());
+		}
+	}
+
+	private static void rename(File from, File to) throws IOException {
+		if (!from.renameTo(to)) {
+			throw new IOException("Unable to rename " + from + " to " + to);
+		}
+	}
+
+	private static void writeGame(Writer out, int number, Random random) throws IOException {
+		Board board = new Board();
+		MoveList moves = new MoveList();
+		int nbPlies = MIN_PLIES + random.nextInt(MAX_PLIES - MIN_PLIES);
+		for (int p = 0; p < nbPlies; p++) {
+			List<Move> legal = board.legalMoves();
+			if (legal.isEmpty()) {
+				break;
+			}
+			int n = p < OPENING_PLIES ? Math.min(OPENING_BRANCHES, legal.size()) : legal.size();
+			Move move = legal.get(random.nextInt(n));
+			board.doMove(move);
+			moves.add(move);
+		}
+
+		String movetext;
+		try {
+			movetext = moves.toSanWithMoveNumbers();
+		} catch (MoveConversionException e) {
+			throw new IOException(e);
+		}
+		String result = RESULTS[random.nextInt(RESULTS.length)];
+
+		out.write("[Event \"Synthetic\"]\n");
+		out.write("[Site \"?\"]\n");
+		out.write("[Date \"2021.10.17\"]\n");
+		out.write("[Round \"" + number + "\"]\n");
+		out.write("[White \"Player " + random.nextInt(1000) + "\"]\n");
+		out.write("[Black \"Player " + random.nextInt(1000) + "\"]\n");
+		out.write("[Result \"" + result + "\"]\n\n");
+		out.write(movetext.strip());
+		out.write(" " + result + "\n\n");
+	}
+}
@@ -0,0 +1,120 @@
+package name.herve.chess.pgnindexer.benchmarks;
+
+import java.nio.MappedByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.github.bhlangonijr.chesslib.Board;
+import com.github.bhlangonijr.chesslib.game.Game;
+import com.github.bhlangonijr.chesslib.move.Move;
+import com.github.bhlangonijr.chesslib.move.MoveList;
+import com.github.bhlangonijr.chesslib.pgn.PgnIterator;
+
+import name.herve.chess.pgnindexer.CompactBoard;
+import name.herve.chess.pgnindexer.IntArrayBuffer;
+import name.herve.chess.pgnindexer.LongArrayBuffer;
+import name.herve.chess.pgnindexer.PgnScanner;
+import name.herve.chess.pgnindexer.PositionFingerprints;
+
+/**
+ * The Zobrist keys of all the positions of a game, as the game tasks compute
+ * them : chesslib replays the moves it has already parsed, the native path
+ * reads the SAN from the PGN bytes and plays it on a {@link CompactBoard}.
+ * Both are also measured along with the {@link PositionFingerprints} of the
+ * positions, as an index built with them computes them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HashingBenchmark {
+	public final static int NB_GAMES = 2000;
+
+	private List<MoveList> games;
+	private Board board;
+	private MappedByteBuffer buf;
+	private PgnScanner scanner;
+	private CompactBoard compactBoard;
+	private LongArrayBuffer positions;
+	private IntArrayBuffer fingerprints;
+
+	@Benchmark
+	@OperationsPerInvocation(NB_GAMES)
+	public void chesslib(Blackhole bh) {
+		for (MoveList moves : games) {
+			positions.clear();
+			board.loadFromFen(CompactBoard.START_FEN);
+			for (Move move : moves) {
+				board.doMove(move);
+				positions.add(board.getZobristKey());
+			}
+			bh.consume(positions.sortAndDedup());
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(NB_GAMES)
+	public void chesslibFingerprints(Blackhole bh) {
+		for (MoveList moves : games) {
+			positions.clear();
+			fingerprints.clear();
+			board.loadFromFen(CompactBoard.START_FEN);
+			for (Move move : moves) {
+				board.doMove(move);
+				positions.add(board.getZobristKey());
+				fingerprints.add(PositionFingerprints.of(board));
+			}
+			bh.consume(positions.sortAndDedup(fingerprints));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(NB_GAMES)
+	public void compactBoard(Blackhole bh) {
+		scanner.reset(buf, 0, buf.limit());
+		while (Fixtures.hashGame(scanner, compactBoard, positions)) {
+			bh.consume(positions.sortAndDedup());
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(NB_GAMES)
+	public void compactBoardFingerprints(Blackhole bh) {
+		scanner.reset(buf, 0, buf.limit());
+		while (Fixtures.hashGame(scanner, compactBoard, positions, fingerprints)) {
+			bh.consume(positions.sortAndDedup(fingerprints));
+		}
+	}
+
+	@Setup
+	public void setup() throws Exception {
+		games = new ArrayList<>();
+		PgnIterator iterator = new PgnIterator(Fixtures.getPgn(NB_GAMES).getAbsolutePath());
+		for (Game game : iterator) {
+			games.add(game.getHalfMoves());
+		}
+		board = new Board();
+
+		buf = Fixtures.map(Fixtures.getPgn(NB_GAMES));
+		scanner = new PgnScanner();
+		compactBoard = new CompactBoard();
+		positions = new LongArrayBuffer();
+		fingerprints = new IntArrayBuffer();
+	}
+}
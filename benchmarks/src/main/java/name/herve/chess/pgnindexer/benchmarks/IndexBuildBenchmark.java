@@ -0,0 +1,88 @@
+package name.herve.chess.pgnindexer.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import name.herve.chess.pgnindexer.CompactBoard;
+import name.herve.chess.pgnindexer.PGNIndexer;
+
+/**
+ * From the PGN files of {@link Fixtures#getPgnDirectory(int)} to the answers
+ * of a lookup, as from the command line : through a database then an index
+ * built from it and loaded by a third run, or through an index streamed
+ * straight from the files and loaded by the same run. The first two runs are
+ * given the lookup as well, which they skip without an index, as a run
+ * without any reads them from the standard input. The virtual mode streams the
+ * index with the files read on virtual threads (-t) rather than on the
+ * platform pool of the stream mode, it needs Java 21 or later : older JVMs
+ * log why and fall back to the platform pool.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(1)
+public class IndexBuildBenchmark {
+	@Param({ "20000" })
+	public int nbGames;
+
+	@Param({ "db", "stream", "virtual" })
+	public String mode;
+
+	private File pgnDir;
+	private File workDir;
+	private File fens;
+
+	@Benchmark
+	public long build() {
+		File idx = new File(workDir, "games.idx");
+		File answers = new File(workDir, "answers.txt");
+		if (mode.equals("db")) {
+			File db = new File(workDir, "games.db");
+			PGNIndexer.main(new String[] { "-p", pgnDir.getPath(), "-d", db.getPath(), "-n", "-q", fens.getPath(), "-o", answers.getPath() });
+			PGNIndexer.main(new String[] { "-d", db.getPath(), "-i", idx.getPath(), "-q", fens.getPath(), "-o", answers.getPath() });
+			PGNIndexer.main(new String[] { "-i", idx.getPath(), "-q", fens.getPath(), "-o", answers.getPath() });
+		} else if (mode.equals("virtual")) {
+			PGNIndexer.main(new String[] { "-p", pgnDir.getPath(), "-i", idx.getPath(), "-n", "-t", "-q", fens.getPath(), "-o", answers.getPath() });
+		} else {
+			PGNIndexer.main(new String[] { "-p", pgnDir.getPath(), "-i", idx.getPath(), "-n", "-q", fens.getPath(), "-o", answers.getPath() });
+		}
+		return answers.length();
+	}
+
+	@Setup(Level.Invocation)
+	public void clean() throws IOException {
+		if (workDir != null) {
+			for (File f : workDir.listFiles()) {
+				Files.delete(f.toPath());
+			}
+		}
+	}
+
+	@Setup
+	public void setup() throws IOException {
+		pgnDir = Fixtures.getPgnDirectory(nbGames);
+		workDir = Files.createTempDirectory("pgnindexer-build").toFile();
+		workDir.deleteOnExit();
+		fens = new File(workDir.getParentFile(), workDir.getName() + ".fens");
+		fens.deleteOnExit();
+		Files.write(fens.toPath(), (CompactBoard.START_FEN + "\n").getBytes(StandardCharsets.US_ASCII));
+	}
+}
@@ -0,0 +1,60 @@
+package name.herve.chess.pgnindexer.benchmarks;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import name.herve.chess.pgnindexer.GameCatalogReader;
+import name.herve.chess.pgnindexer.IndexFileReader;
+
+/**
+ * Opening an index, which only reads its header and maps its sections, and
+ * reading all its games from the catalog on top of that.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IndexLoadBenchmark {
+	@Param({ "2000", "20000" })
+	public int nbGames;
+
+	private File idx;
+
+	@Benchmark
+	public long catalog() throws Exception {
+		try (IndexFileReader reader = new IndexFileReader(idx)) {
+			GameCatalogReader catalog = reader.getCatalog();
+			long nb = 0;
+			for (int g = 1; g <= catalog.getNbGames(); g++) {
+				nb += catalog.getOrdinal(g) + catalog.getFile(g).length() + catalog.getOffset(g);
+			}
+			return nb;
+		}
+	}
+
+	@Benchmark
+	public long open() throws Exception {
+		try (IndexFileReader reader = new IndexFileReader(idx)) {
+			return reader.getNbPositions();
+		}
+	}
+
+	@Setup
+	public void setup() throws Exception {
+		idx = Fixtures.getIndex(nbGames);
+	}
+}
@@ -0,0 +1,59 @@
+package name.herve.chess.pgnindexer.benchmarks;
+
+import java.nio.MappedByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import name.herve.chess.pgnindexer.CompactBoard;
+import name.herve.chess.pgnindexer.LongArrayBuffer;
+import name.herve.chess.pgnindexer.PgnScanner;
+
+/**
+ * The native keys of all the positions of a game under each
+ * {@link CompactBoard.KeyPolicy}, which only differ by the tables they read.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KeyPolicyBenchmark {
+	@Param({ "FIDE", "PLACEMENT_SIDE", "PLACEMENT" })
+	public CompactBoard.KeyPolicy policy;
+
+	private MappedByteBuffer buf;
+	private PgnScanner scanner;
+	private CompactBoard board;
+	private LongArrayBuffer positions;
+
+	@Benchmark
+	@OperationsPerInvocation(HashingBenchmark.NB_GAMES)
+	public void hash(Blackhole bh) {
+		scanner.reset(buf, 0, buf.limit());
+		while (Fixtures.hashGame(scanner, board, policy, positions, null)) {
+			bh.consume(positions.sortAndDedup());
+		}
+	}
+
+	@Setup
+	public void setup() throws Exception {
+		buf = Fixtures.map(Fixtures.getPgn(HashingBenchmark.NB_GAMES));
+		scanner = new PgnScanner();
+		board = new CompactBoard();
+		positions = new LongArrayBuffer();
+	}
+}
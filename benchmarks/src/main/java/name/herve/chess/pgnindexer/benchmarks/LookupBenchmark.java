@@ -0,0 +1,124 @@
+package name.herve.chess.pgnindexer.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import name.herve.chess.pgnindexer.IndexFileReader;
+import name.herve.chess.pgnindexer.PositionFingerprints;
+import name.herve.chess.pgnindexer.PositionFingerprintsReader;
+import name.herve.chess.pgnindexer.PositionIndex;
+
+/**
+ * Position lookups in an index : the number of games of one position, the
+ * games themselves, and a batch of {@link #BATCH_SIZE} positions, one by one or
+ * sorted and resolved in a single pass. The looked up keys are indexed keys,
+ * mixed with random keys that miss. The counts are also looked up through the
+ * index, with and without the check of the {@link PositionFingerprints} of the
+ * positions.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LookupBenchmark {
+	public final static int BATCH_SIZE = 1024;
+
+	@Param({ "20000" })
+	public int nbGames;
+
+	@Param({ "0.9" })
+	public double hitRatio;
+
+	private IndexFileReader reader;
+	private PositionIndex index;
+	private long[] keys;
+	private int[] fingerprints;
+	private int[] counts;
+	private int next;
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH_SIZE)
+	public void batchCount(Blackhole bh) {
+		for (long key : keys) {
+			bh.consume(reader.count(key));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH_SIZE)
+	public int[] batchCountSorted() {
+		index.count(keys, keys.length, counts);
+		return counts;
+	}
+
+	@Benchmark
+	public int count() {
+		return reader.count(nextKey());
+	}
+
+	@Benchmark
+	public int countIndex() {
+		return index.count(nextKey());
+	}
+
+	@Benchmark
+	public int countVerified() {
+		long key = nextKey();
+		return index.count(key, fingerprints[next]);
+	}
+
+	@Benchmark
+	public int[] games() {
+		return reader.getGames(nextKey());
+	}
+
+	private long nextKey() {
+		next = (next + 1) % keys.length;
+		return keys[next];
+	}
+
+	@Setup
+	public void setup() throws Exception {
+		reader = new IndexFileReader(Fixtures.getIndex(nbGames));
+		Random random = new Random(Fixtures.SEED);
+		keys = new long[BATCH_SIZE];
+		fingerprints = new int[BATCH_SIZE];
+		try (PositionFingerprintsReader stored = new PositionFingerprintsReader(PositionFingerprints.getFile(reader.getFile()))) {
+			for (int i = 0; i < keys.length; i++) {
+				if (random.nextDouble() < hitRatio) {
+					long rank = (long) (random.nextDouble() * reader.getNbPositions());
+					keys[i] = reader.getKey(rank);
+					fingerprints[i] = stored.get(rank);
+				} else {
+					keys[i] = random.nextLong();
+					fingerprints[i] = random.nextInt();
+				}
+			}
+		}
+		counts = new int[keys.length];
+		index = new PositionIndex(reader);
+		next = 0;
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		reader.close();
+	}
+}
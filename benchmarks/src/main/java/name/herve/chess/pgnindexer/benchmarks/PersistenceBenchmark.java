@@ -0,0 +1,77 @@
+package name.herve.chess.pgnindexer.benchmarks;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import name.herve.chess.pgnindexer.PersistenceToolbox;
+
+/**
+ * Writing and reading back the positions of a game with
+ * {@link PersistenceToolbox}, from small games to large position tables. The
+ * file stays in the page cache, so this measures the encoding and the system
+ * calls, not the disk.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PersistenceBenchmark {
+	@Param({ "80", "4096", "262144" })
+	public int size;
+
+	private long[] values;
+	private File file;
+	private RandomAccessFile raf;
+	private FileChannel channel;
+
+	@Benchmark
+	public FileChannel dumpFullLongArray() throws Exception {
+		channel.position(0);
+		PersistenceToolbox.dumpFullLongArray(channel, values);
+		return channel;
+	}
+
+	@Benchmark
+	public long[] loadFullLongArray() throws Exception {
+		channel.position(0);
+		return PersistenceToolbox.loadFullLongArray(channel);
+	}
+
+	@Setup
+	public void setup() throws Exception {
+		Random random = new Random(Fixtures.SEED);
+		values = new long[size];
+		for (int i = 0; i < size; i++) {
+			values[i] = random.nextLong();
+		}
+		file = File.createTempFile("pgnindexer-persistence", ".bin");
+		raf = PersistenceToolbox.getFile(file, true);
+		channel = raf.getChannel();
+		PersistenceToolbox.dumpFullLongArray(channel, values);
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		channel.close();
+		raf.close();
+		file.delete();
+	}
+}
@@ -0,0 +1,67 @@
+package name.herve.chess.pgnindexer.benchmarks;
+
+import java.io.File;
+import java.nio.MappedByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.github.bhlangonijr.chesslib.game.Game;
+import com.github.bhlangonijr.chesslib.pgn.PgnIterator;
+
+import name.herve.chess.pgnindexer.PgnScanner;
+
+/**
+ * Iterating over the games of a PGN file, without replaying them : chesslib
+ * parses each game into a {@link Game}, the native scanner only finds the games
+ * and counts their moves.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PgnIterationBenchmark {
+	public final static int NB_GAMES = 2000;
+
+	private File pgn;
+	private MappedByteBuffer buf;
+	private PgnScanner scanner;
+
+	@Benchmark
+	@OperationsPerInvocation(NB_GAMES)
+	public void chesslib(Blackhole bh) throws Exception {
+		PgnIterator games = new PgnIterator(pgn.getAbsolutePath());
+		for (Game game : games) {
+			bh.consume(game);
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(NB_GAMES)
+	public void scanner(Blackhole bh) {
+		scanner.reset(buf, 0, buf.limit());
+		while (scanner.nextGame()) {
+			bh.consume(scanner.skipMovetext());
+		}
+	}
+
+	@Setup
+	public void setup() throws Exception {
+		pgn = Fixtures.getPgn(NB_GAMES);
+		buf = Fixtures.map(pgn);
+		scanner = new PgnScanner();
+	}
+}
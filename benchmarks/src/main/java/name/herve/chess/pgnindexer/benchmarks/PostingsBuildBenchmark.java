@@ -0,0 +1,92 @@
+package name.herve.chess.pgnindexer.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import name.herve.chess.pgnindexer.CompactBoard;
+import name.herve.chess.pgnindexer.LongArrayBuffer;
+import name.herve.chess.pgnindexer.LongIntMultiMap;
+import name.herve.chess.pgnindexer.PgnScanner;
+
+/**
+ * Building the postings of a set of games in memory, from their positions in
+ * the order they are played : with a TreeSet of boxed keys per game and a
+ * HashMap of boxed game lists, as loadDb and GameTask used to, and with the
+ * {@link LongArrayBuffer} and the {@link LongIntMultiMap} that replaced them.
+ * The heap and GC difference shows with the gc profiler (-prof gc).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PostingsBuildBenchmark {
+	@Param({ "2000", "20000" })
+	public int nbGames;
+
+	private long[][] games;
+
+	@Benchmark
+	public Map<Long, List<Integer>> boxed() {
+		Map<Long, List<Integer>> postings = new HashMap<>();
+		for (int g = 0; g < games.length; g++) {
+			TreeSet<Long> positions = new TreeSet<>();
+			for (long p : games[g]) {
+				positions.add(p);
+			}
+			for (Long p : positions) {
+				postings.computeIfAbsent(p, k -> new ArrayList<>()).add(g + 1);
+			}
+		}
+		return postings;
+	}
+
+	@Benchmark
+	public LongIntMultiMap primitive() {
+		LongIntMultiMap postings = new LongIntMultiMap();
+		LongArrayBuffer positions = new LongArrayBuffer();
+		for (int g = 0; g < games.length; g++) {
+			positions.clear();
+			for (long p : games[g]) {
+				positions.add(p);
+			}
+			int nb = positions.sortAndDedup();
+			long[] values = positions.getValues();
+			for (int i = 0; i < nb; i++) {
+				postings.add(values[i], g + 1);
+			}
+		}
+		return postings;
+	}
+
+	@Setup
+	public void setup() throws Exception {
+		ByteBuffer buf = Fixtures.map(Fixtures.getPgn(nbGames));
+		PgnScanner scanner = new PgnScanner();
+		scanner.reset(buf, 0, buf.limit());
+		CompactBoard board = new CompactBoard();
+		LongArrayBuffer positions = new LongArrayBuffer();
+		games = new long[nbGames][];
+		for (int g = 0; (g < nbGames) && Fixtures.hashGame(scanner, board, positions); g++) {
+			games[g] = positions.toArray();
+		}
+	}
+}
@@ -0,0 +1,712 @@
+package name.herve.chess.pgnindexer;
+
+import java.util.Arrays;
+
+/**
+ * A minimal chess board, just what is needed to replay the SAN moves of a PGN
+ * and hash the positions. The board is a 64 bytes array (a1 = 0, h8 = 63), each
+ * square holding a piece type and a color bit. The Zobrist key of the piece
+ * placement is updated incrementally, and all the move patterns come from
+ * tables computed once, so replaying a move does not allocate anything.
+ *
+ * The positions are identified by their key under a {@link KeyPolicy}, which
+ * only hashes the parts of the position it compares, from the same tables.
+ *
+ * A board is not thread safe, each indexing thread should use its own.
+ */
+public class CompactBoard {
+	/**
+	 * What makes two positions the same one, and share a key. The parts left out
+	 * hash to 0, so the key of a position is a few table lookups whatever the
+	 * policy.
+	 */
+	public enum KeyPolicy {
+		/**
+		 * piece placement, side to move, castling rights and en passant capture,
+		 * the identity of the positions FIDE counts for a repetition
+		 */
+		FIDE(true, true),
+		/** piece placement and side to move, regardless of the rights */
+		PLACEMENT_SIDE(true, false),
+		/** piece placement only, the positions reached with either side to move being the same */
+		PLACEMENT(false, false);
+
+		/**
+		 * @return the policy of the given ordinal, as stored in the index files,
+		 *         or null if unknown
+		 */
+		public static KeyPolicy valueOf(int ordinal) {
+			KeyPolicy[] policies = values();
+			return (ordinal >= 0) && (ordinal < policies.length) ? policies[ordinal] : null;
+		}
+
+		/** indexed by the side to move shifted by 3 */
+		private long[] sideKeys;
+		private long[] castlingKeys;
+		private long[] enPassantKeys;
+
+		private KeyPolicy(boolean side, boolean rights) {
+			sideKeys = new long[] { 0, side ? ZobristKeys.BLACK_TO_MOVE : 0 };
+			castlingKeys = rights ? ZobristKeys.CASTLING : new long[ZobristKeys.CASTLING.length];
+			enPassantKeys = rights ? ZobristKeys.EN_PASSANT : new long[ZobristKeys.EN_PASSANT.length];
+		}
+
+		public boolean hasSideToMove() {
+			return sideKeys[1] != 0;
+		}
+	}
+
+	public final static int EMPTY = 0;
+	public final static int PAWN = 1;
+	public final static int KNIGHT = 2;
+	public final static int BISHOP = 3;
+	public final static int ROOK = 4;
+	public final static int QUEEN = 5;
+	public final static int KING = 6;
+
+	public final static int WHITE = 0;
+	public final static int BLACK = 8;
+
+	public final static int WHITE_KING_SIDE = 1;
+	public final static int WHITE_QUEEN_SIDE = 2;
+	public final static int BLACK_KING_SIDE = 4;
+	public final static int BLACK_QUEEN_SIDE = 8;
+
+	public final static String START_FEN = "rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1";
+
+	private final static String PIECE_LETTERS = ".PNBRQK";
+	private final static String PROMOTION_LETTERS = "..nbrq";
+
+	private final static int[][] KNIGHT_TARGETS = new int[64][];
+	private final static int[][] KING_TARGETS = new int[64][];
+	/** rook directions first (0 to 3), then bishop directions (4 to 7) */
+	private final static int[][][] RAYS = new int[64][8][];
+	/** rights kept when a piece moves from or to a square */
+	private final static int[] CASTLING_MASK = new int[64];
+
+	static {
+		int[][] knight = { { 1, 2 }, { 2, 1 }, { 2, -1 }, { 1, -2 }, { -1, -2 }, { -2, -1 }, { -2, 1 }, { -1, 2 } };
+		int[][] king = { { 0, 1 }, { 0, -1 }, { 1, 0 }, { -1, 0 }, { 1, 1 }, { -1, 1 }, { 1, -1 }, { -1, -1 } };
+
+		for (int sq = 0; sq < 64; sq++) {
+			KNIGHT_TARGETS[sq] = targets(sq, knight);
+			KING_TARGETS[sq] = targets(sq, king);
+			for (int d = 0; d < 8; d++) {
+				int[] ray = new int[7];
+				int n = 0;
+				int f = (sq & 7) + king[d][0];
+				int r = (sq >> 3) + king[d][1];
+				while ((f >= 0) && (f < 8) && (r >= 0) && (r < 8)) {
+					ray[n++] = (r * 8) + f;
+					f += king[d][0];
+					r += king[d][1];
+				}
+				RAYS[sq][d] = Arrays.copyOf(ray, n);
+			}
+			CASTLING_MASK[sq] = 15;
+		}
+		CASTLING_MASK[0] &= ~WHITE_QUEEN_SIDE;
+		CASTLING_MASK[4] &= ~(WHITE_KING_SIDE | WHITE_QUEEN_SIDE);
+		CASTLING_MASK[7] &= ~WHITE_KING_SIDE;
+		CASTLING_MASK[56] &= ~BLACK_QUEEN_SIDE;
+		CASTLING_MASK[60] &= ~(BLACK_KING_SIDE | BLACK_QUEEN_SIDE);
+		CASTLING_MASK[63] &= ~BLACK_KING_SIDE;
+	}
+
+	/** copied by {@link #reset()}, must be created after the tables */
+	private final static CompactBoard START = new CompactBoard();
+
+	/**
+	 * @return a move packed in 15 bits : the from square, the to square shifted
+	 *         by 6 and the promotion piece type shifted by 12. A castling is the
+	 *         move of the king, as in UCI, and 0 is never a move.
+	 */
+	public static int encodeMove(int from, int to, int promotion) {
+		return from | (to << 6) | (promotion << 12);
+	}
+
+	/**
+	 * @return the UCI notation of a move packed by
+	 *         {@link #encodeMove(int, int, int)}
+	 */
+	public static String moveToUci(int move) {
+		int from = move & 63;
+		int to = (move >> 6) & 63;
+		int promotion = (move >> 12) & 7;
+		StringBuilder sb = new StringBuilder();
+		sb.append((char) ('a' + (from & 7))).append((char) ('1' + (from >> 3)));
+		sb.append((char) ('a' + (to & 7))).append((char) ('1' + (to >> 3)));
+		if ((promotion >= KNIGHT) && (promotion <= QUEEN)) {
+			sb.append(PROMOTION_LETTERS.charAt(promotion));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return a move in UCI notation, such as e2e4 or e7e8q, packed by
+	 *         {@link #encodeMove(int, int, int)}, or 0 if it can not be parsed
+	 */
+	public static int parseUci(String uci) {
+		if ((uci == null) || (uci.length() < 4)) {
+			return 0;
+		}
+		int[] squares = new int[2];
+		for (int s = 0; s < 2; s++) {
+			int f = uci.charAt(2 * s) - 'a';
+			int r = uci.charAt((2 * s) + 1) - '1';
+			if ((f < 0) || (f > 7) || (r < 0) || (r > 7)) {
+				return 0;
+			}
+			squares[s] = (r * 8) + f;
+		}
+		int promotion = uci.length() > 4 ? Math.max(EMPTY, PROMOTION_LETTERS.indexOf(Character.toLowerCase(uci.charAt(4)))) : EMPTY;
+		return encodeMove(squares[0], squares[1], promotion);
+	}
+
+	/**
+	 * @return the index of a piece in {@link ZobristKeys#PIECE_SQUARE}
+	 */
+	public static int pieceIndex(int piece) {
+		return (((piece >> 3) * 6) + (piece & 7)) - 1;
+	}
+
+	private static int pieceType(byte c) {
+		int t = PIECE_LETTERS.indexOf(Character.toUpperCase((char) c));
+		return t > 0 ? t : EMPTY;
+	}
+
+	private static int[] targets(int sq, int[][] offsets) {
+		int[] t = new int[offsets.length];
+		int n = 0;
+		for (int[] o : offsets) {
+			int f = (sq & 7) + o[0];
+			int r = (sq >> 3) + o[1];
+			if ((f >= 0) && (f < 8) && (r >= 0) && (r < 8)) {
+				t[n++] = (r * 8) + f;
+			}
+		}
+		return Arrays.copyOf(t, n);
+	}
+
+	private byte[] squares;
+	private int[] kings;
+	private int[] candidates;
+	private int side;
+	private int castling;
+	private int epSquare;
+	private int moveNumber;
+	private long placementKey;
+	private int lastMove;
+
+	public CompactBoard() {
+		super();
+		squares = new byte[64];
+		kings = new int[2];
+		candidates = new int[16];
+		reset();
+	}
+
+	private boolean canCaptureEnPassant() {
+		if (epSquare < 0) {
+			return false;
+		}
+		int pawn = side | PAWN;
+		int from = side == WHITE ? epSquare - 8 : epSquare + 8;
+		int f = epSquare & 7;
+		return ((f > 0) && (squares[from - 1] == pawn)) || ((f < 7) && (squares[from + 1] == pawn));
+	}
+
+	private boolean castle(boolean kingSide) {
+		int rank = side == WHITE ? 0 : 56;
+		int king = side | KING;
+		int rook = side | ROOK;
+		int rookFrom = rank + (kingSide ? 7 : 0);
+		if ((squares[rank + 4] != king) || (squares[rookFrom] != rook)) {
+			return false;
+		}
+		remove(rank + 4);
+		remove(rookFrom);
+		put(rank + (kingSide ? 6 : 2), king);
+		put(rank + (kingSide ? 5 : 3), rook);
+		castling &= CASTLING_MASK[rank + 4];
+		lastMove = encodeMove(rank + 4, rank + (kingSide ? 6 : 2), EMPTY);
+		endMove(-1);
+		return true;
+	}
+
+	private void clear() {
+		Arrays.fill(squares, (byte) EMPTY);
+		kings[0] = -1;
+		kings[1] = -1;
+		side = WHITE;
+		castling = 0;
+		epSquare = -1;
+		moveNumber = 1;
+		placementKey = 0;
+		lastMove = 0;
+	}
+
+	/**
+	 * Plays a move given in standard algebraic notation.
+	 *
+	 * @return false if the move can not be parsed or is not possible on this
+	 *         board, which is then left unchanged
+	 */
+	public boolean doSan(byte[] san, int offset, int length) {
+		int end = offset + length;
+		while ((end > offset) && ((san[end - 1] == '+') || (san[end - 1] == '#') || (san[end - 1] == '!') || (san[end - 1] == '?'))) {
+			end--;
+		}
+		if ((end - offset) < 2) {
+			return false;
+		}
+
+		if ((san[offset] == 'O') || (san[offset] == '0')) {
+			int nb = 0;
+			for (int i = offset; i < end; i++) {
+				if ((san[i] == 'O') || (san[i] == '0')) {
+					nb++;
+				}
+			}
+			return castle(nb == 2);
+		}
+
+		int promotion = EMPTY;
+		int last = pieceType(san[end - 1]);
+		if ((last >= KNIGHT) && (last <= QUEEN) && (Character.isUpperCase(san[end - 1]))) {
+			promotion = last;
+			end--;
+			if ((end > offset) && (san[end - 1] == '=')) {
+				end--;
+			}
+		}
+		if ((end - offset) < 2) {
+			return false;
+		}
+
+		int toFile = san[end - 2] - 'a';
+		int toRank = san[end - 1] - '1';
+		if ((toFile < 0) || (toFile > 7) || (toRank < 0) || (toRank > 7)) {
+			return false;
+		}
+		int to = (toRank * 8) + toFile;
+
+		int p = offset;
+		int type = PAWN;
+		if ((san[p] >= 'A') && (san[p] <= 'Z')) {
+			type = pieceType(san[p]);
+			if ((type == EMPTY) || (type == PAWN)) {
+				return false;
+			}
+			p++;
+		}
+		int fromFile = -1;
+		int fromRank = -1;
+		for (; p < (end - 2); p++) {
+			byte c = san[p];
+			if ((c >= 'a') && (c <= 'h')) {
+				fromFile = c - 'a';
+			} else if ((c >= '1') && (c <= '8')) {
+				fromRank = c - '1';
+			} else if ((c != 'x') && (c != ':') && (c != '-')) {
+				return false;
+			}
+		}
+
+		if ((squares[to] != EMPTY) && ((squares[to] & BLACK) == side)) {
+			return false;
+		}
+
+		int from = type == PAWN ? findPawn(to, fromFile) : findPiece(type, to, fromFile, fromRank);
+		if (from < 0) {
+			return false;
+		}
+		if ((type == PAWN) && ((toRank == 0) || (toRank == 7)) && (promotion == EMPTY)) {
+			promotion = QUEEN;
+		}
+
+		move(from, to, promotion);
+		return true;
+	}
+
+	private void endMove(int newEpSquare) {
+		epSquare = newEpSquare;
+		side ^= BLACK;
+		if (side == WHITE) {
+			moveNumber++;
+		}
+	}
+
+	private int findPawn(int to, int fromFile) {
+		int pawn = side | PAWN;
+		int back = side == WHITE ? -8 : 8;
+		int toFile = to & 7;
+
+		if ((fromFile >= 0) && (fromFile != toFile)) {
+			if (Math.abs(fromFile - toFile) != 1) {
+				return -1;
+			}
+			int from = (to + back + fromFile) - toFile;
+			if ((from < 0) || (from > 63) || (squares[from] != pawn)) {
+				return -1;
+			}
+			if ((squares[to] == EMPTY) && (to != epSquare)) {
+				return -1;
+			}
+			return from;
+		}
+
+		if (squares[to] != EMPTY) {
+			return -1;
+		}
+		int from = to + back;
+		if ((from < 0) || (from > 63)) {
+			return -1;
+		}
+		if (squares[from] == EMPTY) {
+			int rank = to >> 3;
+			if ((side == WHITE ? rank != 3 : rank != 4)) {
+				return -1;
+			}
+			from += back;
+		}
+		if (squares[from] != pawn) {
+			return -1;
+		}
+		return from;
+	}
+
+	private int findPiece(int type, int to, int fromFile, int fromRank) {
+		int piece = side | type;
+		int nb = 0;
+
+		if ((type == KNIGHT) || (type == KING)) {
+			for (int from : type == KNIGHT ? KNIGHT_TARGETS[to] : KING_TARGETS[to]) {
+				if ((squares[from] == piece) && matches(from, fromFile, fromRank)) {
+					candidates[nb++] = from;
+				}
+			}
+		} else {
+			int d0 = type == BISHOP ? 4 : 0;
+			int d1 = type == ROOK ? 4 : 8;
+			for (int d = d0; d < d1; d++) {
+				for (int from : RAYS[to][d]) {
+					if (squares[from] != EMPTY) {
+						if ((squares[from] == piece) && matches(from, fromFile, fromRank)) {
+							candidates[nb++] = from;
+						}
+						break;
+					}
+				}
+			}
+		}
+
+		// the moves of the PGN are trusted, legality is only checked to rule out pinned
+		// pieces, as the SAN does not disambiguate against them
+		if (nb == 1) {
+			return candidates[0];
+		}
+		int found = -1;
+		for (int i = 0; i < nb; i++) {
+			if (!leavesKingInCheck(candidates[i], to)) {
+				if (found >= 0) {
+					return -1;
+				}
+				found = candidates[i];
+			}
+		}
+		return found;
+	}
+
+	public int getCastling() {
+		return castling;
+	}
+
+	public int getEpSquare() {
+		return epSquare;
+	}
+
+	/**
+	 * @return a FEN for the position, with 0 as the halfmove clock
+	 */
+	public String getFen() {
+		StringBuilder sb = new StringBuilder();
+		for (int r = 7; r >= 0; r--) {
+			int empty = 0;
+			for (int f = 0; f < 8; f++) {
+				int piece = squares[(r * 8) + f];
+				if (piece == EMPTY) {
+					empty++;
+					continue;
+				}
+				if (empty > 0) {
+					sb.append(empty);
+					empty = 0;
+				}
+				char c = PIECE_LETTERS.charAt(piece & 7);
+				sb.append((piece & BLACK) == 0 ? c : Character.toLowerCase(c));
+			}
+			if (empty > 0) {
+				sb.append(empty);
+			}
+			if (r > 0) {
+				sb.append('/');
+			}
+		}
+		sb.append(side == WHITE ? " w " : " b ");
+		if (castling == 0) {
+			sb.append('-');
+		} else {
+			sb.append((castling & WHITE_KING_SIDE) != 0 ? "K" : "");
+			sb.append((castling & WHITE_QUEEN_SIDE) != 0 ? "Q" : "");
+			sb.append((castling & BLACK_KING_SIDE) != 0 ? "k" : "");
+			sb.append((castling & BLACK_QUEEN_SIDE) != 0 ? "q" : "");
+		}
+		sb.append(' ');
+		if (epSquare < 0) {
+			sb.append('-');
+		} else {
+			sb.append((char) ('a' + (epSquare & 7))).append((char) ('1' + (epSquare >> 3)));
+		}
+		sb.append(" 0 ").append(moveNumber);
+		return sb.toString();
+	}
+
+	/**
+	 * @return the Zobrist key of the position : piece placement, side to move,
+	 *         castling rights and en passant file, the latter only when a pawn of
+	 *         the side to move stands next to the pawn that just moved two
+	 *         squares
+	 */
+	public long getKey() {
+		return getKey(KeyPolicy.FIDE);
+	}
+
+	/**
+	 * @return the Zobrist key of the parts of the position compared by the
+	 *         policy
+	 */
+	public long getKey(KeyPolicy policy) {
+		long key = placementKey ^ policy.sideKeys[side >> 3] ^ policy.castlingKeys[castling];
+		if (canCaptureEnPassant()) {
+			key ^= policy.enPassantKeys[epSquare & 7];
+		}
+		return key;
+	}
+
+	/**
+	 * @return the last move played on this board, packed by
+	 *         {@link #encodeMove(int, int, int)}, or 0 if none has been played
+	 *         since the position has been set
+	 */
+	public int getLastMove() {
+		return lastMove;
+	}
+
+	public int getMoveNumber() {
+		return moveNumber;
+	}
+
+	public int getPiece(int square) {
+		return squares[square];
+	}
+
+	public long getPlacementKey() {
+		return placementKey;
+	}
+
+	/**
+	 * @return {@link #WHITE} or {@link #BLACK}
+	 */
+	public int getSide() {
+		return side;
+	}
+
+	public boolean isAttacked(int sq, int byColor) {
+		int pawn = byColor | PAWN;
+		int f = sq & 7;
+		int pawnRank = byColor == WHITE ? (sq >> 3) - 1 : (sq >> 3) + 1;
+		if ((pawnRank >= 0) && (pawnRank < 8)) {
+			if ((f > 0) && (squares[((pawnRank * 8) + f) - 1] == pawn)) {
+				return true;
+			}
+			if ((f < 7) && (squares[(pawnRank * 8) + f + 1] == pawn)) {
+				return true;
+			}
+		}
+
+		for (int t : KNIGHT_TARGETS[sq]) {
+			if (squares[t] == (byColor | KNIGHT)) {
+				return true;
+			}
+		}
+		for (int t : KING_TARGETS[sq]) {
+			if (squares[t] == (byColor | KING)) {
+				return true;
+			}
+		}
+		for (int d = 0; d < 8; d++) {
+			int slider = d < 4 ? ROOK : BISHOP;
+			for (int t : RAYS[sq][d]) {
+				int piece = squares[t];
+				if (piece != EMPTY) {
+					if ((piece == (byColor | slider)) || (piece == (byColor | QUEEN))) {
+						return true;
+					}
+					break;
+				}
+			}
+		}
+		return false;
+	}
+
+	private boolean leavesKingInCheck(int from, int to) {
+		byte moving = squares[from];
+		byte captured = squares[to];
+		int epCapture = -1;
+		byte epPawn = EMPTY;
+		if (((moving & 7) == PAWN) && (to == epSquare) && (captured == EMPTY)) {
+			epCapture = side == WHITE ? to - 8 : to + 8;
+			epPawn = squares[epCapture];
+			squares[epCapture] = EMPTY;
+		}
+		squares[to] = moving;
+		squares[from] = EMPTY;
+
+		int king = (moving & 7) == KING ? to : kings[side >> 3];
+		boolean check = isAttacked(king, side ^ BLACK);
+
+		squares[from] = moving;
+		squares[to] = captured;
+		if (epCapture >= 0) {
+			squares[epCapture] = epPawn;
+		}
+		return check;
+	}
+
+	/**
+	 * Sets the board from a FEN. Only the piece placement is mandatory, missing
+	 * fields get their default value.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the placement can not be parsed, or has not exactly one
+	 *             king of each color
+	 */
+	public void loadFen(String fen) {
+		String[] fields = fen.trim().split("\\s+");
+		clear();
+
+		int r = 7;
+		int f = 0;
+		int[] nbKings = new int[2];
+		for (char c : fields[0].toCharArray()) {
+			if (c == '/') {
+				r--;
+				f = 0;
+			} else if ((c >= '1') && (c <= '8')) {
+				f += c - '0';
+			} else {
+				int type = PIECE_LETTERS.indexOf(Character.toUpperCase(c));
+				if ((type <= 0) || (r < 0) || (f > 7)) {
+					throw new IllegalArgumentException("Invalid FEN placement " + fields[0]);
+				}
+				int piece = (Character.isUpperCase(c) ? WHITE : BLACK) | type;
+				if (type == KING) {
+					nbKings[piece >> 3]++;
+				}
+				put((r * 8) + f, piece);
+				f++;
+			}
+		}
+		if ((nbKings[0] != 1) || (nbKings[1] != 1)) {
+			// the moves would be checked against a missing king
+			throw new IllegalArgumentException("Invalid FEN placement " + fields[0] + ", " + nbKings[0] + " white and " + nbKings[1] + " black kings");
+		}
+
+		side = (fields.length > 1) && fields[1].equals("b") ? BLACK : WHITE;
+		if (fields.length > 2) {
+			for (char c : fields[2].toCharArray()) {
+				castling |= c == 'K' ? WHITE_KING_SIDE : c == 'Q' ? WHITE_QUEEN_SIDE : c == 'k' ? BLACK_KING_SIDE : c == 'q' ? BLACK_QUEEN_SIDE : 0;
+			}
+		}
+		if ((fields.length > 3) && (fields[3].length() == 2)) {
+			int ef = fields[3].charAt(0) - 'a';
+			int er = fields[3].charAt(1) - '1';
+			if ((ef >= 0) && (ef < 8) && (er >= 0) && (er < 8)) {
+				epSquare = (er * 8) + ef;
+			}
+		}
+		if (fields.length > 5) {
+			try {
+				moveNumber = Integer.parseInt(fields[5]);
+			} catch (NumberFormatException e) {
+				moveNumber = 1;
+			}
+		}
+	}
+
+	private boolean matches(int from, int fromFile, int fromRank) {
+		return ((fromFile < 0) || ((from & 7) == fromFile)) && ((fromRank < 0) || ((from >> 3) == fromRank));
+	}
+
+	private void move(int from, int to, int promotion) {
+		int piece = squares[from];
+		int newEpSquare = -1;
+
+		if ((piece & 7) == PAWN) {
+			if ((to == epSquare) && (squares[to] == EMPTY)) {
+				remove(side == WHITE ? to - 8 : to + 8);
+			}
+			if (Math.abs(to - from) == 16) {
+				newEpSquare = (from + to) >> 1;
+			}
+			if (promotion != EMPTY) {
+				piece = side | promotion;
+			}
+		}
+
+		if (squares[to] != EMPTY) {
+			remove(to);
+		}
+		remove(from);
+		put(to, piece);
+		castling &= CASTLING_MASK[from] & CASTLING_MASK[to];
+		lastMove = encodeMove(from, to, promotion);
+		endMove(newEpSquare);
+	}
+
+	private void put(int sq, int piece) {
+		squares[sq] = (byte) piece;
+		placementKey ^= ZobristKeys.PIECE_SQUARE[pieceIndex(piece)][sq];
+		if ((piece & 7) == KING) {
+			kings[piece >> 3] = sq;
+		}
+	}
+
+	private void remove(int sq) {
+		int piece = squares[sq];
+		if (piece != EMPTY) {
+			placementKey ^= ZobristKeys.PIECE_SQUARE[pieceIndex(piece)][sq];
+			squares[sq] = EMPTY;
+		}
+	}
+
+	/**
+	 * Sets the standard starting position.
+	 */
+	public void reset() {
+		if (START == null) {
+			loadFen(START_FEN);
+			return;
+		}
+		System.arraycopy(START.squares, 0, squares, 0, squares.length);
+		kings[0] = START.kings[0];
+		kings[1] = START.kings[1];
+		side = START.side;
+		castling = START.castling;
+		epSquare = START.epSquare;
+		moveNumber = START.moveNumber;
+		placementKey = START.placementKey;
+		lastMove = 0;
+	}
+}
@@ -0,0 +1,288 @@
+package name.herve.chess.pgnindexer;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.commons.compress.compressors.zstandard.ZstdCompressorInputStream;
+
+/**
+ * Opens PGN files compressed with gzip, bzip2 or zstd, recognized by their
+ * magic bytes whatever their extension.
+ *
+ * Files made of independent members are decoded in parallel by
+ * {@link ParallelDecoderInputStream} : BGZF files (bgzip), concatenated bzip2
+ * streams (pbzip2) and multi-frame zstd files (pzstd, zstd -T). The others are
+ * decoded by a {@link ReadAheadInputStream}, on their own thread.
+ */
+public class CompressedInput {
+	public enum Format {
+		PLAIN, GZIP, BZIP2, ZSTD
+	}
+
+	/**
+	 * An input stream over a range of a file channel, using positional reads
+	 * so the channel can be shared.
+	 */
+	private static class RangeInputStream extends InputStream {
+		private FileChannel channel;
+		private long position;
+		private long end;
+
+		public RangeInputStream(FileChannel channel, long start, long end) {
+			super();
+			this.channel = channel;
+			this.position = start;
+			this.end = end;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (position >= end) {
+				return -1;
+			}
+			int n = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)), position);
+			if (n > 0) {
+				position += n;
+			}
+			return n;
+		}
+	}
+
+	public final static int BUFFER_SIZE = 64 * 1024;
+
+	private final static int ZSTD_MAGIC = 0xFD2FB528;
+	private final static int ZSTD_SKIPPABLE_MAGIC = 0x184D2A50;
+	private final static byte[] BZIP2_STREAM_MAGIC = { 'B', 'Z', 'h', '9', 0x31, 0x41, 0x59, 0x26, 0x53, 0x59 };
+	private final static int BZIP2_SEARCH_WINDOW = 16 * 1024 * 1024;
+	private final static long BZIP2_PROBE_SIZE = 4 * 1024 * 1024;
+
+	public static Format detect(File file) throws IOException {
+		byte[] magic = new byte[4];
+		int n;
+		try (InputStream in = new FileInputStream(file)) {
+			n = in.readNBytes(magic, 0, magic.length);
+		}
+		if ((n >= 2) && ((magic[0] & 0xFF) == 0x1F) && ((magic[1] & 0xFF) == 0x8B)) {
+			return Format.GZIP;
+		}
+		if ((n >= 3) && (magic[0] == 'B') && (magic[1] == 'Z') && (magic[2] == 'h')) {
+			return Format.BZIP2;
+		}
+		if ((n == 4) && (ByteBuffer.wrap(magic).order(ByteOrder.LITTLE_ENDIAN).getInt() == ZSTD_MAGIC)) {
+			return Format.ZSTD;
+		}
+		return Format.PLAIN;
+	}
+
+	/**
+	 * Tells whether a file has several members, from its start only : the
+	 * second stream of a pbzip2 file starts within its first blocks, while a
+	 * single stream bzip2 file would be searched to its end.
+	 */
+	private static boolean hasMembers(FileChannel channel, Format format) throws IOException {
+		if (format == Format.BZIP2) {
+			long end = Math.min(channel.size(), BZIP2_PROBE_SIZE);
+			return nextBzip2Stream(channel, 1, end) < end;
+		}
+		return nextMember(channel, format, 0, ParallelDecoderInputStream.GROUP_SIZE) < channel.size();
+	}
+
+	private static boolean isBzip2StreamStart(ByteBuffer buf, int p) {
+		if ((p + BZIP2_STREAM_MAGIC.length) > buf.limit()) {
+			return false;
+		}
+		for (int i = 0; i < BZIP2_STREAM_MAGIC.length; i++) {
+			byte c = buf.get(p + i);
+			// the block size digit
+			if ((i == 3) ? ((c < '1') || (c > '9')) : (c != BZIP2_STREAM_MAGIC[i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public static boolean isCompressed(File file) throws IOException {
+		return detect(file) != Format.PLAIN;
+	}
+
+	static InputStream newDecoder(Format format, InputStream in) throws IOException {
+		switch (format) {
+		case GZIP:
+			return new GZIPInputStream(in, BUFFER_SIZE);
+		case BZIP2:
+			return new BZip2CompressorInputStream(in, true);
+		case ZSTD:
+			return new ZstdCompressorInputStream(in);
+		default:
+			return in;
+		}
+	}
+
+	static InputStream newDecoder(Format format, FileChannel channel, long start, long end) throws IOException {
+		return newDecoder(format, new BufferedInputStream(new RangeInputStream(channel, start, end), BUFFER_SIZE));
+	}
+
+	/**
+	 * Finds where the next independent member of a compressed file starts.
+	 *
+	 * @param from
+	 *            the start of a member
+	 * @param target
+	 *            the offset the member should preferably start at or after
+	 * @return the start of the first member at or after target, or the size of
+	 *         the file if there is none or if the members can not be told apart
+	 */
+	static long nextMember(FileChannel channel, Format format, long from, long target) throws IOException {
+		long size = channel.size();
+		switch (format) {
+		case GZIP:
+			return nextBgzfBlock(channel, from, target, size);
+		case BZIP2:
+			return nextBzip2Stream(channel, Math.max(from + 1, target), size);
+		case ZSTD:
+			return nextZstdFrame(channel, from, target, size);
+		default:
+			return size;
+		}
+	}
+
+	/**
+	 * BGZF blocks are gzip members with a BC extra field giving their size.
+	 */
+	private static long nextBgzfBlock(FileChannel channel, long from, long target, long size) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(18).order(ByteOrder.LITTLE_ENDIAN);
+		long p = from;
+		while (p < target) {
+			header.clear();
+			if ((size - p) < header.capacity()) {
+				return size;
+			}
+			channel.read(header, p);
+			boolean bgzf = ((header.get(0) & 0xFF) == 0x1F) && ((header.get(1) & 0xFF) == 0x8B) && ((header.get(3) & 0x04) != 0) && (header.get(12) == 'B')
+					&& (header.get(13) == 'C') && (header.getShort(14) == 2);
+			if (!bgzf) {
+				return size;
+			}
+			p += (header.getShort(16) & 0xFFFF) + 1;
+		}
+		return Math.min(p, size);
+	}
+
+	/**
+	 * pbzip2 writes independent bzip2 streams, each of them starting with the
+	 * stream header immediately followed by the block magic. This 10 bytes
+	 * pattern is looked for at each offset, as bzip2 data is not byte aligned.
+	 *
+	 * @param size
+	 *            where to stop looking, the size of the file or less
+	 */
+	private static long nextBzip2Stream(FileChannel channel, long target, long size) throws IOException {
+		long p = target;
+		while (p < size) {
+			long length = Math.min(BZIP2_SEARCH_WINDOW, size - p);
+			MappedByteBuffer buf = channel.map(MapMode.READ_ONLY, p, length);
+			for (int i = 0; i < length; i++) {
+				if ((buf.get(i) == 'B') && isBzip2StreamStart(buf, i)) {
+					return p + i;
+				}
+			}
+			if ((p + length) >= size) {
+				break;
+			}
+			// windows overlap so that a pattern across two of them is not missed
+			p += length - BZIP2_STREAM_MAGIC.length;
+		}
+		return size;
+	}
+
+	/**
+	 * zstd frames are walked through their block headers, without decoding
+	 * anything.
+	 */
+	private static long nextZstdFrame(FileChannel channel, long from, long target, long size) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(18).order(ByteOrder.LITTLE_ENDIAN);
+		long p = from;
+		while (p < target) {
+			header.clear();
+			header.limit((int) Math.min(header.capacity(), size - p));
+			channel.read(header, p);
+			if (header.limit() < 8) {
+				return size;
+			}
+			int magic = header.getInt(0);
+			if ((magic & 0xFFFFFFF0) == ZSTD_SKIPPABLE_MAGIC) {
+				p += 8 + (header.getInt(4) & 0xFFFFFFFFL);
+				continue;
+			}
+			if (magic != ZSTD_MAGIC) {
+				return size;
+			}
+
+			int descriptor = header.get(4) & 0xFF;
+			boolean singleSegment = (descriptor & 0x20) != 0;
+			int[] dictionaryIdSizes = { 0, 1, 2, 4 };
+			int[] contentSizeSizes = { singleSegment ? 1 : 0, 2, 4, 8 };
+			p += 5 + (singleSegment ? 0 : 1) + dictionaryIdSizes[descriptor & 0x03] + contentSizeSizes[descriptor >>> 6];
+
+			boolean last = false;
+			while (!last) {
+				header.clear();
+				header.limit(3);
+				if ((size - p) < 3) {
+					return size;
+				}
+				channel.read(header, p);
+				int block = (header.get(0) & 0xFF) | ((header.get(1) & 0xFF) << 8) | ((header.get(2) & 0xFF) << 16);
+				last = (block & 1) != 0;
+				int type = (block >>> 1) & 0x03;
+				int blockSize = block >>> 3;
+				// RLE blocks hold a single byte repeated blockSize times
+				p += 3 + (type == 1 ? 1 : blockSize);
+			}
+			if ((descriptor & 0x04) != 0) {
+				p += 4;
+			}
+		}
+		return Math.min(p, size);
+	}
+
+	/**
+	 * Opens a file for reading, decompressing it if needed.
+	 *
+	 * @param decoders
+	 *            the pool decoding the members of the files that can be decoded
+	 *            in parallel
+	 * @param nbParallel
+	 *            the number of groups of members decoded ahead of the reader
+	 */
+	public static InputStream open(File file, ExecutorService decoders, int nbParallel) throws IOException {
+		Format format = detect(file);
+		if (format == Format.PLAIN) {
+			return new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+		}
+
+		FileChannel channel = PersistenceToolbox.getFile(file, false).getChannel();
+		if (hasMembers(channel, format)) {
+			return new ParallelDecoderInputStream(channel, format, decoders, nbParallel);
+		}
+		channel.close();
+		return new ReadAheadInputStream(newDecoder(format, new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE)), file.getName());
+	}
+}
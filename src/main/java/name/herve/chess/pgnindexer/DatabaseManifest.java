@@ -0,0 +1,187 @@
+package name.herve.chess.pgnindexer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The database file lists the shards written by each indexing thread and the
+ * number of games they hold. A database file without the manifest magic is a
+ * single shard database written by an older version. Version 1 manifests have
+ * no flags, their positions are all chesslib keys.
+ *
+ * Since version 3 the manifest also holds the directory of the blocks of each
+ * shard : the offset of every {@link #BLOCK_GAMES} games, so that a shard can
+ * be read by several threads at once. The shards of older versions are a
+ * single block.
+ *
+ * The ordinal of the {@link CompactBoard.KeyPolicy} of the positions is stored
+ * in the flags, from bit {@link #FLAGS_KEY_POLICY_SHIFT}.
+ */
+public class DatabaseManifest {
+	public final static int MAGIC = 0x50474E44;
+	public final static int VERSION = 3;
+	public final static int BLOCK_GAMES = 4096;
+
+	public final static int FLAG_NATIVE_KEYS = 1;
+	public final static int FLAGS_KEY_POLICY_SHIFT = 1;
+	public final static int FLAGS_KEY_POLICY_MASK = 3;
+
+	public static File getShardFile(File db, int shard) {
+		return new File(db.getPath() + "." + shard);
+	}
+
+	public static DatabaseManifest load(File db) throws IOException {
+		DatabaseManifest manifest = new DatabaseManifest();
+
+		try (RandomAccessFile raf = PersistenceToolbox.getFile(db, false)) {
+			FileChannel fc = raf.getChannel();
+			if ((fc.size() < PersistenceToolbox.INT_NB_BYTES) || (PersistenceToolbox.loadInt(fc) != MAGIC)) {
+				manifest.add(db, -1);
+				return manifest;
+			}
+
+			int version = PersistenceToolbox.loadInt(fc);
+			if ((version < 1) || (version > VERSION)) {
+				throw new IOException(db + " has an unsupported database version " + version);
+			}
+			if (version >= 2) {
+				int flags = PersistenceToolbox.loadInt(fc);
+				manifest.setNativeKeys((flags & FLAG_NATIVE_KEYS) != 0);
+				manifest.setKeyPolicy(CompactBoard.KeyPolicy.valueOf((flags >> FLAGS_KEY_POLICY_SHIFT) & FLAGS_KEY_POLICY_MASK));
+				if (manifest.getKeyPolicy() == null) {
+					throw new IOException(db + " has an unsupported key policy");
+				}
+			}
+			int nbShards = PersistenceToolbox.loadInt(fc);
+			for (int s = 0; s < nbShards; s++) {
+				String name = PersistenceToolbox.loadString(fc);
+				int nbGames = PersistenceToolbox.loadInt(fc);
+				long[] blocks = version >= 3 ? PersistenceToolbox.loadFullLongArray(fc) : null;
+				manifest.add(new File(db.getAbsoluteFile().getParentFile(), name), nbGames, blocks);
+			}
+		}
+
+		return manifest;
+	}
+
+	private List<File> shards;
+	private List<Integer> nbGames;
+	private List<long[]> blocks;
+	private boolean nativeKeys;
+	private CompactBoard.KeyPolicy keyPolicy;
+
+	public DatabaseManifest() {
+		super();
+		shards = new ArrayList<>();
+		nbGames = new ArrayList<>();
+		blocks = new ArrayList<>();
+		nativeKeys = false;
+		keyPolicy = CompactBoard.KeyPolicy.FIDE;
+	}
+
+	public void add(File shard, int nbGames) {
+		add(shard, nbGames, null);
+	}
+
+	/**
+	 * @param blockOffsets
+	 *            the offset in the shard of the first game of each block, or
+	 *            null if the shard is a single block
+	 */
+	public void add(File shard, int nbGames, long[] blockOffsets) {
+		shards.add(shard);
+		this.nbGames.add(nbGames);
+		blocks.add(blockOffsets == null ? new long[] { 0 } : blockOffsets);
+	}
+
+	/**
+	 * @return the offset in the shard following the last game of the block,
+	 *         Long.MAX_VALUE for the last block which goes up to the end of the
+	 *         shard
+	 */
+	public long getBlockEnd(int shard, int block) {
+		long[] offsets = blocks.get(shard);
+		return (block + 1) < offsets.length ? offsets[block + 1] : Long.MAX_VALUE;
+	}
+
+	/**
+	 * @return the offset in the shard of the first game of the block
+	 */
+	public long getBlockStart(int shard, int block) {
+		return blocks.get(shard)[block];
+	}
+
+	/**
+	 * @return the number of games of the shards before this one, that is the
+	 *         shift of its game numbers in the whole database
+	 */
+	public int getFirstGame(int shard) {
+		int first = 0;
+		for (int s = 0; s < shard; s++) {
+			first += Math.max(0, nbGames.get(s));
+		}
+		return first;
+	}
+
+	/**
+	 * @return what identifies the positions, always FIDE for the chesslib keys
+	 */
+	public CompactBoard.KeyPolicy getKeyPolicy() {
+		return keyPolicy;
+	}
+
+	public int getNbBlocks(int shard) {
+		return blocks.get(shard).length;
+	}
+
+	/**
+	 * @return the number of games in the shard, -1 if unknown
+	 */
+	public int getNbGames(int shard) {
+		return nbGames.get(shard);
+	}
+
+	public int getNbShards() {
+		return shards.size();
+	}
+
+	public File getShard(int shard) {
+		return shards.get(shard);
+	}
+
+	/**
+	 * @return true if the positions have been hashed by {@link CompactBoard},
+	 *         false if they come from chesslib
+	 */
+	public boolean isNativeKeys() {
+		return nativeKeys;
+	}
+
+	public void save(File db) throws IOException {
+		try (RandomAccessFile raf = PersistenceToolbox.getFile(db, true)) {
+			PersistenceWriter out = new PersistenceWriter(raf.getChannel());
+			out.dumpInt(MAGIC);
+			out.dumpInt(VERSION);
+			out.dumpInt((nativeKeys ? FLAG_NATIVE_KEYS : 0) | (keyPolicy.ordinal() << FLAGS_KEY_POLICY_SHIFT));
+			out.dumpInt(shards.size());
+			for (int s = 0; s < shards.size(); s++) {
+				out.dumpString(shards.get(s).getName());
+				out.dumpInt(nbGames.get(s));
+				out.dumpFullLongArray(blocks.get(s), blocks.get(s).length);
+			}
+			out.flush();
+		}
+	}
+
+	public void setKeyPolicy(CompactBoard.KeyPolicy keyPolicy) {
+		this.keyPolicy = keyPolicy;
+	}
+
+	public void setNativeKeys(boolean nativeKeys) {
+		this.nativeKeys = nativeKeys;
+	}
+}
@@ -0,0 +1,811 @@
+package name.herve.chess.pgnindexer;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Builds a position index with a bounded amount of memory. The (position,
+ * game) pairs are accumulated in primitive arrays sized after the memory
+ * budget, sorted and spilled to run files when full, then the runs are merged
+ * straight into the {@link IndexFileWriter}, pair after pair, so that the
+ * posting list of a position held by most of the games is not gathered in
+ * memory. The read buffers of the runs share the memory budget, which bounds
+ * the number of runs merged at once. Each thread adding games gets its own
+ * buffers, so games can be fed straight from the indexing threads, the games
+ * themselves going to the {@link GameCatalog} of the writer.
+ *
+ * When a statistics file is set, the move played next is carried along with
+ * each pair, and the {@link PositionStats} of each position are written at the
+ * same time as its posting list. The same goes for the
+ * {@link PositionFingerprints} when a fingerprints file is set.
+ *
+ * When a {@link GameNumbering} is set, the games are added with their part
+ * and their number in it, the part being carried along with each pair, and
+ * they only get their index in the whole index when it is closed, so that the
+ * parts do not wait for the ones before them to be counted.
+ */
+public class ExternalIndexBuilder implements Closeable {
+	private final static int MAX_FAN_IN = 256;
+	private final static int MIN_RUN_BUFFER_SIZE = 64 * 1024;
+	private final static int MAX_RUN_BUFFER_SIZE = 16 * 1024 * 1024;
+	private final static int PAIR_NB_BYTES = 2 * (PersistenceToolbox.LONG_NB_BYTES + PersistenceToolbox.INT_NB_BYTES);
+	private final static int MOVE_NB_BYTES = 2 * PersistenceToolbox.SHORT_NB_BYTES;
+	private final static int FINGERPRINT_NB_BYTES = 2 * PersistenceToolbox.INT_NB_BYTES;
+	private final static int PART_NB_BYTES = 2 * PersistenceToolbox.INT_NB_BYTES;
+
+	/**
+	 * Receives the sorted pairs, position after position.
+	 */
+	private interface PositionVisitor {
+		void add(int part, int game, int move, int fingerprint) throws IOException;
+
+		void end() throws IOException;
+
+		void start(long key) throws IOException;
+	}
+
+	private class IndexOutput implements PositionVisitor {
+		private PositionStatsWriter stats;
+		private PositionFingerprintsWriter fingerprints;
+		private int[] firstGames;
+
+		@Override
+		public void add(int part, int game, int move, int fingerprint) throws IOException {
+			if (firstGames != null) {
+				game += firstGames[part];
+			}
+			writer.addGame(game);
+			if (stats != null) {
+				stats.addGame(game, move);
+			}
+			if (fingerprints != null) {
+				fingerprints.addOccurrence(fingerprint);
+			}
+		}
+
+		@Override
+		public void end() throws IOException {
+			writer.endPosition();
+			if (stats != null) {
+				stats.endPosition();
+			}
+			if (fingerprints != null) {
+				fingerprints.endPosition();
+			}
+		}
+
+		@Override
+		public void start(long key) throws IOException {
+			writer.startPosition(key);
+			if (stats != null) {
+				stats.startPosition();
+			}
+			if (fingerprints != null) {
+				fingerprints.startPosition();
+			}
+		}
+	}
+
+	private class RunOutput implements PositionVisitor {
+		private PersistenceWriter out;
+		private long key;
+
+		@Override
+		public void add(int part, int game, int move, int fingerprint) throws IOException {
+			out.dumpLong(key);
+			if (numbering != null) {
+				out.dumpInt(part);
+			}
+			out.dumpInt(game);
+			if (statsFile != null) {
+				out.dumpShort(move);
+			}
+			if (fingerprintsFile != null) {
+				out.dumpInt(fingerprint);
+			}
+		}
+
+		@Override
+		public void end() {
+		}
+
+		@Override
+		public void start(long key) {
+			this.key = key;
+		}
+	}
+
+	private class Spiller {
+		private long[] keys;
+		private int[] parts;
+		private int[] games;
+		private short[] moves;
+		private int[] fingerprints;
+		private long[] tmpKeys;
+		private int[] tmpParts;
+		private int[] tmpGames;
+		private short[] tmpMoves;
+		private int[] tmpFingerprints;
+		private int size;
+		private int maxPart;
+		private int maxGame;
+
+		private void add(long key, int part, int gameIndex, int move, int fingerprint) throws IOException {
+			if (size == keys.length) {
+				spill();
+			}
+			keys[size] = key;
+			if (parts != null) {
+				parts[size] = part;
+				maxPart = Math.max(maxPart, part);
+				maxGame = Math.max(maxGame, gameIndex);
+			}
+			games[size] = gameIndex;
+			if (moves != null) {
+				moves[size] = (short) move;
+			}
+			if (fingerprints != null) {
+				fingerprints[size] = fingerprint;
+			}
+			size++;
+		}
+
+		private void spill() throws IOException {
+			sort();
+			File run = newRunFile();
+			try (PersistenceWriter out = new PersistenceWriter(PersistenceToolbox.getFile(run, true).getChannel(), bufferSize)) {
+				for (int i = 0; i < size; i++) {
+					out.dumpLong(keys[i]);
+					if (parts != null) {
+						out.dumpInt(parts[i]);
+					}
+					out.dumpInt(games[i]);
+					if (moves != null) {
+						out.dumpShort(moves[i]);
+					}
+					if (fingerprints != null) {
+						out.dumpInt(fingerprints[i]);
+					}
+				}
+			}
+			synchronized (runs) {
+				runs.add(run);
+			}
+			size = 0;
+			maxPart = 0;
+			maxGame = 0;
+		}
+
+		/**
+		 * Sorts the pairs by key, part and game. The parts are moved to the
+		 * high bits of the games when they fit, which keeps their order and
+		 * saves the passes on the parts.
+		 */
+		private void sort() {
+			int gameBits = 32 - Integer.numberOfLeadingZeros(maxGame);
+			if ((parts == null) || ((32 - Integer.numberOfLeadingZeros(maxPart)) + gameBits > 32)) {
+				sortPairs(keys, parts, games, moves, fingerprints, size, tmpKeys, tmpParts, tmpGames, tmpMoves, tmpFingerprints);
+				return;
+			}
+			for (int i = 0; i < size; i++) {
+				games[i] |= parts[i] << gameBits;
+			}
+			sortPairs(keys, null, games, moves, fingerprints, size, tmpKeys, null, tmpGames, tmpMoves, tmpFingerprints);
+			int gameMask = (int) ((1L << gameBits) - 1);
+			for (int i = 0; i < size; i++) {
+				parts[i] = (int) ((games[i] & 0xFFFFFFFFL) >>> gameBits);
+				games[i] &= gameMask;
+			}
+		}
+	}
+
+	private class Run {
+		private PersistenceReader in;
+		private long key;
+		private int part;
+		private int game;
+		private int move;
+		private int fingerprint;
+
+		private boolean next() throws IOException {
+			try {
+				key = in.loadLong();
+				if (numbering != null) {
+					part = in.loadInt();
+				}
+				game = in.loadInt();
+				if (statsFile != null) {
+					move = in.loadShort();
+				}
+				if (fingerprintsFile != null) {
+					fingerprint = in.loadInt();
+				}
+				return true;
+			} catch (EOFException e) {
+				in.close();
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Sorts the pairs by key, then by game, with a LSD radix sort on 16 bits
+	 * digits. The sign bit of the keys is flipped so that they end up in signed
+	 * order, the one of the index.
+	 */
+	public static void sortPairs(long[] keys, int[] games, int n, long[] tmpKeys, int[] tmpGames) {
+		sortPairs(keys, null, games, null, null, n, tmpKeys, null, tmpGames, null, null);
+	}
+
+	/**
+	 * Sorts the pairs by key, then by part, then by game, and moves their
+	 * moves and fingerprints along. The parts, moves and fingerprints are
+	 * ignored if they are null.
+	 */
+	private static void sortPairs(long[] keys, int[] parts, int[] games, short[] moves, int[] fingerprints, int n, long[] tmpKeys, int[] tmpParts,
+			int[] tmpGames, short[] tmpMoves, int[] tmpFingerprints) {
+		int[] count = new int[1 << 16];
+		long[] srcK = keys;
+		int[] srcP = parts;
+		int[] srcG = games;
+		short[] srcM = moves;
+		int[] srcF = fingerprints;
+		long[] dstK = tmpKeys;
+		int[] dstP = tmpParts;
+		int[] dstG = tmpGames;
+		short[] dstM = tmpMoves;
+		int[] dstF = tmpFingerprints;
+
+		// the passes on the parts, if any, go between the ones on the games and the ones on the keys
+		int nbPasses = parts == null ? 6 : 8;
+		for (int pass = 0; pass < nbPasses; pass++) {
+			int[] values = pass < 2 ? srcG : pass < (nbPasses - 4) ? srcP : null;
+			int shift = values != null ? 16 * (pass & 1) : 16 * (pass - (nbPasses - 4));
+			int flip = pass == (nbPasses - 1) ? 0x8000 : 0;
+			Arrays.fill(count, 0);
+			for (int i = 0; i < n; i++) {
+				count[digit(srcK, values, i, shift, flip)]++;
+			}
+			if (count[digit(srcK, values, 0, shift, flip)] == n) {
+				continue;
+			}
+			int sum = 0;
+			for (int d = 0; d < count.length; d++) {
+				int c = count[d];
+				count[d] = sum;
+				sum += c;
+			}
+			for (int i = 0; i < n; i++) {
+				int p = count[digit(srcK, values, i, shift, flip)]++;
+				dstK[p] = srcK[i];
+				if (srcP != null) {
+					dstP[p] = srcP[i];
+				}
+				dstG[p] = srcG[i];
+				if (srcM != null) {
+					dstM[p] = srcM[i];
+				}
+				if (srcF != null) {
+					dstF[p] = srcF[i];
+				}
+			}
+			long[] k = srcK;
+			srcK = dstK;
+			dstK = k;
+			int[] pa = srcP;
+			srcP = dstP;
+			dstP = pa;
+			int[] g = srcG;
+			srcG = dstG;
+			dstG = g;
+			short[] m = srcM;
+			srcM = dstM;
+			dstM = m;
+			int[] f = srcF;
+			srcF = dstF;
+			dstF = f;
+		}
+
+		if (srcK != keys) {
+			System.arraycopy(srcK, 0, keys, 0, n);
+			if (parts != null) {
+				System.arraycopy(srcP, 0, parts, 0, n);
+			}
+			System.arraycopy(srcG, 0, games, 0, n);
+			if (moves != null) {
+				System.arraycopy(srcM, 0, moves, 0, n);
+			}
+			if (fingerprints != null) {
+				System.arraycopy(srcF, 0, fingerprints, 0, n);
+			}
+		}
+	}
+
+	/**
+	 * @param values
+	 *            the games or the parts sorted by the pass, null for a pass on
+	 *            the keys
+	 */
+	private static int digit(long[] keys, int[] values, int i, int shift, int flip) {
+		if (values != null) {
+			return (values[i] >>> shift) & 0xFFFF;
+		}
+		return ((int) (keys[i] >>> shift) & 0xFFFF) ^ flip;
+	}
+
+	private File idxFile;
+	private int bufferSize;
+	private long memoryBudget;
+	private int nbThreads;
+	private int spillerCapacity;
+	private IndexFileWriter writer;
+	private File statsFile;
+	private File fingerprintsFile;
+	private GameNumbering numbering;
+	private List<GameCatalog> partCatalogs;
+	private long nbCollisions;
+	private List<Spiller> spillers;
+	private ThreadLocal<Spiller> currentSpiller;
+	private List<File> runs;
+	private AtomicInteger nbRunFiles;
+	private LongAdder nbPairs;
+
+	public ExternalIndexBuilder(File idxFile, long memoryBudget, int bufferSize) throws IOException {
+		this(idxFile, memoryBudget, bufferSize, 1);
+	}
+
+	/**
+	 * @param nbThreads
+	 *            the number of threads expected to add games concurrently, each
+	 *            of them gets its share of the memory budget
+	 */
+	public ExternalIndexBuilder(File idxFile, long memoryBudget, int bufferSize, int nbThreads) throws IOException {
+		super();
+		this.idxFile = idxFile;
+		this.bufferSize = bufferSize;
+		this.memoryBudget = memoryBudget;
+		this.nbThreads = Math.max(1, nbThreads);
+		writer = new IndexFileWriter(idxFile, bufferSize);
+		statsFile = null;
+		fingerprintsFile = null;
+		numbering = null;
+		partCatalogs = new ArrayList<>();
+		nbCollisions = 0;
+
+		spillerCapacity = getSpillerCapacity();
+		spillers = new ArrayList<>();
+		currentSpiller = new ThreadLocal<>();
+		runs = new ArrayList<>();
+		nbRunFiles = new AtomicInteger();
+		nbPairs = new LongAdder();
+	}
+
+	/**
+	 * Adds a game from its "[ordinal]file" id and its positions. Several
+	 * threads may add games at the same time, as long as each game index is
+	 * used only once.
+	 */
+	public void addGame(int gameIndex, String gameId, long[] positions, int nb) throws IOException {
+		getCatalog().add(gameIndex, gameId);
+		addGame(gameIndex, positions, null, null, nb, null);
+	}
+
+	/**
+	 * Adds the positions of a game, and what the statistics need. The game
+	 * itself is added to the {@link #getCatalog()} by the caller.
+	 *
+	 * @param moves
+	 *            the move played next from each position, packed by
+	 *            {@link CompactBoard#encodeMove(int, int, int)}, 0 for the last
+	 *            one, or null if unknown
+	 * @param fingerprints
+	 *            the {@link PositionFingerprints} of the positions, or null if
+	 *            unknown
+	 * @param summary
+	 *            the summary of the game, or null if unknown
+	 */
+	public void addGame(int gameIndex, long[] positions, int[] moves, int[] fingerprints, int nb, GameSummary summary) throws IOException {
+		addGame(0, gameIndex, positions, moves, fingerprints, nb, summary);
+	}
+
+	/**
+	 * Adds the positions of a game numbered in its part, see
+	 * {@link #setNumbering(GameNumbering)}. The game itself is added to the
+	 * {@link #getCatalog(int)} of its part by the caller.
+	 */
+	public void addGame(int part, int game, long[] positions, int[] moves, int[] fingerprints, int nb, GameSummary summary) throws IOException {
+		Spiller spiller = getSpiller();
+		for (int i = 0; i < nb; i++) {
+			spiller.add(positions[i], part, game, moves == null ? 0 : moves[i], fingerprints == null ? PositionFingerprints.AMBIGUOUS : fingerprints[i]);
+		}
+		GameSummaryTable summaries = getCatalog(part).getSummaries();
+		if ((summaries != null) && (summary != null)) {
+			summaries.set(game, summary);
+		}
+		nbPairs.add(nb);
+	}
+
+	/**
+	 * Gives up the build after a failure : deletes the runs and the partial
+	 * index, statistics and fingerprints files, instead of writing an index
+	 * that would look complete.
+	 */
+	public void abort() {
+		writer.abort();
+		spillers.clear();
+		synchronized (partCatalogs) {
+			partCatalogs.clear();
+		}
+		synchronized (runs) {
+			for (File run : runs) {
+				run.delete();
+			}
+			runs.clear();
+		}
+		if (statsFile != null) {
+			statsFile.delete();
+		}
+		if (fingerprintsFile != null) {
+			fingerprintsFile.delete();
+		}
+	}
+
+	/**
+	 * Merges everything into the index file and removes the runs. All the
+	 * threads adding games must be done, and all the parts counted if the
+	 * games are numbered in their part. The build is aborted if the merge
+	 * fails.
+	 */
+	@Override
+	public void close() throws IOException {
+		PositionStatsWriter statsWriter = null;
+		PositionFingerprintsWriter fingerprintsWriter = null;
+		try {
+			IndexOutput out = new IndexOutput();
+			if (numbering != null) {
+				out.firstGames = numbering.getFirstGames();
+				for (int p = 0; p < partCatalogs.size(); p++) {
+					getCatalog().addAll(partCatalogs.get(p), out.firstGames[p]);
+				}
+				partCatalogs.clear();
+			}
+			if (statsFile != null) {
+				statsWriter = new PositionStatsWriter(statsFile, getCatalog().getSummaries(), bufferSize);
+				out.stats = statsWriter;
+			}
+			if (fingerprintsFile != null) {
+				fingerprintsWriter = new PositionFingerprintsWriter(fingerprintsFile, bufferSize);
+				out.fingerprints = fingerprintsWriter;
+			}
+
+			if (runs.isEmpty() && (spillers.size() == 1)) {
+				Spiller spiller = spillers.get(0);
+				spiller.sort();
+				spiller.tmpKeys = null;
+				spiller.tmpParts = null;
+				spiller.tmpGames = null;
+				spiller.tmpMoves = null;
+				spiller.tmpFingerprints = null;
+				writeMemory(spiller, out);
+			} else {
+				for (Spiller spiller : spillers) {
+					if (spiller.size > 0) {
+						spiller.spill();
+					}
+					spiller.keys = null;
+					spiller.parts = null;
+					spiller.games = null;
+					spiller.moves = null;
+					spiller.fingerprints = null;
+					spiller.tmpKeys = null;
+					spiller.tmpParts = null;
+					spiller.tmpGames = null;
+					spiller.tmpMoves = null;
+					spiller.tmpFingerprints = null;
+				}
+				int fanIn = getFanIn();
+				while (runs.size() > fanIn) {
+					List<File> group = new ArrayList<>(runs.subList(0, fanIn));
+					runs.subList(0, fanIn).clear();
+					File merged = newRunFile();
+					try (PersistenceWriter runOut = new PersistenceWriter(PersistenceToolbox.getFile(merged, true).getChannel(), bufferSize)) {
+						RunOutput output = new RunOutput();
+						output.out = runOut;
+						merge(group, output);
+					}
+					runs.add(merged);
+				}
+				merge(runs, out);
+			}
+		} catch (IOException | RuntimeException e) {
+			for (Closeable c : new Closeable[] { statsWriter, fingerprintsWriter }) {
+				if (c != null) {
+					try {
+						c.close();
+					} catch (IOException ce) {
+						// deleted anyway
+					}
+				}
+			}
+			abort();
+			throw e;
+		} finally {
+			for (File run : runs) {
+				run.delete();
+			}
+		}
+		writer.close();
+		if (statsWriter != null) {
+			statsWriter.close();
+		}
+		if (fingerprintsWriter != null) {
+			fingerprintsWriter.close();
+			nbCollisions = fingerprintsWriter.getNbCollisions();
+		}
+	}
+
+	/**
+	 * @return the catalog the games are added to
+	 */
+	public GameCatalog getCatalog() {
+		return writer.getCatalog();
+	}
+
+	/**
+	 * @return the catalog the games of the part are added to, numbered in their
+	 *         part, the one of the writer if the games are not numbered in
+	 *         their part
+	 */
+	public GameCatalog getCatalog(int part) {
+		if (numbering == null) {
+			return getCatalog();
+		}
+		synchronized (partCatalogs) {
+			while (partCatalogs.size() <= part) {
+				GameCatalog catalog = new GameCatalog();
+				if (getCatalog().getSummaries() != null) {
+					catalog.setSummaries(new GameSummaryTable());
+				}
+				partCatalogs.add(catalog);
+			}
+			return partCatalogs.get(part);
+		}
+	}
+
+	public File getFile() {
+		return idxFile;
+	}
+
+	/**
+	 * @return the number of runs merged at once, so that each of them gets at
+	 *         least {@link #MIN_RUN_BUFFER_SIZE} of the memory budget
+	 */
+	private int getFanIn() {
+		return (int) Math.max(2, Math.min(MAX_FAN_IN, memoryBudget / MIN_RUN_BUFFER_SIZE));
+	}
+
+	/**
+	 * @return the fingerprints file, or null if the fingerprints are not
+	 *         stored
+	 */
+	public File getFingerprintsFile() {
+		return fingerprintsFile;
+	}
+
+	/**
+	 * @return the number of keys held by positions of different fingerprints,
+	 *         known once the index is closed
+	 */
+	public long getNbCollisions() {
+		return nbCollisions;
+	}
+
+	public long getNbPairs() {
+		return nbPairs.sum();
+	}
+
+	public int getNbRuns() {
+		return nbRunFiles.get();
+	}
+
+	private Spiller getSpiller() throws IOException {
+		Spiller spiller = currentSpiller.get();
+		if (spiller == null) {
+			spiller = new Spiller();
+			spiller.keys = new long[spillerCapacity];
+			spiller.games = new int[spillerCapacity];
+			spiller.tmpKeys = new long[spillerCapacity];
+			spiller.tmpGames = new int[spillerCapacity];
+			if (numbering != null) {
+				spiller.parts = new int[spillerCapacity];
+				spiller.tmpParts = new int[spillerCapacity];
+			}
+			if (statsFile != null) {
+				spiller.moves = new short[spillerCapacity];
+				spiller.tmpMoves = new short[spillerCapacity];
+			}
+			if (fingerprintsFile != null) {
+				spiller.fingerprints = new int[spillerCapacity];
+				spiller.tmpFingerprints = new int[spillerCapacity];
+			}
+			spiller.size = 0;
+			spiller.maxPart = 0;
+			spiller.maxGame = 0;
+			synchronized (spillers) {
+				spillers.add(spiller);
+			}
+			currentSpiller.set(spiller);
+		}
+		return spiller;
+	}
+
+	private int getSpillerCapacity() {
+		int pairNbBytes = PAIR_NB_BYTES + (numbering != null ? PART_NB_BYTES : 0) + (statsFile != null ? MOVE_NB_BYTES : 0)
+				+ (fingerprintsFile != null ? FINGERPRINT_NB_BYTES : 0);
+		return (int) Math.min(Integer.MAX_VALUE - 8, Math.max(1024, memoryBudget / pairNbBytes / nbThreads));
+	}
+
+	/**
+	 * @return the statistics file, or null if the statistics are not computed
+	 */
+	public File getStatsFile() {
+		return statsFile;
+	}
+
+	/**
+	 * Merges the runs, whose read buffers share the memory budget, the pairs
+	 * having been released by then.
+	 */
+	private void merge(List<File> files, PositionVisitor out) throws IOException {
+		int runBufferSize = (int) Math.min(MAX_RUN_BUFFER_SIZE, Math.max(MIN_RUN_BUFFER_SIZE, memoryBudget / Math.max(1, files.size())));
+		List<Run> heap = new ArrayList<>(files.size());
+		for (File f : files) {
+			Run run = new Run();
+			run.in = new PersistenceReader(PersistenceToolbox.getFile(f, false).getChannel(), runBufferSize);
+			if (run.next()) {
+				heap.add(run);
+			}
+		}
+		for (int i = (heap.size() / 2) - 1; i >= 0; i--) {
+			siftDown(heap, i);
+		}
+
+		boolean started = false;
+		long currentKey = 0;
+		while (!heap.isEmpty()) {
+			Run top = heap.get(0);
+			if (!started || (top.key != currentKey)) {
+				if (started) {
+					out.end();
+				}
+				currentKey = top.key;
+				out.start(currentKey);
+				started = true;
+			}
+			out.add(top.part, top.game, top.move, top.fingerprint);
+
+			if (!top.next()) {
+				Run last = heap.remove(heap.size() - 1);
+				if (!heap.isEmpty()) {
+					heap.set(0, last);
+				}
+			}
+			if (!heap.isEmpty()) {
+				siftDown(heap, 0);
+			}
+		}
+		if (started) {
+			out.end();
+		}
+
+		for (File f : files) {
+			f.delete();
+		}
+	}
+
+	private File newRunFile() {
+		return new File(idxFile.getPath() + ".run-" + nbRunFiles.getAndIncrement() + ".tmp");
+	}
+
+	/**
+	 * @see IndexFileWriter#setKeyPolicy(CompactBoard.KeyPolicy)
+	 */
+	public void setKeyPolicy(CompactBoard.KeyPolicy keyPolicy) {
+		writer.setKeyPolicy(keyPolicy);
+	}
+
+	/**
+	 * @see IndexFileWriter#setNativeKeys(boolean)
+	 */
+	public void setNativeKeys(boolean nativeKeys) {
+		writer.setNativeKeys(nativeKeys);
+	}
+
+	/**
+	 * Also stores the {@link PositionFingerprints} of the positions, to the
+	 * given file. To be set before the first game is added, as the pairs then
+	 * take more memory.
+	 */
+	public void setFingerprintsFile(File fingerprintsFile) {
+		this.fingerprintsFile = fingerprintsFile;
+		spillerCapacity = getSpillerCapacity();
+	}
+
+	/**
+	 * Numbers the games in their part : they are then added with their part
+	 * and their number in it, from 1, and get their index once the index is
+	 * closed, the games of a part coming after the ones of all the parts before
+	 * it. To be set before the first game is added, as the pairs then take more
+	 * memory.
+	 */
+	public void setNumbering(GameNumbering numbering) {
+		this.numbering = numbering;
+		spillerCapacity = getSpillerCapacity();
+	}
+
+	/**
+	 * Also computes the {@link PositionStats} of the positions, written to the
+	 * given file. To be set before the first game is added, as the pairs then
+	 * take more memory, and the catalog records the summaries of the games.
+	 */
+	public void setStatsFile(File statsFile) {
+		this.statsFile = statsFile;
+		if (getCatalog().getSummaries() == null) {
+			getCatalog().setSummaries(new GameSummaryTable());
+		}
+		spillerCapacity = getSpillerCapacity();
+	}
+
+	private void siftDown(List<Run> heap, int i) {
+		int n = heap.size();
+		Run r = heap.get(i);
+		while (true) {
+			int c = (2 * i) + 1;
+			if (c >= n) {
+				break;
+			}
+			if (((c + 1) < n) && smaller(heap.get(c + 1), heap.get(c))) {
+				c++;
+			}
+			if (!smaller(heap.get(c), r)) {
+				break;
+			}
+			heap.set(i, heap.get(c));
+			i = c;
+		}
+		heap.set(i, r);
+	}
+
+	private boolean smaller(Run a, Run b) {
+		if (a.key != b.key) {
+			return a.key < b.key;
+		}
+		return (a.part < b.part) || ((a.part == b.part) && (a.game < b.game));
+	}
+
+	private void writeMemory(Spiller spiller, PositionVisitor out) throws IOException {
+		long[] keys = spiller.keys;
+		int[] parts = spiller.parts;
+		int[] games = spiller.games;
+		short[] moves = spiller.moves;
+		int[] fingerprints = spiller.fingerprints;
+		int size = spiller.size;
+		int i = 0;
+		while (i < size) {
+			long key = keys[i];
+			out.start(key);
+			while ((i < size) && (keys[i] == key)) {
+				out.add(parts == null ? 0 : parts[i], games[i], moves == null ? 0 : moves[i], fingerprints == null ? PositionFingerprints.AMBIGUOUS : fingerprints[i]);
+				i++;
+			}
+			out.end();
+		}
+	}
+}
@@ -0,0 +1,271 @@
+package name.herve.chess.pgnindexer;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The catalog of the games of an index, built in memory and written as the
+ * games section of the index file, see {@link IndexFile}. A game is located by
+ * its source file, its ordinal in the file and its byte range, the files
+ * being stored once in a dictionary, relative to the root they have been
+ * indexed from, so that a game takes 20 bytes instead of a "[ordinal]file"
+ * string :
+ *
+ * <pre>
+ * dictionary  nbFiles, flags (2 ints), the root, then nbFiles strings, padded to 8 bytes
+ * games       nbGames x (int fileId, int ordinal, long offset), game g at g - 1
+ * lengths     nbGames x int, the number of bytes of each game in its file
+ * summaries   if FLAG_SUMMARIES is set, the result of each game (bytes), then its white rating, black rating and year (shorts), column after column
+ * </pre>
+ *
+ * The games are addressed by their dense index, from 1, so the table can be
+ * read in place by {@link GameCatalogReader}. The games may be added by
+ * several threads and in any order.
+ */
+public class GameCatalog {
+	public final static int FLAG_SUMMARIES = 1;
+	public final static int GAME_NB_BYTES = (2 * PersistenceToolbox.INT_NB_BYTES) + PersistenceToolbox.LONG_NB_BYTES;
+
+	private List<String> files;
+	private Map<String, Integer> fileIds;
+	private int[] gameFiles;
+	private int[] ordinals;
+	private long[] offsets;
+	private int[] lengths;
+	private int nbGames;
+	private GameSummaryTable summaries;
+	private String root;
+
+	public GameCatalog() {
+		super();
+		files = new ArrayList<>();
+		fileIds = new HashMap<>();
+		gameFiles = new int[0];
+		ordinals = new int[0];
+		offsets = new long[0];
+		lengths = new int[0];
+		nbGames = 0;
+		summaries = null;
+		root = "";
+	}
+
+	/**
+	 * @param offset
+	 *            the byte offset of the game in its file, -1 if unknown
+	 * @param length
+	 *            the number of bytes of the game in its file, -1 if unknown
+	 */
+	public synchronized void add(int game, String file, int ordinal, long offset, int length) {
+		grow(game);
+		gameFiles[game - 1] = getFileId(file);
+		ordinals[game - 1] = ordinal;
+		offsets[game - 1] = offset;
+		lengths[game - 1] = length;
+		nbGames = Math.max(nbGames, game);
+	}
+
+	/**
+	 * Adds a game from its "[ordinal]file" id, as the databases store them.
+	 */
+	public void add(int game, String gameId) {
+		int end = gameId.indexOf(']');
+		if (gameId.startsWith("[") && (end > 1)) {
+			try {
+				add(game, gameId.substring(end + 1), Integer.parseInt(gameId.substring(1, end)), -1, -1);
+				return;
+			} catch (NumberFormatException e) {
+				// not an ordinal
+			}
+		}
+		add(game, gameId, 0, -1, -1);
+	}
+
+	/**
+	 * Adds all the games of another catalog built in memory, from the same
+	 * root, their indexes shifted by the given number of games. They replace
+	 * the games of this catalog in their range, the unknown ones included.
+	 */
+	public synchronized void addAll(GameCatalog other, int shift) {
+		synchronized (other) {
+			int n = other.nbGames;
+			int[] otherFileIds = new int[other.files.size()];
+			for (int f = 0; f < otherFileIds.length; f++) {
+				otherFileIds[f] = getFileId(other.files.get(f));
+			}
+			grow(shift + n);
+			for (int g = 0; g < n; g++) {
+				gameFiles[shift + g] = other.gameFiles[g] < 0 ? -1 : otherFileIds[other.gameFiles[g]];
+			}
+			System.arraycopy(other.ordinals, 0, ordinals, shift, n);
+			System.arraycopy(other.offsets, 0, offsets, shift, n);
+			System.arraycopy(other.lengths, 0, lengths, shift, n);
+			if ((summaries != null) && (other.summaries != null)) {
+				summaries.setAll(other.summaries, shift, n);
+			}
+			nbGames = Math.max(nbGames, shift + n);
+		}
+	}
+
+	/**
+	 * Adds all the games of another catalog, their indexes shifted by the given
+	 * number of games. The files of a catalog indexed from another root are
+	 * resolved against it.
+	 */
+	public void addAll(GameCatalogReader other, int shift) {
+		if (root.isEmpty()) {
+			root = other.getRoot();
+		}
+		Path otherRoot = root.equals(other.getRoot()) ? null : Paths.get(other.getRoot());
+		if (other.hasSummaries() && (summaries == null)) {
+			summaries = new GameSummaryTable();
+		}
+		GameSummary summary = new GameSummary();
+		for (int g = 1; g <= other.getNbGames(); g++) {
+			String file = other.getFile(g);
+			if (file != null) {
+				if (otherRoot != null) {
+					file = otherRoot.resolve(file).toString();
+				}
+				add(g + shift, file, other.getOrdinal(g), other.getOffset(g), other.getLength(g));
+			}
+			if (other.hasSummaries()) {
+				summary.set(other.getResult(g), other.getWhiteElo(g), other.getBlackElo(g), other.getYear(g));
+				summaries.set(g + shift, summary);
+			}
+		}
+	}
+
+	/**
+	 * @return the file of the game, or null if the game is unknown
+	 */
+	public synchronized String getFile(int game) {
+		return (game < 1) || (game > nbGames) || (gameFiles[game - 1] < 0) ? null : files.get(gameFiles[game - 1]);
+	}
+
+	private int getFileId(String file) {
+		Integer fileId = fileIds.get(file);
+		if (fileId == null) {
+			fileId = files.size();
+			files.add(file);
+			fileIds.put(file, fileId);
+		}
+		return fileId;
+	}
+
+	public synchronized int getLength(int game) {
+		return lengths[game - 1];
+	}
+
+	public synchronized int getNbFiles() {
+		return files.size();
+	}
+
+	/**
+	 * @return the highest index of the games
+	 */
+	public synchronized int getNbGames() {
+		return nbGames;
+	}
+
+	public synchronized long getOffset(int game) {
+		return offsets[game - 1];
+	}
+
+	public synchronized int getOrdinal(int game) {
+		return ordinals[game - 1];
+	}
+
+	/**
+	 * @return the file or the directory the games have been indexed from, empty
+	 *         if unknown
+	 */
+	public String getRoot() {
+		return root;
+	}
+
+	/**
+	 * @return the results, ratings and years of the games, or null if they are
+	 *         not recorded
+	 */
+	public GameSummaryTable getSummaries() {
+		return summaries;
+	}
+
+	private void grow(int game) {
+		if (game > gameFiles.length) {
+			int capacity = Math.max(game, gameFiles.length * 2);
+			int from = gameFiles.length;
+			gameFiles = Arrays.copyOf(gameFiles, capacity);
+			ordinals = Arrays.copyOf(ordinals, capacity);
+			offsets = Arrays.copyOf(offsets, capacity);
+			lengths = Arrays.copyOf(lengths, capacity);
+			Arrays.fill(gameFiles, from, capacity, -1);
+			Arrays.fill(offsets, from, capacity, -1);
+			Arrays.fill(lengths, from, capacity, -1);
+		}
+	}
+
+	/**
+	 * @param root
+	 *            the file or the directory the games are indexed from, their
+	 *            files being relative to it
+	 */
+	public void setRoot(String root) {
+		this.root = root;
+	}
+
+	/**
+	 * Records the summaries of the games as well, to be set before the first
+	 * game is added.
+	 */
+	public void setSummaries(GameSummaryTable summaries) {
+		this.summaries = summaries;
+	}
+
+	/**
+	 * Writes the catalog, the writer being positioned on an 8 bytes boundary.
+	 * All the threads adding games must be done.
+	 */
+	public synchronized void write(PersistenceWriter out) throws IOException {
+		out.dumpInt(files.size());
+		out.dumpInt(summaries == null ? 0 : FLAG_SUMMARIES);
+		out.dumpString(root);
+		for (String file : files) {
+			out.dumpString(file);
+		}
+		int pad = (int) (out.getPosition() % PersistenceToolbox.LONG_NB_BYTES);
+		if (pad != 0) {
+			out.dumpBytes(new byte[PersistenceToolbox.LONG_NB_BYTES - pad], 0, PersistenceToolbox.LONG_NB_BYTES - pad);
+		}
+
+		for (int g = 0; g < nbGames; g++) {
+			out.dumpInt(gameFiles[g]);
+			out.dumpInt(ordinals[g]);
+			out.dumpLong(offsets[g]);
+		}
+		for (int g = 0; g < nbGames; g++) {
+			out.dumpInt(lengths[g]);
+		}
+
+		if (summaries != null) {
+			for (int g = 1; g <= nbGames; g++) {
+				out.dumpByte(summaries.getResult(g));
+			}
+			for (int g = 1; g <= nbGames; g++) {
+				out.dumpShort(summaries.getWhiteElo(g));
+			}
+			for (int g = 1; g <= nbGames; g++) {
+				out.dumpShort(summaries.getBlackElo(g));
+			}
+			for (int g = 1; g <= nbGames; g++) {
+				out.dumpShort(summaries.getYear(g));
+			}
+		}
+	}
+}
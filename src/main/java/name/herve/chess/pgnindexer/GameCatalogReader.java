@@ -0,0 +1,151 @@
+package name.herve.chess.pgnindexer;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Read-only access to the catalog of the games of an index, see
+ * {@link GameCatalog} for the layout. Only the dictionary of the files is
+ * loaded, the games and their summaries are read in place from the mapped
+ * index file.
+ */
+public class GameCatalogReader {
+	private String root;
+	private String[] files;
+	private int nbGames;
+	private MappedRegion games;
+	private MappedRegion lengths;
+	private MappedRegion summaries;
+
+	/**
+	 * @param offset
+	 *            the position of the catalog in the file
+	 */
+	public GameCatalogReader(FileChannel channel, long offset, int nbGames) throws IOException {
+		super();
+		this.nbGames = nbGames;
+
+		PersistenceReader in = new PersistenceReader(channel);
+		in.seek(offset);
+		files = new String[in.loadInt()];
+		boolean withSummaries = (in.loadInt() & GameCatalog.FLAG_SUMMARIES) != 0;
+		root = in.loadString();
+		for (int f = 0; f < files.length; f++) {
+			files[f] = in.loadString();
+		}
+		long gamesOffset = in.getPosition();
+		int pad = (int) (gamesOffset % PersistenceToolbox.LONG_NB_BYTES);
+		if (pad != 0) {
+			gamesOffset += PersistenceToolbox.LONG_NB_BYTES - pad;
+		}
+
+		long gamesSize = (long) nbGames * GameCatalog.GAME_NB_BYTES;
+		long lengthsSize = (long) nbGames * PersistenceToolbox.INT_NB_BYTES;
+		games = new MappedRegion(channel, gamesOffset, gamesSize);
+		lengths = new MappedRegion(channel, gamesOffset + gamesSize, lengthsSize);
+		summaries = withSummaries ? new MappedRegion(channel, gamesOffset + gamesSize + lengthsSize, (long) nbGames * (1 + (3 * PersistenceToolbox.SHORT_NB_BYTES))) : null;
+	}
+
+	public int getBlackElo(int game) {
+		return getSummaryColumn(1, game);
+	}
+
+	/**
+	 * @return the file of the game, relative to the directory it has been
+	 *         indexed from, or null if the game is unknown
+	 */
+	public String getFile(int game) {
+		if ((game < 1) || (game > nbGames)) {
+			return null;
+		}
+		int fileId = games.getInt((long) (game - 1) * GameCatalog.GAME_NB_BYTES);
+		return fileId < 0 ? null : files[fileId];
+	}
+
+	/**
+	 * @return the id of the game as "[ordinal]file", or null if the game is
+	 *         unknown
+	 */
+	public String getGameId(int game) {
+		String file = getFile(game);
+		return file == null ? null : "[" + getOrdinal(game) + "]" + file;
+	}
+
+	/**
+	 * @return the number of bytes of the game in its file, -1 if unknown
+	 */
+	public int getLength(int game) {
+		return lengths.getInt((long) (game - 1) * PersistenceToolbox.INT_NB_BYTES);
+	}
+
+	public int getNbFiles() {
+		return files.length;
+	}
+
+	public int getNbGames() {
+		return nbGames;
+	}
+
+	/**
+	 * @return the byte offset of the game in its file, -1 if unknown
+	 */
+	public long getOffset(int game) {
+		return games.getLong(((long) (game - 1) * GameCatalog.GAME_NB_BYTES) + (2 * PersistenceToolbox.INT_NB_BYTES));
+	}
+
+	/**
+	 * @return the number of the game in its file, from 1
+	 */
+	public int getOrdinal(int game) {
+		return games.getInt(((long) (game - 1) * GameCatalog.GAME_NB_BYTES) + PersistenceToolbox.INT_NB_BYTES);
+	}
+
+	/**
+	 * @return the file of the game resolved against the root it has been
+	 *         indexed from, or null if the game is unknown
+	 */
+	public Path getPath(int game) {
+		String file = getFile(game);
+		return file == null ? null : Paths.get(root).resolve(file);
+	}
+
+	/**
+	 * @return one of the {@link GameSummary} results
+	 */
+	public int getResult(int game) {
+		return summaries.get(game - 1);
+	}
+
+	/**
+	 * @return the file or the directory the games have been indexed from, empty
+	 *         if unknown
+	 */
+	public String getRoot() {
+		return root;
+	}
+
+	/**
+	 * @param column
+	 *            0 for the white ratings, 1 for the black ones, 2 for the years
+	 */
+	private int getSummaryColumn(int column, int game) {
+		return summaries.getShort(nbGames + ((((long) column * nbGames) + (game - 1)) * PersistenceToolbox.SHORT_NB_BYTES));
+	}
+
+	public int getWhiteElo(int game) {
+		return getSummaryColumn(0, game);
+	}
+
+	public int getYear(int game) {
+		return getSummaryColumn(2, game);
+	}
+
+	/**
+	 * @return true if the results, ratings and years of the games are recorded
+	 */
+	public boolean hasSummaries() {
+		return summaries != null;
+	}
+}
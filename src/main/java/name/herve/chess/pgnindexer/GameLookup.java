@@ -0,0 +1,76 @@
+package name.herve.chess.pgnindexer;
+
+/**
+ * The positions of a game looked up in an index : the number of indexed games
+ * holding the position reached after each ply.
+ */
+public class GameLookup {
+	private int gameNumber;
+	private int[] counts;
+
+	public GameLookup(int gameNumber, int[] counts) {
+		super();
+		this.gameNumber = gameNumber;
+		this.counts = counts;
+	}
+
+	/**
+	 * @param ply
+	 *            from 1 to {@link #getNbPlies()}
+	 */
+	public int getCount(int ply) {
+		return counts[ply - 1];
+	}
+
+	public int[] getCounts() {
+		return counts;
+	}
+
+	/**
+	 * @return the number of the game in its file, from 1
+	 */
+	public int getGameNumber() {
+		return gameNumber;
+	}
+
+	/**
+	 * @return the first ply reaching a position that no indexed game holds, or
+	 *         -1 if the game stays in the index until its end
+	 */
+	public int getLeavingPly() {
+		return getLeavingPly(1);
+	}
+
+	/**
+	 * @return the first ply reaching a position held by less than minGames
+	 *         indexed games, or -1 if there is none
+	 */
+	public int getLeavingPly(int minGames) {
+		for (int p = 0; p < counts.length; p++) {
+			if (counts[p] < minGames) {
+				return p + 1;
+			}
+		}
+		return -1;
+	}
+
+	public int getNbPlies() {
+		return counts.length;
+	}
+
+	/**
+	 * @return {"game":...,"plies":...,"leavingPly":...,"counts":[...]}
+	 */
+	public String toJson() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"game\":").append(gameNumber);
+		sb.append(",\"plies\":").append(counts.length);
+		sb.append(",\"leavingPly\":").append(getLeavingPly());
+		sb.append(",\"counts\":[");
+		for (int p = 0; p < counts.length; p++) {
+			sb.append(p > 0 ? "," : "").append(counts[p]);
+		}
+		sb.append("]}");
+		return sb.toString();
+	}
+}
@@ -0,0 +1,89 @@
+package name.herve.chess.pgnindexer;
+
+/**
+ * Numbers the games of the indexed files as if they were read one after the
+ * other, whatever the order their parts (whole files or chunks of a file) are
+ * scanned in, so that the same files always get the same game indexes. The
+ * parts are added in the order of the files, then each part sets the number
+ * of games it holds once it has scanned them.
+ *
+ * The games are numbered in their part while they are scanned, their ordinal
+ * in their file only waits for the chunks of the file before them, and their
+ * index in the whole index is only resolved once all the parts are counted,
+ * see {@link ExternalIndexBuilder#setNumbering(GameNumbering)}, so that the
+ * parts are scanned in parallel. A chunk only waits for the ones added before
+ * it, so the chunks scanned in the order they are added can not wait for each
+ * other.
+ *
+ * The games dropped while hashing keep their number, they are left unknown
+ * in the catalog.
+ */
+public class GameNumbering {
+	private IntArrayBuffer fileParts;
+	private IntArrayBuffer nbGames;
+	private IntArrayBuffer firstGames;
+
+	public GameNumbering() {
+		super();
+		fileParts = new IntArrayBuffer();
+		nbGames = new IntArrayBuffer();
+		firstGames = new IntArrayBuffer();
+		firstGames.add(0);
+	}
+
+	/**
+	 * @param newFile
+	 *            true if the part is the first one of its file
+	 * @return the part
+	 */
+	public synchronized int addPart(boolean newFile) {
+		int part = nbGames.size();
+		fileParts.add(newFile || (part == 0) ? part : fileParts.get(part - 1));
+		nbGames.add(-1);
+		return part;
+	}
+
+	/**
+	 * @return the number of games before each part
+	 * @throws IllegalStateException
+	 *             if a part has not been counted
+	 */
+	public synchronized int[] getFirstGames() {
+		if (firstGames.size() <= nbGames.size()) {
+			throw new IllegalStateException("The games of part " + (firstGames.size() - 1) + " have not been counted");
+		}
+		return firstGames.toArray();
+	}
+
+	/**
+	 * Waits for the games of the parts of the same file before the given one
+	 * to be counted.
+	 *
+	 * @return the number of games of the file before the part
+	 */
+	public synchronized int getFirstOrdinal(int part) throws InterruptedException {
+		int first = 0;
+		for (int p = fileParts.get(part); p < part; p++) {
+			while (nbGames.get(p) < 0) {
+				wait();
+			}
+			first += nbGames.get(p);
+		}
+		return first;
+	}
+
+	/**
+	 * Only the first count of a part is kept, so that a part failing after it
+	 * has been counted does not change the numbers of the next ones.
+	 */
+	public synchronized void setNbGames(int part, int nb) {
+		if (nbGames.get(part) >= 0) {
+			return;
+		}
+		nbGames.set(part, nb);
+		while ((firstGames.size() <= nbGames.size()) && (nbGames.get(firstGames.size() - 1) >= 0)) {
+			firstGames.add(firstGames.get(firstGames.size() - 1) + nbGames.get(firstGames.size() - 1));
+		}
+		notifyAll();
+	}
+}
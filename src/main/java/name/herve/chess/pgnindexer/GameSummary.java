@@ -0,0 +1,99 @@
+package name.herve.chess.pgnindexer;
+
+/**
+ * What the position statistics need to know about a game : its result, the
+ * ratings of its players and its year, 0 standing for an unknown value. A
+ * summary is reused from one game to the next, it is not thread safe.
+ */
+public class GameSummary {
+	public final static int UNKNOWN = 0;
+	public final static int WHITE_WINS = 1;
+	public final static int DRAW = 2;
+	public final static int BLACK_WINS = 3;
+
+	/**
+	 * @return the rating, or 0 if it is missing
+	 */
+	public static int parseElo(String elo) {
+		return parseNumber(elo, 4);
+	}
+
+	private static int parseNumber(String s, int maxDigits) {
+		if (s == null) {
+			return 0;
+		}
+		s = s.strip();
+		int v = 0;
+		int n = 0;
+		while ((n < s.length()) && (n < maxDigits) && (s.charAt(n) >= '0') && (s.charAt(n) <= '9')) {
+			v = (v * 10) + (s.charAt(n) - '0');
+			n++;
+		}
+		return v;
+	}
+
+	/**
+	 * @return one of {@link #WHITE_WINS}, {@link #DRAW}, {@link #BLACK_WINS} or
+	 *         {@link #UNKNOWN}, from a PGN Result tag
+	 */
+	public static int parseResult(String result) {
+		if (result == null) {
+			return UNKNOWN;
+		}
+		switch (result.strip()) {
+		case "1-0":
+			return WHITE_WINS;
+		case "0-1":
+			return BLACK_WINS;
+		case "1/2-1/2":
+			return DRAW;
+		default:
+			return UNKNOWN;
+		}
+	}
+
+	/**
+	 * @return the year of a PGN date, such as 2021.10.17 or 2021.??.??, or 0 if
+	 *         it is unknown
+	 */
+	public static int parseYear(String date) {
+		return parseNumber(date, 4);
+	}
+
+	private int result;
+	private int whiteElo;
+	private int blackElo;
+	private int year;
+
+	public GameSummary() {
+		super();
+		clear();
+	}
+
+	public void clear() {
+		set(UNKNOWN, 0, 0, 0);
+	}
+
+	public int getBlackElo() {
+		return blackElo;
+	}
+
+	public int getResult() {
+		return result;
+	}
+
+	public int getWhiteElo() {
+		return whiteElo;
+	}
+
+	public int getYear() {
+		return year;
+	}
+
+	public void set(int result, int whiteElo, int blackElo, int year) {
+		this.result = result;
+		this.whiteElo = whiteElo;
+		this.blackElo = blackElo;
+		this.year = year;
+	}
+}
@@ -0,0 +1,74 @@
+package name.herve.chess.pgnindexer;
+
+import java.util.Arrays;
+
+/**
+ * The summaries of all the games of an index, by game index, in primitive
+ * arrays taking 7 bytes per game. The games may be added by several threads
+ * and in any order, the table must then only be read once they are all done.
+ */
+public class GameSummaryTable {
+	private byte[] results;
+	private short[] whiteElos;
+	private short[] blackElos;
+	private short[] years;
+
+	public GameSummaryTable() {
+		super();
+		results = new byte[0];
+		whiteElos = new short[0];
+		blackElos = new short[0];
+		years = new short[0];
+	}
+
+	public int getBlackElo(int game) {
+		return game < blackElos.length ? blackElos[game] : 0;
+	}
+
+	public int getResult(int game) {
+		return game < results.length ? results[game] : GameSummary.UNKNOWN;
+	}
+
+	public int getWhiteElo(int game) {
+		return game < whiteElos.length ? whiteElos[game] : 0;
+	}
+
+	public int getYear(int game) {
+		return game < years.length ? years[game] : 0;
+	}
+
+	private void grow(int game) {
+		if (game >= results.length) {
+			int capacity = Math.max(game + 1, results.length * 2);
+			results = Arrays.copyOf(results, capacity);
+			whiteElos = Arrays.copyOf(whiteElos, capacity);
+			blackElos = Arrays.copyOf(blackElos, capacity);
+			years = Arrays.copyOf(years, capacity);
+		}
+	}
+
+	public synchronized void set(int game, GameSummary summary) {
+		grow(game);
+		results[game] = (byte) summary.getResult();
+		whiteElos[game] = (short) summary.getWhiteElo();
+		blackElos[game] = (short) summary.getBlackElo();
+		years[game] = (short) summary.getYear();
+	}
+
+	/**
+	 * Copies the summaries of the games 1 to nb of another table to the games
+	 * shift + 1 to shift + nb.
+	 */
+	public synchronized void setAll(GameSummaryTable other, int shift, int nb) {
+		synchronized (other) {
+			int n = Math.min(nb, other.results.length - 1);
+			if (n > 0) {
+				grow(shift + n);
+				System.arraycopy(other.results, 1, results, shift + 1, n);
+				System.arraycopy(other.whiteElos, 1, whiteElos, shift + 1, n);
+				System.arraycopy(other.blackElos, 1, blackElos, shift + 1, n);
+				System.arraycopy(other.years, 1, years, shift + 1, n);
+			}
+		}
+	}
+}
@@ -1,35 +1,114 @@
 package name.herve.chess.pgnindexer;
 
-import java.util.Collection;
+import java.lang.reflect.InvocationTargetException;
 import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A thread pool that blocks the submitters once max tasks are queued or
+ * running, so that the producers can not get too far ahead of the workers.
+ * Each task holds a permit from submission to completion, and a blocked
+ * submitter resumes as soon as a task completes. The tasks run either on a
+ * fixed pool of platform threads, or each on its own virtual thread. The tasks
+ * of invokeAll and invokeAny are executed one by one, each with its permit.
+ */
+public class GentleThreadPoolExecutor extends AbstractExecutorService {
+	private final static int VIRTUAL_THREADS_FEATURE = 21;
+
+	/**
+	 * Releases its permit when done, whether it has run, failed or has been
+	 * cancelled.
+	 */
+	private class PermitTask<T> extends FutureTask<T> {
+		public PermitTask(Callable<T> callable) {
+			super(callable);
+		}
+
+		public PermitTask(Runnable runnable, T result) {
+			super(runnable, result);
+		}
+
+		@Override
+		protected void done() {
+			taskDone();
+		}
+	}
 
-public class GentleThreadPoolExecutor implements ExecutorService {
 	public static GentleThreadPoolExecutor newGentleThreadPoolExecutor(String name, int nbt) {
-		return newGentleThreadPoolExecutor(name, nbt, nbt * 2, 250);
+		return newGentleThreadPoolExecutor(name, nbt, nbt * 2);
 	}
 
-	public static GentleThreadPoolExecutor newGentleThreadPoolExecutor(String name, int nbt, int max, long sleep) {
+	public static GentleThreadPoolExecutor newGentleThreadPoolExecutor(String name, int nbt, int max) {
 		ThreadPoolExecutor executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(nbt, new NamedThreadFactory(name));
-		return new GentleThreadPoolExecutor(executor, max, sleep);
+		return new GentleThreadPoolExecutor(executor, max);
 	}
 
-	private ThreadPoolExecutor executor;
+	/**
+	 * Runs each task on its own virtual thread, with at most max tasks at a
+	 * time. Virtual threads are only there from Java 21, they are looked up by
+	 * reflection so that the project still builds and runs on Java 11.
+	 *
+	 * @throws UnsupportedOperationException
+	 *             if the running JVM has no virtual threads, telling its
+	 *             version or why they could not be created
+	 */
+	public static GentleThreadPoolExecutor newVirtualThreadExecutor(String name, int max) {
+		Runtime.Version version = Runtime.version();
+		if (version.feature() < VIRTUAL_THREADS_FEATURE) {
+			throw new UnsupportedOperationException("Virtual threads need Java " + VIRTUAL_THREADS_FEATURE + " or later, this JVM is Java " + version);
+		}
+		try {
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 1L);
+			ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+			ExecutorService executor = (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, factory);
+			return new GentleThreadPoolExecutor(executor, max);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			Throwable cause = e instanceof InvocationTargetException ? e.getCause() : e;
+			throw new UnsupportedOperationException("Virtual threads could not be created on Java " + version + " : " + cause, cause);
+		}
+	}
+
+	private ExecutorService executor;
 	private int max;
-	private long sleep;
+	private Semaphore permits;
+	private LongAdder nbSubmitted;
+	private LongAdder nbCompleted;
+	private LongAdder nbBlocked;
+	private LongAdder blockedTime;
 
-	private GentleThreadPoolExecutor(ThreadPoolExecutor executor, int max, long sleep) {
+	private GentleThreadPoolExecutor(ExecutorService executor, int max) {
 		super();
 		this.executor = executor;
 		this.max = max;
-		this.sleep = sleep;
+		permits = new Semaphore(max);
+		nbSubmitted = new LongAdder();
+		nbCompleted = new LongAdder();
+		nbBlocked = new LongAdder();
+		blockedTime = new LongAdder();
+	}
+
+	private void acquire() {
+		nbSubmitted.increment();
+		if (permits.tryAcquire()) {
+			return;
+		}
+		long start = System.nanoTime();
+		permits.acquireUninterruptibly();
+		blockedTime.add(System.nanoTime() - start);
+		nbBlocked.increment();
 	}
 
 	@Override
@@ -39,44 +118,88 @@ public class GentleThreadPoolExecutor implements ExecutorService {
 
 	@Override
 	public void execute(Runnable command) {
-		sleepIfNecessary();
-		executor.execute(command);
+		acquire();
+		try {
+			executor.execute(() -> {
+				try {
+					command.run();
+				} finally {
+					taskDone();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			nbSubmitted.decrement();
+			permits.release();
+			throw e;
+		}
 	}
 
+	private <T> Future<T> executePermitTask(PermitTask<T> task) {
+		try {
+			executor.execute(task);
+		} catch (RejectedExecutionException e) {
+			nbSubmitted.decrement();
+			permits.release();
+			throw e;
+		}
+		return task;
+	}
+
+	/**
+	 * @return the number of tasks running, or queued when running on platform
+	 *         threads
+	 */
 	public int getActiveCount() {
-		return executor.getActiveCount();
+		if (executor instanceof ThreadPoolExecutor) {
+			return ((ThreadPoolExecutor) executor).getActiveCount();
+		}
+		return getNbInFlight();
+	}
+
+	/**
+	 * @return the total time the submitters have been blocked, in ms
+	 */
+	public long getBlockedTime() {
+		return TimeUnit.NANOSECONDS.toMillis(blockedTime.sum());
 	}
 
 	public long getCompletedTaskCount() {
-		return executor.getCompletedTaskCount();
+		return nbCompleted.sum();
 	}
 
-	public long getTaskCount() {
-		return executor.getTaskCount();
+	public int getMax() {
+		return max;
 	}
 
-	@Override
-	public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks) throws InterruptedException {
-		sleepIfNecessary();
-		return executor.invokeAll(tasks);
+	/**
+	 * @return the number of submissions that had to wait for a task to
+	 *         complete
+	 */
+	public long getNbBlocked() {
+		return nbBlocked.sum();
 	}
 
-	@Override
-	public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks, long timeout, TimeUnit unit) throws InterruptedException {
-		sleepIfNecessary();
-		return executor.invokeAll(tasks, timeout, unit);
+	/**
+	 * @return the number of tasks submitted and not completed yet
+	 */
+	public int getNbInFlight() {
+		// not derived from the permits, they are all released on shutdown
+		return (int) Math.max(0, nbSubmitted.sum() - nbCompleted.sum());
 	}
 
-	@Override
-	public <T> T invokeAny(Collection<? extends Callable<T>> tasks) throws InterruptedException, ExecutionException {
-		sleepIfNecessary();
-		return executor.invokeAny(tasks);
+	/**
+	 * @return the number of tasks waiting for a thread, always 0 with virtual
+	 *         threads
+	 */
+	public int getQueueSize() {
+		if (executor instanceof ThreadPoolExecutor) {
+			return ((ThreadPoolExecutor) executor).getQueue().size();
+		}
+		return 0;
 	}
 
-	@Override
-	public <T> T invokeAny(Collection<? extends Callable<T>> tasks, long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
-		sleepIfNecessary();
-		return executor.invokeAny(tasks, timeout, unit);
+	public long getTaskCount() {
+		return nbSubmitted.sum();
 	}
 
 	@Override
@@ -92,6 +215,8 @@ public class GentleThreadPoolExecutor implements ExecutorService {
 	@Override
 	public void shutdown() {
 		executor.shutdown();
+		// the blocked submitters are let through, to be rejected
+		permits.release(max);
 	}
 
 	public void shutdownAndAwaitTermination() {
@@ -106,34 +231,31 @@ public class GentleThreadPoolExecutor implements ExecutorService {
 
 	@Override
 	public List<Runnable> shutdownNow() {
-		return executor.shutdownNow();
-	}
-
-	private void sleepIfNecessary() {
-		while (!isShutdown() && ((executor.getActiveCount() + executor.getQueue().size()) >= max)) {
-			try {
-				Thread.sleep(sleep);
-			} catch (InterruptedException e) {
-				System.err.println("Interrupted in sleepIfNecessary()");
-			}
-		}
+		List<Runnable> pending = executor.shutdownNow();
+		permits.release(max);
+		return pending;
 	}
 
 	@Override
 	public <T> Future<T> submit(Callable<T> task) {
-		sleepIfNecessary();
-		return executor.submit(task);
+		acquire();
+		return executePermitTask(new PermitTask<>(task));
 	}
 
 	@Override
 	public Future<?> submit(Runnable task) {
-		sleepIfNecessary();
-		return executor.submit(task);
+		acquire();
+		return executePermitTask(new PermitTask<Void>(task, null));
 	}
 
 	@Override
 	public <T> Future<T> submit(Runnable task, T result) {
-		sleepIfNecessary();
-		return executor.submit(task, result);
+		acquire();
+		return executePermitTask(new PermitTask<>(task, result));
+	}
+
+	private void taskDone() {
+		nbCompleted.increment();
+		permits.release();
 	}
 }
@@ -0,0 +1,179 @@
+package name.herve.chess.pgnindexer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Merges the small segments of a segmented index into larger ones, with a
+ * tiered policy : the segments are ranked in tiers of sizes growing by
+ * {@link #MERGE_FACTOR}, and once the newest segments hold
+ * {@link #MERGE_FACTOR} segments of the same tier or below, they are merged
+ * into one segment of the next tier. Each game is thus rewritten about
+ * log(nbGames) / log(MERGE_FACTOR) times, whatever the number of appends.
+ *
+ * The merge itself runs without holding the manifest lock, so that new
+ * segments can be appended meanwhile, and the manifest is then updated at
+ * once. The compaction can run in the foreground or on a background thread,
+ * refreshing a {@link PositionIndex} after each pass.
+ */
+public class IndexCompactor implements Closeable {
+	public final static int MERGE_FACTOR = 4;
+	private final static int TIER_BASE = 1000;
+
+	/**
+	 * @return the tier of a segment, from 0 for less than TIER_BASE *
+	 *         MERGE_FACTOR games
+	 */
+	public static int getTier(int nbGames) {
+		int tier = 0;
+		long size = (long) TIER_BASE * MERGE_FACTOR;
+		while (nbGames >= size) {
+			size *= MERGE_FACTOR;
+			tier++;
+		}
+		return tier;
+	}
+
+	private File idx;
+	private int bufferSize;
+	private ScheduledExecutorService scheduler;
+	private Consumer<String> log;
+
+	public IndexCompactor(File idx, int bufferSize) {
+		super();
+		this.idx = idx;
+		this.bufferSize = bufferSize;
+		scheduler = null;
+		log = msg -> {
+		};
+	}
+
+	@Override
+	public void close() {
+		if (scheduler != null) {
+			scheduler.shutdown();
+			try {
+				scheduler.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				scheduler.shutdownNow();
+			}
+			scheduler = null;
+		}
+	}
+
+	/**
+	 * Merges segments until the policy finds nothing more to merge.
+	 *
+	 * @return the number of merges
+	 */
+	public int compact() throws IOException {
+		int nbMerges = 0;
+		while (mergeOnce()) {
+			nbMerges++;
+		}
+		return nbMerges;
+	}
+
+	private boolean mergeOnce() throws IOException {
+		List<File> window = new ArrayList<>();
+		int from;
+		File target;
+		try (FileChannel lock = IndexManifest.lock(idx)) {
+			IndexManifest manifest = IndexManifest.load(idx);
+			from = pick(manifest);
+			if (from < 0) {
+				return false;
+			}
+			for (int s = from; s < manifest.getNbSegments(); s++) {
+				window.add(manifest.getSegment(s));
+			}
+			target = manifest.newSegmentFile(idx);
+			manifest.save(idx);
+		}
+
+		long start = System.currentTimeMillis();
+		IndexMerger merger = new IndexMerger(bufferSize);
+		int nbGames;
+		try {
+			nbGames = merger.merge(window, target);
+		} catch (IOException | RuntimeException e) {
+			delete(target);
+			throw e;
+		}
+
+		try (FileChannel lock = IndexManifest.lock(idx)) {
+			IndexManifest manifest = IndexManifest.load(idx);
+			for (int s = 0; s < window.size(); s++) {
+				if (((from + s) >= manifest.getNbSegments()) || !manifest.getSegment(from + s).equals(window.get(s).getAbsoluteFile())) {
+					delete(target);
+					throw new IOException("The segments of " + idx + " have been changed during their merge into " + target);
+				}
+			}
+			manifest.replace(from, from + window.size(), target, nbGames);
+			manifest.save(idx);
+		}
+		for (File segment : window) {
+			delete(segment);
+		}
+		log.accept(window.size() + " segments merged into " + target.getName() + ", " + nbGames + " games, " + merger.getNbPositions() + " positions in "
+				+ (System.currentTimeMillis() - start) + " ms");
+		return true;
+	}
+
+	private void delete(File segment) {
+		segment.delete();
+		PositionStats.getFile(segment).delete();
+		PositionFingerprints.getFile(segment).delete();
+	}
+
+	/**
+	 * @return the first of the newest segments to merge, or -1 if there is
+	 *         nothing to merge
+	 */
+	private int pick(IndexManifest manifest) {
+		int nb = manifest.getNbSegments();
+		if (nb < MERGE_FACTOR) {
+			return -1;
+		}
+		int tier = getTier(manifest.getNbGames(nb - 1));
+		int from = nb - 1;
+		while ((from > 0) && (getTier(manifest.getNbGames(from - 1)) <= tier)) {
+			from--;
+		}
+		return (nb - from) >= MERGE_FACTOR ? from : -1;
+	}
+
+	/**
+	 * @param log
+	 *            receives a line for each merge and each failure
+	 */
+	public void setLog(Consumer<String> log) {
+		this.log = log;
+	}
+
+	/**
+	 * Compacts the index on a background thread every period, then refreshes
+	 * the given index so that it sees the merged and the appended segments.
+	 */
+	public void start(long periodMs, PositionIndex index) {
+		scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("compaction"));
+		scheduler.scheduleWithFixedDelay(() -> {
+			try {
+				compact();
+				if (index.refresh()) {
+					log.accept(idx + " refreshed, " + index.getNbSegments() + " segments, " + index.getNbGames() + " games");
+				}
+			} catch (IOException | RuntimeException e) {
+				log.accept("Compaction of " + idx + " failed : " + e);
+			}
+		}, periodMs, periodMs, TimeUnit.MILLISECONDS);
+	}
+}
@@ -0,0 +1,43 @@
+package name.herve.chess.pgnindexer;
+
+/**
+ * Layout of the position index file.
+ *
+ * <pre>
+ * header    : magic, version, nbGames, flags, nbPositions, then the offset of the games, keys, offsets and postings sections and the size of the postings section
+ * games     : the GameCatalog of the games, dense from 1 to nbGames
+ * keys      : nbPositions x long, Zobrist keys sorted in ascending order, computed by chesslib or by CompactBoard if FLAG_NATIVE_KEYS is set, under the key policy of the flags
+ * offsets   : (nbPositions + 1) x long, start of each posting list relative to the postings section
+ * postings  : the game ids of each position, compressed by PostingsEncoder if FLAG_COMPRESSED_POSTINGS is set, as raw ints otherwise
+ * </pre>
+ *
+ * The sections may appear in any order in the file, only the header is at a
+ * fixed place. The keys and offsets sections are 8 bytes aligned so they can be
+ * mapped and searched in place.
+ *
+ * The ordinal of the {@link CompactBoard.KeyPolicy} of the native keys is
+ * stored in the flags, from bit {@link #FLAGS_KEY_POLICY_SHIFT} : the indexes
+ * built before the policies have 0 there, that is {@code FIDE}.
+ */
+public class IndexFile {
+	public final static int MAGIC = 0x50474E49;
+	public final static int VERSION = 3;
+
+	public final static int HEADER_NB_BYTES = 64;
+
+	public final static int FLAG_COMPRESSED_POSTINGS = 1;
+	public final static int FLAG_NATIVE_KEYS = 2;
+	public final static int FLAGS_KEY_POLICY_SHIFT = 2;
+	public final static int FLAGS_KEY_POLICY_MASK = 3;
+
+	public final static int HEADER_MAGIC = 0;
+	public final static int HEADER_VERSION = 4;
+	public final static int HEADER_NB_GAMES = 8;
+	public final static int HEADER_FLAGS = 12;
+	public final static int HEADER_NB_POSITIONS = 16;
+	public final static int HEADER_GAMES_OFFSET = 24;
+	public final static int HEADER_KEYS_OFFSET = 32;
+	public final static int HEADER_OFFSETS_OFFSET = 40;
+	public final static int HEADER_POSTINGS_OFFSET = 48;
+	public final static int HEADER_POSTINGS_SIZE = 56;
+}
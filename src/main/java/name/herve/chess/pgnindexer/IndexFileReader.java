@@ -0,0 +1,250 @@
+package name.herve.chess.pgnindexer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read-only access to a position index written by {@link IndexFileWriter}. The
+ * keys, offsets and postings sections are memory mapped, so opening an index
+ * only reads its header and lookups are answered straight from the OS page
+ * cache with an interpolation search over the sorted keys.
+ */
+public class IndexFileReader implements Closeable {
+	private final static int MAX_INTERPOLATION_STEPS = 8;
+
+	private File file;
+	private FileChannel channel;
+	private int nbGames;
+	private long nbPositions;
+	private GameCatalogReader catalog;
+	private MappedRegion keys;
+	private MappedRegion offsets;
+	private MappedRegion postings;
+	private boolean compressedPostings;
+	private boolean nativeKeys;
+	private CompactBoard.KeyPolicy keyPolicy;
+
+	public IndexFileReader(File file) throws IOException {
+		super();
+		this.file = file;
+		channel = PersistenceToolbox.getFile(file, false).getChannel();
+
+		ByteBuffer header = ByteBuffer.allocate(IndexFile.HEADER_NB_BYTES);
+		channel.read(header, 0);
+		if (header.getInt(IndexFile.HEADER_MAGIC) != IndexFile.MAGIC) {
+			channel.close();
+			throw new IOException(file + " is not a position index, it may have been created by an older version and should be rebuilt");
+		}
+		int version = header.getInt(IndexFile.HEADER_VERSION);
+		if (version < IndexFile.VERSION) {
+			channel.close();
+			throw new IOException(file + " has been built by an older version, it should be rebuilt");
+		}
+		if (version != IndexFile.VERSION) {
+			channel.close();
+			throw new IOException(file + " has an unsupported index version " + version);
+		}
+
+		nbGames = header.getInt(IndexFile.HEADER_NB_GAMES);
+		compressedPostings = (header.getInt(IndexFile.HEADER_FLAGS) & IndexFile.FLAG_COMPRESSED_POSTINGS) != 0;
+		nativeKeys = (header.getInt(IndexFile.HEADER_FLAGS) & IndexFile.FLAG_NATIVE_KEYS) != 0;
+		keyPolicy = CompactBoard.KeyPolicy.valueOf((header.getInt(IndexFile.HEADER_FLAGS) >> IndexFile.FLAGS_KEY_POLICY_SHIFT) & IndexFile.FLAGS_KEY_POLICY_MASK);
+		if (keyPolicy == null) {
+			channel.close();
+			throw new IOException(file + " has an unsupported key policy");
+		}
+		nbPositions = header.getLong(IndexFile.HEADER_NB_POSITIONS);
+		catalog = new GameCatalogReader(channel, header.getLong(IndexFile.HEADER_GAMES_OFFSET), nbGames);
+		keys = new MappedRegion(channel, header.getLong(IndexFile.HEADER_KEYS_OFFSET), nbPositions * PersistenceToolbox.LONG_NB_BYTES);
+		offsets = new MappedRegion(channel, header.getLong(IndexFile.HEADER_OFFSETS_OFFSET), (nbPositions + 1) * PersistenceToolbox.LONG_NB_BYTES);
+		postings = new MappedRegion(channel, header.getLong(IndexFile.HEADER_POSTINGS_OFFSET), header.getLong(IndexFile.HEADER_POSTINGS_SIZE));
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	public int count(long key) {
+		long p = find(key);
+		if (p < 0) {
+			return 0;
+		}
+		return getPostingsAt(p).getNbGames();
+	}
+
+	/**
+	 * Counts the games of keys given in increasing order, in a single pass
+	 * over the keys table : each key is searched from the rank of the previous
+	 * one, galloping forward, so that close keys cost a few probes in pages
+	 * that have just been read.
+	 *
+	 * @param counts
+	 *            receives the number of games of each key, 0 if it is not
+	 *            indexed
+	 */
+	public void countSorted(long[] sortedKeys, int nb, int[] counts) {
+		long from = 0;
+		for (int i = 0; i < nb; i++) {
+			long rank = findFrom(sortedKeys[i], from);
+			if (rank >= 0) {
+				counts[i] = getPostingsAt(rank).getNbGames();
+				from = rank;
+			} else {
+				counts[i] = 0;
+				from = -rank - 1;
+			}
+		}
+	}
+
+	/**
+	 * Searches a key in the sorted keys table. Zobrist keys are uniformly
+	 * distributed, so an interpolation search usually needs a couple of probes.
+	 * It falls back to a plain binary search if it does not converge quickly.
+	 *
+	 * @return the rank of the key in the index, or -1 if it is not indexed
+	 */
+	public long find(long key) {
+		long lo = 0;
+		long hi = nbPositions - 1;
+		if (hi < 0) {
+			return -1;
+		}
+		long loKey = getKey(lo);
+		long hiKey = getKey(hi);
+		int steps = 0;
+
+		while (lo <= hi) {
+			if ((key < loKey) || (key > hiKey)) {
+				return -1;
+			}
+
+			long mid;
+			if ((steps < MAX_INTERPOLATION_STEPS) && (hiKey != loKey)) {
+				double f = ((double) key - (double) loKey) / ((double) hiKey - (double) loKey);
+				mid = lo + (long) (f * (hi - lo));
+				mid = Math.max(lo, Math.min(hi, mid));
+			} else {
+				mid = (lo + hi) >>> 1;
+			}
+			steps++;
+
+			long k = getKey(mid);
+			if (k == key) {
+				return mid;
+			}
+			if (k < key) {
+				lo = mid + 1;
+				if (lo <= hi) {
+					loKey = getKey(lo);
+				}
+			} else {
+				hi = mid - 1;
+				if (hi >= lo) {
+					hiKey = getKey(hi);
+				}
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Searches a key known to be at or after the from rank, with an exponential
+	 * search followed by a binary search.
+	 *
+	 * @return the rank of the key, or -(insertion rank) - 1 if it is not indexed
+	 */
+	private long findFrom(long key, long from) {
+		long lo = from;
+		long hi = from;
+		long step = 1;
+		while ((hi < nbPositions) && (getKey(hi) < key)) {
+			lo = hi + 1;
+			hi = lo + step;
+			step <<= 1;
+		}
+		hi = Math.min(hi, nbPositions - 1);
+
+		while (lo <= hi) {
+			long mid = (lo + hi) >>> 1;
+			long k = getKey(mid);
+			if (k == key) {
+				return mid;
+			}
+			if (k < key) {
+				lo = mid + 1;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return -lo - 1;
+	}
+
+	public GameCatalogReader getCatalog() {
+		return catalog;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public int[] getGames(long key) {
+		PostingsCursor cursor = getPostings(key);
+		if (cursor == null) {
+			return new int[0];
+		}
+		return cursor.toArray();
+	}
+
+	/**
+	 * @return a cursor over the games holding the position, or null if it is not
+	 *         indexed
+	 */
+	public PostingsCursor getPostings(long key) {
+		long p = find(key);
+		if (p < 0) {
+			return null;
+		}
+		return getPostingsAt(p);
+	}
+
+	public PostingsCursor getPostingsAt(long rank) {
+		long start = getOffset(rank);
+		return new PostingsCursor(postings, start, getOffset(rank + 1) - start, compressedPostings);
+	}
+
+	public long getKey(long rank) {
+		return keys.getLong(rank * PersistenceToolbox.LONG_NB_BYTES);
+	}
+
+	public int getNbGames() {
+		return nbGames;
+	}
+
+	public long getNbPositions() {
+		return nbPositions;
+	}
+
+	private long getOffset(long rank) {
+		return offsets.getLong(rank * PersistenceToolbox.LONG_NB_BYTES);
+	}
+
+	/**
+	 * @return what identifies the positions, always FIDE for the chesslib keys
+	 */
+	public CompactBoard.KeyPolicy getKeyPolicy() {
+		return keyPolicy;
+	}
+
+	/**
+	 * @return true if the keys have been computed by {@link CompactBoard}, false
+	 *         if they come from chesslib
+	 */
+	public boolean isNativeKeys() {
+		return nativeKeys;
+	}
+}
@@ -0,0 +1,265 @@
+package name.herve.chess.pgnindexer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Streams a position index to disk, see {@link IndexFile} for the layout. The
+ * positions must be added in strictly increasing key order. The keys and
+ * offsets tables are spilled to temporary files next to the index and appended
+ * to it on {@link #close()}, along with the {@link GameCatalog} of the games,
+ * so nothing but the I/O buffers and the catalog is kept in memory whatever the
+ * size of the index. A posting list may be given game after game, between
+ * {@link #startPosition(long)} and {@link #endPosition()} : the blocks of a
+ * long list are then spilled to a temporary file as well, until the list is
+ * complete.
+ */
+public class IndexFileWriter implements Closeable {
+	private final static int MAX_BUFFERED_POSTINGS = 1024 * 1024;
+
+	private File file;
+	private int bufferSize;
+	private PersistenceWriter out;
+	private File keysFile;
+	private PersistenceWriter keysOut;
+	private File offsetsFile;
+	private PersistenceWriter offsetsOut;
+	private File postingsFile;
+	private PersistenceWriter postingsOut;
+	private long spilledPostings;
+
+	private GameCatalog catalog;
+	private long nbPositions;
+	private long lastKey;
+	private long postingsOffset;
+	private long postingsSize;
+	private PostingsEncoder encoder;
+	private boolean nativeKeys;
+	private CompactBoard.KeyPolicy keyPolicy;
+
+	public IndexFileWriter(File file) throws IOException {
+		this(file, PersistenceWriter.DEFAULT_BUFFER_SIZE);
+	}
+
+	public IndexFileWriter(File file, int bufferSize) throws IOException {
+		super();
+		this.file = file;
+		this.bufferSize = bufferSize;
+		FileChannel channel = PersistenceToolbox.getFile(file, true).getChannel();
+		channel.position(IndexFile.HEADER_NB_BYTES);
+		out = new PersistenceWriter(channel, bufferSize);
+
+		keysFile = new File(file.getPath() + ".keys.tmp");
+		keysOut = new PersistenceWriter(PersistenceToolbox.getFile(keysFile, true).getChannel(), bufferSize);
+		offsetsFile = new File(file.getPath() + ".offsets.tmp");
+		offsetsOut = new PersistenceWriter(PersistenceToolbox.getFile(offsetsFile, true).getChannel(), bufferSize);
+		postingsFile = new File(file.getPath() + ".postings.tmp");
+		postingsOut = null;
+		spilledPostings = 0;
+
+		catalog = new GameCatalog();
+		nbPositions = 0;
+		postingsOffset = -1;
+		postingsSize = 0;
+		encoder = new PostingsEncoder();
+		nativeKeys = false;
+		keyPolicy = CompactBoard.KeyPolicy.FIDE;
+	}
+
+	/**
+	 * Adds the next game of the position started by
+	 * {@link #startPosition(long)}, the games being in increasing order.
+	 */
+	public void addGame(int game) throws IOException {
+		encoder.add(game);
+		if (encoder.getBlocksLength() >= MAX_BUFFERED_POSTINGS) {
+			if (postingsOut == null) {
+				postingsOut = new PersistenceWriter(PersistenceToolbox.getFile(postingsFile, true).getChannel(), bufferSize);
+			}
+			postingsOut.dumpBytes(encoder.getBlocks(), 0, encoder.getBlocksLength());
+			spilledPostings += encoder.getBlocksLength();
+			encoder.drainBlocks();
+		}
+	}
+
+	public void addPosition(long key, int[] games, int nb) throws IOException {
+		startPosition(key);
+		for (int i = 0; i < nb; i++) {
+			addGame(games[i]);
+		}
+		endPosition();
+	}
+
+	private void append(PersistenceWriter src) throws IOException {
+		src.flush();
+		transfer(src.getChannel(), out.getChannel());
+	}
+
+	/**
+	 * Gives up the index : closes everything and deletes the file, which would
+	 * otherwise look complete.
+	 */
+	public void abort() {
+		for (PersistenceWriter w : new PersistenceWriter[] { out, keysOut, offsetsOut, postingsOut }) {
+			if (w != null) {
+				try {
+					w.getChannel().close();
+				} catch (IOException e) {
+					// deleted anyway
+				}
+			}
+		}
+		keysFile.delete();
+		offsetsFile.delete();
+		postingsFile.delete();
+		file.delete();
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			if (postingsOffset < 0) {
+				postingsOffset = out.getPosition();
+			}
+			offsetsOut.dumpLong(postingsSize);
+
+			int pad = (int) (out.getPosition() % PersistenceToolbox.LONG_NB_BYTES);
+			if (pad != 0) {
+				out.dumpBytes(new byte[PersistenceToolbox.LONG_NB_BYTES - pad], 0, PersistenceToolbox.LONG_NB_BYTES - pad);
+			}
+			out.flush();
+
+			long keysOffset = out.getPosition();
+			append(keysOut);
+			long offsetsOffset = out.getPosition();
+			append(offsetsOut);
+			long gamesOffset = out.getPosition();
+			catalog.write(out);
+			out.flush();
+
+			ByteBuffer header = ByteBuffer.allocate(IndexFile.HEADER_NB_BYTES);
+			header.putInt(IndexFile.HEADER_MAGIC, IndexFile.MAGIC);
+			header.putInt(IndexFile.HEADER_VERSION, IndexFile.VERSION);
+			header.putInt(IndexFile.HEADER_NB_GAMES, catalog.getNbGames());
+			header.putInt(IndexFile.HEADER_FLAGS,
+					IndexFile.FLAG_COMPRESSED_POSTINGS | (nativeKeys ? IndexFile.FLAG_NATIVE_KEYS : 0) | (keyPolicy.ordinal() << IndexFile.FLAGS_KEY_POLICY_SHIFT));
+			header.putLong(IndexFile.HEADER_NB_POSITIONS, nbPositions);
+			header.putLong(IndexFile.HEADER_GAMES_OFFSET, gamesOffset);
+			header.putLong(IndexFile.HEADER_KEYS_OFFSET, keysOffset);
+			header.putLong(IndexFile.HEADER_OFFSETS_OFFSET, offsetsOffset);
+			header.putLong(IndexFile.HEADER_POSTINGS_OFFSET, postingsOffset);
+			header.putLong(IndexFile.HEADER_POSTINGS_SIZE, postingsSize);
+			out.getChannel().write(header, 0);
+		} finally {
+			out.close();
+			keysOut.close();
+			offsetsOut.close();
+			if (postingsOut != null) {
+				postingsOut.close();
+			}
+			keysFile.delete();
+			offsetsFile.delete();
+			postingsFile.delete();
+		}
+	}
+
+	/**
+	 * Writes the posting list of the position started by
+	 * {@link #startPosition(long)}, after the blocks spilled so far.
+	 */
+	public void endPosition() throws IOException {
+		int headerLength = encoder.finish();
+		out.dumpBytes(encoder.getBytes(), 0, headerLength);
+		if (spilledPostings > 0) {
+			postingsOut.flush();
+			out.flush();
+			transfer(postingsOut.getChannel(), out.getChannel());
+			postingsOut.getChannel().truncate(0);
+		}
+		out.dumpBytes(encoder.getBlocks(), 0, encoder.getBlocksLength());
+		postingsSize += headerLength + spilledPostings + encoder.getBlocksLength();
+		spilledPostings = 0;
+	}
+
+	private void transfer(FileChannel from, FileChannel to) throws IOException {
+		long size = from.size();
+		long done = 0;
+		while (done < size) {
+			done += from.transferTo(done, size - done, to);
+		}
+	}
+
+	/**
+	 * @return the catalog the games are added to, written on {@link #close()}
+	 */
+	public GameCatalog getCatalog() {
+		return catalog;
+	}
+
+	public int getNbGames() {
+		return catalog.getNbGames();
+	}
+
+	public CompactBoard.KeyPolicy getKeyPolicy() {
+		return keyPolicy;
+	}
+
+	public long getNbPositions() {
+		return nbPositions;
+	}
+
+	public long getPostingsSize() {
+		return postingsSize;
+	}
+
+	public boolean isNativeKeys() {
+		return nativeKeys;
+	}
+
+	/**
+	 * Starts the next position, whose games are then given one by one to
+	 * {@link #addGame(int)}.
+	 */
+	public void startPosition(long key) throws IOException {
+		if (postingsOffset < 0) {
+			postingsOffset = out.getPosition();
+		}
+		if ((nbPositions > 0) && (key <= lastKey)) {
+			throw new IllegalArgumentException("Positions must be added in increasing key order (" + key + " after " + lastKey + ")");
+		}
+
+		keysOut.dumpLong(key);
+		offsetsOut.dumpLong(postingsSize);
+		encoder.start();
+		lastKey = key;
+		nbPositions++;
+	}
+
+	/**
+	 * Replaces the catalog of the games by one built beforehand.
+	 */
+	public void setCatalog(GameCatalog catalog) {
+		this.catalog = catalog;
+	}
+
+	/**
+	 * @param keyPolicy
+	 *            what identifies the positions the keys have been computed for,
+	 *            FIDE by default
+	 */
+	public void setKeyPolicy(CompactBoard.KeyPolicy keyPolicy) {
+		this.keyPolicy = keyPolicy;
+	}
+
+	/**
+	 * @param nativeKeys
+	 *            true if the keys are computed by {@link CompactBoard} rather
+	 *            than by chesslib
+	 */
+	public void setNativeKeys(boolean nativeKeys) {
+		this.nativeKeys = nativeKeys;
+	}
+}
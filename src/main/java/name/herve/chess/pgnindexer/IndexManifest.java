@@ -0,0 +1,232 @@
+package name.herve.chess.pgnindexer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A segmented index : the manifest file lists immutable index files, the
+ * segments, from the oldest to the newest, and the number of games of each of
+ * them. The games of a segment are numbered from 1 in its file, their number
+ * in the whole index is shifted by the games of the segments before it, so
+ * new PGN files are indexed in a new segment without touching the others, and
+ * merging consecutive segments keeps the game numbers.
+ *
+ * The manifest is replaced atomically, so that readers always see a complete
+ * list, and its updates are serialized between processes by
+ * {@link #lock(File)}. All the segments share the keys of the manifest, native
+ * or not, and its {@link CompactBoard.KeyPolicy}, whose ordinal is stored in
+ * the flags from bit {@link #FLAGS_KEY_POLICY_SHIFT}.
+ */
+public class IndexManifest {
+	public final static int MAGIC = 0x50474E4D;
+	public final static int VERSION = 1;
+
+	public final static int FLAG_NATIVE_KEYS = 1;
+	public final static int FLAGS_KEY_POLICY_SHIFT = 1;
+	public final static int FLAGS_KEY_POLICY_MASK = 3;
+
+	/**
+	 * Turns a plain index file into a manifest with a single segment, which is
+	 * the index file renamed along with its statistics and fingerprints.
+	 */
+	public static IndexManifest convert(File idx) throws IOException {
+		IndexManifest manifest = new IndexManifest();
+		File segment = manifest.newSegmentFile(idx);
+		int nbGames;
+		try (IndexFileReader reader = new IndexFileReader(idx)) {
+			nbGames = reader.getNbGames();
+			manifest.setNativeKeys(reader.isNativeKeys());
+			manifest.setKeyPolicy(reader.getKeyPolicy());
+		}
+		Files.move(idx.toPath(), segment.toPath());
+		File stats = PositionStats.getFile(idx);
+		if (stats.exists()) {
+			Files.move(stats.toPath(), PositionStats.getFile(segment).toPath());
+		}
+		File fingerprints = PositionFingerprints.getFile(idx);
+		if (fingerprints.exists()) {
+			Files.move(fingerprints.toPath(), PositionFingerprints.getFile(segment).toPath());
+		}
+		manifest.add(segment, nbGames);
+		manifest.save(idx);
+		return manifest;
+	}
+
+	/**
+	 * @return true if the file is a manifest, false if it is a plain index
+	 */
+	public static boolean isManifest(File idx) throws IOException {
+		if (!idx.exists()) {
+			return false;
+		}
+		try (RandomAccessFile raf = PersistenceToolbox.getFile(idx, false)) {
+			FileChannel fc = raf.getChannel();
+			return (fc.size() >= PersistenceToolbox.INT_NB_BYTES) && (PersistenceToolbox.loadInt(fc) == MAGIC);
+		}
+	}
+
+	public static IndexManifest load(File idx) throws IOException {
+		IndexManifest manifest = new IndexManifest();
+
+		try (RandomAccessFile raf = PersistenceToolbox.getFile(idx, false)) {
+			FileChannel fc = raf.getChannel();
+			if ((fc.size() < PersistenceToolbox.INT_NB_BYTES) || (PersistenceToolbox.loadInt(fc) != MAGIC)) {
+				throw new IOException(idx + " is not a segmented index");
+			}
+			int version = PersistenceToolbox.loadInt(fc);
+			if (version != VERSION) {
+				throw new IOException(idx + " has an unsupported manifest version " + version);
+			}
+			int flags = PersistenceToolbox.loadInt(fc);
+			manifest.setNativeKeys((flags & FLAG_NATIVE_KEYS) != 0);
+			manifest.setKeyPolicy(CompactBoard.KeyPolicy.valueOf((flags >> FLAGS_KEY_POLICY_SHIFT) & FLAGS_KEY_POLICY_MASK));
+			if (manifest.getKeyPolicy() == null) {
+				throw new IOException(idx + " has an unsupported key policy");
+			}
+			manifest.nextSegmentId = PersistenceToolbox.loadInt(fc);
+			int nbSegments = PersistenceToolbox.loadInt(fc);
+			for (int s = 0; s < nbSegments; s++) {
+				String name = PersistenceToolbox.loadString(fc);
+				int nbGames = PersistenceToolbox.loadInt(fc);
+				manifest.add(new File(idx.getAbsoluteFile().getParentFile(), name), nbGames);
+			}
+		}
+
+		return manifest;
+	}
+
+	/**
+	 * Locks the manifest against the updates of the other processes, until the
+	 * returned channel is closed.
+	 */
+	public static FileChannel lock(File idx) throws IOException {
+		File lockFile = new File(idx.getPath() + ".lock");
+		FileChannel channel = new RandomAccessFile(lockFile, "rw").getChannel();
+		try {
+			channel.lock();
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		return channel;
+	}
+
+	private List<File> segments;
+	private List<Integer> nbGames;
+	private int nextSegmentId;
+	private boolean nativeKeys;
+	private CompactBoard.KeyPolicy keyPolicy;
+
+	public IndexManifest() {
+		super();
+		segments = new ArrayList<>();
+		nbGames = new ArrayList<>();
+		nextSegmentId = 0;
+		nativeKeys = false;
+		keyPolicy = CompactBoard.KeyPolicy.FIDE;
+	}
+
+	public void add(File segment, int nbGames) {
+		segments.add(segment);
+		this.nbGames.add(nbGames);
+	}
+
+	/**
+	 * @return the number of the first game of the segment in the whole index,
+	 *         minus one, that is the shift of its game numbers
+	 */
+	public int getFirstGame(int segment) {
+		int first = 0;
+		for (int s = 0; s < segment; s++) {
+			first += nbGames.get(s);
+		}
+		return first;
+	}
+
+	/**
+	 * @return what identifies the positions, always FIDE for the chesslib keys
+	 */
+	public CompactBoard.KeyPolicy getKeyPolicy() {
+		return keyPolicy;
+	}
+
+	public int getNbGames() {
+		return getFirstGame(segments.size());
+	}
+
+	public int getNbGames(int segment) {
+		return nbGames.get(segment);
+	}
+
+	public int getNbSegments() {
+		return segments.size();
+	}
+
+	public File getSegment(int segment) {
+		return segments.get(segment);
+	}
+
+	/**
+	 * @return true if the positions have been hashed by {@link CompactBoard},
+	 *         false if they come from chesslib
+	 */
+	public boolean isNativeKeys() {
+		return nativeKeys;
+	}
+
+	/**
+	 * Reserves the file of a new segment, the manifest has to be saved for the
+	 * name not to be given again.
+	 */
+	public File newSegmentFile(File idx) {
+		return new File(idx.getPath() + ".seg-" + nextSegmentId++);
+	}
+
+	/**
+	 * Replaces the consecutive segments from and to, excluded, by the segment
+	 * they have been merged into.
+	 */
+	public void replace(int from, int to, File merged, int nbMergedGames) {
+		segments.subList(from, to).clear();
+		nbGames.subList(from, to).clear();
+		segments.add(from, merged);
+		nbGames.add(from, nbMergedGames);
+	}
+
+	/**
+	 * Writes the manifest next to the index, then moves it over the index, so
+	 * that it is replaced at once.
+	 */
+	public void save(File idx) throws IOException {
+		File tmp = new File(idx.getPath() + ".manifest.tmp");
+		try (RandomAccessFile raf = PersistenceToolbox.getFile(tmp, true)) {
+			PersistenceWriter out = new PersistenceWriter(raf.getChannel());
+			out.dumpInt(MAGIC);
+			out.dumpInt(VERSION);
+			out.dumpInt((nativeKeys ? FLAG_NATIVE_KEYS : 0) | (keyPolicy.ordinal() << FLAGS_KEY_POLICY_SHIFT));
+			out.dumpInt(nextSegmentId);
+			out.dumpInt(segments.size());
+			for (int s = 0; s < segments.size(); s++) {
+				out.dumpString(segments.get(s).getName());
+				out.dumpInt(nbGames.get(s));
+			}
+			out.flush();
+			raf.getChannel().force(true);
+		}
+		Files.move(tmp.toPath(), idx.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	public void setKeyPolicy(CompactBoard.KeyPolicy keyPolicy) {
+		this.keyPolicy = keyPolicy;
+	}
+
+	public void setNativeKeys(boolean nativeKeys) {
+		this.nativeKeys = nativeKeys;
+	}
+}
@@ -0,0 +1,181 @@
+package name.herve.chess.pgnindexer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Merges consecutive segments of an index into a single index file. The games
+ * of each segment are shifted by the games of the segments before it, so the
+ * posting lists are merged by appending them in the order of the segments,
+ * and the keys tables with a k-way merge. Only the I/O buffers and the
+ * catalog of the games are kept in memory, the posting lists going through
+ * the spilling buffer of the {@link IndexFileWriter}. The statistics and the
+ * fingerprints are merged as well when all the segments have them, a key
+ * whose fingerprints differ from one segment to the other becoming a
+ * collision.
+ */
+public class IndexMerger {
+	private int bufferSize;
+	private long nbPositions;
+	private long nbCollisions;
+
+	public IndexMerger(int bufferSize) {
+		super();
+		this.bufferSize = bufferSize;
+		nbPositions = 0;
+		nbCollisions = 0;
+	}
+
+	/**
+	 * @return the number of key collisions of the index written by the last
+	 *         merge, 0 if it has no fingerprints
+	 */
+	public long getNbCollisions() {
+		return nbCollisions;
+	}
+
+	/**
+	 * @return the number of positions written by the last merge
+	 */
+	public long getNbPositions() {
+		return nbPositions;
+	}
+
+	/**
+	 * @param segments
+	 *            from the oldest to the newest
+	 * @return the number of games of the merged index
+	 */
+	public int merge(List<File> segments, File target) throws IOException {
+		List<IndexFileReader> readers = new ArrayList<>();
+		List<PositionStatsReader> stats = new ArrayList<>();
+		List<PositionFingerprintsReader> fingerprints = new ArrayList<>();
+		IndexFileWriter writer = null;
+		PositionStatsWriter statsWriter = null;
+		PositionFingerprintsWriter fingerprintsWriter = null;
+		try {
+			boolean nativeKeys = false;
+			CompactBoard.KeyPolicy keyPolicy = CompactBoard.KeyPolicy.FIDE;
+			boolean withStats = true;
+			boolean withFingerprints = true;
+			for (File segment : segments) {
+				IndexFileReader reader = new IndexFileReader(segment);
+				readers.add(reader);
+				nativeKeys = reader.isNativeKeys();
+				keyPolicy = reader.getKeyPolicy();
+				File statsFile = PositionStats.getFile(segment);
+				withStats &= statsFile.exists();
+				if (withStats) {
+					stats.add(new PositionStatsReader(statsFile));
+				}
+				File fingerprintsFile = PositionFingerprints.getFile(segment);
+				withFingerprints &= fingerprintsFile.exists();
+				if (withFingerprints) {
+					fingerprints.add(new PositionFingerprintsReader(fingerprintsFile));
+				}
+			}
+
+			writer = new IndexFileWriter(target, bufferSize);
+			writer.setNativeKeys(nativeKeys);
+			writer.setKeyPolicy(keyPolicy);
+			if (withStats) {
+				statsWriter = new PositionStatsWriter(PositionStats.getFile(target), null, bufferSize);
+			}
+			if (withFingerprints) {
+				fingerprintsWriter = new PositionFingerprintsWriter(PositionFingerprints.getFile(target), bufferSize);
+			}
+
+			int nb = readers.size();
+			int[] shifts = new int[nb];
+			int shift = 0;
+			for (int s = 0; s < nb; s++) {
+				if ((readers.get(s).isNativeKeys() != nativeKeys) || (readers.get(s).getKeyPolicy() != keyPolicy)) {
+					throw new IOException("The segments have not been built with the same keys, " + segments.get(s) + " can not be merged");
+				}
+				shifts[s] = shift;
+				writer.getCatalog().addAll(readers.get(s).getCatalog(), shift);
+				shift += readers.get(s).getNbGames();
+			}
+
+			long[] ranks = new long[nb];
+			nbPositions = 0;
+			nbCollisions = 0;
+			while (true) {
+				long key = 0;
+				boolean found = false;
+				for (int s = 0; s < nb; s++) {
+					if (ranks[s] < readers.get(s).getNbPositions()) {
+						long k = readers.get(s).getKey(ranks[s]);
+						if (!found || (k < key)) {
+							key = k;
+							found = true;
+						}
+					}
+				}
+				if (!found) {
+					break;
+				}
+
+				// the games are streamed to the writer, the lists of a frequent key are never held whole
+				writer.startPosition(key);
+				if (fingerprintsWriter != null) {
+					fingerprintsWriter.startPosition();
+				}
+				PositionStats merged = null;
+				for (int s = 0; s < nb; s++) {
+					IndexFileReader reader = readers.get(s);
+					if ((ranks[s] < reader.getNbPositions()) && (reader.getKey(ranks[s]) == key)) {
+						PostingsCursor cursor = reader.getPostingsAt(ranks[s]);
+						int g;
+						while ((g = cursor.next()) >= 0) {
+							writer.addGame(g + shifts[s]);
+						}
+						if (withStats) {
+							PositionStats segmentStats = stats.get(s).get(ranks[s]);
+							if (merged == null) {
+								merged = segmentStats;
+							} else {
+								merged.add(segmentStats);
+							}
+						}
+						if (withFingerprints) {
+							fingerprintsWriter.addOccurrence(fingerprints.get(s).get(ranks[s]));
+						}
+						ranks[s]++;
+					}
+				}
+				writer.endPosition();
+				if (statsWriter != null) {
+					statsWriter.addStats(merged);
+				}
+				if (fingerprintsWriter != null) {
+					fingerprintsWriter.endPosition();
+				}
+				nbPositions++;
+			}
+			return shift;
+		} finally {
+			if (writer != null) {
+				writer.close();
+			}
+			if (statsWriter != null) {
+				statsWriter.close();
+			}
+			if (fingerprintsWriter != null) {
+				fingerprintsWriter.close();
+				nbCollisions = fingerprintsWriter.getNbCollisions();
+			}
+			for (IndexFileReader reader : readers) {
+				reader.close();
+			}
+			for (PositionStatsReader reader : stats) {
+				reader.close();
+			}
+			for (PositionFingerprintsReader reader : fingerprints) {
+				reader.close();
+			}
+		}
+	}
+}
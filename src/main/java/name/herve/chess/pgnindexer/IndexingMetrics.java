@@ -0,0 +1,168 @@
+package name.herve.chess.pgnindexer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The counters of an indexing run. They are striped, so the indexing threads
+ * update them without contending, and can be reported while the run goes on :
+ * {@link #startReporting(long, PrintStream)} writes a JSON line every period
+ * with the counters, the rates since the previous line and the state of the
+ * registered thread pools.
+ */
+public class IndexingMetrics implements Closeable {
+	private LongAdder nbFiles;
+	private LongAdder nbGames;
+	private LongAdder nbMoves;
+	private LongAdder nbFailures;
+	private LongAdder nbBytesRead;
+	private LongAdder nbBytesWritten;
+	private Map<String, GentleThreadPoolExecutor> pools;
+
+	private long startTime;
+	private long lastTime;
+	private long lastGames;
+	private long lastMoves;
+	private long lastBytesRead;
+	private ScheduledExecutorService reporter;
+	private PrintStream out;
+
+	public IndexingMetrics() {
+		super();
+		nbFiles = new LongAdder();
+		nbGames = new LongAdder();
+		nbMoves = new LongAdder();
+		nbFailures = new LongAdder();
+		nbBytesRead = new LongAdder();
+		nbBytesWritten = new LongAdder();
+		pools = new LinkedHashMap<>();
+		startTime = System.nanoTime();
+		lastTime = startTime;
+	}
+
+	public void addBytesRead(long nb) {
+		nbBytesRead.add(nb);
+	}
+
+	public void addBytesWritten(long nb) {
+		nbBytesWritten.add(nb);
+	}
+
+	public void addFailure() {
+		nbFailures.increment();
+	}
+
+	public void addFile() {
+		nbFiles.increment();
+	}
+
+	public void addGame() {
+		nbGames.increment();
+	}
+
+	public void addMoves(long nb) {
+		nbMoves.add(nb);
+	}
+
+	/**
+	 * Stops the reporting, after a last report.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (reporter != null) {
+			reporter.shutdownNow();
+			report();
+			reporter = null;
+		}
+	}
+
+	public long getNbBytesRead() {
+		return nbBytesRead.sum();
+	}
+
+	public long getNbBytesWritten() {
+		return nbBytesWritten.sum();
+	}
+
+	public long getNbFailures() {
+		return nbFailures.sum();
+	}
+
+	public long getNbFiles() {
+		return nbFiles.sum();
+	}
+
+	public long getNbGames() {
+		return nbGames.sum();
+	}
+
+	public long getNbMoves() {
+		return nbMoves.sum();
+	}
+
+	public synchronized void register(String name, GentleThreadPoolExecutor pool) {
+		pools.put(name, pool);
+	}
+
+	private synchronized void report() {
+		long now = System.nanoTime();
+		long games = getNbGames();
+		long moves = getNbMoves();
+		long bytesRead = getNbBytesRead();
+		double seconds = Math.max(1e-9, (now - lastTime) / 1e9);
+
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"time\":").append(System.currentTimeMillis());
+		sb.append(",\"elapsedMs\":").append(TimeUnit.NANOSECONDS.toMillis(now - startTime));
+		sb.append(",\"files\":").append(getNbFiles());
+		sb.append(",\"games\":").append(games);
+		sb.append(",\"moves\":").append(moves);
+		sb.append(",\"failures\":").append(getNbFailures());
+		sb.append(",\"bytesRead\":").append(bytesRead);
+		sb.append(",\"bytesWritten\":").append(getNbBytesWritten());
+		sb.append(",\"gamesPerSec\":").append(Math.round((games - lastGames) / seconds));
+		sb.append(",\"movesPerSec\":").append(Math.round((moves - lastMoves) / seconds));
+		sb.append(",\"mbReadPerSec\":").append(Math.round(((bytesRead - lastBytesRead) / seconds / (1024 * 1024)) * 10) / 10.0);
+		sb.append(",\"pools\":{");
+		boolean first = true;
+		for (Entry<String, GentleThreadPoolExecutor> e : pools.entrySet()) {
+			GentleThreadPoolExecutor pool = e.getValue();
+			if (!first) {
+				sb.append(",");
+			}
+			first = false;
+			sb.append("\"").append(e.getKey()).append("\":{");
+			sb.append("\"inFlight\":").append(pool.getNbInFlight());
+			sb.append(",\"queued\":").append(pool.getQueueSize());
+			sb.append(",\"completed\":").append(pool.getCompletedTaskCount());
+			sb.append(",\"blocked\":").append(pool.getNbBlocked());
+			sb.append(",\"blockedMs\":").append(pool.getBlockedTime());
+			sb.append("}");
+		}
+		sb.append("}}");
+		out.println(sb);
+		out.flush();
+
+		lastTime = now;
+		lastGames = games;
+		lastMoves = moves;
+		lastBytesRead = bytesRead;
+	}
+
+	/**
+	 * Writes a JSON line to out every period, until {@link #close()}.
+	 */
+	public void startReporting(long periodMs, PrintStream out) {
+		this.out = out;
+		reporter = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("metrics"));
+		reporter.scheduleAtFixedRate(this::report, periodMs, periodMs, TimeUnit.MILLISECONDS);
+	}
+}
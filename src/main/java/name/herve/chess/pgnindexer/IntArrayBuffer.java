@@ -0,0 +1,84 @@
+package name.herve.chess.pgnindexer;
+
+import java.util.Arrays;
+
+/**
+ * A growable array of primitive ints, meant to be reused from one posting list
+ * to the next to collect game ids without boxing them.
+ */
+public class IntArrayBuffer {
+	private int[] values;
+	private int size;
+
+	public IntArrayBuffer() {
+		this(256);
+	}
+
+	public IntArrayBuffer(int capacity) {
+		super();
+		values = new int[Math.max(capacity, 1)];
+		size = 0;
+	}
+
+	public void add(int v) {
+		if (size == values.length) {
+			values = Arrays.copyOf(values, size * 2);
+		}
+		values[size++] = v;
+	}
+
+	public void clear() {
+		size = 0;
+	}
+
+	public int get(int i) {
+		return values[i];
+	}
+
+	/**
+	 * @return the backing array, only the first {@link #size()} values are
+	 *         meaningful
+	 */
+	public int[] getValues() {
+		return values;
+	}
+
+	public void set(int i, int v) {
+		values[i] = v;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Sorts the values in place and removes the duplicates.
+	 *
+	 * @return the number of distinct values
+	 */
+	public int sortAndDedup() {
+		if (size < 2) {
+			return size;
+		}
+		Arrays.sort(values, 0, size);
+		int n = 1;
+		for (int i = 1; i < size; i++) {
+			if (values[i] != values[n - 1]) {
+				values[n++] = values[i];
+			}
+		}
+		size = n;
+		return size;
+	}
+
+	/**
+	 * Keeps only the first values.
+	 */
+	public void truncate(int newSize) {
+		size = Math.min(size, newSize);
+	}
+
+	public int[] toArray() {
+		return Arrays.copyOf(values, size);
+	}
+}
@@ -0,0 +1,174 @@
+package name.herve.chess.pgnindexer;
+
+import java.util.Arrays;
+
+/**
+ * A growable array of primitive longs, meant to be reused from one game to the
+ * next to collect positions without boxing them.
+ */
+public class LongArrayBuffer {
+	private long[] values;
+	private int size;
+
+	public LongArrayBuffer() {
+		this(256);
+	}
+
+	public LongArrayBuffer(int capacity) {
+		super();
+		values = new long[Math.max(capacity, 1)];
+		size = 0;
+	}
+
+	public void add(long v) {
+		if (size == values.length) {
+			values = Arrays.copyOf(values, size * 2);
+		}
+		values[size++] = v;
+	}
+
+	public void clear() {
+		size = 0;
+	}
+
+	private void exchange(int[] payload, int[] payload2, int i, int j) {
+		long v = values[i];
+		values[i] = values[j];
+		values[j] = v;
+		if (payload != null) {
+			int p = payload[i];
+			payload[i] = payload[j];
+			payload[j] = p;
+		}
+		if (payload2 != null) {
+			int p = payload2[i];
+			payload2[i] = payload2[j];
+			payload2[j] = p;
+		}
+	}
+
+	public long get(int i) {
+		return values[i];
+	}
+
+	/**
+	 * @return the backing array, only the first {@link #size()} values are
+	 *         meaningful
+	 */
+	public long[] getValues() {
+		return values;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Sorts the values in place and removes the duplicates.
+	 *
+	 * @return the number of distinct values
+	 */
+	public int sortAndDedup() {
+		if (size < 2) {
+			return size;
+		}
+		Arrays.sort(values, 0, size);
+		int n = 1;
+		for (int i = 1; i < size; i++) {
+			if (values[i] != values[n - 1]) {
+				values[n++] = values[i];
+			}
+		}
+		size = n;
+		return size;
+	}
+
+	/**
+	 * Sorts the values in place along with a payload of the same size, and
+	 * removes the duplicates, keeping the payload of one of them.
+	 *
+	 * @return the number of distinct values
+	 */
+	public int sortAndDedup(IntArrayBuffer payload) {
+		return sortAndDedup(payload, null);
+	}
+
+	/**
+	 * Sorts and removes the duplicates along with two payloads, any of them
+	 * may be null.
+	 *
+	 * @return the number of distinct values
+	 */
+	public int sortAndDedup(IntArrayBuffer payload, IntArrayBuffer payload2) {
+		if ((payload == null) && (payload2 == null)) {
+			return sortAndDedup();
+		}
+		if (size < 2) {
+			return size;
+		}
+		int[] p = payload == null ? null : payload.getValues();
+		int[] p2 = payload2 == null ? null : payload2.getValues();
+		sort(p, p2, 0, size - 1);
+		int n = 1;
+		for (int i = 1; i < size; i++) {
+			if (values[i] != values[n - 1]) {
+				values[n] = values[i];
+				if (p != null) {
+					p[n] = p[i];
+				}
+				if (p2 != null) {
+					p2[n] = p2[i];
+				}
+				n++;
+			}
+		}
+		size = n;
+		if (payload != null) {
+			payload.truncate(n);
+		}
+		if (payload2 != null) {
+			payload2.truncate(n);
+		}
+		return size;
+	}
+
+	/**
+	 * A quicksort of the values between lo and hi included, moving the
+	 * payloads along, with an insertion sort for the small ranges.
+	 */
+	private void sort(int[] payload, int[] payload2, int lo, int hi) {
+		while ((hi - lo) > 16) {
+			long pivot = values[(lo + hi) >>> 1];
+			int i = lo;
+			int j = hi;
+			while (i <= j) {
+				while (values[i] < pivot) {
+					i++;
+				}
+				while (values[j] > pivot) {
+					j--;
+				}
+				if (i <= j) {
+					exchange(payload, payload2, i++, j--);
+				}
+			}
+			// recurses on the smaller side, so that the stack stays shallow
+			if ((j - lo) < (hi - i)) {
+				sort(payload, payload2, lo, j);
+				lo = i;
+			} else {
+				sort(payload, payload2, i, hi);
+				hi = j;
+			}
+		}
+		for (int i = lo + 1; i <= hi; i++) {
+			for (int j = i; (j > lo) && (values[j - 1] > values[j]); j--) {
+				exchange(payload, payload2, j - 1, j);
+			}
+		}
+	}
+
+	public long[] toArray() {
+		return Arrays.copyOf(values, size);
+	}
+}
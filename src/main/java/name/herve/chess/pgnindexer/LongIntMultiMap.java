@@ -0,0 +1,163 @@
+package name.herve.chess.pgnindexer;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * An open addressing hash map from primitive long keys to lists of primitive
+ * ints, used to build the posting lists without boxing keys nor game ids. A
+ * key with a single value (the vast majority of the positions) costs no
+ * allocation at all, longer lists are stored in growable int arrays.
+ */
+public class LongIntMultiMap {
+	public interface EntryVisitor {
+		/**
+		 * @param values
+		 *            only the first nb values are meaningful, and the array may be
+		 *            reused after the call returns
+		 */
+		void visit(long key, int[] values, int nb) throws IOException;
+	}
+
+	private final static float LOAD_FACTOR = 0.6f;
+
+	private long[] keys;
+	private int[] first;
+	private int[][] more;
+	private int[] nbValues;
+	private int mask;
+	private int size;
+	private int threshold;
+
+	public LongIntMultiMap() {
+		this(1024);
+	}
+
+	public LongIntMultiMap(int expectedSize) {
+		super();
+		allocate(Math.max(16, Integer.highestOneBit((int) (expectedSize / LOAD_FACTOR)) << 1));
+	}
+
+	public void add(long key, int value) {
+		int slot = slot(key);
+		int nb = nbValues[slot];
+		if (nb == 0) {
+			keys[slot] = key;
+			first[slot] = value;
+			nbValues[slot] = 1;
+			if (++size > threshold) {
+				rehash(keys.length << 1);
+			}
+			return;
+		}
+
+		if (nb == 1) {
+			int[] m = new int[4];
+			m[0] = first[slot];
+			more[slot] = m;
+		} else if (nb == more[slot].length) {
+			more[slot] = Arrays.copyOf(more[slot], nb + (nb >> 1));
+		}
+		more[slot][nb] = value;
+		nbValues[slot] = nb + 1;
+	}
+
+	/**
+	 * Adds all the entries of another map, shifting its values by delta.
+	 */
+	public void addAll(LongIntMultiMap other, int delta) {
+		for (int s = 0; s < other.keys.length; s++) {
+			int nb = other.nbValues[s];
+			if (nb == 1) {
+				add(other.keys[s], other.first[s] + delta);
+			} else {
+				for (int i = 0; i < nb; i++) {
+					add(other.keys[s], other.more[s][i] + delta);
+				}
+			}
+		}
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		first = new int[capacity];
+		more = new int[capacity][];
+		nbValues = new int[capacity];
+		mask = capacity - 1;
+		threshold = (int) (capacity * LOAD_FACTOR);
+	}
+
+	public void forEach(EntryVisitor visitor) throws IOException {
+		int[] single = new int[1];
+		for (int s = 0; s < keys.length; s++) {
+			visit(s, visitor, single);
+		}
+	}
+
+	/**
+	 * Visits the entries in increasing key order.
+	 */
+	public void forEachSorted(EntryVisitor visitor) throws IOException {
+		long[] sorted = keys();
+		Arrays.sort(sorted);
+		int[] single = new int[1];
+		for (long key : sorted) {
+			visit(slot(key), visitor, single);
+		}
+	}
+
+	public int getNbValues(long key) {
+		return nbValues[slot(key)];
+	}
+
+	public long[] keys() {
+		long[] res = new long[size];
+		int n = 0;
+		for (int s = 0; s < keys.length; s++) {
+			if (nbValues[s] > 0) {
+				res[n++] = keys[s];
+			}
+		}
+		return res;
+	}
+
+	private void rehash(int capacity) {
+		long[] oldKeys = keys;
+		int[] oldFirst = first;
+		int[][] oldMore = more;
+		int[] oldNbValues = nbValues;
+		allocate(capacity);
+		for (int s = 0; s < oldKeys.length; s++) {
+			if (oldNbValues[s] > 0) {
+				int slot = slot(oldKeys[s]);
+				keys[slot] = oldKeys[s];
+				first[slot] = oldFirst[s];
+				more[slot] = oldMore[s];
+				nbValues[slot] = oldNbValues[s];
+			}
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	private int slot(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		int slot = (int) (h ^ (h >>> 32)) & mask;
+		while ((nbValues[slot] > 0) && (keys[slot] != key)) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private void visit(int slot, EntryVisitor visitor, int[] single) throws IOException {
+		int nb = nbValues[slot];
+		if (nb == 1) {
+			single[0] = first[slot];
+			visitor.visit(keys[slot], single, 1);
+		} else if (nb > 1) {
+			visitor.visit(keys[slot], more[slot], nb);
+		}
+	}
+}
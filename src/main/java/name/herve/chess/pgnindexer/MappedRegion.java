@@ -0,0 +1,80 @@
+package name.herve.chess.pgnindexer;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * A read-only memory mapped view over a region of a file, possibly larger than
+ * the 2GB limit of a single {@link MappedByteBuffer}. All accessors use
+ * absolute positions and are safe to call from several threads.
+ */
+public class MappedRegion {
+	private final static int CHUNK_SHIFT = 30;
+	private final static long CHUNK_SIZE = 1L << CHUNK_SHIFT;
+	private final static long CHUNK_MASK = CHUNK_SIZE - 1;
+
+	private MappedByteBuffer[] chunks;
+	private long size;
+
+	public MappedRegion(FileChannel fc, long position, long size) throws IOException {
+		super();
+		this.size = size;
+		int nbChunks = (int) ((size + CHUNK_SIZE - 1) >>> CHUNK_SHIFT);
+		chunks = new MappedByteBuffer[nbChunks];
+		for (int c = 0; c < nbChunks; c++) {
+			long start = (long) c << CHUNK_SHIFT;
+			chunks[c] = fc.map(MapMode.READ_ONLY, position + start, Math.min(CHUNK_SIZE, size - start));
+		}
+	}
+
+	public byte get(long offset) {
+		return chunks[(int) (offset >>> CHUNK_SHIFT)].get((int) (offset & CHUNK_MASK));
+	}
+
+	public void get(long offset, byte[] dst, int dstOffset, int length) {
+		for (int i = 0; i < length; i++) {
+			dst[dstOffset + i] = get(offset + i);
+		}
+	}
+
+	public int getInt(long offset) {
+		MappedByteBuffer chunk = chunks[(int) (offset >>> CHUNK_SHIFT)];
+		int o = (int) (offset & CHUNK_MASK);
+		if ((o + PersistenceToolbox.INT_NB_BYTES) <= chunk.limit()) {
+			return chunk.getInt(o);
+		}
+		int v = 0;
+		for (int i = 0; i < PersistenceToolbox.INT_NB_BYTES; i++) {
+			v = (v << 8) | (get(offset + i) & 0xFF);
+		}
+		return v;
+	}
+
+	public long getLong(long offset) {
+		MappedByteBuffer chunk = chunks[(int) (offset >>> CHUNK_SHIFT)];
+		int o = (int) (offset & CHUNK_MASK);
+		if ((o + PersistenceToolbox.LONG_NB_BYTES) <= chunk.limit()) {
+			return chunk.getLong(o);
+		}
+		long v = 0;
+		for (int i = 0; i < PersistenceToolbox.LONG_NB_BYTES; i++) {
+			v = (v << 8) | (get(offset + i) & 0xFF);
+		}
+		return v;
+	}
+
+	public short getShort(long offset) {
+		MappedByteBuffer chunk = chunks[(int) (offset >>> CHUNK_SHIFT)];
+		int o = (int) (offset & CHUNK_MASK);
+		if ((o + PersistenceToolbox.SHORT_NB_BYTES) <= chunk.limit()) {
+			return chunk.getShort(o);
+		}
+		return (short) (((get(offset) & 0xFF) << 8) | (get(offset + 1) & 0xFF));
+	}
+
+	public long size() {
+		return size;
+	}
+}
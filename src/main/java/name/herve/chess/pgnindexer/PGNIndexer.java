@@ -1,12 +1,25 @@
 package name.herve.chess.pgnindexer;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintStream;
-import java.io.RandomAccessFile;
-import java.nio.BufferUnderflowException;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.text.DecimalFormat;
 import java.text.SimpleDateFormat;
@@ -14,14 +27,9 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Scanner;
-import java.util.Set;
 import java.util.TimeZone;
-import java.util.TreeSet;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
@@ -30,6 +38,7 @@ import java.util.concurrent.TimeUnit;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 
@@ -47,91 +56,524 @@ public class PGNIndexer {
 
 		private Path root;
 
-		public FileTask(File file, Path root) {
+		private int chunk;
+		private long start;
+		private long end;
+		private int part;
+		private int nbGames;
+		private int firstOrdinal;
+
+		public FileTask(File file, Path root, int part) {
+			this(file, root, 0, 0, -1, part);
+		}
+
+		/**
+		 * A task scanning only the [start, end[ range of the file, numbered as
+		 * the given part of {@link PGNIndexer#numbering}.
+		 */
+		public FileTask(File file, Path root, int chunk, long start, long end, int part) {
 			super();
 			this.file = file;
 			this.root = root;
+			this.chunk = chunk;
+			this.start = start;
+			this.end = end;
+			this.part = part;
+			nbGames = 0;
 		}
 
 		@Override
 		public FileTask call() throws Exception {
 			// log(file.getName() + " ...");
+			try {
+				if (!nativeKeys) {
+					iterateFile();
+				} else if ((end < 0) && CompressedInput.isCompressed(file)) {
+					scanStream();
+				} else {
+					scanRange();
+				}
+			} finally {
+				// the next chunks of the file and the index builder wait for this count
+				numbering.setNbGames(part, nbGames);
+			}
+
+			if (chunk == 0) {
+				metrics.addFile();
+			}
+			// log("... " + file.getName());
+			return this;
+		}
+
+		/**
+		 * Waits for the games of the file before this part to be counted, the
+		 * games being numbered in their part in the streamed index, see
+		 * {@link ExternalIndexBuilder#setNumbering(GameNumbering)}.
+		 */
+		private void number() throws InterruptedException {
+			firstOrdinal = numbering.getFirstOrdinal(part);
+		}
+
+		private void iterateFile() throws InterruptedException {
+			number();
 			PgnIterator games = null;
+			InputStream in = null;
 
 			try {
-				games = new PgnIterator(file.getAbsolutePath());
+				if (CompressedInput.isCompressed(file)) {
+					in = CompressedInput.open(file, decodeExecutor, DECODE_AHEAD);
+					games = new PgnIterator(in);
+				} else {
+					games = new PgnIterator(file.getAbsolutePath());
+				}
 			} catch (Exception e) {
 				// log(true, e);
 			}
-			int fileCounter = 0;
 			String fileName = root.relativize(file.toPath()).toString();
+			GameTask batch = new GameTask(fileName, part);
 
 			try {
 				for (Game game : games) {
-					fileCounter++;
-					game.setGameId("[" + fileCounter + "]" + fileName);
-					indexGame(game);
+					nbGames++;
+					game.setGameId("[" + nbGames + "]" + fileName);
+					metrics.addGame();
+					if (!Game.isParsable(game) || (game.getExceptionInParsing() != null)) {
+						metrics.addFailure();
+						// log("Chesslib had an error while parsing : " + gameToShortString(game));
+						// log(false, game.getExceptionInParsing());
+						continue;
+					}
+					batch.add(game, nbGames);
+					if (batch.isFull()) {
+						gameExecutor.submit(batch);
+						batch = new GameTask(fileName, part);
+					}
+				}
+				if (batch.size() > 0) {
+					gameExecutor.submit(batch);
 				}
+				metrics.addBytesRead(file.length());
 			} catch (Exception e) {
 				// log(true, e);
+			} finally {
+				if (in != null) {
+					try {
+						in.close();
+					} catch (IOException e) {
+					}
+				}
+			}
+		}
+
+		/**
+		 * Cuts the games found by the scanner in {@link NativeGameTask}
+		 * batches, numbered from the start of the part.
+		 */
+		private void scanGames(PgnScanner scanner, ByteBuffer buf, long bufOffset, String fileName, List<NativeGameTask> batches) {
+			NativeGameTask batch = new NativeGameTask(fileName, buf, bufOffset);
+			while (scanner.nextGame()) {
+				int gameStart = scanner.getGameStart();
+				int nbMoves = scanner.skipMovetext();
+				nbGames++;
+				metrics.addGame();
+				batch.add(nbGames, gameStart, scanner.getPosition(), nbMoves);
+				if (batch.isFull()) {
+					batches.add(batch);
+					batch = new NativeGameTask(fileName, buf, bufOffset);
+				}
+			}
+			if (batch.size() > 0) {
+				batches.add(batch);
 			}
+		}
+
+		/**
+		 * Maps the range and hands its games over to {@link NativeGameTask}
+		 * batches, once the chunks of the file before it are counted : the
+		 * batches only hold offsets in the mapped range meanwhile.
+		 */
+		private void scanRange() throws InterruptedException {
+			String fileName = root.relativize(file.toPath()).toString();
+			PgnScanner scanner = new PgnScanner();
+			List<NativeGameTask> batches = new ArrayList<>();
 
-			synchronized (PGNIndexer.this) {
-				nbIndexedFiles++;
+			try {
+				MappedByteBuffer buf = map(file, start, end);
+				scanner.reset(buf, 0, buf.limit());
+				scanGames(scanner, buf, start, fileName, batches);
+				metrics.addBytesRead(buf.limit());
+			} catch (IOException e) {
+				log(true, e);
 			}
-			// log("... " + file.getName());
-			return this;
+			numbering.setNbGames(part, nbGames);
+			number();
+			submit(batches);
+		}
+
+		/**
+		 * Scans a compressed file as it is decoded, by blocks cut at the last
+		 * game start they hold. The games of a block reference it until they
+		 * are hashed, so each block is a new array. The file is a part of its
+		 * own, so its games are numbered as soon as they are scanned.
+		 */
+		private void scanStream() throws InterruptedException {
+			number();
+			String fileName = root.relativize(file.toPath()).toString();
+			PgnScanner scanner = new PgnScanner();
+			List<NativeGameTask> batches = new ArrayList<>();
+
+			try (InputStream in = CompressedInput.open(file, decodeExecutor, DECODE_AHEAD)) {
+				byte[] block = new byte[STREAM_BLOCK_SIZE];
+				int length = 0;
+				boolean eof = false;
+				while (!eof || (length > 0)) {
+					int n = eof ? -1 : in.readNBytes(block, length, block.length - length);
+					if (n >= 0) {
+						length += n;
+					}
+					eof = length < block.length;
+
+					ByteBuffer buf = ByteBuffer.wrap(block);
+					int limit = eof ? length : PgnScanner.findLastGameStart(buf, 0, length);
+					if (limit < 0) {
+						// a single game larger than the block
+						block = Arrays.copyOf(block, block.length * 2);
+						continue;
+					}
+
+					scanner.reset(buf, 0, limit);
+					scanGames(scanner, buf, -1, fileName, batches);
+					submit(batches);
+					metrics.addBytesRead(limit);
+
+					byte[] next = new byte[STREAM_BLOCK_SIZE];
+					length -= limit;
+					if (length > next.length) {
+						next = new byte[length * 2];
+					}
+					System.arraycopy(block, limit, next, 0, length);
+					block = next;
+				}
+			} catch (IOException e) {
+				log(true, e);
+			}
+		}
+
+		/**
+		 * Numbers the games of the batches and hands them over to the game
+		 * threads.
+		 */
+		private void submit(List<NativeGameTask> batches) {
+			for (NativeGameTask batch : batches) {
+				batch.setPart(part, firstOrdinal);
+				gameExecutor.submit(batch);
+			}
+			batches.clear();
 		}
 	}
 
+	/**
+	 * Hashes a batch of games with chesslib, reusing the same board for all of
+	 * them.
+	 */
 	private class GameTask implements Callable<GameTask> {
-		private Game game;
-		private Set<Long> positions;
-
-		public GameTask(Game game) {
+		private String fileName;
+		private int part;
+		private List<Game> games;
+		private IntArrayBuffer ordinals;
+		private int nbMoves;
+
+		/**
+		 * @param part
+		 *            the part of the file in {@link PGNIndexer#numbering}, its
+		 *            games being numbered by their ordinal
+		 */
+		public GameTask(String fileName, int part) {
 			super();
-			this.game = game;
+			this.fileName = fileName;
+			this.part = part;
+			games = new ArrayList<>();
+			ordinals = new IntArrayBuffer(64);
+			nbMoves = 0;
+		}
+
+		/**
+		 * @param ordinal
+		 *            the number of the game in its file
+		 */
+		public void add(Game game, int ordinal) {
+			games.add(game);
+			ordinals.add(ordinal);
+			if (game.getHalfMoves() != null) {
+				nbMoves += game.getHalfMoves().size();
+			}
 		}
 
 		@Override
 		public GameTask call() throws Exception {
-			MoveList moves = game.getHalfMoves();
 			Board board = new Board();
-			positions = new TreeSet<>();
+			LongArrayBuffer positions = gamePositions.get();
+			IntArrayBuffer nextMoves = explorer ? gameMoves.get() : null;
+			IntArrayBuffer positionFingerprints = fingerprints ? gameFingerprints.get() : null;
+			GameSummary summary = gameSummaries.get();
+			for (int g = 0; g < games.size(); g++) {
+				Game game = games.get(g);
+				MoveList moves = game.getHalfMoves();
+				positions.clear();
+				try {
+					board.loadFromFen(CompactBoard.START_FEN);
+					summarize(game, summary);
+					if (explorer) {
+						nextMoves.clear();
+					}
+					if (fingerprints) {
+						positionFingerprints.clear();
+					}
+					for (Move move : moves) {
+						board.doMove(move);
+						long zobrist = board.getZobristKey();
+						if (explorer) {
+							addNextMove(nextMoves, CompactBoard.parseUci(move.toString()));
+						}
+						if (fingerprints) {
+							// the key collisions are told apart by the fingerprints, see PositionFingerprints
+							positionFingerprints.add(PositionFingerprints.of(board));
+						}
+						positions.add(zobrist);
+					}
+
+					metrics.addMoves(positions.size());
+					storeGame(fileName, ordinals.get(g), part, ordinals.get(g), -1, -1, positions, nextMoves, positionFingerprints, summary);
+				} catch (RuntimeException e) {
+					// e.printStackTrace();
+					metrics.addFailure();
+				}
+				// log("Processed : " + gameToShortString(game));
+			}
+			games = null;
+			return this;
+		}
+
+		public boolean isFull() {
+			return (games.size() >= batchGames) || (nbMoves >= batchMoves);
+		}
+
+		public int size() {
+			return games.size();
+		}
+	}
+
+	/**
+	 * Hashes a batch of games of the same buffer, reusing the scanner, board
+	 * and positions buffer of the thread.
+	 */
+	private class NativeGameTask implements Callable<NativeGameTask> {
+		private String fileName;
+		private ByteBuffer buf;
+		private long bufOffset;
+		private int part;
+		private int firstOrdinal;
+		private IntArrayBuffer gameNumbers;
+		private IntArrayBuffer starts;
+		private IntArrayBuffer ends;
+		private int nbMoves;
+
+		/**
+		 * @param bufOffset
+		 *            the offset of the buffer in the file, -1 if the file is
+		 *            compressed
+		 */
+		public NativeGameTask(String fileName, ByteBuffer buf, long bufOffset) {
+			super();
+			this.fileName = fileName;
+			this.buf = buf;
+			this.bufOffset = bufOffset;
+			gameNumbers = new IntArrayBuffer(64);
+			starts = new IntArrayBuffer(64);
+			ends = new IntArrayBuffer(64);
+			nbMoves = 0;
+		}
+
+		public void add(int gameNumber, int start, int end, int nbMoves) {
+			gameNumbers.add(gameNumber);
+			starts.add(start);
+			ends.add(end);
+			this.nbMoves += nbMoves;
+		}
+
+		@Override
+		public NativeGameTask call() throws Exception {
+			PgnScanner scanner = gameScanners.get();
+			CompactBoard board = gameBoards.get();
+			LongArrayBuffer positions = gamePositions.get();
+			IntArrayBuffer nextMoves = explorer ? gameMoves.get() : null;
+			IntArrayBuffer positionFingerprints = fingerprints ? gameFingerprints.get() : null;
+			GameSummary summary = gameSummaries.get();
+			for (int g = 0; g < size(); g++) {
+				scanner.reset(buf, starts.get(g), ends.get(g));
+				boolean hashed;
+				try {
+					hashed = hashGame(scanner, board, positions, nextMoves, positionFingerprints);
+				} catch (RuntimeException e) {
+					// a game the board can not play, it must not stop the whole batch
+					hashed = false;
+				}
+				if (hashed) {
+					metrics.addMoves(positions.size());
+					scanner.getSummary(summary);
+					storeGame(fileName, firstOrdinal + gameNumbers.get(g), part, gameNumbers.get(g), bufOffset < 0 ? -1 : bufOffset + starts.get(g), bufOffset < 0 ? -1 : ends.get(g) - starts.get(g), positions, nextMoves,
+							positionFingerprints, summary);
+				} else {
+					metrics.addFailure();
+				}
+			}
+			buf = null;
+			return this;
+		}
+
+		/**
+		 * @param nextMoves
+		 *            receives the move played from each position, or null if
+		 *            they are not needed
+		 * @param positionFingerprints
+		 *            receives the {@link PositionFingerprints} of each position,
+		 *            or null if they are not needed
+		 */
+		private boolean hashGame(PgnScanner scanner, CompactBoard board, LongArrayBuffer positions, IntArrayBuffer nextMoves, IntArrayBuffer positionFingerprints) {
+			if (!scanner.nextGame() || !scanner.isStandardVariant()) {
+				return false;
+			}
+
+			String fen = scanner.getFen();
 			try {
-				for (Move move : moves) {
-					board.doMove(move);
-					nbIndexedMoves++;
-					long zobrist = board.getZobristKey();
-					positions.add(zobrist);
-					// String fen = board.getFen(false);
-					// fen = fen.substring(0, fen.indexOf(" "));
-					// String otherFen;
-					// synchronized (indexedPositions) {
-					// otherFen = indexedPositions.put(zobrist, fen);
-					// }
-					// if ((otherFen != null) && !otherFen.equals(fen)) {
-					// log(true, "Zobrist hash collision " + zobrist);
-					// log(true, " " + fen);
-					// log(true, " " + otherFen);
-					// }
-				}
-
-				if (dbFileChannel != null) {
-					long[] pos = positions.stream().mapToLong(Long::longValue).toArray();
-					synchronized (dbFileChannel) {
-						PersistenceToolbox.dumpString(dbFileChannel, game.getGameId());
-						PersistenceToolbox.dumpFullLongArray(dbFileChannel, pos);
+				if (fen == null) {
+					board.reset();
+				} else {
+					board.loadFen(fen);
+				}
+			} catch (IllegalArgumentException e) {
+				return false;
+			}
+
+			positions.clear();
+			if (nextMoves != null) {
+				nextMoves.clear();
+			}
+			if (positionFingerprints != null) {
+				positionFingerprints.clear();
+			}
+			int len;
+			while ((len = scanner.nextSan()) > 0) {
+				if (!board.doSan(scanner.getSan(), 0, len)) {
+					// dropped, as chesslib would do with a game it can not parse
+					return false;
+				}
+				if (nextMoves != null) {
+					addNextMove(nextMoves, board.getLastMove());
+				}
+				if (positionFingerprints != null) {
+					positionFingerprints.add(PositionFingerprints.of(board, keyPolicy));
+				}
+				positions.add(board.getKey(keyPolicy));
+			}
+			return true;
+		}
+
+		public boolean isFull() {
+			return (size() >= batchGames) || (nbMoves >= batchMoves);
+		}
+
+		/**
+		 * @param part
+		 *            the part of the batch in {@link PGNIndexer#numbering}, its
+		 *            games being numbered from the start of the part
+		 * @param firstOrdinal
+		 *            the number of the games of the file before the part
+		 */
+		public void setPart(int part, int firstOrdinal) {
+			this.part = part;
+			this.firstOrdinal = firstOrdinal;
+		}
+
+		public int size() {
+			return gameNumbers.size();
+		}
+	}
+
+	/**
+	 * Reads a block of a database shard, either into an index builder or into
+	 * partitions of positions by key range, see {@link #getPartition(long, int)}.
+	 */
+	private class BlockTask implements Callable<BlockTask> {
+		private File shard;
+		private long start;
+		private long end;
+		private int firstGame;
+		private ExternalIndexBuilder builder;
+		private int partitionBits;
+		private int nbBlockGames;
+		private List<String> gameIds;
+		private LongIntMultiMap[] partitions;
+
+		public BlockTask(File shard, long start, long end, int firstGame, ExternalIndexBuilder builder, int partitionBits) {
+			super();
+			this.shard = shard;
+			this.start = start;
+			this.end = end;
+			this.firstGame = firstGame;
+			this.builder = builder;
+			this.partitionBits = partitionBits;
+		}
+
+		@Override
+		public BlockTask call() throws Exception {
+			nbBlockGames = 0;
+			if (builder == null) {
+				// the builder keeps the ids in its catalog, they are only needed here otherwise
+				gameIds = new ArrayList<>();
+				partitions = new LongIntMultiMap[1 << partitionBits];
+				for (int p = 0; p < partitions.length; p++) {
+					partitions[p] = new LongIntMultiMap(0);
+				}
+			}
+
+			try (PersistenceReader in = new PersistenceReader(PersistenceToolbox.getFile(shard, false).getChannel(), ioBufferSize)) {
+				in.seek(start);
+				while (in.getPosition() < end) {
+					String gameId = in.loadString();
+					long[] pos = in.loadFullLongArray();
+					nbBlockGames++;
+					int gameIndex = firstGame + nbBlockGames;
+					if (builder != null) {
+						builder.addGame(gameIndex, gameId, pos, pos.length);
+					} else {
+						gameIds.add(gameId);
+						for (long p : pos) {
+							partitions[getPartition(p, partitionBits)].add(p, gameIndex);
+						}
 					}
 				}
-			} catch (NullPointerException e) {
-				// e.printStackTrace();
+			} catch (EOFException e) {
+				// eof
 			}
-			// log("Processed : " + gameToShortString(game));
 			return this;
 		}
 	}
 
+	private final static long DEFAULT_STREAMING_MEMORY = 1024L * 1024 * 1024;
+	private final static long MIN_CHUNK_SIZE = 8L * 1024 * 1024;
+	private final static long MAX_CHUNK_SIZE = 256L * 1024 * 1024;
+	private final static int CHUNKS_PER_THREAD = 4;
+	private final static int MAX_REPORTED_MISMATCHES = 10;
+	private final static int VIRTUAL_FILE_TASKS_PER_CPU = 8;
+	private final static int DEFAULT_BATCH_GAMES = 64;
+	private final static int DEFAULT_BATCH_MOVES = 4096;
+	private final static int STREAM_BLOCK_SIZE = 16 * 1024 * 1024;
+	private final static int QUERY_BLOCK_LINES = 64 * 1024;
+	private final static int SERVER_THREADS_PER_CPU = 2;
+	private final static int DECODE_AHEAD = 2 * Runtime.getRuntime().availableProcessors();
+	private final static int PARTITIONS_PER_THREAD = 4;
+
 	private static DecimalFormat DECF = new DecimalFormat("###,###");
 
 	private static SimpleDateFormat DTF;
@@ -141,6 +583,139 @@ public class PGNIndexer {
 		DTF.setTimeZone(TimeZone.getTimeZone("Europe/Paris"));
 	}
 
+	/**
+	 * @return the number of bits of the partitions of the positions, enough
+	 *         for each thread to get a few of them
+	 */
+	private static int getPartitionBits() {
+		return 32 - Integer.numberOfLeadingZeros((PARTITIONS_PER_THREAD * Runtime.getRuntime().availableProcessors()) - 1);
+	}
+
+	/**
+	 * @return the partition of a key, by range : the partitions are in the
+	 *         order of the keys, as signed longs
+	 */
+	private static int getPartition(long key, int partitionBits) {
+		return (int) ((key ^ Long.MIN_VALUE) >>> (Long.SIZE - partitionBits));
+	}
+
+	/**
+	 * Records a move as the one played from the previous position, and makes
+	 * room for the one played from the new position.
+	 */
+	private static void addNextMove(IntArrayBuffer nextMoves, int move) {
+		if (nextMoves.size() > 0) {
+			nextMoves.set(nextMoves.size() - 1, move);
+		}
+		nextMoves.add(0);
+	}
+
+	/**
+	 * @throws ParseException
+	 *             if the option is given and is not an integer from min to max
+	 */
+	private static void checkInteger(CommandLine command, String option, long min, long max) throws ParseException {
+		if (!command.hasOption(option)) {
+			return;
+		}
+		String value = command.getOptionValue(option);
+		try {
+			long v = Long.parseLong(value);
+			if ((v >= min) && (v <= max)) {
+				return;
+			}
+		} catch (NumberFormatException e) {
+			// reported below
+		}
+		throw new ParseException("Invalid value " + value + " for option -" + option + ", expecting an integer from " + min + " to " + max);
+	}
+
+	/**
+	 * Checks the values of the options, before anything is done with them.
+	 *
+	 * @throws ParseException
+	 *             on the first invalid value
+	 */
+	static void checkOptions(CommandLine command) throws ParseException {
+		checkInteger(command, "b", 1, Integer.MAX_VALUE / 1024);
+		checkInteger(command, "g", 1, Integer.MAX_VALUE);
+		checkInteger(command, "m", 1, Integer.MAX_VALUE);
+		checkInteger(command, "c", 1, Long.MAX_VALUE / (1024 * 1024));
+		checkInteger(command, "e", 1, Long.MAX_VALUE / (1024 * 1024));
+		checkInteger(command, "s", 0, 65535);
+		checkSeconds(command, "w");
+		checkSeconds(command, "r");
+		if (command.hasOption("cache-policy")) {
+			try {
+				PositionCache.Policy.valueOf(command.getOptionValue("cache-policy").toUpperCase());
+			} catch (IllegalArgumentException e) {
+				throw new ParseException("Unknown cache policy " + command.getOptionValue("cache-policy") + ", expecting lru or lfu");
+			}
+		}
+		if (command.hasOption("key-policy")) {
+			CompactBoard.KeyPolicy keyPolicy;
+			try {
+				keyPolicy = CompactBoard.KeyPolicy.valueOf(command.getOptionValue("key-policy").toUpperCase().replace('-', '_'));
+			} catch (IllegalArgumentException e) {
+				throw new ParseException("Unknown key policy " + command.getOptionValue("key-policy") + ", expecting fide, placement-side or placement");
+			}
+			if (!command.hasOption('n') && (keyPolicy != CompactBoard.KeyPolicy.FIDE)) {
+				// chesslib hashes the positions its own way
+				throw new ParseException("The key policies other than fide need the native keys (-n)");
+			}
+		}
+	}
+
+	/**
+	 * @throws ParseException
+	 *             if the option is given and is not a positive number of
+	 *             seconds
+	 */
+	private static void checkSeconds(CommandLine command, String option) throws ParseException {
+		if (!command.hasOption(option)) {
+			return;
+		}
+		String value = command.getOptionValue(option);
+		try {
+			double v = Double.parseDouble(value);
+			if ((v > 0) && ((v * 1000) < Long.MAX_VALUE)) {
+				return;
+			}
+		} catch (NumberFormatException e) {
+			// reported below
+		}
+		throw new ParseException("Invalid value " + value + " for option -" + option + ", expecting a positive number of seconds");
+	}
+
+	static Options getOptions() {
+		Options options = new Options();
+		options.addOption("p", "pgn", true, "PGN file to load");
+		options.addOption("d", "database", true, "database file");
+		options.addOption("i", "index", true, "index file");
+		options.addOption("b", "buffer", true, "I/O buffer size in KB");
+		options.addOption("g", "batch-games", true, "number of games hashed together by a game task, " + DEFAULT_BATCH_GAMES + " by default");
+		options.addOption("m", "batch-moves", true, "number of moves hashed together by a game task, " + DEFAULT_BATCH_MOVES + " by default");
+		options.addOption("c", "cache", true, "cache the lookups of the most queried positions, in the given number of MB");
+		options.addOption(null, "cache-policy", true, "eviction policy of the cache, lru (default) or lfu");
+		options.addOption("e", "external", true, "build the index out of core, with the given memory budget in MB");
+		options.addOption("n", "native", false, "scan the PGN files and hash the positions natively instead of with chesslib");
+		options.addOption(null, "key-policy", true, "what identifies the positions with the native keys : fide (default), placement-side or placement");
+		options.addOption("u", "append", false, "stream the PGN files into a new segment of the index instead of replacing it");
+		options.addOption("k", "compact", false, "merge the small segments of the index");
+		options.addOption("w", "watch", true, "merge the small segments and reload the index every given number of seconds while answering lookups");
+		options.addOption("x", "explorer", false, "also compute the results, ratings, years and next moves of the positions when streaming an index");
+		options.addOption("f", "fingerprints", false, "also store a fingerprint of the positions when streaming an index, to verify the lookups and count the key collisions");
+		options.addOption("r", "report", true, "report the indexing metrics every given number of seconds, as JSON lines");
+		options.addOption("j", "json", true, "file the metrics are reported to, the standard output by default");
+		options.addOption("q", "query", true, "look up the FEN of a file, one per line, instead of prompting for them");
+		options.addOption("a", "annotate", true, "look up all the games of a PGN file, written as JSON lines");
+		options.addOption("o", "output", true, "file the batch lookups or the annotations are written to, the standard output by default");
+		options.addOption("s", "server", true, "answer the lookups over HTTP on the given port, instead of prompting for them");
+		options.addOption("t", "virtual", false, "read the files on virtual threads, needs Java 21 or later");
+		options.addOption("v", "validate", true, "check the native scanner against chesslib on a PGN file");
+		return options;
+	}
+
 	private static void log(boolean isError, String msg) {
 		@SuppressWarnings("resource")
 		PrintStream ps = isError ? System.err : System.out;
@@ -164,23 +739,195 @@ public class PGNIndexer {
 		indexer.start(args);
 	}
 
-	private long nbIndexedGames;
-	private long nbIndexedMoves;
-	private long nbIndexedFiles;
+	/**
+	 * Maps the [start, end[ range of a file, or the whole file if end is
+	 * negative.
+	 */
+	private static MappedByteBuffer map(File file, long start, long end) throws IOException {
+		try (FileChannel channel = PersistenceToolbox.getFile(file, false).getChannel()) {
+			long length = (end < 0 ? channel.size() : end) - start;
+			if (length > Integer.MAX_VALUE) {
+				throw new IOException(file + " has more than " + DECF.format(Integer.MAX_VALUE) + " bytes without a game start in " + DECF.format(start) + " - "
+						+ DECF.format(start + length));
+			}
+			return channel.map(MapMode.READ_ONLY, start, length);
+		}
+	}
+
+	private static int readLines(BufferedReader in, String[] lines) throws IOException {
+		int nb = 0;
+		String line;
+		while ((nb < lines.length) && ((line = in.readLine()) != null)) {
+			lines[nb++] = line;
+		}
+		return nb;
+	}
+
+	private static void usage(Options options) {
+		HelpFormatter formatter = new HelpFormatter();
+		PrintWriter out = new PrintWriter(System.err);
+		formatter.printHelp(out, formatter.getWidth(), "PGNIndexer", null, options, formatter.getLeftPadding(), formatter.getDescPadding(), null, true);
+		out.flush();
+	}
+
+	private IndexingMetrics metrics;
 	private GentleThreadPoolExecutor fileExecutor;
 	private GentleThreadPoolExecutor gameExecutor;
-	private List<Future<FileTask>> fileTasks;
-	private FileChannel dbFileChannel;
-	private FileChannel dbIndexChannel;
-
-	private Map<Integer, String> indexedGames = null;
-	private Map<Long, int[]> index = null;
+	private GentleThreadPoolExecutor decodeExecutor;
+	private TaskScope fileScope;
+	private ThreadLocal<LongArrayBuffer> gamePositions;
+	private ThreadLocal<PgnScanner> gameScanners;
+	private ThreadLocal<CompactBoard> gameBoards;
+	private ThreadLocal<IntArrayBuffer> gameMoves;
+	private ThreadLocal<IntArrayBuffer> gameFingerprints;
+	private ThreadLocal<GameSummary> gameSummaries;
+	private boolean nativeKeys;
+	private CompactBoard.KeyPolicy keyPolicy;
+	private boolean explorer;
+	private boolean fingerprints;
+	private ShardedDatabaseWriter dbWriter;
+	private ExternalIndexBuilder indexBuilder;
+	private GameNumbering numbering;
+	private int ioBufferSize;
+	private int batchGames;
+	private int batchMoves;
+
+	private GameCatalog indexedGames = null;
+	private PositionIndex index = null;
+	private int nbGames;
 
 	public PGNIndexer() {
 		super();
-		nbIndexedGames = 0;
-		nbIndexedMoves = 0;
-		nbIndexedFiles = 0;
+		metrics = new IndexingMetrics();
+		nbGames = 0;
+		ioBufferSize = PersistenceWriter.DEFAULT_BUFFER_SIZE;
+		batchGames = DEFAULT_BATCH_GAMES;
+		batchMoves = DEFAULT_BATCH_MOVES;
+		gamePositions = ThreadLocal.withInitial(LongArrayBuffer::new);
+		gameScanners = ThreadLocal.withInitial(PgnScanner::new);
+		gameBoards = ThreadLocal.withInitial(CompactBoard::new);
+		gameMoves = ThreadLocal.withInitial(IntArrayBuffer::new);
+		gameFingerprints = ThreadLocal.withInitial(IntArrayBuffer::new);
+		gameSummaries = ThreadLocal.withInitial(GameSummary::new);
+		nativeKeys = false;
+		keyPolicy = CompactBoard.KeyPolicy.FIDE;
+		explorer = false;
+		fingerprints = false;
+		numbering = new GameNumbering();
+	}
+
+	/**
+	 * Looks up all the games of a PGN file and writes them as
+	 * {@link GameLookup#toJson()} lines.
+	 */
+	private void annotatePgn(File pgnFile, File outFile) {
+		GentleThreadPoolExecutor decoders = GentleThreadPoolExecutor.newGentleThreadPoolExecutor("decode", Runtime.getRuntime().availableProcessors(), 10000);
+		long start = System.currentTimeMillis();
+		long[] nb = new long[2];
+		Writer out = null;
+
+		try {
+			out = outFile == null ? new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8))
+					: Files.newBufferedWriter(outFile.toPath(), StandardCharsets.UTF_8);
+			Writer w = out;
+			new PgnAnnotator(index, decoders).annotate(pgnFile.getAbsoluteFile(), lookup -> {
+				nb[0]++;
+				nb[1] += lookup.getNbPlies();
+				try {
+					w.write(lookup.toJson());
+					w.write("\n");
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		} catch (IOException | UncheckedIOException e) {
+			log(true, e);
+		} finally {
+			decoders.shutdownNow();
+			if (out != null) {
+				try {
+					if (outFile == null) {
+						out.flush();
+					} else {
+						out.close();
+					}
+				} catch (IOException e) {
+					log(true, e);
+				}
+			}
+		}
+
+		long time = Math.max(1, System.currentTimeMillis() - start);
+		log(DECF.format(nb[0]) + " games and " + DECF.format(nb[1]) + " positions looked up in " + DECF.format(time) + " ms (" + DECF.format((nb[1] * 1000) / time)
+				+ " / s)");
+	}
+
+	private void buildExternalIndex(File dbFile, File idxFile, long memoryBudget) {
+		log("Building " + idxFile + " from " + dbFile + " with " + DECF.format(memoryBudget / (1024 * 1024)) + " MB");
+		ExternalIndexBuilder builder = null;
+		GentleThreadPoolExecutor blockExecutor = null;
+		boolean loaded = false;
+		try {
+			int nbThreads = Runtime.getRuntime().availableProcessors();
+			builder = new ExternalIndexBuilder(idxFile, memoryBudget, ioBufferSize, nbThreads);
+			DatabaseManifest manifest = DatabaseManifest.load(dbFile);
+			builder.setNativeKeys(manifest.isNativeKeys());
+			builder.setKeyPolicy(manifest.getKeyPolicy());
+			blockExecutor = GentleThreadPoolExecutor.newGentleThreadPoolExecutor("block", nbThreads);
+			nbGames = 0;
+			List<Future<BlockTask>> blocks = submitBlocks(manifest, builder, 0, blockExecutor);
+			for (int b = 0; b < blocks.size(); b++) {
+				nbGames += blocks.get(b).get().nbBlockGames;
+				// only the count of the block was needed
+				blocks.set(b, null);
+			}
+			loaded = true;
+		} catch (IOException | InterruptedException | ExecutionException e) {
+			log(true, e);
+		} finally {
+			if (blockExecutor != null) {
+				blockExecutor.shutdownNow();
+			}
+			if ((builder != null) && !loaded) {
+				if (blockExecutor != null) {
+					try {
+						// the blocks still running may spill a run after the abort otherwise
+						blockExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+					} catch (InterruptedException e) {
+					}
+				}
+				// a partial index would look complete
+				builder.abort();
+				log(true, idxFile + " not built");
+			} else if (builder != null) {
+				try {
+					builder.close();
+					log(idxFile + " closed, " + DECF.format(builder.getNbPairs()) + " pairs sorted in " + DECF.format(builder.getNbRuns()) + " runs");
+				} catch (IOException e) {
+					log(true, e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Merges the small segments of a segmented index, see
+	 * {@link IndexCompactor}.
+	 */
+	private void compact(File idxFile) {
+		try {
+			if (!IndexManifest.isManifest(idxFile)) {
+				log(true, idxFile + " is not segmented, nothing to compact");
+				return;
+			}
+			try (IndexCompactor compactor = new IndexCompactor(idxFile, ioBufferSize)) {
+				compactor.setLog(PGNIndexer::log);
+				int nbMerges = compactor.compact();
+				log(idxFile + " compacted, " + DECF.format(nbMerges) + " merges, " + DECF.format(IndexManifest.load(idxFile).getNbSegments()) + " segments");
+			}
+		} catch (IOException e) {
+			log(true, e);
+		}
 	}
 
 	private String gameToShortString(Game game) {
@@ -208,8 +955,29 @@ public class PGNIndexer {
 		return sb.toString();
 	}
 
+	/**
+	 * Splits a file in ranges starting with a game, so that a single large file
+	 * is scanned by all the file threads. The ranges are numbered in order, so
+	 * their games get the same [n] ids as if the file was scanned in one go.
+	 */
+	private void indexChunks(File file, Path root) throws IOException {
+		long[] bounds;
+		try (FileChannel channel = PersistenceToolbox.getFile(file, false).getChannel()) {
+			long chunkSize = channel.size() / (CHUNKS_PER_THREAD * Runtime.getRuntime().availableProcessors());
+			bounds = PgnScanner.split(channel, Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, chunkSize)));
+		}
+		int nbChunks = bounds.length - 1;
+		if (nbChunks > 1) {
+			log(file + " split in " + nbChunks + " chunks");
+		}
+
+		for (int c = 0; c < nbChunks; c++) {
+			fileScope.fork(new FileTask(file, root, c, bounds[c], bounds[c + 1], numbering.addPart(c == 0)));
+		}
+	}
+
 	private void indexFile(File file, Path root, boolean recursive) throws IOException {
-		// log("indexFile : " + fileTasks.size() + " - " + file);
+		// log("indexFile : " + fileScope.getNbForked() + " - " + file);
 		if (!file.exists()) {
 			log(true, "Unknown file " + file);
 			return;
@@ -226,20 +994,12 @@ public class PGNIndexer {
 			return;
 		}
 
-		fileTasks.add(fileExecutor.submit(new FileTask(file, root)));
-		log("file tasks : " + fileTasks.size() + " - " + file);
-	}
-
-	private Future<GameTask> indexGame(Game game) {
-		nbIndexedGames++;
-
-		if (!Game.isParsable(game) || (game.getExceptionInParsing() != null)) {
-			// log("Chesslib had an error while parsing : " + gameToShortString(game));
-			// log(false, game.getExceptionInParsing());
-			return null;
+		if (nativeKeys && !CompressedInput.isCompressed(file)) {
+			indexChunks(file, root);
+		} else {
+			fileScope.fork(new FileTask(file, root, numbering.addPart(true)));
 		}
-
-		return gameExecutor.submit(new GameTask(game));
+		log("file tasks : " + fileScope.getNbForked() + " - " + file);
 	}
 
 	private String playerToShortString(Player player) {
@@ -252,12 +1012,89 @@ public class PGNIndexer {
 	}
 
 	private int queryBoard(Board b) {
-		long zobrist = b.getZobristKey();
-		int[] pos = index.get(zobrist);
-		if (pos != null) {
-			return pos.length;
+		if (index == null) {
+			return 0;
+		}
+		return index.count(b);
+	}
+
+	/**
+	 * Looks up a file of FEN, one per line, and writes a "count TAB FEN" line
+	 * for each of them, with a -1 count if the FEN can not be parsed. The lines
+	 * are read by blocks, looked up on all the processors and written back in
+	 * order.
+	 */
+	private void queryFenFile(File fenFile, File outFile) {
+		int nbThreads = Runtime.getRuntime().availableProcessors();
+		GentleThreadPoolExecutor executor = GentleThreadPoolExecutor.newGentleThreadPoolExecutor("query", nbThreads);
+		long start = System.currentTimeMillis();
+		long nbLines = 0;
+		long nbInvalid = 0;
+		Writer out = null;
+
+		try (BufferedReader in = Files.newBufferedReader(fenFile.toPath(), StandardCharsets.UTF_8)) {
+			out = outFile == null ? new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8))
+					: Files.newBufferedWriter(outFile.toPath(), StandardCharsets.UTF_8);
+			String[] fens = new String[QUERY_BLOCK_LINES];
+			int[] counts = new int[QUERY_BLOCK_LINES];
+			int nb;
+			while ((nb = readLines(in, fens)) > 0) {
+				int sliceSize = (nb + nbThreads - 1) / nbThreads;
+				List<Future<?>> slices = new ArrayList<>();
+				for (int s = 0; s < nb; s += sliceSize) {
+					int from = s;
+					int to = Math.min(nb, s + sliceSize);
+					slices.add(executor.submit(() -> {
+						for (int l = from; l < to; l++) {
+							counts[l] = queryFenLine(fens[l]);
+						}
+					}));
+				}
+				for (Future<?> f : slices) {
+					f.get();
+				}
+				for (int l = 0; l < nb; l++) {
+					if (counts[l] < 0) {
+						nbInvalid++;
+					}
+					out.write(counts[l] + "\t" + fens[l] + "\n");
+				}
+				nbLines += nb;
+			}
+		} catch (IOException | InterruptedException | ExecutionException e) {
+			log(true, e);
+		} finally {
+			executor.shutdownNow();
+			if (out != null) {
+				try {
+					if (outFile == null) {
+						out.flush();
+					} else {
+						out.close();
+					}
+				} catch (IOException e) {
+					log(true, e);
+				}
+			}
+		}
+
+		long time = Math.max(1, System.currentTimeMillis() - start);
+		log(DECF.format(nbLines) + " positions looked up in " + DECF.format(time) + " ms (" + DECF.format((nbLines * 1000) / time) + " / s), " + DECF.format(nbInvalid)
+				+ " invalid");
+		if (index.getCache() != null) {
+			log("cache " + index.getCache().toJson());
+		}
+	}
+
+	private int queryFenLine(String fen) {
+		if (fen.isBlank()) {
+			return -1;
+		}
+		try {
+			return index.count(fen.strip());
+		} catch (IllegalArgumentException e) {
+			return -1;
 		}
-		return 0;
 	}
 
 	private int queryFen(String fen) {
@@ -272,23 +1109,36 @@ public class PGNIndexer {
 	}
 
 	private void queryPgn(String pgn) {
+		if (index == null) {
+			log(true, "Looking up games needs an index file");
+			return;
+		}
+		GentleThreadPoolExecutor decoders = GentleThreadPoolExecutor.newGentleThreadPoolExecutor("decode", Runtime.getRuntime().availableProcessors(), 10000);
 		try {
-			PgnIterator games = new PgnIterator(new File(pgn).getAbsolutePath());
-			int fileCounter = 0;
-			for (Game game : games) {
-				fileCounter++;
-				game.setGameId("game " + DECF.format(fileCounter));
-				System.out.println(gameToShortString(game));
-				MoveList moves = game.getHalfMoves();
-				Board board = new Board();
-				for (Move move : moves) {
-					board.doMove(move);
-					int n = queryBoard(board);
-					System.out.println("      . " + DECF.format(board.getMoveCounter()) + " - " + DECF.format(n) + " / " + DECF.format(indexedGames.size()));
+			new PgnAnnotator(index, decoders).annotate(new File(pgn).getAbsoluteFile(), lookup -> {
+				int leavingPly = lookup.getLeavingPly();
+				System.out.println("game " + DECF.format(lookup.getGameNumber()) + " : " + DECF.format(lookup.getNbPlies()) + " plies, "
+						+ (leavingPly < 0 ? "all indexed" : "out of the index at ply " + DECF.format(leavingPly)));
+				for (int p = 1; p <= lookup.getNbPlies(); p++) {
+					System.out.println("      . " + DECF.format(p) + " - " + DECF.format(lookup.getCount(p)) + " / " + DECF.format(nbGames));
 				}
-			}
-		} catch (Exception e) {
+			});
+		} catch (IOException e) {
 			log(true, e);
+		} finally {
+			decoders.shutdownNow();
+		}
+	}
+
+	private void queryStats(String fen) {
+		if ((index == null) || !index.hasStats()) {
+			log(true, "Exploring a position needs an index built with its statistics");
+			return;
+		}
+		try {
+			System.out.println(index.getStats(fen).toJson());
+		} catch (IllegalArgumentException e) {
+			log(true, e.getMessage());
 		}
 	}
 
@@ -304,12 +1154,20 @@ public class PGNIndexer {
 
 			if ("exit".equalsIgnoreCase(q)) {
 				shouldExit = true;
+			} else if ("stats".equalsIgnoreCase(q)) {
+				if ((index != null) && (index.getCache() != null)) {
+					System.out.println(index.getCache().toJson());
+				} else {
+					System.out.println("no cache");
+				}
+			} else if (q.toLowerCase().startsWith("explore")) {
+				queryStats(q.substring(7).strip());
 			} else if (q.toLowerCase().startsWith("load")) {
 				q = q.substring(4).strip();
 				queryPgn(q);
 			} else {
 				int n = queryFen(q);
-				System.out.println("found in " + DECF.format(n) + " / " + DECF.format(indexedGames.size()) + " games");
+				System.out.println("found in " + DECF.format(n) + " / " + DECF.format(nbGames) + " games");
 			}
 		}
 
@@ -317,214 +1175,598 @@ public class PGNIndexer {
 	}
 
 	public void start(String[] args) {
-		Options options = new Options();
-		options.addOption("p", "pgn", true, "PGN file to load");
-		options.addOption("d", "database", true, "database file");
-		options.addOption("i", "index", true, "index file");
+		Options options = getOptions();
 
 		CommandLineParser parser = new DefaultParser();
 		CommandLine command = null;
 		try {
 			command = parser.parse(options, args);
+			checkOptions(command);
 		} catch (ParseException e) {
 			log(true, e);
+			usage(options);
 			return;
 		}
 
 		File pgnFile = command.hasOption('p') ? new File(command.getOptionValue('p')) : null;
 		File dbFile = command.hasOption('d') ? new File(command.getOptionValue('d')) : null;
 		File idxFile = command.hasOption('i') ? new File(command.getOptionValue('i')) : null;
+		if (command.hasOption('b')) {
+			ioBufferSize = Integer.parseInt(command.getOptionValue('b')) * 1024;
+		}
+		if (command.hasOption('g')) {
+			batchGames = Integer.parseInt(command.getOptionValue('g'));
+		}
+		if (command.hasOption('m')) {
+			batchMoves = Integer.parseInt(command.getOptionValue('m'));
+		}
+		nativeKeys = command.hasOption('n');
+		if (command.hasOption("key-policy")) {
+			keyPolicy = CompactBoard.KeyPolicy.valueOf(command.getOptionValue("key-policy").toUpperCase().replace('-', '_'));
+		}
+		if (command.hasOption('v')) {
+			validatePgn(new File(command.getOptionValue('v')));
+			return;
+		}
 
 		boolean createDb = (pgnFile != null) && (dbFile != null);
-		boolean loadDb = (pgnFile == null) && (dbFile != null);
+		boolean streamIdx = (pgnFile != null) && (dbFile == null) && (idxFile != null);
+		long externalMemory = command.hasOption('e') ? Long.parseLong(command.getOptionValue('e')) * 1024 * 1024 : -1;
+
 		boolean createIdx = (dbFile != null) && (idxFile != null);
+		boolean createExternalIdx = createIdx && (externalMemory > 0);
+		boolean loadDb = (pgnFile == null) && (dbFile != null) && !createExternalIdx;
 		boolean loadIdx = (dbFile == null) && (idxFile != null);
 
-		if (createDb) {
-			try {
-				fileExecutor = GentleThreadPoolExecutor.newGentleThreadPoolExecutor("file", Runtime.getRuntime().availableProcessors(),
-						Runtime.getRuntime().availableProcessors() * 3, 250);
-				gameExecutor = GentleThreadPoolExecutor.newGentleThreadPoolExecutor("game", Runtime.getRuntime().availableProcessors(), 10000, 250);
-				fileTasks = Collections.synchronizedList(new ArrayList<>());
-
+		File segmentFile = null;
+		if (createDb || streamIdx) {
+			try (PrintStream report = command.hasOption('j') ? new PrintStream(new FileOutputStream(command.getOptionValue('j'), true), true, StandardCharsets.UTF_8) : null) {
 				try {
-					RandomAccessFile raf = PersistenceToolbox.getFile(dbFile, true);
-					dbFileChannel = raf.getChannel();
-				} catch (FileNotFoundException e) {
-					log(true, e);
-					return;
-				}
+					if (command.hasOption('t')) {
+						// reading the files is mostly waiting, on I/O or on the game pool, which is cheap on virtual threads
+						try {
+							fileExecutor = GentleThreadPoolExecutor.newVirtualThreadExecutor("file", Runtime.getRuntime().availableProcessors() * VIRTUAL_FILE_TASKS_PER_CPU);
+							log(". files read on virtual threads");
+						} catch (UnsupportedOperationException e) {
+							log(true, e.getMessage() + ", reading the files on platform threads");
+						}
+					}
+					if (fileExecutor == null) {
+						fileExecutor = GentleThreadPoolExecutor.newGentleThreadPoolExecutor("file", Runtime.getRuntime().availableProcessors(),
+								Runtime.getRuntime().availableProcessors() * 3);
+					}
+					gameExecutor = GentleThreadPoolExecutor.newGentleThreadPoolExecutor("game", Runtime.getRuntime().availableProcessors(), 10000);
+					decodeExecutor = GentleThreadPoolExecutor.newGentleThreadPoolExecutor("decode", Runtime.getRuntime().availableProcessors(), 10000);
+					fileScope = new TaskScope(fileExecutor);
+					metrics.register("file", fileExecutor);
+					metrics.register("game", gameExecutor);
+					metrics.register("decode", decodeExecutor);
+					if (command.hasOption('r')) {
+						metrics.startReporting((long) (Double.parseDouble(command.getOptionValue('r')) * 1000), report == null ? System.out : report);
+					}
 
-				indexFile(pgnFile, pgnFile.toPath(), true);
-			} catch (Exception e) {
-				log(true, e);
-			} finally {
-				log("Shutting down the thread pool 1/2");
-				for (Future<FileTask> t : fileTasks) {
 					try {
-						t.get();
-					} catch (InterruptedException | ExecutionException e) {
+						if (createDb) {
+							dbWriter = new ShardedDatabaseWriter(dbFile, ioBufferSize);
+							dbWriter.setNativeKeys(nativeKeys);
+							dbWriter.setKeyPolicy(keyPolicy);
+							if (command.hasOption('x')) {
+								log(true, "The explorer statistics are only computed when streaming an index, ignored");
+							}
+							if (command.hasOption('f')) {
+								log(true, "The fingerprints are only stored when streaming an index, ignored");
+							}
+							if (command.hasOption('u')) {
+								log(true, "Only a streamed index can be appended to, ignored");
+							}
+						} else {
+							long memory = externalMemory > 0 ? externalMemory : DEFAULT_STREAMING_MEMORY;
+							if (command.hasOption('u')) {
+								segmentFile = reserveSegment(idxFile);
+							}
+							File target = segmentFile != null ? segmentFile : idxFile;
+							log("Streaming " + pgnFile + " to " + target + " with " + DECF.format(memory / (1024 * 1024)) + " MB");
+							indexBuilder = new ExternalIndexBuilder(target, memory, ioBufferSize, Runtime.getRuntime().availableProcessors());
+							indexBuilder.setNativeKeys(nativeKeys);
+							indexBuilder.setKeyPolicy(keyPolicy);
+							indexBuilder.setNumbering(numbering);
+							indexBuilder.getCatalog().setSummaries(new GameSummaryTable());
+							indexBuilder.getCatalog().setRoot(pgnFile.getAbsolutePath());
+							if (command.hasOption('x')) {
+								explorer = true;
+								indexBuilder.setStatsFile(PositionStats.getFile(target));
+							}
+							if (command.hasOption('f')) {
+								fingerprints = true;
+								indexBuilder.setFingerprintsFile(PositionFingerprints.getFile(target));
+							}
+						}
+					} catch (IOException e) {
 						log(true, e);
+						if (indexBuilder != null) {
+							indexBuilder.abort();
+							indexBuilder = null;
+						}
+						return;
 					}
-				}
 
-				fileExecutor.shutdown();
-				try {
-					fileExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
-				} catch (InterruptedException e) {
-				}
-				fileExecutor.shutdownNow();
+					indexFile(pgnFile, pgnFile.toPath(), true);
+				} catch (Exception e) {
+					log(true, e);
+				} finally {
+					log("Shutting down the thread pool 1/2");
+					try {
+						fileScope.join();
+					} catch (InterruptedException e) {
+					}
+					for (Throwable e : fileScope.getFailures()) {
+						log(true, e);
+					}
 
-				log("Shutting down the thread pool 2/2");
-				gameExecutor.shutdown();
-				try {
-					gameExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
-				} catch (InterruptedException e) {
-				}
-				gameExecutor.shutdownNow();
+					fileExecutor.shutdown();
+					try {
+						fileExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+					} catch (InterruptedException e) {
+					}
+					fileExecutor.shutdownNow();
+					decodeExecutor.shutdownNow();
 
-				stats();
+					log("Shutting down the thread pool 2/2");
+					gameExecutor.shutdown();
+					try {
+						gameExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+					} catch (InterruptedException e) {
+					}
+					gameExecutor.shutdownNow();
 
-				if (dbFileChannel != null) {
 					try {
-						dbFileChannel.close();
-						log(dbFile + " closed");
+						metrics.close();
 					} catch (IOException e) {
+						log(true, e);
+					}
+					stats();
+					poolStats("file", fileExecutor);
+					poolStats("game", gameExecutor);
+					memoryStats();
+
+					if (dbWriter != null) {
+						try {
+							dbWriter.close();
+							log(dbFile + " closed");
+						} catch (IOException e) {
+							log(true, e);
+						}
+					}
+
+					if (indexBuilder != null) {
+						try {
+							indexBuilder.close();
+							log(indexBuilder.getFile() + " closed, " + DECF.format(indexBuilder.getNbPairs()) + " pairs sorted in " + DECF.format(indexBuilder.getNbRuns())
+									+ " runs");
+							if (indexBuilder.getStatsFile() != null) {
+								log(indexBuilder.getStatsFile() + " closed");
+							}
+							if (indexBuilder.getFingerprintsFile() != null) {
+								log(indexBuilder.getFingerprintsFile() + " closed, " + DECF.format(indexBuilder.getNbCollisions()) + " key collisions");
+							}
+							if (segmentFile != null) {
+								publishSegment(idxFile, segmentFile);
+							}
+						} catch (IOException e) {
+							log(true, e);
+							if (segmentFile != null) {
+								discardSegment(segmentFile);
+							}
+						}
+						indexBuilder = null;
 					}
 				}
+			} catch (IOException e) {
+				log(true, e);
 			}
 		}
 
-		Map<Long, List<Integer>> indexedPositions = null;
-		int gameIndex = 0;
+		if (command.hasOption('k') && (idxFile != null)) {
+			compact(idxFile);
+		}
+
+		LongIntMultiMap[] indexedPositions = null;
 		if (loadDb) {
+			GentleThreadPoolExecutor blockExecutor = null;
 			try {
 				log("Loading " + dbFile);
-				indexedGames = new HashMap<>();
-				indexedPositions = new HashMap<>();
-				gameIndex = 0;
+				indexedGames = new GameCatalog();
+
+				DatabaseManifest manifest = DatabaseManifest.load(dbFile);
+				nativeKeys = manifest.isNativeKeys();
+				keyPolicy = manifest.getKeyPolicy();
+				log(". nbShards " + DECF.format(manifest.getNbShards()));
+				blockExecutor = GentleThreadPoolExecutor.newGentleThreadPoolExecutor("block", Runtime.getRuntime().availableProcessors());
+				int partitionBits = getPartitionBits();
+				List<BlockTask> blocks = readBlocks(manifest, null, partitionBits, blockExecutor);
+				log(". nbBlocks " + DECF.format(blocks.size()));
+				for (BlockTask t : blocks) {
+					for (int g = 0; g < t.gameIds.size(); g++) {
+						indexedGames.add(t.firstGame + g + 1, t.gameIds.get(g));
+					}
+					t.gameIds = null;
+				}
 
-				try {
-					RandomAccessFile raf = PersistenceToolbox.getFile(dbFile, false);
-					dbFileChannel = raf.getChannel();
-				} catch (FileNotFoundException e) {
-					log(true, e);
-					return;
-				}
-
-				while (true) {
-					String gameId = PersistenceToolbox.loadString(dbFileChannel);
-					long[] pos = PersistenceToolbox.loadFullLongArray(dbFileChannel);
-					gameIndex++;
-					indexedGames.put(gameIndex, gameId);
-					for (long p : pos) {
-						List<Integer> games = indexedPositions.get(p);
-						if (games == null) {
-							games = new ArrayList<>();
-							indexedPositions.put(p, games);
+				// each partition is combined by a single thread, from the blocks in the manifest order, so the game ids stay sorted in the posting lists
+				List<Future<LongIntMultiMap>> partitionTasks = new ArrayList<>();
+				for (int p = 0; p < (1 << partitionBits); p++) {
+					int partition = p;
+					partitionTasks.add(blockExecutor.submit(() -> {
+						LongIntMultiMap positions = new LongIntMultiMap();
+						for (BlockTask t : blocks) {
+							positions.addAll(t.partitions[partition], 0);
+							t.partitions[partition] = null;
 						}
-						games.add(gameIndex);
-					}
+						return positions;
+					}));
 				}
-			} catch (BufferUnderflowException e) {
-				// eof
-			} catch (IOException e) {
+				indexedPositions = new LongIntMultiMap[partitionTasks.size()];
+				long nbPositions = 0;
+				for (int p = 0; p < indexedPositions.length; p++) {
+					indexedPositions[p] = partitionTasks.get(p).get();
+					nbPositions += indexedPositions[p].size();
+				}
+				log(dbFile + " loaded, " + DECF.format(nbPositions) + " positions in " + DECF.format(indexedPositions.length) + " partitions");
+				memoryStats();
+			} catch (IOException | InterruptedException | ExecutionException e) {
 				log(true, e);
 			} finally {
-				if (dbFileChannel != null) {
-					try {
-						dbFileChannel.close();
-						log(dbFile + " closed");
-					} catch (IOException e) {
-					}
+				if (blockExecutor != null) {
+					blockExecutor.shutdownNow();
 				}
 			}
 		}
 
-		if (createIdx) {
+		if (createExternalIdx) {
+			buildExternalIndex(dbFile, idxFile, externalMemory);
+		} else if (createIdx && (indexedPositions == null)) {
+			log(true, idxFile + " not built, " + dbFile + " has not been loaded");
+			return;
+		} else if (createIdx) {
+			IndexFileWriter writer = null;
+			boolean written = false;
 			try {
-				RandomAccessFile raf = PersistenceToolbox.getFile(idxFile, true);
-				dbIndexChannel = raf.getChannel();
+				writer = new IndexFileWriter(idxFile, ioBufferSize);
+				writer.setNativeKeys(nativeKeys);
+				writer.setKeyPolicy(keyPolicy);
 
-				PersistenceToolbox.dumpInt(dbIndexChannel, indexedGames.size());
-				for (Entry<Integer, String> e : indexedGames.entrySet()) {
-					PersistenceToolbox.dumpInt(dbIndexChannel, e.getKey());
-					PersistenceToolbox.dumpString(dbIndexChannel, e.getValue());
-				}
+				writer.setCatalog(indexedGames);
 
-				PersistenceToolbox.dumpInt(dbIndexChannel, indexedPositions.size());
-				for (Entry<Long, List<Integer>> e : indexedPositions.entrySet()) {
-					PersistenceToolbox.dumpLong(dbIndexChannel, e.getKey());
-					int[] pos = e.getValue().stream().mapToInt(Integer::intValue).toArray();
-					PersistenceToolbox.dumpFullIntArray(dbIndexChannel, pos);
+				for (LongIntMultiMap partition : indexedPositions) {
+					partition.forEachSorted(writer::addPosition);
 				}
+				writer.close();
+				written = true;
+				log(idxFile + " closed");
 			} catch (IOException e) {
 				log(true, e);
-				return;
 			} finally {
-				if (dbIndexChannel != null) {
-					try {
-						dbIndexChannel.close();
-						log(idxFile + " closed");
-					} catch (IOException e) {
-					}
+				if ((writer != null) && !written) {
+					// a partial index would look complete
+					writer.abort();
+					log(true, idxFile + " not built");
 				}
 			}
+			if (!written) {
+				return;
+			}
 		}
 
+		IndexCompactor compactor = null;
 		if (loadIdx) {
 			try {
 				log("Loading " + idxFile);
-				indexedGames = new HashMap<>();
-				index = new HashMap<>();
-
-				try {
-					RandomAccessFile raf = PersistenceToolbox.getFile(idxFile, false);
-					dbIndexChannel = raf.getChannel();
-				} catch (FileNotFoundException e) {
-					log(true, e);
-					return;
-				}
-
-				int nbGames = PersistenceToolbox.loadInt(dbIndexChannel);
-				log(". nbGames " + DECF.format(nbGames));
-				for (int g = 0; g < nbGames; g++) {
-					int id = PersistenceToolbox.loadInt(dbIndexChannel);
-					String gameFile = PersistenceToolbox.loadString(dbIndexChannel);
-					indexedGames.put(id, gameFile);
-				}
-
-				int nbPos = PersistenceToolbox.loadInt(dbIndexChannel);
-				log(". nbPos " + DECF.format(nbPos));
-				int pct10 = nbPos / 10;
-				for (int p = 0; p < nbPos; p++) {
-					long pos = PersistenceToolbox.loadLong(dbIndexChannel);
-					int[] files = PersistenceToolbox.loadFullIntArray(dbIndexChannel);
-					index.put(pos, files);
-					if ((p % pct10) == 0) {
-						log("    " + DECF.format(p));
+				index = new PositionIndex(idxFile);
+				if (command.hasOption('c')) {
+					PositionCache.Policy policy = PositionCache.Policy.valueOf(command.getOptionValue("cache-policy", "lru").toUpperCase());
+					index.setCache(new PositionCache(Long.parseLong(command.getOptionValue('c')) * 1024 * 1024, policy));
+					log(". cache " + command.getOptionValue('c') + " MB " + policy);
+				}
+				nbGames = index.getNbGames();
+				nativeKeys = index.isNativeKeys();
+				keyPolicy = index.getKeyPolicy();
+				log(". nbSegments " + DECF.format(index.getNbSegments()));
+				log(". keyPolicy " + keyPolicy);
+				log(". nbGames " + DECF.format(index.getNbGames()));
+				log(". nbPos " + DECF.format(index.getNbPositions()));
+				if (index.hasFingerprints()) {
+					log(". nbCollisions " + DECF.format(index.getNbCollisions()));
+				}
+				if (command.hasOption('w')) {
+					if (IndexManifest.isManifest(idxFile)) {
+						compactor = new IndexCompactor(idxFile, ioBufferSize);
+						compactor.setLog(PGNIndexer::log);
+						compactor.start((long) (Double.parseDouble(command.getOptionValue('w')) * 1000), index);
+					} else {
+						log(true, idxFile + " is not segmented, nothing to watch");
 					}
 				}
-
 			} catch (IOException e) {
 				log(true, e);
 				return;
-			} finally {
-				if (dbIndexChannel != null) {
-					try {
-						dbIndexChannel.close();
-						log(idxFile + " closed");
-					} catch (IOException e) {
-					}
-				}
 			}
+		} else if (indexedGames != null) {
+			nbGames = indexedGames.getNbGames();
 		}
 
-		query();
+		if (command.hasOption('a')) {
+			if (index == null) {
+				log(true, "Annotating games needs an index file");
+			} else {
+				annotatePgn(new File(command.getOptionValue('a')), command.hasOption('o') ? new File(command.getOptionValue('o')) : null);
+			}
+		} else if (command.hasOption('q')) {
+			if (index == null) {
+				log(true, "Batch lookups need an index file");
+			} else {
+				queryFenFile(new File(command.getOptionValue('q')), command.hasOption('o') ? new File(command.getOptionValue('o')) : null);
+			}
+		} else if (command.hasOption('s')) {
+			if (index == null) {
+				log(true, "The server needs an index file");
+			} else {
+				serve(Integer.parseInt(command.getOptionValue('s')));
+			}
+		} else {
+			query();
+		}
 
+		if (compactor != null) {
+			compactor.close();
+		}
+		if (index != null) {
+			try {
+				index.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	private void memoryStats() {
+		Runtime rt = Runtime.getRuntime();
+		long gcCount = 0;
+		long gcTime = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			gcCount += Math.max(0, gc.getCollectionCount());
+			gcTime += Math.max(0, gc.getCollectionTime());
+		}
+		log("heap used " + DECF.format((rt.totalMemory() - rt.freeMemory()) / (1024 * 1024)) + " MB, " + DECF.format(gcCount) + " GC for "
+				+ DECF.format(gcTime) + " ms");
+	}
+
+	private void poolStats(String name, GentleThreadPoolExecutor executor) {
+		log(name + " pool : " + DECF.format(executor.getCompletedTaskCount()) + " tasks, submitters blocked " + DECF.format(executor.getNbBlocked()) + " times for "
+				+ DECF.format(executor.getBlockedTime()) + " ms");
+	}
+
+	/**
+	 * Reads all the blocks of the database in parallel, in an index builder or
+	 * in partitions of positions when the builder is null.
+	 *
+	 * @return the blocks, in the order of the manifest
+	 */
+	private List<BlockTask> readBlocks(DatabaseManifest manifest, ExternalIndexBuilder builder, int partitionBits, GentleThreadPoolExecutor executor)
+			throws InterruptedException, ExecutionException {
+		List<BlockTask> blocks = new ArrayList<>();
+		for (Future<BlockTask> f : submitBlocks(manifest, builder, partitionBits, executor)) {
+			blocks.add(f.get());
+		}
+		return blocks;
+	}
+
+	/**
+	 * Deletes the files of a segment that has not made it to the manifest,
+	 * nothing would ever reference them.
+	 */
+	private void discardSegment(File segmentFile) {
+		segmentFile.delete();
+		PositionStats.getFile(segmentFile).delete();
+		PositionFingerprints.getFile(segmentFile).delete();
+		log(true, segmentFile + " discarded");
+	}
+
+	/**
+	 * Adds a segment, once fully written, to the manifest of the index.
+	 */
+	private void publishSegment(File idxFile, File segmentFile) throws IOException {
+		int nbSegmentGames;
+		try (IndexFileReader reader = new IndexFileReader(segmentFile)) {
+			nbSegmentGames = reader.getNbGames();
+		}
+		try (FileChannel lock = IndexManifest.lock(idxFile)) {
+			IndexManifest manifest = IndexManifest.load(idxFile);
+			manifest.add(segmentFile, nbSegmentGames);
+			manifest.save(idxFile);
+			log(segmentFile + " added to " + idxFile + ", " + DECF.format(manifest.getNbSegments()) + " segments, " + DECF.format(manifest.getNbGames())
+					+ " games");
+		}
+	}
+
+	/**
+	 * Reserves the file of a new segment of the index, turning a plain index
+	 * into a segmented one first. The segment is only added to the manifest
+	 * once written, by {@link #publishSegment(File, File)}, so the lookups
+	 * never see it partially.
+	 */
+	private File reserveSegment(File idxFile) throws IOException {
+		try (FileChannel lock = IndexManifest.lock(idxFile)) {
+			IndexManifest manifest;
+			if (IndexManifest.isManifest(idxFile)) {
+				manifest = IndexManifest.load(idxFile);
+			} else if (idxFile.exists()) {
+				manifest = IndexManifest.convert(idxFile);
+				log(idxFile + " converted to a segmented index");
+			} else {
+				manifest = new IndexManifest();
+			}
+			if (manifest.getNbSegments() == 0) {
+				manifest.setNativeKeys(nativeKeys);
+				manifest.setKeyPolicy(keyPolicy);
+			} else if (manifest.isNativeKeys() != nativeKeys) {
+				throw new IOException(idxFile + " has been built " + (manifest.isNativeKeys() ? "with" : "without") + " the native keys, the same option is needed to append to it");
+			} else if (manifest.getKeyPolicy() != keyPolicy) {
+				throw new IOException(idxFile + " has been built with the " + manifest.getKeyPolicy() + " key policy, the same one is needed to append to it");
+			}
+			File segmentFile = manifest.newSegmentFile(idxFile);
+			manifest.save(idxFile);
+			return segmentFile;
+		}
+	}
+
+	/**
+	 * Answers lookups over HTTP until the JVM is stopped.
+	 */
+	private void serve(int port) {
+		try {
+			PositionServer server = new PositionServer(index, port, SERVER_THREADS_PER_CPU * Runtime.getRuntime().availableProcessors());
+			Runtime.getRuntime().addShutdownHook(new Thread(server::close));
+			server.start();
+			log("Listening on port " + server.getPort());
+			server.join();
+		} catch (IOException | InterruptedException e) {
+			log(true, e);
+		}
 	}
 
 	private void stats() {
-		log(DECF.format(nbIndexedFiles) + " files indexed, " + DECF.format(nbIndexedGames) + " games indexed, " + DECF.format(nbIndexedMoves) + " moves indexed");
+		log(DECF.format(metrics.getNbFiles()) + " files indexed, " + DECF.format(metrics.getNbGames()) + " games indexed, " + DECF.format(metrics.getNbMoves())
+				+ " moves indexed, " + DECF.format(metrics.getNbFailures()) + " games dropped");
+		log(DECF.format(metrics.getNbBytesRead() / (1024 * 1024)) + " MB read, " + DECF.format(metrics.getNbBytesWritten() / (1024 * 1024)) + " MB written");
+	}
+
+	/**
+	 * @param part
+	 *            the part of the game, see {@link GameNumbering}
+	 * @param game
+	 *            the number of the game in its part, from 1
+	 * @param offset
+	 *            the byte offset of the game in its file, -1 if unknown
+	 * @param length
+	 *            the number of bytes of the game in its file, -1 if unknown
+	 * @param nextMoves
+	 *            the move played from each position, sorted along with them, or
+	 *            null if the statistics are not computed
+	 * @param positionFingerprints
+	 *            the fingerprint of each position, sorted along with them, or
+	 *            null if they are not stored
+	 */
+	private void storeGame(String fileName, int ordinal, int part, int game, long offset, int length, LongArrayBuffer positions, IntArrayBuffer nextMoves, IntArrayBuffer positionFingerprints,
+			GameSummary summary) throws IOException {
+		int nb = positions.sortAndDedup(nextMoves, positionFingerprints);
+		if (dbWriter != null) {
+			metrics.addBytesWritten(dbWriter.write("[" + ordinal + "]" + fileName, positions.getValues(), nb));
+		}
+		if (indexBuilder != null) {
+			indexBuilder.getCatalog(part).add(game, fileName, ordinal, offset, length);
+			indexBuilder.addGame(part, game, positions.getValues(), nextMoves == null ? null : nextMoves.getValues(),
+					positionFingerprints == null ? null : positionFingerprints.getValues(), nb, summary);
+		}
+	}
+
+	/**
+	 * Submits the reading of all the blocks of the database, in an index
+	 * builder or in partitions of positions when the builder is null.
+	 *
+	 * @return the blocks, in the order of the manifest
+	 */
+	private List<Future<BlockTask>> submitBlocks(DatabaseManifest manifest, ExternalIndexBuilder builder, int partitionBits, GentleThreadPoolExecutor executor) {
+		List<Future<BlockTask>> blocks = new ArrayList<>();
+		for (int s = 0; s < manifest.getNbShards(); s++) {
+			for (int b = 0; b < manifest.getNbBlocks(s); b++) {
+				int firstGame = manifest.getFirstGame(s) + (b * DatabaseManifest.BLOCK_GAMES);
+				blocks.add(executor.submit(new BlockTask(manifest.getShard(s), manifest.getBlockStart(s, b), manifest.getBlockEnd(s, b), firstGame, builder,
+						partitionBits)));
+			}
+		}
+		return blocks;
+	}
+
+	private void summarize(Game game, GameSummary summary) {
+		int whiteElo = game.getWhitePlayer() == null ? 0 : Math.max(0, game.getWhitePlayer().getElo());
+		int blackElo = game.getBlackPlayer() == null ? 0 : Math.max(0, game.getBlackPlayer().getElo());
+		String result = game.getResult() == null ? null : game.getResult().getDescription();
+		summary.set(GameSummary.parseResult(result), Math.min(whiteElo, 9999), Math.min(blackElo, 9999), GameSummary.parseYear(game.getDate()));
+	}
+
+	/**
+	 * Replays the games of a PGN file with chesslib and with the native scanner
+	 * side by side, and checks that every position gets the same key. The
+	 * chesslib positions are converted through their FEN, as the native keys do
+	 * not use the chesslib Zobrist tables.
+	 */
+	private void validatePgn(File pgnFile) {
+		log("Validating the native scanner on " + pgnFile);
+		long nbGamesChecked = 0;
+		long nbPositionsChecked = 0;
+		long nbMismatches = 0;
+
+		try (FileChannel channel = PersistenceToolbox.getFile(pgnFile, false).getChannel()) {
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IOException(pgnFile + " is too large to be validated in one go");
+			}
+			MappedByteBuffer buf = channel.map(MapMode.READ_ONLY, 0, channel.size());
+			PgnScanner scanner = new PgnScanner();
+			scanner.reset(buf, 0, buf.limit());
+			CompactBoard nativeBoard = new CompactBoard();
+			CompactBoard fenBoard = new CompactBoard();
+
+			int gameNumber = 0;
+			for (Game game : new PgnIterator(pgnFile.getAbsolutePath())) {
+				gameNumber++;
+				if (!scanner.nextGame()) {
+					throw new IOException("the native scanner found only " + DECF.format(gameNumber - 1) + " games in " + pgnFile);
+				}
+				if (!Game.isParsable(game) || (game.getExceptionInParsing() != null) || !scanner.isStandardVariant()) {
+					continue;
+				}
+
+				String fen = scanner.getFen();
+				Board board = new Board();
+				try {
+					if (fen == null) {
+						nativeBoard.reset();
+					} else {
+						board.loadFromFen(fen);
+						nativeBoard.loadFen(fen);
+					}
+				} catch (IllegalArgumentException e) {
+					nbMismatches++;
+					if (nbMismatches <= MAX_REPORTED_MISMATCHES) {
+						log(true, "game " + DECF.format(gameNumber) + " : " + e.getMessage());
+					}
+					continue;
+				}
+
+				int ply = 0;
+				for (Move move : game.getHalfMoves()) {
+					ply++;
+					board.doMove(move);
+					int len = scanner.nextSan();
+					boolean ok = (len > 0) && nativeBoard.doSan(scanner.getSan(), 0, len);
+					if (ok) {
+						fenBoard.loadFen(board.getFen());
+						ok = fenBoard.getKey() == nativeBoard.getKey();
+						nbPositionsChecked++;
+					}
+					if (!ok) {
+						nbMismatches++;
+						if (nbMismatches <= MAX_REPORTED_MISMATCHES) {
+							log(true, "game " + DECF.format(gameNumber) + " ply " + ply + " : " + board.getFen() + " / " + nativeBoard.getFen());
+						}
+						break;
+					}
+				}
+				nbGamesChecked++;
+			}
+		} catch (Exception e) {
+			log(true, e);
+		}
+
+		log(DECF.format(nbGamesChecked) + " games and " + DECF.format(nbPositionsChecked) + " positions checked, " + DECF.format(nbMismatches) + " mismatches");
 	}
 }
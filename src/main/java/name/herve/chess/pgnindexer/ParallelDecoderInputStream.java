@@ -0,0 +1,125 @@
+package name.herve.chess.pgnindexer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import name.herve.chess.pgnindexer.CompressedInput.Format;
+
+/**
+ * Decodes a compressed file made of independent members in parallel, and
+ * reads the decoded members back in order. The members are decoded by groups
+ * of about {@link #GROUP_SIZE} compressed bytes, and at most nbParallel groups
+ * are decoded ahead of the reader, so the memory used stays bounded. A member
+ * larger than {@link #MAX_BUFFERED_SIZE} is not buffered but decoded by the
+ * reading thread as it goes.
+ */
+public class ParallelDecoderInputStream extends InputStream {
+	public final static long GROUP_SIZE = 1024 * 1024;
+	private final static long MAX_BUFFERED_SIZE = 64 * 1024 * 1024;
+
+	private FileChannel channel;
+	private Format format;
+	private ExecutorService decoders;
+	private int nbParallel;
+	private long size;
+	private long nextStart;
+	private Deque<Future<InputStream>> pending;
+	private InputStream current;
+
+	public ParallelDecoderInputStream(FileChannel channel, Format format, ExecutorService decoders, int nbParallel) throws IOException {
+		super();
+		this.channel = channel;
+		this.format = format;
+		this.decoders = decoders;
+		this.nbParallel = Math.max(1, nbParallel);
+		size = channel.size();
+		nextStart = 0;
+		pending = new ArrayDeque<>();
+		current = null;
+		fill();
+	}
+
+	@Override
+	public void close() throws IOException {
+		for (Future<InputStream> f : pending) {
+			f.cancel(true);
+		}
+		pending.clear();
+		channel.close();
+	}
+
+	private InputStream decode(long start, long end) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(Integer.MAX_VALUE - 8, (end - start) * 8));
+		try (InputStream in = CompressedInput.newDecoder(format, channel, start, end)) {
+			in.transferTo(out);
+		}
+		return new ByteArrayInputStream(out.toByteArray());
+	}
+
+	private void fill() throws IOException {
+		while ((pending.size() < nbParallel) && (nextStart < size)) {
+			long start = nextStart;
+			long end = CompressedInput.nextMember(channel, format, start, start + GROUP_SIZE);
+			nextStart = end;
+			if ((end - start) > MAX_BUFFERED_SIZE) {
+				pending.add(CompletableFuture.completedFuture(CompressedInput.newDecoder(format, channel, start, end)));
+			} else {
+				pending.add(decoders.submit(() -> decode(start, end)));
+			}
+		}
+	}
+
+	private boolean nextGroup() throws IOException {
+		if (current != null) {
+			current.close();
+			current = null;
+		}
+		Future<InputStream> f = pending.poll();
+		if (f == null) {
+			return false;
+		}
+		try {
+			current = f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+		fill();
+		return true;
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		while (true) {
+			if (current != null) {
+				int n = current.read(b, off, len);
+				if (n >= 0) {
+					return n;
+				}
+			}
+			if (!nextGroup()) {
+				return -1;
+			}
+		}
+	}
+}
@@ -0,0 +1,139 @@
+package name.herve.chess.pgnindexer;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Buffered counterpart of the PersistenceToolbox load methods, reading the
+ * channel in large chunks through a reusable direct buffer. Reaching the end of
+ * the file in the middle of a value throws an {@link EOFException}.
+ */
+public class PersistenceReader implements Closeable {
+	private FileChannel fc;
+	private ByteBuffer buffer;
+
+	public PersistenceReader(FileChannel fc) {
+		this(fc, PersistenceWriter.DEFAULT_BUFFER_SIZE);
+	}
+
+	public PersistenceReader(FileChannel fc, int bufferSize) {
+		super();
+		this.fc = fc;
+		buffer = ByteBuffer.allocateDirect(Math.max(bufferSize, PersistenceToolbox.LONG_NB_BYTES));
+		buffer.flip();
+	}
+
+	@Override
+	public void close() throws IOException {
+		fc.close();
+	}
+
+	private void fill(int nb) throws IOException {
+		if (buffer.remaining() >= nb) {
+			return;
+		}
+		buffer.compact();
+		try {
+			while (buffer.position() < nb) {
+				if (fc.read(buffer) < 0) {
+					throw new EOFException();
+				}
+			}
+		} finally {
+			buffer.flip();
+		}
+	}
+
+	public FileChannel getChannel() {
+		return fc;
+	}
+
+	/**
+	 * @return the position in the file of the next value to be read
+	 */
+	public long getPosition() throws IOException {
+		return fc.position() - buffer.remaining();
+	}
+
+	public void loadBytes(byte[] b, int offset, int length) throws IOException {
+		while (length > 0) {
+			fill(1);
+			int n = Math.min(length, buffer.remaining());
+			buffer.get(b, offset, n);
+			offset += n;
+			length -= n;
+		}
+	}
+
+	public int[] loadFullIntArray() throws IOException {
+		int sz = loadInt();
+		return loadIntArray(sz);
+	}
+
+	public long[] loadFullLongArray() throws IOException {
+		int sz = loadInt();
+		return loadLongArray(sz);
+	}
+
+	public int loadInt() throws IOException {
+		fill(PersistenceToolbox.INT_NB_BYTES);
+		return buffer.getInt();
+	}
+
+	public int[] loadIntArray(int sz) throws IOException {
+		int[] res = new int[sz];
+		int done = 0;
+		while (done < sz) {
+			fill(PersistenceToolbox.INT_NB_BYTES);
+			int n = Math.min(sz - done, buffer.remaining() / PersistenceToolbox.INT_NB_BYTES);
+			buffer.asIntBuffer().get(res, done, n);
+			buffer.position(buffer.position() + (n * PersistenceToolbox.INT_NB_BYTES));
+			done += n;
+		}
+		return res;
+	}
+
+	public long loadLong() throws IOException {
+		fill(PersistenceToolbox.LONG_NB_BYTES);
+		return buffer.getLong();
+	}
+
+	public long[] loadLongArray(int sz) throws IOException {
+		long[] res = new long[sz];
+		int done = 0;
+		while (done < sz) {
+			fill(PersistenceToolbox.LONG_NB_BYTES);
+			int n = Math.min(sz - done, buffer.remaining() / PersistenceToolbox.LONG_NB_BYTES);
+			buffer.asLongBuffer().get(res, done, n);
+			buffer.position(buffer.position() + (n * PersistenceToolbox.LONG_NB_BYTES));
+			done += n;
+		}
+		return res;
+	}
+
+	public short loadShort() throws IOException {
+		fill(PersistenceToolbox.SHORT_NB_BYTES);
+		return buffer.getShort();
+	}
+
+	public String loadString() throws IOException {
+		int sz = loadInt();
+		byte[] b = new byte[sz];
+		loadBytes(b, 0, sz);
+		return new String(b, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Moves the reader to an absolute position in the file, dropping the
+	 * buffered bytes.
+	 */
+	public void seek(long position) throws IOException {
+		fc.position(position);
+		buffer.clear();
+		buffer.flip();
+	}
+}
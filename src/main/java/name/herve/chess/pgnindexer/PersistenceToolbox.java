@@ -74,6 +74,8 @@ public class PersistenceToolbox {
 	/** The Constant BAG_TYPE. */
 	public final static int NULL_TYPE = 3;
 
+	public final static int SHORT_NB_BYTES = 2;
+
 	/** The Constant SPARSE_TYPE. */
 	public final static int SPARSE_TYPE = 1;
 
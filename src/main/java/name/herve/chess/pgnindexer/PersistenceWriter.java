@@ -0,0 +1,143 @@
+package name.herve.chess.pgnindexer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Buffered counterpart of the PersistenceToolbox dump methods. Values are
+ * accumulated in a reusable direct buffer and written to the channel in large
+ * chunks. The wire format is exactly the one of {@link PersistenceToolbox}, so
+ * both can read each other's files.
+ */
+public class PersistenceWriter implements Closeable {
+	public final static int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+	private FileChannel fc;
+	private ByteBuffer buffer;
+
+	public PersistenceWriter(FileChannel fc) {
+		this(fc, DEFAULT_BUFFER_SIZE);
+	}
+
+	public PersistenceWriter(FileChannel fc, int bufferSize) {
+		super();
+		this.fc = fc;
+		buffer = ByteBuffer.allocateDirect(Math.max(bufferSize, PersistenceToolbox.LONG_NB_BYTES));
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			fc.close();
+		}
+	}
+
+	public void dumpByte(int b) throws IOException {
+		if (!buffer.hasRemaining()) {
+			flush();
+		}
+		buffer.put((byte) b);
+	}
+
+	public void dumpBytes(byte[] b, int offset, int length) throws IOException {
+		while (length > 0) {
+			if (!buffer.hasRemaining()) {
+				flush();
+			}
+			int n = Math.min(length, buffer.remaining());
+			buffer.put(b, offset, n);
+			offset += n;
+			length -= n;
+		}
+	}
+
+	public void dumpFullIntArray(int[] i, int length) throws IOException {
+		dumpInt(length);
+		dumpIntArray(i, 0, length);
+	}
+
+	public void dumpFullLongArray(long[] l, int length) throws IOException {
+		dumpInt(length);
+		dumpLongArray(l, 0, length);
+	}
+
+	public void dumpInt(int i) throws IOException {
+		if (buffer.remaining() < PersistenceToolbox.INT_NB_BYTES) {
+			flush();
+		}
+		buffer.putInt(i);
+	}
+
+	public void dumpIntArray(int[] i, int offset, int length) throws IOException {
+		while (length > 0) {
+			int n = Math.min(length, buffer.remaining() / PersistenceToolbox.INT_NB_BYTES);
+			if (n == 0) {
+				flush();
+				continue;
+			}
+			buffer.asIntBuffer().put(i, offset, n);
+			buffer.position(buffer.position() + (n * PersistenceToolbox.INT_NB_BYTES));
+			offset += n;
+			length -= n;
+		}
+	}
+
+	public void dumpLong(long l) throws IOException {
+		if (buffer.remaining() < PersistenceToolbox.LONG_NB_BYTES) {
+			flush();
+		}
+		buffer.putLong(l);
+	}
+
+	public void dumpLongArray(long[] l, int offset, int length) throws IOException {
+		while (length > 0) {
+			int n = Math.min(length, buffer.remaining() / PersistenceToolbox.LONG_NB_BYTES);
+			if (n == 0) {
+				flush();
+				continue;
+			}
+			buffer.asLongBuffer().put(l, offset, n);
+			buffer.position(buffer.position() + (n * PersistenceToolbox.LONG_NB_BYTES));
+			offset += n;
+			length -= n;
+		}
+	}
+
+	public void dumpShort(int s) throws IOException {
+		if (buffer.remaining() < PersistenceToolbox.SHORT_NB_BYTES) {
+			flush();
+		}
+		buffer.putShort((short) s);
+	}
+
+	public void dumpString(String s) throws IOException {
+		byte[] b = s.getBytes(StandardCharsets.UTF_8);
+		dumpInt(b.length);
+		dumpBytes(b, 0, b.length);
+	}
+
+	public void flush() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			fc.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	public FileChannel getChannel() {
+		return fc;
+	}
+
+	/**
+	 * @return the position in the file of the next value to be written, buffered
+	 *         bytes included
+	 */
+	public long getPosition() throws IOException {
+		return fc.position() + buffer.position();
+	}
+}
@@ -0,0 +1,221 @@
+package name.herve.chess.pgnindexer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Consumer;
+
+import com.github.bhlangonijr.chesslib.Board;
+import com.github.bhlangonijr.chesslib.game.Game;
+import com.github.bhlangonijr.chesslib.move.Move;
+import com.github.bhlangonijr.chesslib.pgn.PgnIterator;
+
+/**
+ * Looks up all the positions of the games of a PGN file. Rather than probing
+ * the index once per move, the keys of many games are collected, and resolved
+ * together by {@link PositionIndex#count(long[], int, int[])} in a single pass
+ * over the sorted index.
+ *
+ * The games are scanned natively when the index has native keys, compressed
+ * files as they are decoded, and replayed with chesslib otherwise. A game is
+ * looked up until its end or its first unplayable move. An annotator is not
+ * thread safe.
+ */
+public class PgnAnnotator {
+	public final static int BATCH_KEYS = 1024 * 1024;
+	private final static long CHUNK_SIZE = 256L * 1024 * 1024;
+	private final static int STREAM_BLOCK_SIZE = 16 * 1024 * 1024;
+
+	private PositionIndex index;
+	private ExecutorService decoders;
+	private LongArrayBuffer keys;
+	private IntArrayBuffer gameNumbers;
+	private IntArrayBuffer gameEnds;
+	private int[] counts;
+	private Consumer<GameLookup> consumer;
+
+	/**
+	 * @param decoders
+	 *            the pool decoding the compressed files, see
+	 *            {@link CompressedInput#open(File, ExecutorService, int)}
+	 */
+	public PgnAnnotator(PositionIndex index, ExecutorService decoders) {
+		super();
+		this.index = index;
+		this.decoders = decoders;
+		keys = new LongArrayBuffer();
+		gameNumbers = new IntArrayBuffer();
+		gameEnds = new IntArrayBuffer();
+		counts = new int[0];
+	}
+
+	/**
+	 * Looks up the games of a file, and hands their results over to the
+	 * consumer in the order of the file.
+	 */
+	public void annotate(File pgn, Consumer<GameLookup> consumer) throws IOException {
+		this.consumer = consumer;
+		keys.clear();
+		gameNumbers.clear();
+		gameEnds.clear();
+		try {
+			if (!index.isNativeKeys()) {
+				replay(pgn);
+			} else if (CompressedInput.isCompressed(pgn)) {
+				scanStream(pgn);
+			} else {
+				scan(pgn);
+			}
+			flush();
+		} finally {
+			this.consumer = null;
+		}
+	}
+
+	private void endGame(int gameNumber) {
+		gameNumbers.add(gameNumber);
+		gameEnds.add(keys.size());
+		if (keys.size() >= BATCH_KEYS) {
+			flush();
+		}
+	}
+
+	private void flush() {
+		int nb = keys.size();
+		if (counts.length < nb) {
+			counts = new int[nb];
+		}
+		index.count(keys.getValues(), nb, counts);
+
+		int start = 0;
+		for (int g = 0; g < gameNumbers.size(); g++) {
+			int end = gameEnds.get(g);
+			int[] gameCounts = new int[end - start];
+			System.arraycopy(counts, start, gameCounts, 0, end - start);
+			consumer.accept(new GameLookup(gameNumbers.get(g), gameCounts));
+			start = end;
+		}
+
+		keys.clear();
+		gameNumbers.clear();
+		gameEnds.clear();
+	}
+
+	/**
+	 * Replays the games with chesslib, for the indexes of chesslib keys.
+	 */
+	private void replay(File pgn) throws IOException {
+		InputStream in = CompressedInput.open(pgn, decoders, Runtime.getRuntime().availableProcessors());
+		try {
+			PgnIterator games = new PgnIterator(in);
+			int gameNumber = 0;
+			Board board = new Board();
+			for (Game game : games) {
+				gameNumber++;
+				if (Game.isParsable(game) && (game.getExceptionInParsing() == null)) {
+					board.loadFromFen(CompactBoard.START_FEN);
+					try {
+						for (Move move : game.getHalfMoves()) {
+							board.doMove(move);
+							keys.add(board.getZobristKey());
+						}
+					} catch (RuntimeException e) {
+						// looked up until the move chesslib can not play
+					}
+				}
+				endGame(gameNumber);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private void scan(File pgn) throws IOException {
+		PgnScanner scanner = new PgnScanner();
+		CompactBoard board = new CompactBoard();
+		int gameNumber = 0;
+
+		try (FileChannel channel = PersistenceToolbox.getFile(pgn, false).getChannel()) {
+			long[] bounds = PgnScanner.split(channel, CHUNK_SIZE);
+			for (int c = 0; c < (bounds.length - 1); c++) {
+				MappedByteBuffer buf = channel.map(MapMode.READ_ONLY, bounds[c], bounds[c + 1] - bounds[c]);
+				scanner.reset(buf, 0, buf.limit());
+				while (scanner.nextGame()) {
+					gameNumber++;
+					scanGame(scanner, board);
+					endGame(gameNumber);
+				}
+			}
+		}
+	}
+
+	private void scanGame(PgnScanner scanner, CompactBoard board) {
+		if (!scanner.isStandardVariant()) {
+			return;
+		}
+		String fen = scanner.getFen();
+		try {
+			if (fen == null) {
+				board.reset();
+			} else {
+				board.loadFen(fen);
+			}
+		} catch (IllegalArgumentException e) {
+			return;
+		}
+
+		CompactBoard.KeyPolicy policy = index.getKeyPolicy();
+		int len;
+		while ((len = scanner.nextSan()) > 0) {
+			if (!board.doSan(scanner.getSan(), 0, len)) {
+				return;
+			}
+			keys.add(board.getKey(policy));
+		}
+	}
+
+	/**
+	 * Scans a compressed file as it is decoded, by blocks cut at the last game
+	 * start they hold.
+	 */
+	private void scanStream(File pgn) throws IOException {
+		PgnScanner scanner = new PgnScanner();
+		CompactBoard board = new CompactBoard();
+		int gameNumber = 0;
+
+		try (InputStream in = CompressedInput.open(pgn, decoders, Runtime.getRuntime().availableProcessors())) {
+			byte[] block = new byte[STREAM_BLOCK_SIZE];
+			int length = 0;
+			boolean eof = false;
+			while (!eof || (length > 0)) {
+				if (!eof) {
+					length += in.readNBytes(block, length, block.length - length);
+					eof = length < block.length;
+				}
+
+				ByteBuffer buf = ByteBuffer.wrap(block);
+				int limit = eof ? length : PgnScanner.findLastGameStart(buf, 0, length);
+				if (limit < 0) {
+					// a single game larger than the block
+					block = Arrays.copyOf(block, block.length * 2);
+					continue;
+				}
+
+				scanner.reset(buf, 0, limit);
+				while (scanner.nextGame()) {
+					gameNumber++;
+					scanGame(scanner, board);
+					endGame(gameNumber);
+				}
+				length -= limit;
+				System.arraycopy(block, limit, block, 0, length);
+			}
+		}
+	}
+}
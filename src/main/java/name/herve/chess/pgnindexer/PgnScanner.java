@@ -0,0 +1,478 @@
+package name.herve.chess.pgnindexer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Scans the raw bytes of a PGN file, typically a mapped region, for what the
+ * indexing needs : the game boundaries, the FEN and Variant tags, the tags of
+ * the {@link GameSummary} and the SAN tokens of the main line. Comments,
+ * variations, NAGs, move numbers and all the other tags are skipped without
+ * being decoded, and the SAN tokens are copied in a reused array, so scanning a
+ * game does not allocate anything unless it has a FEN tag.
+ *
+ * A scanner is not thread safe, but several scanners may share the same
+ * buffer as only absolute reads are used.
+ */
+public class PgnScanner {
+	private final static int MAX_TAG_NAME = 16;
+	private final static int MAX_SAN = 16;
+
+	private final static int SPLIT_LOOKBEHIND = 256;
+
+	private final static byte[] EVENT_TAG = "[Event ".getBytes(StandardCharsets.US_ASCII);
+	private final static byte[] FEN_TAG = "FEN".getBytes(StandardCharsets.US_ASCII);
+	private final static byte[] VARIANT_TAG = "Variant".getBytes(StandardCharsets.US_ASCII);
+	private final static byte[] RESULT_TAG = "Result".getBytes(StandardCharsets.US_ASCII);
+	private final static byte[] WHITE_ELO_TAG = "WhiteElo".getBytes(StandardCharsets.US_ASCII);
+	private final static byte[] BLACK_ELO_TAG = "BlackElo".getBytes(StandardCharsets.US_ASCII);
+	private final static byte[] DATE_TAG = "Date".getBytes(StandardCharsets.US_ASCII);
+
+	/**
+	 * @return the offset of the first game starting at or after the given
+	 *         offset, that is an Event tag at the start of a line following an
+	 *         empty line, or limit if there is none
+	 */
+	public static int findGameStart(ByteBuffer buf, int offset, int limit) {
+		for (int p = offset; p < limit; p++) {
+			if ((buf.get(p) == '[') && isEventTag(buf, p, limit) && isAfterEmptyLine(buf, p)) {
+				return p;
+			}
+		}
+		return limit;
+	}
+
+	/**
+	 * @return the offset of the last game starting strictly after the given
+	 *         offset and before limit, or -1 if there is none
+	 */
+	public static int findLastGameStart(ByteBuffer buf, int offset, int limit) {
+		for (int p = limit - 1; p > offset; p--) {
+			if ((buf.get(p) == '[') && isEventTag(buf, p, limit) && isAfterEmptyLine(buf, p)) {
+				return p;
+			}
+		}
+		return -1;
+	}
+
+	private static boolean isAfterEmptyLine(ByteBuffer buf, int p) {
+		int nbNewLines = 0;
+		for (int q = p - 1; q >= 0; q--) {
+			byte c = buf.get(q);
+			if (c == '\n') {
+				nbNewLines++;
+				if (nbNewLines == 2) {
+					return true;
+				}
+			} else if ((c != '\r') && (c != ' ') && (c != '\t')) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isEventTag(ByteBuffer buf, int p, int limit) {
+		if ((p + EVENT_TAG.length) > limit) {
+			return false;
+		}
+		for (int i = 0; i < EVENT_TAG.length; i++) {
+			if (buf.get(p + i) != EVENT_TAG[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isDelimiter(byte c) {
+		return (c <= ' ') || (c == '{') || (c == '}') || (c == '(') || (c == ')') || (c == ';') || (c == '$') || (c == '[');
+	}
+
+	/**
+	 * Splits a PGN file in ranges of about chunkSize bytes, each of them but
+	 * the first starting with a game as found by
+	 * {@link #findGameStart(ByteBuffer, int, int)}. A range may be larger if no
+	 * game starts in it.
+	 *
+	 * @return the boundaries of the ranges, from 0 to the size of the file
+	 */
+	public static long[] split(FileChannel channel, long chunkSize) throws IOException {
+		long size = channel.size();
+		LongArrayBuffer bounds = new LongArrayBuffer();
+		bounds.add(0);
+		long from = chunkSize;
+		while (from < size) {
+			// a bit of what precedes is mapped as well, to look for the empty line
+			long mapStart = Math.max(0, from - SPLIT_LOOKBEHIND);
+			long mapEnd = Math.min(size, from + chunkSize);
+			MappedByteBuffer buf = channel.map(MapMode.READ_ONLY, mapStart, mapEnd - mapStart);
+			int p = findGameStart(buf, (int) (from - mapStart), buf.limit());
+			if (p < buf.limit()) {
+				bounds.add(mapStart + p);
+				from = mapStart + p + chunkSize;
+			} else {
+				from = mapEnd;
+			}
+		}
+		bounds.add(size);
+		return bounds.toArray();
+	}
+
+	private ByteBuffer buf;
+	private int pos;
+	private int limit;
+	private int gameStart;
+	private boolean inMovetext;
+	private byte[] san;
+	private byte[] tagName;
+	private int fenStart;
+	private int fenEnd;
+	private boolean standardVariant;
+	private int gameResult;
+	private int whiteElo;
+	private int blackElo;
+	private int year;
+
+	public PgnScanner() {
+		super();
+		san = new byte[MAX_SAN];
+		tagName = new byte[MAX_TAG_NAME];
+	}
+
+	/**
+	 * @return the FEN tag of the current game, or null if it starts from the
+	 *         initial position
+	 */
+	public String getFen() {
+		if (fenStart < 0) {
+			return null;
+		}
+		return new String(readBytes(fenStart, fenEnd), StandardCharsets.US_ASCII).strip();
+	}
+
+	public int getGameStart() {
+		return gameStart;
+	}
+
+	public int getPosition() {
+		return pos;
+	}
+
+	/**
+	 * @return the last SAN token returned by {@link #nextSan()}
+	 */
+	public byte[] getSan() {
+		return san;
+	}
+
+	/**
+	 * Fills a summary with the Result, WhiteElo, BlackElo and Date tags of the
+	 * current game. Without a Result tag, the result ending the moves is used
+	 * once they have been read.
+	 */
+	public void getSummary(GameSummary summary) {
+		summary.set(gameResult, whiteElo, blackElo, year);
+	}
+
+	private boolean isMoveNumber() {
+		int p = pos;
+		while ((p < limit) && (buf.get(p) >= '0') && (buf.get(p) <= '9')) {
+			p++;
+		}
+		if ((p < limit) && (buf.get(p) != '.') && !isDelimiter(buf.get(p))) {
+			return false;
+		}
+		while ((p < limit) && (buf.get(p) == '.')) {
+			p++;
+		}
+		pos = p;
+		return true;
+	}
+
+	/**
+	 * 1-0, 0-1 and 1/2-1/2 end the game, but 0-0 and 0-0-0 are moves.
+	 */
+	private boolean isResult() {
+		int p = pos;
+		while ((p < limit) && !isDelimiter(buf.get(p))) {
+			p++;
+		}
+		int len = p - pos;
+		byte c0 = buf.get(pos);
+		boolean result = false;
+		if ((len == 3) && (buf.get(pos + 1) == '-')) {
+			byte c2 = buf.get(pos + 2);
+			result = ((c0 == '1') && (c2 == '0')) || ((c0 == '0') && (c2 == '1'));
+		} else if ((len == 7) && (c0 == '1') && (buf.get(pos + 1) == '/')) {
+			result = true;
+		}
+		if (result) {
+			if (gameResult == GameSummary.UNKNOWN) {
+				gameResult = parseResult(pos, p);
+			}
+			pos = p;
+			inMovetext = false;
+		}
+		return result;
+	}
+
+	/**
+	 * @return false if the Variant tag names anything else than standard chess
+	 */
+	public boolean isStandardVariant() {
+		return standardVariant;
+	}
+
+	/**
+	 * Moves to the next game, skipping what remains of the current one, and
+	 * reads its tags section.
+	 *
+	 * @return false if there is no more game
+	 */
+	public boolean nextGame() {
+		if (inMovetext) {
+			skipMovetext();
+		}
+		skipBlanks();
+		if (pos >= limit) {
+			return false;
+		}
+
+		gameStart = pos;
+		fenStart = -1;
+		fenEnd = -1;
+		standardVariant = true;
+		gameResult = GameSummary.UNKNOWN;
+		whiteElo = 0;
+		blackElo = 0;
+		year = 0;
+		while ((pos < limit) && (buf.get(pos) == '[')) {
+			readTag();
+			skipBlanks();
+		}
+		inMovetext = true;
+		return true;
+	}
+
+	/**
+	 * Reads the next SAN token of the main line of the current game into
+	 * {@link #getSan()}.
+	 *
+	 * @return the length of the token, or 0 at the end of the game
+	 */
+	public int nextSan() {
+		int depth = 0;
+		while (inMovetext) {
+			skipBlanks();
+			if (pos >= limit) {
+				inMovetext = false;
+				return 0;
+			}
+			byte c = buf.get(pos);
+			if (c == '{') {
+				skipTo((byte) '}');
+			} else if ((c == ';') || (c == '%')) {
+				skipTo((byte) '\n');
+			} else if (c == '(') {
+				depth++;
+				pos++;
+			} else if (c == ')') {
+				depth = Math.max(0, depth - 1);
+				pos++;
+			} else if (c == '[') {
+				// a tag section without a result terminating the previous game
+				if (depth == 0) {
+					inMovetext = false;
+					return 0;
+				}
+				pos++;
+			} else if (c == '*') {
+				pos++;
+				if (depth == 0) {
+					inMovetext = false;
+					return 0;
+				}
+			} else if ((c == '$') || (c == '.')) {
+				skipToken();
+			} else if ((c >= '0') && (c <= '9') && (isResult() || isMoveNumber())) {
+				if (!inMovetext) {
+					return 0;
+				}
+			} else {
+				int len = readToken();
+				if (depth == 0) {
+					return len;
+				}
+			}
+		}
+		return 0;
+	}
+
+	private int parseNumber(int start, int end, int maxDigits) {
+		int v = 0;
+		int p = start;
+		while ((p < end) && (buf.get(p) == ' ')) {
+			p++;
+		}
+		for (int n = 0; (n < maxDigits) && (p < end) && (buf.get(p) >= '0') && (buf.get(p) <= '9'); n++, p++) {
+			v = (v * 10) + (buf.get(p) - '0');
+		}
+		return v;
+	}
+
+	private int parseResult(int start, int end) {
+		int len = end - start;
+		if ((len == 3) && (buf.get(start + 1) == '-')) {
+			byte c0 = buf.get(start);
+			byte c2 = buf.get(start + 2);
+			if ((c0 == '1') && (c2 == '0')) {
+				return GameSummary.WHITE_WINS;
+			}
+			if ((c0 == '0') && (c2 == '1')) {
+				return GameSummary.BLACK_WINS;
+			}
+		} else if ((len == 7) && (buf.get(start) == '1') && (buf.get(start + 1) == '/')) {
+			return GameSummary.DRAW;
+		}
+		return GameSummary.UNKNOWN;
+	}
+
+	private byte[] readBytes(int start, int end) {
+		byte[] bytes = new byte[end - start];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = buf.get(start + i);
+		}
+		return bytes;
+	}
+
+	private void readTag() {
+		pos++;
+		int nameLength = 0;
+		while ((pos < limit) && (buf.get(pos) > ' ') && (buf.get(pos) != '"') && (buf.get(pos) != ']')) {
+			if (nameLength < MAX_TAG_NAME) {
+				tagName[nameLength] = buf.get(pos);
+			}
+			nameLength++;
+			pos++;
+		}
+		while ((pos < limit) && (buf.get(pos) != '"') && (buf.get(pos) != ']') && (buf.get(pos) != '\n')) {
+			pos++;
+		}
+		int valueStart = -1;
+		int valueEnd = -1;
+		if ((pos < limit) && (buf.get(pos) == '"')) {
+			pos++;
+			valueStart = pos;
+			while ((pos < limit) && (buf.get(pos) != '"') && (buf.get(pos) != '\n')) {
+				if (buf.get(pos) == '\\') {
+					pos++;
+				}
+				pos++;
+			}
+			valueEnd = Math.min(pos, limit);
+		}
+		while ((pos < limit) && (buf.get(pos) != ']') && (buf.get(pos) != '\n')) {
+			pos++;
+		}
+		if (pos < limit) {
+			pos++;
+		}
+
+		if (valueStart < 0) {
+			return;
+		}
+		if (tagNameIs(nameLength, FEN_TAG)) {
+			fenStart = valueStart;
+			fenEnd = valueEnd;
+		} else if (tagNameIs(nameLength, VARIANT_TAG)) {
+			standardVariant = valueIsStandard(valueStart, valueEnd);
+		} else if (tagNameIs(nameLength, RESULT_TAG)) {
+			gameResult = parseResult(valueStart, valueEnd);
+		} else if (tagNameIs(nameLength, WHITE_ELO_TAG)) {
+			whiteElo = parseNumber(valueStart, valueEnd, 4);
+		} else if (tagNameIs(nameLength, BLACK_ELO_TAG)) {
+			blackElo = parseNumber(valueStart, valueEnd, 4);
+		} else if (tagNameIs(nameLength, DATE_TAG)) {
+			year = parseNumber(valueStart, valueEnd, 4);
+		}
+	}
+
+	private int readToken() {
+		int len = 0;
+		while ((pos < limit) && !isDelimiter(buf.get(pos))) {
+			if (len < MAX_SAN) {
+				san[len] = buf.get(pos);
+			}
+			len++;
+			pos++;
+		}
+		return Math.min(len, MAX_SAN);
+	}
+
+	/**
+	 * Scans the given range of the buffer, which should start at the
+	 * beginning of a game.
+	 */
+	public void reset(ByteBuffer buf, int start, int limit) {
+		this.buf = buf;
+		this.pos = start;
+		this.limit = limit;
+		gameStart = start;
+		inMovetext = false;
+	}
+
+	private void skipBlanks() {
+		while ((pos < limit) && (buf.get(pos) <= ' ')) {
+			pos++;
+		}
+	}
+
+	/**
+	 * Skips the moves of the current game, up to its result.
+	 *
+	 * @return the number of moves skipped
+	 */
+	public int skipMovetext() {
+		int nb = 0;
+		while (nextSan() > 0) {
+			nb++;
+		}
+		return nb;
+	}
+
+	private void skipTo(byte end) {
+		while ((pos < limit) && (buf.get(pos) != end)) {
+			pos++;
+		}
+		if (pos < limit) {
+			pos++;
+		}
+	}
+
+	private void skipToken() {
+		pos++;
+		while ((pos < limit) && !isDelimiter(buf.get(pos))) {
+			pos++;
+		}
+	}
+
+	private boolean tagNameIs(int nameLength, byte[] name) {
+		if (nameLength != name.length) {
+			return false;
+		}
+		for (int i = 0; i < nameLength; i++) {
+			if (tagName[i] != name[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean valueIsStandard(int start, int end) {
+		String variant = new String(readBytes(start, end), StandardCharsets.US_ASCII).strip();
+		return variant.isEmpty() || "Standard".equalsIgnoreCase(variant) || "chess".equalsIgnoreCase(variant) || "From Position".equalsIgnoreCase(variant);
+	}
+}
@@ -0,0 +1,436 @@
+package name.herve.chess.pgnindexer;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded cache of the counts and posting lists of the positions, in front
+ * of a {@link PositionIndex}. It is split in segments locked independently, so
+ * that concurrent lookups of different positions seldom wait for each other.
+ * The capacity is a number of bytes, an entry weighing {@link #ENTRY_WEIGHT}
+ * bytes plus its posting list. It is shared by the segments, so an entry is
+ * admitted as long as it fits in the whole cache. When full, a segment evicts
+ * its least recently used entries, or its least frequently used ones, then
+ * those of the other segments if that is not enough.
+ */
+public class PositionCache {
+	public enum Policy {
+		LRU, LFU
+	}
+
+	private static class Entry {
+		private long key;
+		private int count;
+		private int[] games;
+		private int generation;
+		private int frequency;
+
+		public Entry(long key, int count, int[] games, int generation) {
+			super();
+			this.key = key;
+			this.count = count;
+			this.games = games;
+			this.generation = generation;
+			frequency = 0;
+		}
+
+		public long getWeight() {
+			return ENTRY_WEIGHT + (games == null ? 0 : (long) games.length * PersistenceToolbox.INT_NB_BYTES);
+		}
+	}
+
+	private abstract class Segment {
+		private long weight;
+
+		public Segment() {
+			super();
+			weight = 0;
+		}
+
+		protected abstract void add(Entry e);
+
+		public synchronized void clear() {
+			clearEntries();
+			PositionCache.this.weight.addAndGet(-weight);
+			weight = 0;
+		}
+
+		protected abstract void clearEntries();
+
+		protected abstract Entry evict();
+
+		/**
+		 * @return false if the segment is empty
+		 */
+		public synchronized boolean evictOne() {
+			if (nbEntries() == 0) {
+				return false;
+			}
+			removed(evict());
+			nbEvictions.increment();
+			return true;
+		}
+
+		public synchronized Entry get(long key) {
+			Entry e = lookup(key);
+			if (e != null) {
+				touch(e);
+			}
+			return e;
+		}
+
+		protected abstract Entry lookup(long key);
+
+		/**
+		 * Makes room for the entry with the entries of this segment only, see
+		 * {@link PositionCache#put(Entry)}.
+		 */
+		public synchronized void put(Entry e) {
+			if (e.generation != generation.get()) {
+				// computed from an index the cache has been cleared of since
+				return;
+			}
+			Entry previous = lookup(e.key);
+			if (previous != null) {
+				if ((e.games == null) || (previous.games != null)) {
+					return;
+				}
+				remove(previous);
+				removed(previous);
+			}
+			while (((PositionCache.this.weight.get() + e.getWeight()) > capacity) && (nbEntries() > 0)) {
+				removed(evict());
+				nbEvictions.increment();
+			}
+			add(e);
+			weight += e.getWeight();
+			PositionCache.this.weight.addAndGet(e.getWeight());
+		}
+
+		protected abstract void remove(Entry e);
+
+		private void removed(Entry e) {
+			weight -= e.getWeight();
+			PositionCache.this.weight.addAndGet(-e.getWeight());
+		}
+
+		public synchronized int size() {
+			return nbEntries();
+		}
+
+		protected abstract int nbEntries();
+
+		protected abstract void touch(Entry e);
+	}
+
+	private class LruSegment extends Segment {
+		private LinkedHashMap<Long, Entry> entries;
+
+		public LruSegment() {
+			super();
+			entries = new LinkedHashMap<>(16, 0.75f, true);
+		}
+
+		@Override
+		protected void add(Entry e) {
+			entries.put(e.key, e);
+		}
+
+		@Override
+		protected void clearEntries() {
+			entries.clear();
+		}
+
+		@Override
+		protected Entry evict() {
+			Iterator<Entry> it = entries.values().iterator();
+			Entry e = it.next();
+			it.remove();
+			return e;
+		}
+
+		@Override
+		protected Entry lookup(long key) {
+			// moves the entry to the most recently used end
+			return entries.get(key);
+		}
+
+		@Override
+		protected void remove(Entry e) {
+			entries.remove(e.key);
+		}
+
+		@Override
+		protected int nbEntries() {
+			return entries.size();
+		}
+
+		@Override
+		protected void touch(Entry e) {
+		}
+	}
+
+	/**
+	 * The entries are kept in buckets by frequency, each bucket in insertion
+	 * order so that ties are broken by age.
+	 */
+	private class LfuSegment extends Segment {
+		private Map<Long, Entry> entries;
+		private TreeMap<Integer, LinkedHashSet<Entry>> buckets;
+
+		public LfuSegment() {
+			super();
+			entries = new HashMap<>();
+			buckets = new TreeMap<>();
+		}
+
+		@Override
+		protected void add(Entry e) {
+			entries.put(e.key, e);
+			e.frequency = 1;
+			buckets.computeIfAbsent(e.frequency, f -> new LinkedHashSet<>()).add(e);
+		}
+
+		@Override
+		protected void clearEntries() {
+			entries.clear();
+			buckets.clear();
+		}
+
+		@Override
+		protected Entry evict() {
+			Map.Entry<Integer, LinkedHashSet<Entry>> bucket = buckets.firstEntry();
+			Iterator<Entry> it = bucket.getValue().iterator();
+			Entry e = it.next();
+			it.remove();
+			if (bucket.getValue().isEmpty()) {
+				buckets.remove(bucket.getKey());
+			}
+			entries.remove(e.key);
+			return e;
+		}
+
+		@Override
+		protected Entry lookup(long key) {
+			return entries.get(key);
+		}
+
+		@Override
+		protected void remove(Entry e) {
+			entries.remove(e.key);
+			unlink(e);
+		}
+
+		@Override
+		protected int nbEntries() {
+			return entries.size();
+		}
+
+		@Override
+		protected void touch(Entry e) {
+			unlink(e);
+			e.frequency++;
+			buckets.computeIfAbsent(e.frequency, f -> new LinkedHashSet<>()).add(e);
+		}
+
+		private void unlink(Entry e) {
+			LinkedHashSet<Entry> bucket = buckets.get(e.frequency);
+			bucket.remove(e);
+			if (bucket.isEmpty()) {
+				buckets.remove(e.frequency);
+			}
+		}
+	}
+
+	public final static int ENTRY_WEIGHT = 96;
+	private final static int NB_SEGMENTS = 16;
+
+	private Policy policy;
+	private long capacity;
+	private Segment[] segments;
+	private AtomicLong weight;
+	private AtomicInteger generation;
+	private LongAdder nbHits;
+	private LongAdder nbMisses;
+	private LongAdder nbEvictions;
+
+	/**
+	 * @param capacity
+	 *            the size of the cache, in bytes
+	 */
+	public PositionCache(long capacity, Policy policy) {
+		super();
+		this.capacity = capacity;
+		this.policy = policy;
+		nbHits = new LongAdder();
+		nbMisses = new LongAdder();
+		nbEvictions = new LongAdder();
+		weight = new AtomicLong();
+		generation = new AtomicInteger();
+		segments = new Segment[NB_SEGMENTS];
+		for (int s = 0; s < NB_SEGMENTS; s++) {
+			segments[s] = policy == Policy.LFU ? new LfuSegment() : new LruSegment();
+		}
+	}
+
+	/**
+	 * Drops all the entries, when the index they come from has changed, and
+	 * those of the lookups of the previous index still in progress, see
+	 * {@link #getGeneration()}. The statistics are kept.
+	 */
+	public void clear() {
+		generation.incrementAndGet();
+		for (Segment s : segments) {
+			s.clear();
+		}
+	}
+
+	public long getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return the number of games of the position, or -1 if it is not cached
+	 */
+	public int getCount(long key) {
+		Entry e = getSegment(key).get(key);
+		if (e == null) {
+			nbMisses.increment();
+			return -1;
+		}
+		nbHits.increment();
+		return e.count;
+	}
+
+	/**
+	 * @return the games of the position, or null if they are not cached
+	 */
+	public int[] getGames(long key) {
+		Entry e = getSegment(key).get(key);
+		if ((e == null) || (e.games == null)) {
+			nbMisses.increment();
+			return null;
+		}
+		nbHits.increment();
+		return e.games;
+	}
+
+	/**
+	 * @return the generation of the entries, to be read before the index is
+	 *         looked up and given back with the entry : an entry of a
+	 *         generation the cache has been cleared of since is not put
+	 */
+	public int getGeneration() {
+		return generation.get();
+	}
+
+	public double getHitRate() {
+		long hits = getNbHits();
+		long total = hits + getNbMisses();
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
+	public long getNbEvictions() {
+		return nbEvictions.sum();
+	}
+
+	public long getNbHits() {
+		return nbHits.sum();
+	}
+
+	public long getNbMisses() {
+		return nbMisses.sum();
+	}
+
+	public Policy getPolicy() {
+		return policy;
+	}
+
+	private Segment getSegment(long key) {
+		return segments[getSegmentIndex(key)];
+	}
+
+	private int getSegmentIndex(long key) {
+		// the keys are Zobrist hashes, their low bits are evenly spread
+		return (int) key & (NB_SEGMENTS - 1);
+	}
+
+	/**
+	 * @return the number of cached positions
+	 */
+	public int getSize() {
+		int size = 0;
+		for (Segment s : segments) {
+			size += s.size();
+		}
+		return size;
+	}
+
+	/**
+	 * @return the bytes used by the cached positions
+	 */
+	public long getWeight() {
+		return weight.get();
+	}
+
+	/**
+	 * Admits an entry as long as it fits in the whole cache. Its segment makes
+	 * room with its own entries first, then the other segments evict theirs
+	 * one at a time, so that no two segments are ever locked together.
+	 */
+	private void put(Entry e) {
+		if (e.getWeight() > capacity) {
+			return;
+		}
+		int s = getSegmentIndex(e.key);
+		segments[s].put(e);
+		for (int nbEmpty = 0; (weight.get() > capacity) && (nbEmpty < NB_SEGMENTS);) {
+			s = (s + 1) & (NB_SEGMENTS - 1);
+			nbEmpty = segments[s].evictOne() ? 0 : nbEmpty + 1;
+		}
+	}
+
+	/**
+	 * @param generation
+	 *            the generation read before the count, see
+	 *            {@link #getGeneration()}
+	 */
+	public void putCount(long key, int count, int generation) {
+		put(new Entry(key, count, null, generation));
+	}
+
+	/**
+	 * The cached games are shared, they must not be modified.
+	 *
+	 * @param generation
+	 *            the generation read before the games, see
+	 *            {@link #getGeneration()}
+	 */
+	public void putGames(long key, int[] games, int generation) {
+		put(new Entry(key, games.length, games, generation));
+	}
+
+	/**
+	 * @return the size, usage and hit rate of the cache, as a JSON object
+	 */
+	public String toJson() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"policy\":\"").append(policy).append("\"");
+		sb.append(",\"capacity\":").append(capacity);
+		sb.append(",\"weight\":").append(getWeight());
+		sb.append(",\"entries\":").append(getSize());
+		sb.append(",\"hits\":").append(getNbHits());
+		sb.append(",\"misses\":").append(getNbMisses());
+		sb.append(",\"evictions\":").append(getNbEvictions());
+		sb.append(",\"hitRate\":").append(Math.round(getHitRate() * 10000) / 10000.0);
+		sb.append("}");
+		return sb.toString();
+	}
+}
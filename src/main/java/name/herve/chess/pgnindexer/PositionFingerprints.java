@@ -0,0 +1,97 @@
+package name.herve.chess.pgnindexer;
+
+import java.io.File;
+
+import com.github.bhlangonijr.chesslib.Board;
+import com.github.bhlangonijr.chesslib.Piece;
+import com.github.bhlangonijr.chesslib.Side;
+import com.github.bhlangonijr.chesslib.Square;
+
+/**
+ * A 32 bits fingerprint of the positions, stored next to the index to tell
+ * apart the positions whose 64 bits keys collide. It hashes the board packed
+ * in 32 bytes, 4 bits per square, and the side to move, with a function
+ * unrelated to the Zobrist keys : two positions sharing a key have the same
+ * fingerprint once in 2^32. A chesslib {@link Board} and a
+ * {@link CompactBoard} holding the same position have the same fingerprint.
+ * The side to move is left out when the {@link CompactBoard.KeyPolicy} of the
+ * index does not tell the positions apart by it.
+ *
+ * <pre>
+ * header        magic, version (2 ints), nbPositions, nbCollisions (2 longs)
+ * fingerprints  nbPositions x int, in the order of the index
+ * </pre>
+ *
+ * A key held by positions of different fingerprints when the index is built
+ * is a collision : its fingerprint is then {@link #AMBIGUOUS}, and its games
+ * can not be told apart.
+ */
+public class PositionFingerprints {
+	public final static int MAGIC = 0x50474E46;
+	public final static int VERSION = 1;
+	public final static int HEADER_NB_BYTES = 24;
+
+	public final static int AMBIGUOUS = 0;
+
+	private final static long SEED = 0x4669_6E67_6572_7072L;
+	private final static Square[] SQUARES = Square.values();
+
+	/**
+	 * @return the fingerprints file of an index
+	 */
+	public static File getFile(File idxFile) {
+		return new File(idxFile.getPath() + ".fp");
+	}
+
+	/**
+	 * Murmur3 finalizer.
+	 */
+	private static long mix(long h) {
+		h = (h ^ (h >>> 33)) * 0xFF51AFD7ED558CCDL;
+		h = (h ^ (h >>> 33)) * 0xC4CEB9FE1A85EC53L;
+		return h ^ (h >>> 33);
+	}
+
+	public static int of(Board board) {
+		return of(board, CompactBoard.KeyPolicy.FIDE);
+	}
+
+	public static int of(Board board, CompactBoard.KeyPolicy policy) {
+		long h = SEED;
+		for (int w = 0; w < 4; w++) {
+			long packed = 0;
+			for (int s = 0; s < 16; s++) {
+				Piece piece = board.getPiece(SQUARES[(w * 16) + s]);
+				if (piece != Piece.NONE) {
+					int p = piece.ordinal();
+					long code = p < 6 ? p + CompactBoard.PAWN : (p - 6 + CompactBoard.PAWN) | CompactBoard.BLACK;
+					packed |= code << (4 * s);
+				}
+			}
+			h = mix(h ^ packed);
+		}
+		return toFingerprint(h, policy.hasSideToMove() && (board.getSideToMove() == Side.BLACK));
+	}
+
+	public static int of(CompactBoard board) {
+		return of(board, CompactBoard.KeyPolicy.FIDE);
+	}
+
+	public static int of(CompactBoard board, CompactBoard.KeyPolicy policy) {
+		long h = SEED;
+		for (int w = 0; w < 4; w++) {
+			long packed = 0;
+			for (int s = 0; s < 16; s++) {
+				packed |= (long) board.getPiece((w * 16) + s) << (4 * s);
+			}
+			h = mix(h ^ packed);
+		}
+		return toFingerprint(h, policy.hasSideToMove() && (board.getSide() == CompactBoard.BLACK));
+	}
+
+	private static int toFingerprint(long h, boolean blackToMove) {
+		h = mix(h ^ (blackToMove ? 1 : 0));
+		int fingerprint = (int) (h ^ (h >>> 32));
+		return fingerprint == AMBIGUOUS ? 1 : fingerprint;
+	}
+}
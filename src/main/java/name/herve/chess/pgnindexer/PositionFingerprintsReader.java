@@ -0,0 +1,72 @@
+package name.herve.chess.pgnindexer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads the {@link PositionFingerprints} of an index by rank, from a memory
+ * mapped file. All the methods can be called from any number of threads.
+ */
+public class PositionFingerprintsReader implements Closeable {
+	private File file;
+	private FileChannel channel;
+	private long nbPositions;
+	private long nbCollisions;
+	private MappedRegion fingerprints;
+
+	public PositionFingerprintsReader(File file) throws IOException {
+		super();
+		this.file = file;
+		channel = PersistenceToolbox.getFile(file, false).getChannel();
+
+		ByteBuffer header = ByteBuffer.allocate(PositionFingerprints.HEADER_NB_BYTES);
+		channel.read(header, 0);
+		header.flip();
+		if ((header.remaining() < PositionFingerprints.HEADER_NB_BYTES) || (header.getInt() != PositionFingerprints.MAGIC)) {
+			channel.close();
+			throw new IOException(file + " is not a position fingerprints file");
+		}
+		int version = header.getInt();
+		if (version != PositionFingerprints.VERSION) {
+			channel.close();
+			throw new IOException(file + " has an unsupported version " + version + ", it should be rebuilt");
+		}
+		nbPositions = header.getLong();
+		nbCollisions = header.getLong();
+		fingerprints = new MappedRegion(channel, PositionFingerprints.HEADER_NB_BYTES, nbPositions * PersistenceToolbox.INT_NB_BYTES);
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * @param rank
+	 *            the rank of the position in the index, see
+	 *            {@link IndexFileReader#find(long)}
+	 * @return the fingerprint of the position, or
+	 *         {@link PositionFingerprints#AMBIGUOUS} if its key is a collision
+	 */
+	public int get(long rank) {
+		return fingerprints.getInt(rank * PersistenceToolbox.INT_NB_BYTES);
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return the number of keys held by positions of different fingerprints
+	 */
+	public long getNbCollisions() {
+		return nbCollisions;
+	}
+
+	public long getNbPositions() {
+		return nbPositions;
+	}
+}
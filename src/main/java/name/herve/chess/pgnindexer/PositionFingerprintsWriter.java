@@ -0,0 +1,121 @@
+package name.herve.chess.pgnindexer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Streams the {@link PositionFingerprints} of an index to disk, as it is being
+ * built. The positions must be added in the order of the index, each of them
+ * with the fingerprints found in its games, at once or one after the other
+ * between {@link #startPosition()} and {@link #endPosition()}, and the keys
+ * whose fingerprints differ are counted as collisions.
+ */
+public class PositionFingerprintsWriter implements Closeable {
+	private File file;
+	private PersistenceWriter out;
+	private long nbPositions;
+	private long nbCollisions;
+	private int fingerprint;
+	private boolean first;
+
+	public PositionFingerprintsWriter(File file, int bufferSize) throws IOException {
+		super();
+		this.file = file;
+		FileChannel channel = PersistenceToolbox.getFile(file, true).getChannel();
+		channel.position(PositionFingerprints.HEADER_NB_BYTES);
+		out = new PersistenceWriter(channel, bufferSize);
+		nbPositions = 0;
+		nbCollisions = 0;
+		startPosition();
+	}
+
+	/**
+	 * Adds a fingerprint found for the position started by
+	 * {@link #startPosition()}.
+	 */
+	public void addOccurrence(int occurrence) {
+		if (first) {
+			fingerprint = occurrence;
+			first = false;
+		} else if (occurrence != fingerprint) {
+			fingerprint = PositionFingerprints.AMBIGUOUS;
+		}
+	}
+
+	/**
+	 * Adds the fingerprint of the next position.
+	 */
+	public void addFingerprint(int fingerprint) throws IOException {
+		if (fingerprint == PositionFingerprints.AMBIGUOUS) {
+			nbCollisions++;
+		}
+		out.dumpInt(fingerprint);
+		nbPositions++;
+	}
+
+	/**
+	 * @param fingerprints
+	 *            the fingerprint of the position in each of its games, or in
+	 *            each of the segments holding it
+	 */
+	public void addPosition(int[] fingerprints, int nb) throws IOException {
+		startPosition();
+		for (int i = 0; i < nb; i++) {
+			addOccurrence(fingerprints[i]);
+		}
+		endPosition();
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			out.flush();
+			ByteBuffer header = ByteBuffer.allocate(PositionFingerprints.HEADER_NB_BYTES);
+			header.putInt(PositionFingerprints.MAGIC);
+			header.putInt(PositionFingerprints.VERSION);
+			header.putLong(nbPositions);
+			header.putLong(nbCollisions);
+			header.flip();
+			out.getChannel().write(header, 0);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Writes the fingerprint of the position started by
+	 * {@link #startPosition()}, {@link PositionFingerprints#AMBIGUOUS} if its
+	 * occurrences differ.
+	 */
+	public void endPosition() throws IOException {
+		addFingerprint(first ? PositionFingerprints.AMBIGUOUS : fingerprint);
+		startPosition();
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return the number of keys held by positions of different fingerprints
+	 */
+	public long getNbCollisions() {
+		return nbCollisions;
+	}
+
+	public long getNbPositions() {
+		return nbPositions;
+	}
+
+	/**
+	 * Starts the next position, whose fingerprints are then given one by one to
+	 * {@link #addOccurrence(int)}.
+	 */
+	public void startPosition() {
+		fingerprint = PositionFingerprints.AMBIGUOUS;
+		first = true;
+	}
+}
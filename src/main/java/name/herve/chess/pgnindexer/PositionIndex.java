@@ -0,0 +1,657 @@
+package name.herve.chess.pgnindexer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.github.bhlangonijr.chesslib.Board;
+
+/**
+ * Position lookups over a read-only index, by chesslib {@link Board}, by FEN
+ * or by raw key. The keys are computed the way the index has been built, with
+ * chesslib or with {@link CompactBoard} under the {@link CompactBoard.KeyPolicy}
+ * of the index. The {@link PositionStats} are
+ * available when the index has been built along with its statistics file. All
+ * the methods can be called from any number of threads.
+ *
+ * The index is either a plain index file or an {@link IndexManifest} : the
+ * lookups then fan out across its segments and their results are combined,
+ * the games of each segment being shifted by the games of the segments before
+ * it. {@link #refresh()} picks up the segments appended or merged since the
+ * index has been opened.
+ *
+ * When the index has been built with its {@link PositionFingerprints}, the
+ * lookups by board or by FEN are verified : the segments where the key is held
+ * by another position are left out, and the lookups are counted as verified,
+ * mismatched or ambiguous, the latter when the key is a collision of the index
+ * itself.
+ */
+public class PositionIndex implements Closeable {
+	private final static int MIN_SORTED_BATCH = 1024;
+
+	private static class Segment implements Closeable {
+		private IndexFileReader reader;
+		private PositionStatsReader stats;
+		private PositionFingerprintsReader fingerprints;
+		private int firstGame;
+
+		private Segment(IndexFileReader reader, int firstGame) throws IOException {
+			super();
+			this.reader = reader;
+			this.firstGame = firstGame;
+			File statsFile = PositionStats.getFile(reader.getFile());
+			stats = statsFile.exists() ? new PositionStatsReader(statsFile) : null;
+			if ((stats != null) && (stats.getNbPositions() != reader.getNbPositions())) {
+				stats.close();
+				throw new IOException(statsFile + " does not match " + reader.getFile() + ", it should be rebuilt");
+			}
+			File fingerprintsFile = PositionFingerprints.getFile(reader.getFile());
+			fingerprints = fingerprintsFile.exists() ? new PositionFingerprintsReader(fingerprintsFile) : null;
+			if ((fingerprints != null) && (fingerprints.getNbPositions() != reader.getNbPositions())) {
+				fingerprints.close();
+				if (stats != null) {
+					stats.close();
+				}
+				throw new IOException(fingerprintsFile + " does not match " + reader.getFile() + ", it should be rebuilt");
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			reader.close();
+			if (stats != null) {
+				stats.close();
+			}
+			if (fingerprints != null) {
+				fingerprints.close();
+			}
+		}
+
+		/**
+		 * @return false if the key of the rank is held by a position of
+		 *         another fingerprint
+		 */
+		private boolean matches(long rank, int fingerprint) {
+			if (fingerprints == null) {
+				return true;
+			}
+			int stored = fingerprints.get(rank);
+			return (stored == PositionFingerprints.AMBIGUOUS) || (stored == fingerprint);
+		}
+
+		private String getGameId(int game) {
+			return reader.getCatalog().getGameId(game - firstGame);
+		}
+
+		private byte[] getPgn(int game) throws IOException {
+			GameCatalogReader catalog = reader.getCatalog();
+			int g = game - firstGame;
+			Path path = catalog.getPath(g);
+			if (path == null) {
+				return null;
+			}
+			long offset = catalog.getOffset(g);
+			int length = catalog.getLength(g);
+			if ((offset < 0) || (length < 0)) {
+				return null;
+			}
+			ByteBuffer buf = ByteBuffer.allocate(length);
+			try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+				while (buf.hasRemaining()) {
+					if (channel.read(buf, offset + buf.position()) < 0) {
+						throw new IOException(path + " is shorter than when it has been indexed, the index should be rebuilt");
+					}
+				}
+			}
+			return buf.array();
+		}
+	}
+
+	private File file;
+	private volatile Segment[] segments;
+	private volatile boolean nativeKeys;
+	private volatile CompactBoard.KeyPolicy keyPolicy;
+	private ThreadLocal<Board> boards;
+	private ThreadLocal<CompactBoard> compactBoards;
+	private PositionCache cache;
+	private LongAdder nbVerified;
+	private LongAdder nbMismatched;
+	private LongAdder nbAmbiguous;
+
+	/**
+	 * Opens a plain index file, or all the segments of a manifest.
+	 */
+	public PositionIndex(File file) throws IOException {
+		this(file, null);
+	}
+
+	private PositionIndex(File file, IndexFileReader reader) throws IOException {
+		super();
+		this.file = file;
+		boards = ThreadLocal.withInitial(Board::new);
+		compactBoards = ThreadLocal.withInitial(CompactBoard::new);
+		cache = null;
+		nbVerified = new LongAdder();
+		nbMismatched = new LongAdder();
+		nbAmbiguous = new LongAdder();
+		segments = new Segment[0];
+		if ((reader == null) && IndexManifest.isManifest(file)) {
+			refresh();
+		} else {
+			if (reader == null) {
+				reader = new IndexFileReader(file);
+			}
+			segments = new Segment[] { new Segment(reader, 0) };
+			nativeKeys = reader.isNativeKeys();
+			keyPolicy = reader.getKeyPolicy();
+		}
+	}
+
+	/**
+	 * Opens the statistics file next to the index, if there is one.
+	 */
+	public PositionIndex(IndexFileReader reader) throws IOException {
+		this(reader.getFile(), reader);
+	}
+
+	@Override
+	public void close() throws IOException {
+		for (Segment s : segments) {
+			s.close();
+		}
+	}
+
+	public int count(Board board) {
+		long key = getKey(board);
+		return hasFingerprints() ? count(key, PositionFingerprints.of(board, keyPolicy)) : count(key);
+	}
+
+	public int count(long key) {
+		if (cache == null) {
+			return countSegments(key);
+		}
+		// read before the segments, so that the counts of segments replaced meanwhile are not cached
+		int generation = cache.getGeneration();
+		int count = cache.getCount(key);
+		if (count < 0) {
+			count = countSegments(key);
+			cache.putCount(key, count, generation);
+		}
+		return count;
+	}
+
+	/**
+	 * Counts the games of many keys at once : the keys are sorted and
+	 * resolved in a single pass over each segment, which is much faster than
+	 * looking them up one by one when they are numerous. Large batches do not
+	 * go through the cache.
+	 *
+	 * @param counts
+	 *            receives the number of games of each key, in the order of the
+	 *            keys
+	 */
+	public void count(long[] keys, int nb, int[] counts) {
+		if (nb < MIN_SORTED_BATCH) {
+			for (int i = 0; i < nb; i++) {
+				counts[i] = count(keys[i]);
+			}
+			return;
+		}
+		long[] sortedKeys = Arrays.copyOf(keys, nb);
+		int[] order = new int[nb];
+		for (int i = 0; i < nb; i++) {
+			order[i] = i;
+		}
+		ExternalIndexBuilder.sortPairs(sortedKeys, order, nb, new long[nb], new int[nb]);
+
+		Segment[] current = segments;
+		int[] sortedCounts = new int[nb];
+		int[] segmentCounts = current.length > 1 ? new int[nb] : sortedCounts;
+		for (Segment s : current) {
+			s.reader.countSorted(sortedKeys, nb, segmentCounts);
+			if (segmentCounts != sortedCounts) {
+				for (int i = 0; i < nb; i++) {
+					sortedCounts[i] += segmentCounts[i];
+				}
+			}
+		}
+		for (int i = 0; i < nb; i++) {
+			counts[order[i]] = sortedCounts[i];
+		}
+	}
+
+	/**
+	 * Counts the games of a position, leaving out the segments where its key
+	 * is held by a position of another fingerprint. The lookup goes through
+	 * the cache once the key is verified in all the segments.
+	 *
+	 * @param fingerprint
+	 *            the {@link PositionFingerprints} of the position
+	 */
+	public int count(long key, int fingerprint) {
+		Segment[] current = segments;
+		if (verify(current, key, fingerprint)) {
+			return count(key);
+		}
+		int count = 0;
+		for (Segment s : current) {
+			long rank = s.reader.find(key);
+			if ((rank >= 0) && s.matches(rank, fingerprint)) {
+				count += s.reader.getPostingsAt(rank).getNbGames();
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             if the FEN can not be parsed
+	 */
+	public int count(String fen) {
+		long key = getKey(fen);
+		return hasFingerprints() ? count(key, getFingerprint(fen)) : count(key);
+	}
+
+	private int countSegments(long key) {
+		int count = 0;
+		for (Segment s : segments) {
+			count += s.reader.count(key);
+		}
+		return count;
+	}
+
+	/**
+	 * @return {"verified":...,"mismatched":...,"ambiguous":...,"collisions":...},
+	 *         the verified lookups since the index has been opened, and the
+	 *         key collisions of the index
+	 */
+	public String fingerprintsToJson() {
+		return "{\"verified\":" + nbVerified.sum() + ",\"mismatched\":" + nbMismatched.sum() + ",\"ambiguous\":" + nbAmbiguous.sum() + ",\"collisions\":"
+				+ getNbCollisions() + "}";
+	}
+
+	/**
+	 * @return the cache of the lookups, or null if there is none
+	 */
+	public PositionCache getCache() {
+		return cache;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return the {@link PositionFingerprints} of the position
+	 * @throws IllegalArgumentException
+	 *             if the FEN can not be parsed
+	 */
+	public int getFingerprint(String fen) {
+		CompactBoard board = compactBoards.get();
+		board.loadFen(fen);
+		return PositionFingerprints.of(board, keyPolicy);
+	}
+
+	/**
+	 * @return the id of a game, as given when it has been indexed, or null if
+	 *         the game is unknown
+	 */
+	public String getGameId(int game) {
+		Segment segment = getSegment(game);
+		return segment == null ? null : segment.getGameId(game);
+	}
+
+	/**
+	 * @return the sorted numbers of the games holding the position
+	 */
+	public int[] getGames(Board board) {
+		long key = getKey(board);
+		return hasFingerprints() ? getGames(key, PositionFingerprints.of(board, keyPolicy)) : getGames(key);
+	}
+
+	/**
+	 * @return the sorted numbers of the games holding the position, which must
+	 *         not be modified as they may be cached
+	 */
+	public int[] getGames(long key) {
+		if (cache == null) {
+			return getSegmentGames(key);
+		}
+		int generation = cache.getGeneration();
+		int[] games = cache.getGames(key);
+		if (games == null) {
+			games = getSegmentGames(key);
+			cache.putGames(key, games, generation);
+		}
+		return games;
+	}
+
+	/**
+	 * @return the sorted numbers of the games holding the position, leaving
+	 *         out the segments where its key is held by a position of another
+	 *         fingerprint, see {@link #count(long, int)}
+	 */
+	public int[] getGames(long key, int fingerprint) {
+		Segment[] current = segments;
+		if (verify(current, key, fingerprint)) {
+			return getGames(key);
+		}
+		IntArrayBuffer games = new IntArrayBuffer();
+		for (Segment s : current) {
+			long rank = s.reader.find(key);
+			if ((rank >= 0) && s.matches(rank, fingerprint)) {
+				PostingsCursor cursor = s.reader.getPostingsAt(rank);
+				int g;
+				while ((g = cursor.next()) >= 0) {
+					games.add(g + s.firstGame);
+				}
+			}
+		}
+		return games.toArray();
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             if the FEN can not be parsed
+	 */
+	public int[] getGames(String fen) {
+		long key = getKey(fen);
+		return hasFingerprints() ? getGames(key, getFingerprint(fen)) : getGames(key);
+	}
+
+	public long getKey(Board board) {
+		if (nativeKeys) {
+			return getKey(board.getFen());
+		}
+		return board.getZobristKey();
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             if the FEN can not be parsed
+	 */
+	public long getKey(String fen) {
+		if (nativeKeys) {
+			CompactBoard board = compactBoards.get();
+			board.loadFen(fen);
+			return board.getKey(keyPolicy);
+		}
+		Board board = boards.get();
+		try {
+			board.loadFromFen(fen);
+		} catch (RuntimeException e) {
+			throw new IllegalArgumentException("Invalid FEN " + fen, e);
+		}
+		return board.getZobristKey();
+	}
+
+	/**
+	 * @return what identifies the positions of the index
+	 */
+	public CompactBoard.KeyPolicy getKeyPolicy() {
+		return keyPolicy;
+	}
+
+	/**
+	 * @return the number of keys held by positions of different fingerprints
+	 *         when the segments have been built, a key colliding in several
+	 *         segments being counted in each
+	 */
+	public long getNbCollisions() {
+		long nb = 0;
+		for (Segment s : segments) {
+			if (s.fingerprints != null) {
+				nb += s.fingerprints.getNbCollisions();
+			}
+		}
+		return nb;
+	}
+
+	public int getNbGames() {
+		int nb = 0;
+		for (Segment s : segments) {
+			nb += s.reader.getNbGames();
+		}
+		return nb;
+	}
+
+	/**
+	 * @return the number of positions of the segments, a position held by
+	 *         several of them being counted in each
+	 */
+	public long getNbPositions() {
+		long nb = 0;
+		for (Segment s : segments) {
+			nb += s.reader.getNbPositions();
+		}
+		return nb;
+	}
+
+	public int getNbSegments() {
+		return segments.length;
+	}
+
+	/**
+	 * Reads the PGN text of a game from its source file, at the byte range
+	 * recorded when it has been indexed, without parsing the file.
+	 *
+	 * @return the bytes of the game, or null if the game is unknown or its
+	 *         range has not been recorded, as for the games read with chesslib,
+	 *         from a compressed file or from a database
+	 */
+	public byte[] getPgn(int game) throws IOException {
+		Segment segment = getSegment(game);
+		return segment == null ? null : segment.getPgn(game);
+	}
+
+	private Segment getSegment(int game) {
+		Segment[] current = segments;
+		for (int s = current.length - 1; s >= 0; s--) {
+			if (game > current[s].firstGame) {
+				return current[s];
+			}
+		}
+		return null;
+	}
+
+	private int[] getSegmentGames(long key) {
+		Segment[] current = segments;
+		if (current.length == 1) {
+			return current[0].reader.getGames(key);
+		}
+		IntArrayBuffer games = new IntArrayBuffer();
+		for (Segment s : current) {
+			PostingsCursor cursor = s.reader.getPostings(key);
+			if (cursor != null) {
+				int g;
+				while ((g = cursor.next()) >= 0) {
+					games.add(g + s.firstGame);
+				}
+			}
+		}
+		return games.toArray();
+	}
+
+	/**
+	 * @return the statistics of the position, empty if it is not indexed
+	 * @throws IllegalStateException
+	 *             if the index has no statistics
+	 */
+	public PositionStats getStats(Board board) {
+		return getStats(getKey(board));
+	}
+
+	/**
+	 * @return the statistics of the position, combined over the segments,
+	 *         empty if it is not indexed
+	 * @throws IllegalStateException
+	 *             if the index has no statistics
+	 */
+	public PositionStats getStats(long key) {
+		Segment[] current = segments;
+		if (!hasStats(current)) {
+			throw new IllegalStateException(file + " has no statistics, it should be built with them");
+		}
+		PositionStats stats = new PositionStats();
+		for (Segment s : current) {
+			long rank = s.reader.find(key);
+			if (rank >= 0) {
+				stats.add(s.stats.get(rank));
+			}
+		}
+		return stats;
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             if the FEN can not be parsed
+	 */
+	public PositionStats getStats(String fen) {
+		return getStats(getKey(fen));
+	}
+
+	/**
+	 * @return true if the {@link PositionFingerprints} of the positions are
+	 *         available in all the segments
+	 */
+	public boolean hasFingerprints() {
+		Segment[] current = segments;
+		for (Segment s : current) {
+			if (s.fingerprints == null) {
+				return false;
+			}
+		}
+		return current.length > 0;
+	}
+
+	/**
+	 * @return true if the {@link PositionStats} of the positions are available
+	 *         in all the segments
+	 */
+	public boolean hasStats() {
+		return hasStats(segments);
+	}
+
+	private boolean hasStats(Segment[] current) {
+		for (Segment s : current) {
+			if (s.stats == null) {
+				return false;
+			}
+		}
+		return current.length > 0;
+	}
+
+	public boolean isNativeKeys() {
+		return nativeKeys;
+	}
+
+	/**
+	 * Reloads the manifest of a segmented index, opening the new segments and
+	 * closing the ones that have been merged. The segments still listed are
+	 * reused, and the lookups in progress go on with the previous ones. The
+	 * cache is cleared if anything has changed.
+	 *
+	 * @return true if the segments have changed
+	 */
+	public synchronized boolean refresh() throws IOException {
+		if (!IndexManifest.isManifest(file)) {
+			return false;
+		}
+		IndexManifest manifest = IndexManifest.load(file);
+		List<Segment> previous = Arrays.asList(segments);
+		Map<File, Segment> opened = new HashMap<>();
+		for (Segment s : previous) {
+			opened.put(s.reader.getFile().getAbsoluteFile(), s);
+		}
+
+		boolean changed = previous.size() != manifest.getNbSegments();
+		Segment[] next = new Segment[manifest.getNbSegments()];
+		try {
+			for (int s = 0; s < next.length; s++) {
+				Segment segment = opened.get(manifest.getSegment(s).getAbsoluteFile());
+				if ((segment == null) || (segment.firstGame != manifest.getFirstGame(s))) {
+					segment = new Segment(new IndexFileReader(manifest.getSegment(s)), manifest.getFirstGame(s));
+					changed = true;
+				}
+				next[s] = segment;
+			}
+		} catch (IOException e) {
+			for (Segment s : next) {
+				if ((s != null) && !previous.contains(s)) {
+					s.close();
+				}
+			}
+			throw e;
+		}
+		if (!changed) {
+			return false;
+		}
+
+		nativeKeys = manifest.isNativeKeys();
+		keyPolicy = manifest.getKeyPolicy();
+		segments = next;
+		if (cache != null) {
+			// after the swap : the lookups that read the previous segments can not fill the cache any more
+			cache.clear();
+		}
+		List<Segment> kept = Arrays.asList(next);
+		for (Segment s : previous) {
+			if (!kept.contains(s)) {
+				// closing the channel does not unmap the regions the lookups in progress may still read
+				s.close();
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Puts a cache in front of the index, to be set before the lookups start.
+	 */
+	public void setCache(PositionCache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * Checks the fingerprint of a position in the segments holding its key,
+	 * and counts the lookup as verified, mismatched or ambiguous.
+	 *
+	 * @return true if no segment holds the key for another position
+	 */
+	private boolean verify(Segment[] current, long key, int fingerprint) {
+		boolean found = false;
+		boolean mismatched = false;
+		boolean ambiguous = false;
+		for (Segment s : current) {
+			if (s.fingerprints == null) {
+				continue;
+			}
+			long rank = s.reader.find(key);
+			if (rank >= 0) {
+				found = true;
+				int stored = s.fingerprints.get(rank);
+				if (stored == PositionFingerprints.AMBIGUOUS) {
+					ambiguous = true;
+				} else if (stored != fingerprint) {
+					mismatched = true;
+				}
+			}
+		}
+		if (mismatched) {
+			nbMismatched.increment();
+		} else if (ambiguous) {
+			nbAmbiguous.increment();
+		} else if (found) {
+			nbVerified.increment();
+		}
+		return !mismatched;
+	}
+}
@@ -0,0 +1,306 @@
+package name.herve.chess.pgnindexer;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Answers position lookups over HTTP, from a pool of threads sharing a
+ * {@link PositionIndex}. The responses are JSON :
+ *
+ * <pre>
+ * GET  /count?fen=...         {"key":...,"count":...}
+ * GET  /count?key=...
+ * GET  /games?fen=...[&amp;ids=true]  {"key":...,"count":...,"games":[...],"ids":[...]}
+ * GET  /pgn?game=...          the PGN text of a game, read from its source file
+ * GET  /pgn?fen=...[&amp;limit=...]  the PGN text of the first games holding the position, 100 by default
+ * POST /batch                 one FEN per line, answered by one {"fen":...,"key":...,"count":...} line each
+ * GET  /explore?fen=...       {"key":...,"stats":{...}}, see {@link PositionStats#toJson()}
+ * GET  /explore?key=...
+ * GET  /stats                 {"positions":...,"games":...,"cache":{...},"fingerprints":{...}}
+ * </pre>
+ *
+ * The lookups by FEN are verified by the fingerprints of the positions when
+ * the index has them, see {@link PositionIndex#count(long, int)}.
+ *
+ * The PGN texts are only available for the games whose byte range has been
+ * recorded, see {@link PositionIndex#getPgn(int)}, the other ones are skipped.
+ */
+public class PositionServer implements Closeable {
+	private interface Handler {
+		void handle(HttpExchange exchange, Map<String, String> params) throws IOException;
+	}
+
+	private final static int BACKLOG = 1024;
+	private final static int DEFAULT_PGN_LIMIT = 100;
+
+	private static void appendString(StringBuilder sb, String s) {
+		sb.append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if ((c == '"') || (c == '\\')) {
+				sb.append('\\').append(c);
+			} else if (c < 0x20) {
+				sb.append(String.format("\\u%04x", (int) c));
+			} else {
+				sb.append(c);
+			}
+		}
+		sb.append('"');
+	}
+
+	private static Map<String, String> parseQuery(String query) {
+		Map<String, String> params = new HashMap<>();
+		if (query == null) {
+			return params;
+		}
+		for (String param : query.split("&")) {
+			int eq = param.indexOf('=');
+			if (eq > 0) {
+				params.put(URLDecoder.decode(param.substring(0, eq), StandardCharsets.UTF_8), URLDecoder.decode(param.substring(eq + 1), StandardCharsets.UTF_8));
+			}
+		}
+		return params;
+	}
+
+	private static void send(HttpExchange exchange, int status, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+
+	private PositionIndex index;
+	private HttpServer server;
+	private GentleThreadPoolExecutor executor;
+	private CountDownLatch stopped;
+
+	public PositionServer(PositionIndex index, int port, int nbThreads) throws IOException {
+		super();
+		this.index = index;
+		server = HttpServer.create(new InetSocketAddress(port), BACKLOG);
+		executor = GentleThreadPoolExecutor.newGentleThreadPoolExecutor("http", nbThreads, nbThreads * 4);
+		stopped = new CountDownLatch(1);
+
+		server.setExecutor(executor);
+		server.createContext("/count", wrap(this::count));
+		server.createContext("/games", wrap(this::games));
+		server.createContext("/pgn", wrap(this::pgn));
+		server.createContext("/batch", wrap(this::batch));
+		server.createContext("/explore", wrap(this::explore));
+		server.createContext("/stats", wrap(this::stats));
+	}
+
+	private void batch(HttpExchange exchange, Map<String, String> params) throws IOException {
+		if (!"POST".equals(exchange.getRequestMethod())) {
+			send(exchange, 405, "{\"error\":\"POST one FEN per line\"}");
+			return;
+		}
+		// streamed, so that a large batch is not held in memory
+		exchange.getResponseHeaders().set("Content-Type", "application/x-ndjson; charset=utf-8");
+		exchange.sendResponseHeaders(200, 0);
+		BufferedReader in = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8));
+		try (Writer out = new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8))) {
+			StringBuilder sb = new StringBuilder();
+			String fen;
+			while ((fen = in.readLine()) != null) {
+				fen = fen.strip();
+				if (fen.isEmpty()) {
+					continue;
+				}
+				sb.setLength(0);
+				sb.append("{\"fen\":");
+				appendString(sb, fen);
+				try {
+					long key = index.getKey(fen);
+					sb.append(",\"key\":").append(key).append(",\"count\":").append(lookupCount(key, fen));
+				} catch (IllegalArgumentException e) {
+					sb.append(",\"error\":");
+					appendString(sb, e.getMessage());
+				}
+				out.append(sb).append("}\n");
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+		executor.shutdownNow();
+		stopped.countDown();
+	}
+
+	private void count(HttpExchange exchange, Map<String, String> params) throws IOException {
+		long key = getKey(params);
+		send(exchange, 200, "{\"key\":" + key + ",\"count\":" + lookupCount(key, params.containsKey("key") ? null : params.get("fen")) + "}");
+	}
+
+	private void explore(HttpExchange exchange, Map<String, String> params) throws IOException {
+		if (!index.hasStats()) {
+			send(exchange, 404, "{\"error\":\"The index has no statistics\"}");
+			return;
+		}
+		long key = getKey(params);
+		send(exchange, 200, "{\"key\":" + key + ",\"stats\":" + index.getStats(key).toJson() + "}");
+	}
+
+	private void games(HttpExchange exchange, Map<String, String> params) throws IOException {
+		long key = getKey(params);
+		int[] games = lookupGames(key, params.containsKey("key") ? null : params.get("fen"));
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"key\":").append(key).append(",\"count\":").append(games.length).append(",\"games\":[");
+		for (int g = 0; g < games.length; g++) {
+			sb.append(g > 0 ? "," : "").append(games[g]);
+		}
+		sb.append("]");
+		if (Boolean.parseBoolean(params.get("ids"))) {
+			sb.append(",\"ids\":[");
+			for (int g = 0; g < games.length; g++) {
+				sb.append(g > 0 ? "," : "");
+				String id = index.getGameId(games[g]);
+				if (id == null) {
+					sb.append("null");
+				} else {
+					appendString(sb, id);
+				}
+			}
+			sb.append("]");
+		}
+		sb.append("}");
+		send(exchange, 200, sb.toString());
+	}
+
+	private long getKey(Map<String, String> params) {
+		if (params.containsKey("key")) {
+			try {
+				return Long.parseLong(params.get("key"));
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid key " + params.get("key"));
+			}
+		}
+		if (params.containsKey("fen")) {
+			return index.getKey(params.get("fen"));
+		}
+		throw new IllegalArgumentException("A fen or a key parameter is expected");
+	}
+
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * Waits until the server is closed.
+	 */
+	public void join() throws InterruptedException {
+		stopped.await();
+	}
+
+	/**
+	 * @param fen
+	 *            the FEN of the key to verify it by its fingerprint, or null
+	 */
+	private int lookupCount(long key, String fen) {
+		return (fen != null) && index.hasFingerprints() ? index.count(key, index.getFingerprint(fen)) : index.count(key);
+	}
+
+	/**
+	 * @param fen
+	 *            the FEN of the key to verify it by its fingerprint, or null
+	 */
+	private int[] lookupGames(long key, String fen) {
+		return (fen != null) && index.hasFingerprints() ? index.getGames(key, index.getFingerprint(fen)) : index.getGames(key);
+	}
+
+	private void pgn(HttpExchange exchange, Map<String, String> params) throws IOException {
+		int[] games;
+		int limit;
+		if (params.containsKey("game")) {
+			try {
+				games = new int[] { Integer.parseInt(params.get("game")) };
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid game " + params.get("game"));
+			}
+			limit = 1;
+		} else {
+			long key = getKey(params);
+			games = lookupGames(key, params.containsKey("key") ? null : params.get("fen"));
+			try {
+				limit = params.containsKey("limit") ? Integer.parseInt(params.get("limit")) : DEFAULT_PGN_LIMIT;
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid limit " + params.get("limit"));
+			}
+		}
+
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		// the games whose PGN is not available do not count in the limit
+		int nb = 0;
+		for (int g = 0; (g < games.length) && (nb < limit); g++) {
+			byte[] pgn = index.getPgn(games[g]);
+			if (pgn != null) {
+				body.write(pgn);
+				body.write('\n');
+				body.write('\n');
+				nb++;
+			}
+		}
+		if (params.containsKey("game") && (body.size() == 0)) {
+			send(exchange, 404, "{\"error\":\"The PGN of game " + games[0] + " is not available\"}");
+			return;
+		}
+		exchange.getResponseHeaders().set("Content-Type", "application/x-chess-pgn");
+		exchange.sendResponseHeaders(200, body.size());
+		try (OutputStream out = exchange.getResponseBody()) {
+			body.writeTo(out);
+		}
+	}
+
+	private void stats(HttpExchange exchange, Map<String, String> params) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"positions\":").append(index.getNbPositions());
+		sb.append(",\"games\":").append(index.getNbGames());
+		if (index.getCache() != null) {
+			sb.append(",\"cache\":").append(index.getCache().toJson());
+		}
+		if (index.hasFingerprints()) {
+			sb.append(",\"fingerprints\":").append(index.fingerprintsToJson());
+		}
+		sb.append("}");
+		send(exchange, 200, sb.toString());
+	}
+
+	public void start() {
+		server.start();
+	}
+
+	private HttpHandler wrap(Handler handler) {
+		return exchange -> {
+			try {
+				handler.handle(exchange, parseQuery(exchange.getRequestURI().getRawQuery()));
+			} catch (IllegalArgumentException e) {
+				StringBuilder sb = new StringBuilder("{\"error\":");
+				appendString(sb, String.valueOf(e.getMessage()));
+				send(exchange, 400, sb.append("}").toString());
+			} finally {
+				exchange.close();
+			}
+		};
+	}
+}
@@ -0,0 +1,283 @@
+package name.herve.chess.pgnindexer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The aggregates of the games holding a position, as an opening explorer shows
+ * them : the results, the ratings, the years and the most played
+ * continuations. They are computed when the index is built and stored in a
+ * side file of fixed-width records, one per position in the order of the
+ * index, so that reading them is a single access :
+ *
+ * <pre>
+ * header   magic, version, record size, number of moves per record (4 ints), number of positions (long)
+ * records  games, white wins, draws, black wins (4 ints)
+ *          white and black rating sums (2 longs), white and black rated games (2 ints)
+ *          first and last year (2 shorts)
+ *          TOP_MOVES times a move and its number of games (short, int), most played first
+ * </pre>
+ *
+ * A continuation is the move played next in a game holding the position, the
+ * last position of a game has none. The moves are packed by
+ * {@link CompactBoard#encodeMove(int, int, int)}.
+ */
+public class PositionStats {
+	public final static int MAGIC = 0x50474E53;
+	public final static int VERSION = 1;
+	public final static int HEADER_NB_BYTES = 24;
+	public final static int TOP_MOVES = 4;
+	public final static int RECORD_NB_BYTES = (6 * PersistenceToolbox.INT_NB_BYTES) + (2 * PersistenceToolbox.LONG_NB_BYTES)
+			+ (2 * PersistenceToolbox.SHORT_NB_BYTES) + (TOP_MOVES * (PersistenceToolbox.SHORT_NB_BYTES + PersistenceToolbox.INT_NB_BYTES));
+
+	/**
+	 * @return the statistics file of an index
+	 */
+	public static File getFile(File idxFile) {
+		return new File(idxFile.getPath() + ".stats");
+	}
+
+	/**
+	 * Reads a record, see {@link #write(PersistenceWriter)}.
+	 */
+	public static PositionStats read(ByteBuffer record) {
+		PositionStats s = new PositionStats();
+		s.nbGames = record.getInt();
+		s.nbWhiteWins = record.getInt();
+		s.nbDraws = record.getInt();
+		s.nbBlackWins = record.getInt();
+		s.whiteEloSum = record.getLong();
+		s.blackEloSum = record.getLong();
+		s.nbWhiteRated = record.getInt();
+		s.nbBlackRated = record.getInt();
+		s.firstYear = record.getShort();
+		s.lastYear = record.getShort();
+		for (int m = 0; m < TOP_MOVES; m++) {
+			s.moves[m] = record.getShort();
+			s.moveCounts[m] = record.getInt();
+		}
+		return s;
+	}
+
+	private int nbGames;
+	private int nbWhiteWins;
+	private int nbDraws;
+	private int nbBlackWins;
+	private long whiteEloSum;
+	private long blackEloSum;
+	private int nbWhiteRated;
+	private int nbBlackRated;
+	private int firstYear;
+	private int lastYear;
+	private int[] moves;
+	private int[] moveCounts;
+
+	public PositionStats() {
+		super();
+		moves = new int[TOP_MOVES];
+		moveCounts = new int[TOP_MOVES];
+		clear();
+	}
+
+	/**
+	 * Adds the games of other statistics of the position, such as those of
+	 * another segment of the index. The continuations are merged from the
+	 * {@link #TOP_MOVES} most played of each side, so a move that is not among
+	 * them on one side may be undercounted.
+	 */
+	public void add(PositionStats other) {
+		nbGames += other.nbGames;
+		nbWhiteWins += other.nbWhiteWins;
+		nbDraws += other.nbDraws;
+		nbBlackWins += other.nbBlackWins;
+		whiteEloSum += other.whiteEloSum;
+		blackEloSum += other.blackEloSum;
+		nbWhiteRated += other.nbWhiteRated;
+		nbBlackRated += other.nbBlackRated;
+		if (other.firstYear > 0) {
+			firstYear = firstYear == 0 ? other.firstYear : Math.min(firstYear, other.firstYear);
+		}
+		lastYear = Math.max(lastYear, other.lastYear);
+
+		int[] mergedMoves = new int[2 * TOP_MOVES];
+		int[] mergedCounts = new int[2 * TOP_MOVES];
+		int nb = 0;
+		for (PositionStats s : new PositionStats[] { this, other }) {
+			for (int m = 0; (m < TOP_MOVES) && (s.moves[m] != 0); m++) {
+				int i = 0;
+				while ((i < nb) && (mergedMoves[i] != s.moves[m])) {
+					i++;
+				}
+				if (i == nb) {
+					mergedMoves[nb++] = s.moves[m];
+				}
+				mergedCounts[i] += s.moveCounts[m];
+			}
+		}
+		for (int m = 0; m < TOP_MOVES; m++) {
+			moves[m] = 0;
+			moveCounts[m] = 0;
+		}
+		for (int i = 0; i < nb; i++) {
+			offerMove(mergedMoves[i], mergedCounts[i]);
+		}
+	}
+
+	/**
+	 * Accounts for one more game holding the position.
+	 */
+	public void addGame(int result, int whiteElo, int blackElo, int year) {
+		nbGames++;
+		if (result == GameSummary.WHITE_WINS) {
+			nbWhiteWins++;
+		} else if (result == GameSummary.DRAW) {
+			nbDraws++;
+		} else if (result == GameSummary.BLACK_WINS) {
+			nbBlackWins++;
+		}
+		if (whiteElo > 0) {
+			whiteEloSum += whiteElo;
+			nbWhiteRated++;
+		}
+		if (blackElo > 0) {
+			blackEloSum += blackElo;
+			nbBlackRated++;
+		}
+		if (year > 0) {
+			firstYear = firstYear == 0 ? year : Math.min(firstYear, year);
+			lastYear = Math.max(lastYear, year);
+		}
+	}
+
+	public void clear() {
+		nbGames = 0;
+		nbWhiteWins = 0;
+		nbDraws = 0;
+		nbBlackWins = 0;
+		whiteEloSum = 0;
+		blackEloSum = 0;
+		nbWhiteRated = 0;
+		nbBlackRated = 0;
+		firstYear = 0;
+		lastYear = 0;
+		for (int m = 0; m < TOP_MOVES; m++) {
+			moves[m] = 0;
+			moveCounts[m] = 0;
+		}
+	}
+
+	/**
+	 * @return the average rating of the black players, or 0 if none is rated
+	 */
+	public int getBlackElo() {
+		return nbBlackRated == 0 ? 0 : (int) Math.round((double) blackEloSum / nbBlackRated);
+	}
+
+	/**
+	 * @return the first year of the games, or 0 if none is dated
+	 */
+	public int getFirstYear() {
+		return firstYear;
+	}
+
+	public int getLastYear() {
+		return lastYear;
+	}
+
+	/**
+	 * @param rank
+	 *            from 0, the most played continuation, to {@link #TOP_MOVES} - 1
+	 * @return the move, or 0 if the position has less continuations
+	 */
+	public int getMove(int rank) {
+		return moves[rank];
+	}
+
+	public int getMoveCount(int rank) {
+		return moveCounts[rank];
+	}
+
+	public int getNbBlackWins() {
+		return nbBlackWins;
+	}
+
+	public int getNbDraws() {
+		return nbDraws;
+	}
+
+	public int getNbGames() {
+		return nbGames;
+	}
+
+	public int getNbWhiteWins() {
+		return nbWhiteWins;
+	}
+
+	/**
+	 * @return the average rating of the white players, or 0 if none is rated
+	 */
+	public int getWhiteElo() {
+		return nbWhiteRated == 0 ? 0 : (int) Math.round((double) whiteEloSum / nbWhiteRated);
+	}
+
+	/**
+	 * Offers a continuation, kept if it is among the {@link #TOP_MOVES} most
+	 * played ones offered so far.
+	 */
+	public void offerMove(int move, int count) {
+		if ((move == 0) || (count <= moveCounts[TOP_MOVES - 1])) {
+			return;
+		}
+		int m = TOP_MOVES - 1;
+		while ((m > 0) && (moveCounts[m - 1] < count)) {
+			moves[m] = moves[m - 1];
+			moveCounts[m] = moveCounts[m - 1];
+			m--;
+		}
+		moves[m] = move;
+		moveCounts[m] = count;
+	}
+
+	/**
+	 * @return {"games":...,"white":...,"draws":...,"black":...,"whiteElo":...,"blackElo":...,"firstYear":...,"lastYear":...,"moves":[{"uci":...,"games":...},...]}
+	 */
+	public String toJson() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"games\":").append(nbGames);
+		sb.append(",\"white\":").append(nbWhiteWins);
+		sb.append(",\"draws\":").append(nbDraws);
+		sb.append(",\"black\":").append(nbBlackWins);
+		sb.append(",\"whiteElo\":").append(getWhiteElo());
+		sb.append(",\"blackElo\":").append(getBlackElo());
+		sb.append(",\"firstYear\":").append(firstYear);
+		sb.append(",\"lastYear\":").append(lastYear);
+		sb.append(",\"moves\":[");
+		for (int m = 0; (m < TOP_MOVES) && (moves[m] != 0); m++) {
+			sb.append(m > 0 ? "," : "");
+			sb.append("{\"uci\":\"").append(CompactBoard.moveToUci(moves[m])).append("\",\"games\":").append(moveCounts[m]).append("}");
+		}
+		sb.append("]}");
+		return sb.toString();
+	}
+
+	/**
+	 * Writes the record of the position, {@link #RECORD_NB_BYTES} long.
+	 */
+	public void write(PersistenceWriter out) throws IOException {
+		out.dumpInt(nbGames);
+		out.dumpInt(nbWhiteWins);
+		out.dumpInt(nbDraws);
+		out.dumpInt(nbBlackWins);
+		out.dumpLong(whiteEloSum);
+		out.dumpLong(blackEloSum);
+		out.dumpInt(nbWhiteRated);
+		out.dumpInt(nbBlackRated);
+		out.dumpShort(firstYear);
+		out.dumpShort(lastYear);
+		for (int m = 0; m < TOP_MOVES; m++) {
+			out.dumpShort(moves[m]);
+			out.dumpInt(moveCounts[m]);
+		}
+	}
+}
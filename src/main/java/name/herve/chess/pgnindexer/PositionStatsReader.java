@@ -0,0 +1,65 @@
+package name.herve.chess.pgnindexer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads the {@link PositionStats} of an index by rank, from a memory mapped
+ * file. All the methods can be called from any number of threads.
+ */
+public class PositionStatsReader implements Closeable {
+	private File file;
+	private FileChannel channel;
+	private long nbPositions;
+	private MappedRegion records;
+
+	public PositionStatsReader(File file) throws IOException {
+		super();
+		this.file = file;
+		channel = PersistenceToolbox.getFile(file, false).getChannel();
+
+		ByteBuffer header = ByteBuffer.allocate(PositionStats.HEADER_NB_BYTES);
+		channel.read(header, 0);
+		header.flip();
+		if ((header.remaining() < PositionStats.HEADER_NB_BYTES) || (header.getInt() != PositionStats.MAGIC)) {
+			channel.close();
+			throw new IOException(file + " is not a position statistics file");
+		}
+		int version = header.getInt();
+		int recordSize = header.getInt();
+		int topMoves = header.getInt();
+		if ((version != PositionStats.VERSION) || (recordSize != PositionStats.RECORD_NB_BYTES) || (topMoves != PositionStats.TOP_MOVES)) {
+			channel.close();
+			throw new IOException(file + " has an unsupported version " + version + ", it should be rebuilt");
+		}
+		nbPositions = header.getLong();
+		records = new MappedRegion(channel, PositionStats.HEADER_NB_BYTES, nbPositions * PositionStats.RECORD_NB_BYTES);
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * @param rank
+	 *            the rank of the position in the index, see
+	 *            {@link IndexFileReader#find(long)}
+	 */
+	public PositionStats get(long rank) {
+		byte[] record = new byte[PositionStats.RECORD_NB_BYTES];
+		records.get(rank * PositionStats.RECORD_NB_BYTES, record, 0, record.length);
+		return PositionStats.read(ByteBuffer.wrap(record));
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public long getNbPositions() {
+		return nbPositions;
+	}
+}
@@ -0,0 +1,129 @@
+package name.herve.chess.pgnindexer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Streams the {@link PositionStats} of an index to disk, as it is being built.
+ * The positions must be added in the order of the index, each of them with its
+ * games and the moves played next in these games, at once or game after game
+ * between {@link #startPosition()} and {@link #endPosition()}.
+ */
+public class PositionStatsWriter implements Closeable {
+	private final static int NB_MOVE_CODES = 1 << 15;
+
+	private File file;
+	private PersistenceWriter out;
+	private GameSummaryTable summaries;
+	private PositionStats stats;
+	private int[] moveCounts;
+	private IntArrayBuffer playedMoves;
+	private long nbPositions;
+
+	/**
+	 * @param summaries
+	 *            the summaries of all the games, complete before the first
+	 *            position is added, or null if only computed statistics are
+	 *            added
+	 */
+	public PositionStatsWriter(File file, GameSummaryTable summaries, int bufferSize) throws IOException {
+		super();
+		this.file = file;
+		this.summaries = summaries;
+		FileChannel channel = PersistenceToolbox.getFile(file, true).getChannel();
+		channel.position(PositionStats.HEADER_NB_BYTES);
+		out = new PersistenceWriter(channel, bufferSize);
+		stats = new PositionStats();
+		moveCounts = summaries == null ? null : new int[NB_MOVE_CODES];
+		playedMoves = new IntArrayBuffer();
+		nbPositions = 0;
+	}
+
+	/**
+	 * Adds a game of the position started by {@link #startPosition()}.
+	 *
+	 * @param move
+	 *            the move played next in the game, 0 if the position ends the
+	 *            game
+	 */
+	public void addGame(int game, int move) {
+		stats.addGame(summaries.getResult(game), summaries.getWhiteElo(game), summaries.getBlackElo(game), summaries.getYear(game));
+		if (move != 0) {
+			if (moveCounts[move] == 0) {
+				playedMoves.add(move);
+			}
+			moveCounts[move]++;
+		}
+	}
+
+	/**
+	 * @param moves
+	 *            the move played next in each of the games, 0 if the position
+	 *            ends the game
+	 */
+	public void addPosition(int[] games, int[] moves, int nb) throws IOException {
+		startPosition();
+		for (int i = 0; i < nb; i++) {
+			addGame(games[i], moves[i]);
+		}
+		endPosition();
+	}
+
+	/**
+	 * Adds the already computed statistics of the next position.
+	 */
+	public void addStats(PositionStats positionStats) throws IOException {
+		positionStats.write(out);
+		nbPositions++;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			out.flush();
+			ByteBuffer header = ByteBuffer.allocate(PositionStats.HEADER_NB_BYTES);
+			header.putInt(PositionStats.MAGIC);
+			header.putInt(PositionStats.VERSION);
+			header.putInt(PositionStats.RECORD_NB_BYTES);
+			header.putInt(PositionStats.TOP_MOVES);
+			header.putLong(nbPositions);
+			header.flip();
+			out.getChannel().write(header, 0);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Writes the statistics of the position started by {@link #startPosition()}.
+	 */
+	public void endPosition() throws IOException {
+		for (int m = 0; m < playedMoves.size(); m++) {
+			int move = playedMoves.get(m);
+			stats.offerMove(move, moveCounts[move]);
+			moveCounts[move] = 0;
+		}
+		stats.write(out);
+		nbPositions++;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public long getNbPositions() {
+		return nbPositions;
+	}
+
+	/**
+	 * Starts the next position, whose games are then given one by one to
+	 * {@link #addGame(int, int)}.
+	 */
+	public void startPosition() {
+		stats.clear();
+		playedMoves.clear();
+	}
+}
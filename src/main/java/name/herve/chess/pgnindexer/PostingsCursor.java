@@ -0,0 +1,165 @@
+package name.herve.chess.pgnindexer;
+
+/**
+ * Iterates over a posting list of a memory mapped index, compressed by
+ * {@link PostingsEncoder} or stored as raw ints. {@link #advance(int)} uses the
+ * skip table of the compressed lists to jump over the blocks that can not hold
+ * the target, so intersecting a short list with a huge one only decodes a few
+ * blocks of the latter.
+ */
+public class PostingsCursor {
+	private MappedRegion region;
+	private boolean compressed;
+	private long start;
+	private int nb;
+	private int read;
+	private int current;
+
+	private boolean hasSkips;
+	private long skipPos;
+	private long dataPos;
+	private int blockRemaining;
+	private int blockLast;
+	private long blockEnd;
+	private long varintPos;
+
+	public PostingsCursor(MappedRegion region, long offset, long length, boolean compressed) {
+		super();
+		this.region = region;
+		this.compressed = compressed;
+		start = offset;
+		read = 0;
+		current = 0;
+
+		if (compressed) {
+			varintPos = offset;
+			nb = readVarint();
+			hasSkips = nb > PostingsEncoder.BLOCK_SIZE;
+			if (hasSkips) {
+				int skipBytes = readVarint();
+				skipPos = varintPos;
+				dataPos = skipPos + skipBytes;
+			} else {
+				dataPos = varintPos;
+			}
+			blockRemaining = 0;
+			blockLast = 0;
+		} else {
+			nb = (int) (length / PersistenceToolbox.INT_NB_BYTES);
+		}
+	}
+
+	/**
+	 * Moves to the first game id greater than or equal to the target.
+	 *
+	 * @return that game id, or -1 if there is none
+	 */
+	public int advance(int target) {
+		if ((read > 0) && (current >= target)) {
+			return current;
+		}
+
+		if (!compressed) {
+			int lo = read;
+			int hi = nb;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (rawAt(mid) < target) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			read = lo;
+			return next();
+		}
+
+		if (hasSkips) {
+			if ((blockRemaining > 0) && (blockLast < target)) {
+				dataPos = blockEnd;
+				read += blockRemaining;
+				current = blockLast;
+				blockRemaining = 0;
+			}
+			while ((blockRemaining == 0) && (read < nb)) {
+				varintPos = skipPos;
+				int last = blockLast + readVarint();
+				int length = readVarint();
+				if (last >= target) {
+					break;
+				}
+				skipPos = varintPos;
+				dataPos += length;
+				read += Math.min(PostingsEncoder.BLOCK_SIZE, nb - read);
+				current = last;
+				blockLast = last;
+			}
+		}
+
+		int v;
+		do {
+			v = next();
+		} while ((v >= 0) && (v < target));
+		return v;
+	}
+
+	public int getNbGames() {
+		return nb;
+	}
+
+	/**
+	 * @return the next game id, or -1 at the end of the list
+	 */
+	public int next() {
+		if (read >= nb) {
+			return -1;
+		}
+
+		if (!compressed) {
+			current = rawAt(read++);
+			return current;
+		}
+
+		if (blockRemaining == 0) {
+			blockRemaining = Math.min(PostingsEncoder.BLOCK_SIZE, nb - read);
+			if (hasSkips) {
+				varintPos = skipPos;
+				blockLast += readVarint();
+				int length = readVarint();
+				skipPos = varintPos;
+				blockEnd = dataPos + length;
+			}
+		}
+
+		varintPos = dataPos;
+		current += readVarint();
+		dataPos = varintPos;
+		blockRemaining--;
+		read++;
+		return current;
+	}
+
+	private int rawAt(int i) {
+		return region.getInt(start + ((long) i * PersistenceToolbox.INT_NB_BYTES));
+	}
+
+	private int readVarint() {
+		int v = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = region.get(varintPos++);
+			v |= (b & 0x7F) << shift;
+			shift += 7;
+		} while (b < 0);
+		return v;
+	}
+
+	public int[] toArray() {
+		int[] res = new int[nb - read];
+		for (int i = 0; i < res.length; i++) {
+			res[i] = next();
+		}
+		return res;
+	}
+}
@@ -0,0 +1,165 @@
+package name.herve.chess.pgnindexer;
+
+import java.util.Arrays;
+
+/**
+ * Compresses a sorted posting list of game ids. The ids are stored as varint
+ * encoded gaps, grouped in blocks of {@link #BLOCK_SIZE} values. Lists longer
+ * than one block start with a skip table giving the last id and the encoded
+ * length of each block, so that a {@link PostingsCursor} can jump over whole
+ * blocks without decoding them.
+ *
+ * <pre>
+ * count          : varint
+ * skipTableBytes : varint, only if count &gt; BLOCK_SIZE
+ * skipTable      : nbBlocks x (varint gap between the last ids of two blocks, varint block length in bytes)
+ * blocks         : varint gaps between consecutive ids, the first one relative to the last id of the previous block
+ * </pre>
+ *
+ * A list is either encoded at once, or id after id, its blocks being drained
+ * by the caller as they grow. An encoder reuses its buffers from one list to
+ * the next and is not thread safe.
+ */
+public class PostingsEncoder {
+	public final static int BLOCK_SIZE = 128;
+
+	public static int putVarint(byte[] dst, int pos, int v) {
+		while ((v & ~0x7F) != 0) {
+			dst[pos++] = (byte) ((v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		dst[pos++] = (byte) v;
+		return pos;
+	}
+
+	private byte[] bytes;
+	private byte[] blocks;
+	private byte[] skips;
+	private int length;
+	private int nb;
+	private int prev;
+	private int prevBlockLast;
+	private int blocksLength;
+	private int blockBytes;
+	private int skipsLength;
+
+	public PostingsEncoder() {
+		super();
+		bytes = new byte[1024];
+		blocks = new byte[1024];
+		skips = new byte[256];
+		length = 0;
+		start();
+	}
+
+	/**
+	 * Adds the next id of the list started by {@link #start()}.
+	 */
+	public void add(int value) {
+		int gap = value - prev;
+		if ((gap <= 0) && (nb > 0)) {
+			throw new IllegalArgumentException("Posting lists must be strictly increasing (" + value + " after " + prev + ")");
+		}
+		blocks = ensure(blocks, blocksLength + 5);
+		int end = putVarint(blocks, blocksLength, gap);
+		blockBytes += end - blocksLength;
+		blocksLength = end;
+		prev = value;
+		nb++;
+		if ((nb % BLOCK_SIZE) == 0) {
+			endBlock();
+		}
+	}
+
+	/**
+	 * Forgets the blocks encoded so far, once the caller has written them
+	 * somewhere else, so that a long list is not held in memory. The skip table
+	 * still accounts for them.
+	 */
+	public void drainBlocks() {
+		blocksLength = 0;
+	}
+
+	/**
+	 * @return the number of encoded bytes, available in {@link #getBytes()}
+	 */
+	public int encode(int[] values, int nb) {
+		start();
+		for (int i = 0; i < nb; i++) {
+			add(values[i]);
+		}
+		finish();
+		bytes = ensure(bytes, length + blocksLength);
+		System.arraycopy(blocks, 0, bytes, length, blocksLength);
+		length += blocksLength;
+		return length;
+	}
+
+	private void endBlock() {
+		skips = ensure(skips, skipsLength + 10);
+		skipsLength = putVarint(skips, skipsLength, prev - prevBlockLast);
+		skipsLength = putVarint(skips, skipsLength, blockBytes);
+		prevBlockLast = prev;
+		blockBytes = 0;
+	}
+
+	private byte[] ensure(byte[] b, int size) {
+		if (b.length < size) {
+			return Arrays.copyOf(b, Math.max(size, b.length * 2));
+		}
+		return b;
+	}
+
+	/**
+	 * Ends the list added since {@link #start()}. Its count and skip table are
+	 * then in {@link #getBytes()}, to be written before the blocks drained so
+	 * far and the ones left in {@link #getBlocks()}.
+	 *
+	 * @return the number of bytes of the count and the skip table
+	 */
+	public int finish() {
+		if ((nb % BLOCK_SIZE) != 0) {
+			endBlock();
+		}
+		bytes = ensure(bytes, skipsLength + 10);
+		length = putVarint(bytes, 0, nb);
+		if (nb > BLOCK_SIZE) {
+			length = putVarint(bytes, length, skipsLength);
+			System.arraycopy(skips, 0, bytes, length, skipsLength);
+			length += skipsLength;
+		}
+		return length;
+	}
+
+	/**
+	 * @return the blocks encoded and not drained yet
+	 */
+	public byte[] getBlocks() {
+		return blocks;
+	}
+
+	public int getBlocksLength() {
+		return blocksLength;
+	}
+
+	public byte[] getBytes() {
+		return bytes;
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * Starts a new list, whose ids are then given one by one to
+	 * {@link #add(int)}.
+	 */
+	public void start() {
+		nb = 0;
+		prev = 0;
+		prevBlockLast = 0;
+		blocksLength = 0;
+		blockBytes = 0;
+		skipsLength = 0;
+	}
+}
@@ -0,0 +1,108 @@
+package name.herve.chess.pgnindexer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads an input stream ahead on its own thread, so that decompressing a file
+ * and parsing it run in parallel. The blocks read ahead are handed over through
+ * a bounded queue, the reading thread waits when the consumer lags behind.
+ */
+public class ReadAheadInputStream extends InputStream {
+	private final static int BLOCK_SIZE = 1024 * 1024;
+	private final static int NB_BLOCKS = 16;
+	private final static byte[] EOF = new byte[0];
+
+	private InputStream in;
+	private BlockingQueue<byte[]> blocks;
+	private Thread reader;
+	private volatile IOException error;
+	private byte[] current;
+	private int pos;
+
+	public ReadAheadInputStream(InputStream in, String name) {
+		super();
+		this.in = in;
+		blocks = new ArrayBlockingQueue<>(NB_BLOCKS);
+		current = null;
+		pos = 0;
+		reader = new NamedThreadFactory("decode-" + name).newThread(this::readAhead);
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	@Override
+	public void close() throws IOException {
+		reader.interrupt();
+		blocks.clear();
+		try {
+			// the decoder fails if it is closed while the reader is in it
+			reader.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		in.close();
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if ((current == null) || (pos == current.length)) {
+			if (current == EOF) {
+				return -1;
+			}
+			try {
+				current = blocks.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException(e);
+			}
+			pos = 0;
+			if (current == EOF) {
+				if (error != null) {
+					throw error;
+				}
+				return -1;
+			}
+		}
+		int n = Math.min(len, current.length - pos);
+		System.arraycopy(current, pos, b, off, n);
+		pos += n;
+		return n;
+	}
+
+	private void readAhead() {
+		try {
+			while (true) {
+				byte[] block = new byte[BLOCK_SIZE];
+				int n = in.readNBytes(block, 0, BLOCK_SIZE);
+				if (n > 0) {
+					blocks.put(n == BLOCK_SIZE ? block : Arrays.copyOf(block, n));
+				}
+				if (n < BLOCK_SIZE) {
+					break;
+				}
+			}
+		} catch (IOException e) {
+			error = e;
+		} catch (InterruptedException e) {
+			return;
+		}
+		try {
+			blocks.put(EOF);
+		} catch (InterruptedException e) {
+			// closed
+		}
+	}
+}
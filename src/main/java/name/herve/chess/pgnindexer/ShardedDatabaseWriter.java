@@ -0,0 +1,113 @@
+package name.herve.chess.pgnindexer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes the database as one shard per writing thread, so the indexing threads
+ * never wait for each other. The manifest listing the shards is written in the
+ * database file itself on {@link #close()}, once all the threads are done,
+ * along with the offsets of the blocks of {@link DatabaseManifest#BLOCK_GAMES}
+ * games of each shard.
+ */
+public class ShardedDatabaseWriter implements Closeable {
+	private class Shard {
+		private File file;
+		private PersistenceWriter out;
+		private long position;
+		private int nbGames;
+		private LongArrayBuffer blockOffsets;
+	}
+
+	private File db;
+	private int bufferSize;
+	private List<Shard> shards;
+	private ThreadLocal<Shard> currentShard;
+	private boolean nativeKeys;
+	private CompactBoard.KeyPolicy keyPolicy;
+
+	public ShardedDatabaseWriter(File db, int bufferSize) throws IOException {
+		super();
+		this.db = db;
+		this.bufferSize = bufferSize;
+		shards = new ArrayList<>();
+		currentShard = new ThreadLocal<>();
+		nativeKeys = false;
+		keyPolicy = CompactBoard.KeyPolicy.FIDE;
+
+		PersistenceToolbox.getFile(db, true).close();
+		for (int s = 0; DatabaseManifest.getShardFile(db, s).exists(); s++) {
+			DatabaseManifest.getShardFile(db, s).delete();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		DatabaseManifest manifest = new DatabaseManifest();
+		manifest.setNativeKeys(nativeKeys);
+		manifest.setKeyPolicy(keyPolicy);
+		synchronized (shards) {
+			for (Shard shard : shards) {
+				shard.out.close();
+				manifest.add(shard.file, shard.nbGames, shard.blockOffsets.toArray());
+			}
+		}
+		manifest.save(db);
+	}
+
+	private Shard getShard() throws IOException {
+		Shard shard = currentShard.get();
+		if (shard == null) {
+			shard = new Shard();
+			shard.blockOffsets = new LongArrayBuffer();
+			synchronized (shards) {
+				shard.file = DatabaseManifest.getShardFile(db, shards.size());
+				shard.out = new PersistenceWriter(PersistenceToolbox.getFile(shard.file, true).getChannel(), bufferSize);
+				shards.add(shard);
+			}
+			currentShard.set(shard);
+		}
+		return shard;
+	}
+
+	/**
+	 * @see DatabaseManifest#getKeyPolicy()
+	 */
+	public void setKeyPolicy(CompactBoard.KeyPolicy keyPolicy) {
+		this.keyPolicy = keyPolicy;
+	}
+
+	/**
+	 * @see DatabaseManifest#isNativeKeys()
+	 */
+	public void setNativeKeys(boolean nativeKeys) {
+		this.nativeKeys = nativeKeys;
+	}
+
+	/**
+	 * Writes a game as {@link PersistenceWriter#dumpString(String)} and
+	 * {@link PersistenceWriter#dumpFullLongArray(long[], int)} would. The
+	 * offsets of the games are counted here rather than asked to the channel
+	 * for each of them.
+	 *
+	 * @return the number of bytes written
+	 */
+	public long write(String gameId, long[] positions, int nb) throws IOException {
+		Shard shard = getShard();
+		if ((shard.nbGames % DatabaseManifest.BLOCK_GAMES) == 0) {
+			shard.blockOffsets.add(shard.position);
+		}
+		byte[] id = gameId.getBytes(StandardCharsets.UTF_8);
+		shard.out.dumpInt(id.length);
+		shard.out.dumpBytes(id, 0, id.length);
+		shard.out.dumpFullLongArray(positions, nb);
+		long length = (2 * PersistenceToolbox.INT_NB_BYTES) + id.length + ((long) nb * PersistenceToolbox.LONG_NB_BYTES);
+		shard.position += length;
+		shard.nbGames++;
+		return length;
+	}
+}
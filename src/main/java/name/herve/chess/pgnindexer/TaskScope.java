@@ -0,0 +1,84 @@
+package name.herve.chess.pgnindexer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Waits for a set of tasks forked on an executor, without keeping a future per
+ * task : only the number of pending tasks and the failures are kept, so a
+ * scope can run any number of tasks. The tasks may fork other tasks in the
+ * same scope, {@link #join()} returns once they are all done.
+ */
+public class TaskScope {
+	private ExecutorService executor;
+	private AtomicLong nbPending;
+	private AtomicLong nbForked;
+	private List<Throwable> failures;
+
+	public TaskScope(ExecutorService executor) {
+		super();
+		this.executor = executor;
+		nbPending = new AtomicLong();
+		nbForked = new AtomicLong();
+		failures = new ArrayList<>();
+	}
+
+	private void done() {
+		if (nbPending.decrementAndGet() == 0) {
+			synchronized (this) {
+				notifyAll();
+			}
+		}
+	}
+
+	private synchronized void fail(Throwable e) {
+		failures.add(e);
+	}
+
+	public void fork(Callable<?> task) {
+		nbPending.incrementAndGet();
+		nbForked.incrementAndGet();
+		try {
+			executor.execute(() -> {
+				try {
+					task.call();
+				} catch (Throwable e) {
+					fail(e);
+				} finally {
+					done();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			fail(e);
+			done();
+		}
+	}
+
+	/**
+	 * @return the failures of the tasks done so far
+	 */
+	public synchronized List<Throwable> getFailures() {
+		return new ArrayList<>(failures);
+	}
+
+	public long getNbForked() {
+		return nbForked.get();
+	}
+
+	public long getNbPending() {
+		return nbPending.get();
+	}
+
+	/**
+	 * Waits until all the tasks forked in this scope are done.
+	 */
+	public synchronized void join() throws InterruptedException {
+		while (nbPending.get() > 0) {
+			wait();
+		}
+	}
+}
@@ -0,0 +1,50 @@
+package name.herve.chess.pgnindexer;
+
+/**
+ * The random keys hashed together by {@link CompactBoard}. They are generated
+ * from a fixed seed, so the keys of an index never change from one run to the
+ * next.
+ */
+public class ZobristKeys {
+	private final static long SEED = 0x5047_4E49_6E64_6578L;
+
+	/** [piece index][square], see {@link CompactBoard#pieceIndex(int)} */
+	public final static long[][] PIECE_SQUARE = new long[12][64];
+	public final static long BLACK_TO_MOVE;
+	/** indexed by the castling rights bit set */
+	public final static long[] CASTLING = new long[16];
+	/** indexed by file */
+	public final static long[] EN_PASSANT = new long[8];
+
+	static {
+		long[] state = { SEED };
+		for (int p = 0; p < 12; p++) {
+			for (int sq = 0; sq < 64; sq++) {
+				PIECE_SQUARE[p][sq] = next(state);
+			}
+		}
+		BLACK_TO_MOVE = next(state);
+		// each right gets a key, a set of rights is the xor of its members
+		long[] rights = { next(state), next(state), next(state), next(state) };
+		for (int c = 0; c < 16; c++) {
+			for (int r = 0; r < 4; r++) {
+				if ((c & (1 << r)) != 0) {
+					CASTLING[c] ^= rights[r];
+				}
+			}
+		}
+		for (int f = 0; f < 8; f++) {
+			EN_PASSANT[f] = next(state);
+		}
+	}
+
+	/**
+	 * SplitMix64 generator.
+	 */
+	private static long next(long[] state) {
+		long z = (state[0] += 0x9E3779B97F4A7C15L);
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+}
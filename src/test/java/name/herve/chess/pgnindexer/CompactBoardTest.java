@@ -0,0 +1,155 @@
+package name.herve.chess.pgnindexer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.jupiter.api.Test;
+
+import com.github.bhlangonijr.chesslib.Board;
+import com.github.bhlangonijr.chesslib.game.Game;
+import com.github.bhlangonijr.chesslib.move.Move;
+import com.github.bhlangonijr.chesslib.pgn.PgnIterator;
+
+/**
+ * The keys of {@link CompactBoard} against the positions played by chesslib,
+ * over sample games with castling on both sides, en passant captures by both
+ * colors, promotions and a game starting from a FEN, as
+ * {@link PGNIndexer} -v checks a whole file.
+ */
+public class CompactBoardTest {
+	private final static String SAMPLE = "sample.pgn";
+	private final static int SAMPLE_PLIES = 92;
+
+	private static CompactBoard play(String fen, String... sans) {
+		CompactBoard board = new CompactBoard();
+		board.loadFen(fen);
+		for (String san : sans) {
+			byte[] bytes = san.getBytes(StandardCharsets.US_ASCII);
+			assertTrue(board.doSan(bytes, 0, bytes.length), san);
+		}
+		return board;
+	}
+
+	@Test
+	public void castlingRights() {
+		CompactBoard moved = play(CompactBoard.START_FEN, "e4", "e5", "Ke2", "Ke7", "Ke1", "Ke8");
+		assertEquals("rnbqkbnr/pppp1ppp/8/4p3/4P3/8/PPPP1PPP/RNBQKBNR w - - 0 4", moved.getFen());
+		assertNotEquals(play(CompactBoard.START_FEN, "e4", "e5").getKey(), moved.getKey());
+		assertEquals(play("rnbqkbnr/pppp1ppp/8/4p3/4P3/8/PPPP1PPP/RNBQKBNR w - - 0 1").getKey(), moved.getKey());
+
+		CompactBoard castled = play("r3k2r/8/8/8/8/8/8/R3K2R w KQkq - 0 1", "O-O", "O-O-O");
+		assertEquals("2kr3r/8/8/8/8/8/8/R4RK1 w - - 0 2", castled.getFen());
+	}
+
+	@Test
+	public void enPassant() {
+		// no pawn can take : the square is left out of the key
+		CompactBoard board = play(CompactBoard.START_FEN, "e4");
+		assertEquals(play("rnbqkbnr/pppppppp/8/8/4P3/8/PPPP1PPP/RNBQKBNR b KQkq - 0 1").getKey(), board.getKey());
+
+		board = play(CompactBoard.START_FEN, "e4", "Nf6", "e5", "d5");
+		assertNotEquals(play("rnbqkb1r/ppp1pppp/5n2/3pP3/8/8/PPPP1PPP/RNBQKBNR w KQkq - 0 3").getKey(), board.getKey());
+		assertTrue(board.doSan("exd6".getBytes(StandardCharsets.US_ASCII), 0, 4));
+		assertEquals("rnbqkb1r/ppp1pppp/3P1n2/8/8/8/PPPP1PPP/RNBQKBNR b KQkq - 0 3", board.getFen());
+	}
+
+	@Test
+	public void fenRoundTrip() throws Exception {
+		ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(getSample().toPath()));
+		PgnScanner scanner = new PgnScanner();
+		scanner.reset(buf, 0, buf.limit());
+		CompactBoard board = new CompactBoard();
+		CompactBoard fenBoard = new CompactBoard();
+		int nbPlies = 0;
+		while (scanner.nextGame()) {
+			if (scanner.getFen() == null) {
+				board.reset();
+			} else {
+				board.loadFen(scanner.getFen());
+			}
+			int len;
+			while ((len = scanner.nextSan()) > 0) {
+				assertTrue(board.doSan(scanner.getSan(), 0, len));
+				fenBoard.loadFen(board.getFen());
+				assertEquals(board.getFen(), fenBoard.getFen());
+				assertEquals(board.getKey(), fenBoard.getKey(), board.getFen());
+				nbPlies++;
+			}
+		}
+		assertEquals(SAMPLE_PLIES, nbPlies);
+	}
+
+	private File getSample() throws Exception {
+		return new File(getClass().getResource(SAMPLE).toURI());
+	}
+
+	@Test
+	public void illegalSan() {
+		CompactBoard board = play(CompactBoard.START_FEN);
+		String fen = board.getFen();
+		for (String san : new String[] { "e5", "Nf4", "Bc4", "exd3", "Qz9", "x" }) {
+			byte[] bytes = san.getBytes(StandardCharsets.US_ASCII);
+			assertFalse(board.doSan(bytes, 0, bytes.length), san);
+			assertEquals(fen, board.getFen());
+		}
+	}
+
+	@Test
+	public void kingsInFen() {
+		CompactBoard board = new CompactBoard();
+		for (String fen : new String[] { "4k3/8/8/8/8/8/4P3/8 w - - 0 1", "8/8/8/8/8/8/4P3/4K3 b - - 0 1", "4k3/8/8/8/8/8/8/3KK3 w - - 0 1", "8/8/8/8/8/8/8/8 w - - 0 1" }) {
+			assertThrows(IllegalArgumentException.class, () -> board.loadFen(fen), fen);
+		}
+		board.loadFen("4k3/8/8/8/8/8/4P3/4K3 w - - 0 1");
+		assertEquals("4k3/8/8/8/8/8/4P3/4K3 w - - 0 1", board.getFen());
+	}
+
+	@Test
+	public void promotions() {
+		CompactBoard board = play("r3k3/1P6/8/8/8/8/6p1/4K2R w Kq - 0 1", "bxa8=Q+", "Ke7", "Kf2", "gxh1=N+");
+		assertEquals("Q7/4k3/8/8/8/8/5K2/7n w - - 0 3", board.getFen());
+		assertEquals(play("Q7/4k3/8/8/8/8/5K2/7n w - - 0 3").getKey(), board.getKey());
+	}
+
+	@Test
+	public void sameKeysAsChesslib() throws Exception {
+		File sample = getSample();
+		ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(sample.toPath()));
+		PgnScanner scanner = new PgnScanner();
+		scanner.reset(buf, 0, buf.limit());
+		CompactBoard nativeBoard = new CompactBoard();
+		CompactBoard fenBoard = new CompactBoard();
+		int nbPlies = 0;
+		for (Game game : new PgnIterator(sample.getAbsolutePath())) {
+			assertTrue(scanner.nextGame());
+			String fen = scanner.getFen();
+			Board board = new Board();
+			if (fen == null) {
+				nativeBoard.reset();
+			} else {
+				board.loadFromFen(fen);
+				nativeBoard.loadFen(fen);
+			}
+			for (Move move : game.getHalfMoves()) {
+				board.doMove(move);
+				int len = scanner.nextSan();
+				assertTrue(len > 0);
+				assertTrue(nativeBoard.doSan(scanner.getSan(), 0, len), move.toString());
+				fenBoard.loadFen(board.getFen());
+				assertEquals(fenBoard.getKey(), nativeBoard.getKey(), board.getFen() + " / " + nativeBoard.getFen());
+				nbPlies++;
+			}
+			assertEquals(0, scanner.nextSan());
+		}
+		assertFalse(scanner.nextGame());
+		assertEquals(SAMPLE_PLIES, nbPlies);
+	}
+}
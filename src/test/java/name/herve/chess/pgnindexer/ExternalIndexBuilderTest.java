@@ -0,0 +1,123 @@
+package name.herve.chess.pgnindexer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * The indexes built by {@link ExternalIndexBuilder} against the ones built in
+ * memory by {@link IndexFixtures#writeIndex}, with a budget small enough for
+ * the pairs to be spilled in many runs merged two by two, with several threads
+ * adding games, and with the games numbered in their part by a
+ * {@link GameNumbering}.
+ */
+public class ExternalIndexBuilderTest {
+	private final static int NB_GAMES = 300;
+	private final static int NB_KEYS = 2000;
+	private final static int MAX_PLIES = 60;
+	private final static long SEED = 20211017L;
+
+	@TempDir
+	public Path tmp;
+
+	private File buildReference(long[][] games) throws Exception {
+		File idx = tmp.resolve("reference.idx").toFile();
+		IndexFixtures.writeIndex(idx, games, 0, games.length);
+		return idx;
+	}
+
+	@Test
+	public void inMemory() throws Exception {
+		long[][] games = IndexFixtures.newGames(NB_GAMES, NB_KEYS, MAX_PLIES, SEED);
+		File idx = tmp.resolve("memory.idx").toFile();
+		ExternalIndexBuilder builder = new ExternalIndexBuilder(idx, 64 * 1024 * 1024, IndexFixtures.BUFFER_SIZE);
+		for (int g = 0; g < games.length; g++) {
+			builder.addGame(g + 1, IndexFixtures.getGameId(g + 1), games[g], games[g].length);
+		}
+		builder.close();
+		assertEquals(0, builder.getNbRuns());
+		IndexFixtures.assertSameIndex(buildReference(games), idx);
+	}
+
+	@Test
+	public void numberedParts() throws Exception {
+		long[][] games = IndexFixtures.newGames(NB_GAMES, NB_KEYS, MAX_PLIES, SEED);
+		// two files of two chunks each, the second file starting at game 120
+		int[] firsts = { 0, 50, 120, 200, NB_GAMES };
+		boolean[] newFiles = { true, false, true, false };
+		GameNumbering numbering = new GameNumbering();
+		for (boolean newFile : newFiles) {
+			numbering.addPart(newFile);
+		}
+
+		File idx = tmp.resolve("parts.idx").toFile();
+		ExternalIndexBuilder builder = new ExternalIndexBuilder(idx, 0, IndexFixtures.BUFFER_SIZE);
+		builder.setNumbering(numbering);
+		// the parts are scanned in reverse order
+		for (int part = newFiles.length - 1; part >= 0; part--) {
+			for (int g = firsts[part]; g < firsts[part + 1]; g++) {
+				int game = g - firsts[part] + 1;
+				builder.getCatalog(part).add(game, "games.pgn", g + 1, -1, -1);
+				builder.addGame(part, game, games[g], null, null, games[g].length, null);
+			}
+			numbering.setNbGames(part, firsts[part + 1] - firsts[part]);
+		}
+		builder.close();
+		assertTrue(builder.getNbRuns() > 1);
+		IndexFixtures.assertSameIndex(buildReference(games), idx);
+	}
+
+	@Test
+	public void severalThreads() throws Exception {
+		long[][] games = IndexFixtures.newGames(NB_GAMES, NB_KEYS, MAX_PLIES, SEED);
+		int nbThreads = 3;
+		File idx = tmp.resolve("threads.idx").toFile();
+		ExecutorService executor = Executors.newFixedThreadPool(nbThreads);
+		ExternalIndexBuilder builder = new ExternalIndexBuilder(idx, 0, IndexFixtures.BUFFER_SIZE, nbThreads);
+		try {
+			List<Future<?>> tasks = new ArrayList<>();
+			for (int t = 0; t < nbThreads; t++) {
+				int first = t;
+				tasks.add(executor.submit(() -> {
+					for (int g = first; g < games.length; g += nbThreads) {
+						builder.addGame(g + 1, IndexFixtures.getGameId(g + 1), games[g], games[g].length);
+					}
+					return null;
+				}));
+			}
+			for (Future<?> task : tasks) {
+				task.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+		builder.close();
+		assertTrue(builder.getNbRuns() > 1);
+		IndexFixtures.assertSameIndex(buildReference(games), idx);
+	}
+
+	@Test
+	public void spilledRuns() throws Exception {
+		long[][] games = IndexFixtures.newGames(NB_GAMES, NB_KEYS, MAX_PLIES, SEED);
+		File idx = tmp.resolve("runs.idx").toFile();
+		ExternalIndexBuilder builder = new ExternalIndexBuilder(idx, 0, IndexFixtures.BUFFER_SIZE);
+		for (int g = 0; g < games.length; g++) {
+			builder.addGame(g + 1, IndexFixtures.getGameId(g + 1), games[g], games[g].length);
+		}
+		builder.close();
+		// the smallest budget : runs of 1024 pairs, merged two by two
+		assertTrue(builder.getNbRuns() > 4, builder.getNbRuns() + " runs");
+		assertEquals(0, tmp.toFile().listFiles((dir, name) -> name.contains(".run-")).length);
+		IndexFixtures.assertSameIndex(buildReference(games), idx);
+	}
+}
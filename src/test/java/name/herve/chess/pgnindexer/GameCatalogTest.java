@@ -0,0 +1,97 @@
+package name.herve.chess.pgnindexer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * The games of a {@link GameCatalog}, gathered from the catalogs of the parts
+ * of an index, and read back by {@link GameCatalogReader} from the index
+ * file.
+ */
+public class GameCatalogTest {
+	@TempDir
+	public Path tmp;
+
+	private static GameCatalog newCatalog(String... files) {
+		GameCatalog catalog = new GameCatalog();
+		catalog.setSummaries(new GameSummaryTable());
+		GameSummary summary = new GameSummary();
+		for (int g = 1; g <= files.length; g++) {
+			if (files[g - 1] != null) {
+				catalog.add(g, files[g - 1], 10 * g, 100 * g, g);
+				summary.set(GameSummary.WHITE_WINS + (g % 3), 2000 + g, 2100 + g, 1990 + g);
+				catalog.getSummaries().set(g, summary);
+			}
+		}
+		return catalog;
+	}
+
+	@Test
+	public void addAll() {
+		GameCatalog catalog = newCatalog();
+		catalog.addAll(newCatalog("a.pgn", "b.pgn", null, "a.pgn"), 0);
+		catalog.addAll(newCatalog("c.pgn", "a.pgn"), 4);
+		// a part without games
+		catalog.addAll(new GameCatalog(), 6);
+
+		assertEquals(6, catalog.getNbGames());
+		assertEquals(3, catalog.getNbFiles());
+		String[] files = { "a.pgn", "b.pgn", null, "a.pgn", "c.pgn", "a.pgn" };
+		int[] locals = { 1, 2, 3, 4, 1, 2 };
+		for (int g = 1; g <= files.length; g++) {
+			assertEquals(files[g - 1], catalog.getFile(g), "game " + g);
+			if (files[g - 1] != null) {
+				assertEquals(10 * locals[g - 1], catalog.getOrdinal(g));
+				assertEquals(100 * locals[g - 1], catalog.getOffset(g));
+				assertEquals(locals[g - 1], catalog.getLength(g));
+				assertEquals(2000 + locals[g - 1], catalog.getSummaries().getWhiteElo(g));
+				assertEquals(GameSummary.WHITE_WINS + (locals[g - 1] % 3), catalog.getSummaries().getResult(g));
+			} else {
+				assertEquals(-1, catalog.getOffset(g));
+				assertEquals(GameSummary.UNKNOWN, catalog.getSummaries().getResult(g));
+			}
+		}
+		assertNull(catalog.getFile(0));
+		assertNull(catalog.getFile(7));
+	}
+
+	@Test
+	public void writeAndRead() throws Exception {
+		File idx = tmp.resolve("catalog.idx").toFile();
+		try (IndexFileWriter writer = new IndexFileWriter(idx, IndexFixtures.BUFFER_SIZE)) {
+			GameCatalog catalog = newCatalog("a.pgn", null, "dir/b.pgn");
+			catalog.setRoot("/games");
+			catalog.add(4, "[7]c.pgn");
+			writer.setCatalog(catalog);
+			writer.addPosition(1, new int[] { 1, 3, 4 }, 3);
+		}
+
+		try (IndexFileReader reader = new IndexFileReader(idx)) {
+			GameCatalogReader catalog = reader.getCatalog();
+			assertEquals(4, catalog.getNbGames());
+			assertEquals(3, catalog.getNbFiles());
+			assertEquals("/games", catalog.getRoot());
+			assertTrue(catalog.hasSummaries());
+			assertEquals("[10]a.pgn", catalog.getGameId(1));
+			assertNull(catalog.getGameId(2));
+			assertEquals("[30]dir/b.pgn", catalog.getGameId(3));
+			assertEquals(new File("/games", "dir/b.pgn").toPath(), catalog.getPath(3));
+			assertEquals(300, catalog.getOffset(3));
+			assertEquals(3, catalog.getLength(3));
+			assertEquals(GameSummary.WHITE_WINS, catalog.getResult(3));
+			assertEquals(2003, catalog.getWhiteElo(3));
+			assertEquals(2103, catalog.getBlackElo(3));
+			assertEquals(1993, catalog.getYear(3));
+			assertEquals("[7]c.pgn", catalog.getGameId(4));
+			assertEquals(-1, catalog.getOffset(4));
+			assertEquals(GameSummary.UNKNOWN, catalog.getResult(4));
+		}
+	}
+}
@@ -0,0 +1,63 @@
+package name.herve.chess.pgnindexer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * The numbers given by {@link GameNumbering} to the parts of the files
+ * counted in any order.
+ */
+public class GameNumberingTest {
+	@Test
+	public void firstGames() {
+		GameNumbering numbering = new GameNumbering();
+		// a.pgn in 3 chunks, b.pgn whole, c.pgn in 2 chunks
+		boolean[] newFiles = { true, false, false, true, true, false };
+		int[] nbGames = { 10, 20, 0, 5, 7, 3 };
+		for (int p = 0; p < newFiles.length; p++) {
+			assertEquals(p, numbering.addPart(newFiles[p]));
+		}
+		for (int p = newFiles.length - 1; p > 0; p--) {
+			numbering.setNbGames(p, nbGames[p]);
+		}
+		assertThrows(IllegalStateException.class, numbering::getFirstGames);
+		numbering.setNbGames(0, nbGames[0]);
+		// only the first count of a part is kept
+		numbering.setNbGames(1, 1000);
+		assertArrayEquals(new int[] { 0, 10, 30, 30, 35, 42, 45 }, numbering.getFirstGames());
+	}
+
+	@Test
+	public void firstOrdinals() throws Exception {
+		GameNumbering numbering = new GameNumbering();
+		numbering.addPart(true);
+		numbering.addPart(false);
+		numbering.addPart(false);
+		numbering.addPart(true);
+		numbering.setNbGames(1, 20);
+		assertEquals(0, numbering.getFirstOrdinal(0));
+		// the first part of another file waits for nothing
+		assertEquals(0, numbering.getFirstOrdinal(3));
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<Integer> ordinal = executor.submit(() -> numbering.getFirstOrdinal(2));
+			assertThrows(TimeoutException.class, () -> ordinal.get(100, TimeUnit.MILLISECONDS));
+			assertFalse(ordinal.isDone());
+			numbering.setNbGames(0, 10);
+			assertEquals(30, (int) ordinal.get(10, TimeUnit.SECONDS));
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package name.herve.chess.pgnindexer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * The bound of {@link GentleThreadPoolExecutor} on the tasks in flight, on
+ * platform threads, on virtual threads when the JVM has them, and for the
+ * tasks of invokeAll and invokeAny.
+ */
+public class GentleThreadPoolExecutorTest {
+	private final static int VIRTUAL_THREADS_FEATURE = 21;
+
+	private static void assertBounded(GentleThreadPoolExecutor executor) throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		List<Future<?>> tasks = new ArrayList<>();
+		for (int t = 0; t < executor.getMax(); t++) {
+			tasks.add(executor.submit(() -> {
+				release.await();
+				return null;
+			}));
+		}
+		assertEquals(executor.getMax(), executor.getNbInFlight());
+		Thread submitter = new Thread(() -> tasks.add(executor.submit(() -> null)));
+		submitter.start();
+		submitter.join(100);
+		// blocked until a task completes
+		assertTrue(submitter.isAlive());
+		release.countDown();
+		submitter.join();
+		for (Future<?> task : tasks) {
+			task.get(10, TimeUnit.SECONDS);
+		}
+		assertEquals(1, executor.getNbBlocked());
+		// the tasks count themselves done after their result is given
+		executor.shutdownAndAwaitTermination();
+		assertEquals(executor.getMax() + 1, executor.getCompletedTaskCount());
+	}
+
+	@Test
+	public void invoke() throws Exception {
+		GentleThreadPoolExecutor executor = GentleThreadPoolExecutor.newGentleThreadPoolExecutor("test", 2, 3);
+		try {
+			List<Callable<Integer>> tasks = new ArrayList<>();
+			for (int t = 0; t < 20; t++) {
+				int result = t;
+				tasks.add(() -> {
+					Thread.sleep(5);
+					return result;
+				});
+			}
+			List<Future<Integer>> futures = executor.invokeAll(tasks);
+			for (int t = 0; t < tasks.size(); t++) {
+				assertEquals(t, (int) futures.get(t).get());
+			}
+			// each task has taken a permit
+			assertEquals(tasks.size(), executor.getTaskCount());
+			assertTrue(executor.getNbBlocked() > 0);
+
+			int result = executor.invokeAny(tasks);
+			assertTrue((result >= 0) && (result < tasks.size()));
+		} finally {
+			executor.shutdownAndAwaitTermination();
+		}
+		// and has given it back
+		assertEquals(executor.getTaskCount(), executor.getCompletedTaskCount());
+	}
+
+	@Test
+	public void platformThreads() throws Exception {
+		GentleThreadPoolExecutor executor = GentleThreadPoolExecutor.newGentleThreadPoolExecutor("test", 2, 3);
+		assertEquals("test-", executor.submit(() -> Thread.currentThread().getName()).get().substring(0, 5));
+		executor.shutdownAndAwaitTermination();
+		assertBounded(GentleThreadPoolExecutor.newGentleThreadPoolExecutor("test", 2, 3));
+	}
+
+	@Test
+	public void virtualThreads() throws Exception {
+		assumeTrue(Runtime.version().feature() >= VIRTUAL_THREADS_FEATURE, "no virtual threads before Java " + VIRTUAL_THREADS_FEATURE);
+		GentleThreadPoolExecutor executor = GentleThreadPoolExecutor.newVirtualThreadExecutor("test", 3);
+		Future<Thread> thread = executor.submit(Thread::currentThread);
+		assertEquals(Boolean.TRUE, Thread.class.getMethod("isVirtual").invoke(thread.get()));
+		assertEquals("test-1", thread.get().getName());
+		assertEquals(0, executor.getQueueSize());
+		executor.shutdownAndAwaitTermination();
+		assertBounded(GentleThreadPoolExecutor.newVirtualThreadExecutor("test", 3));
+	}
+
+	@Test
+	public void withoutVirtualThreads() {
+		assumeTrue(Runtime.version().feature() < VIRTUAL_THREADS_FEATURE, "virtual threads from Java " + VIRTUAL_THREADS_FEATURE);
+		UnsupportedOperationException e = assertThrows(UnsupportedOperationException.class, () -> GentleThreadPoolExecutor.newVirtualThreadExecutor("test", 3));
+		assertTrue(e.getMessage().contains(Runtime.version().toString()), e.getMessage());
+	}
+}
@@ -0,0 +1,87 @@
+package name.herve.chess.pgnindexer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Random games and the indexes built from them the way {@link PGNIndexer}
+ * builds them in memory, the reference the other builds are compared with.
+ * The positions of a game are distinct, and drawn from a small pool of keys so
+ * that they are shared by many games.
+ */
+public class IndexFixtures {
+	public final static int BUFFER_SIZE = 4096;
+
+	/**
+	 * Compares two index files position by position, and their catalogs.
+	 */
+	public static void assertSameIndex(File expected, File actual) throws IOException {
+		try (IndexFileReader e = new IndexFileReader(expected); IndexFileReader a = new IndexFileReader(actual)) {
+			assertEquals(e.getNbGames(), a.getNbGames());
+			assertEquals(e.getNbPositions(), a.getNbPositions());
+			for (long rank = 0; rank < e.getNbPositions(); rank++) {
+				assertEquals(e.getKey(rank), a.getKey(rank));
+				assertArrayEquals(e.getGames(e.getKey(rank)), a.getGames(a.getKey(rank)), "position " + rank);
+			}
+			for (int g = 1; g <= e.getNbGames(); g++) {
+				assertEquals(e.getCatalog().getGameId(g), a.getCatalog().getGameId(g), "game " + g);
+			}
+		}
+	}
+
+	/**
+	 * @return the id of the game, as the games of {@link #writeIndex} are
+	 *         cataloged
+	 */
+	public static String getGameId(int game) {
+		return "[" + game + "]games.pgn";
+	}
+
+	/**
+	 * @return the distinct positions of each game
+	 */
+	public static long[][] newGames(int nbGames, int nbKeys, int maxPlies, long seed) {
+		Random random = new Random(seed);
+		long[] pool = new long[nbKeys];
+		for (int k = 0; k < nbKeys; k++) {
+			pool[k] = random.nextLong();
+		}
+		long[][] games = new long[nbGames][];
+		for (int g = 0; g < nbGames; g++) {
+			Set<Long> positions = new LinkedHashSet<>();
+			int nbPlies = 1 + random.nextInt(maxPlies);
+			while (positions.size() < nbPlies) {
+				positions.add(pool[random.nextInt(nbKeys)]);
+			}
+			games[g] = positions.stream().mapToLong(Long::longValue).toArray();
+		}
+		return games;
+	}
+
+	/**
+	 * Writes the index of the games from to to, excluded, numbered from 1 in
+	 * the index, and cataloged with their number in all the games.
+	 */
+	public static void writeIndex(File idx, long[][] games, int from, int to) throws IOException {
+		LongIntMultiMap positions = new LongIntMultiMap();
+		try (IndexFileWriter writer = new IndexFileWriter(idx, BUFFER_SIZE)) {
+			for (int g = from; g < to; g++) {
+				for (long key : games[g]) {
+					positions.add(key, g - from + 1);
+				}
+				writer.getCatalog().add(g - from + 1, getGameId(g + 1));
+			}
+			positions.forEachSorted(writer::addPosition);
+		}
+	}
+
+	private IndexFixtures() {
+		super();
+	}
+}
@@ -0,0 +1,109 @@
+package name.herve.chess.pgnindexer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * The segments merged by {@link IndexMerger}, and compacted in a segmented
+ * index by {@link IndexCompactor}, against the index of all their games built
+ * at once.
+ */
+public class IndexMergerTest {
+	private final static int NB_GAMES = 400;
+	private final static int NB_KEYS = 2000;
+	private final static int MAX_PLIES = 60;
+	private final static long SEED = 20211017L;
+	private final static int[] FIRSTS = { 0, 1, 150, 160, NB_GAMES };
+
+	@TempDir
+	public Path tmp;
+
+	private void assertSameGames(IndexFileReader expected, PositionIndex index) {
+		assertEquals(expected.getNbGames(), index.getNbGames());
+		for (long rank = 0; rank < expected.getNbPositions(); rank++) {
+			long key = expected.getKey(rank);
+			assertArrayEquals(expected.getGames(key), index.getGames(key), "position " + rank);
+			assertEquals(expected.count(key), index.count(key));
+		}
+		for (int g = 1; g <= expected.getNbGames(); g++) {
+			assertEquals(expected.getCatalog().getGameId(g), index.getGameId(g));
+		}
+	}
+
+	@Test
+	public void compact() throws Exception {
+		long[][] games = IndexFixtures.newGames(NB_GAMES, NB_KEYS, MAX_PLIES, SEED);
+		File idx = tmp.resolve("segmented.idx").toFile();
+		IndexManifest manifest = new IndexManifest();
+		List<File> segments = new ArrayList<>();
+		for (int s = 0; (s + 1) < FIRSTS.length; s++) {
+			File segment = manifest.newSegmentFile(idx);
+			IndexFixtures.writeIndex(segment, games, FIRSTS[s], FIRSTS[s + 1]);
+			manifest.add(segment, FIRSTS[s + 1] - FIRSTS[s]);
+			segments.add(segment);
+		}
+		manifest.save(idx);
+
+		File reference = tmp.resolve("reference.idx").toFile();
+		IndexFixtures.writeIndex(reference, games, 0, NB_GAMES);
+		try (IndexFileReader expected = new IndexFileReader(reference); PositionIndex index = new PositionIndex(idx)) {
+			assertEquals(segments.size(), index.getNbSegments());
+			assertSameGames(expected, index);
+
+			try (IndexCompactor compactor = new IndexCompactor(idx, IndexFixtures.BUFFER_SIZE)) {
+				assertEquals(1, compactor.compact());
+				assertEquals(0, compactor.compact());
+			}
+			IndexManifest compacted = IndexManifest.load(idx);
+			assertEquals(1, compacted.getNbSegments());
+			assertEquals(NB_GAMES, compacted.getNbGames());
+			for (File segment : segments) {
+				assertFalse(segment.exists(), segment.getName());
+			}
+
+			index.refresh();
+			assertEquals(1, index.getNbSegments());
+			assertEquals(expected.getNbPositions(), index.getNbPositions());
+			assertSameGames(expected, index);
+		}
+	}
+
+	@Test
+	public void getTier() {
+		assertEquals(0, IndexCompactor.getTier(0));
+		assertEquals(0, IndexCompactor.getTier(3999));
+		assertEquals(1, IndexCompactor.getTier(4000));
+		assertEquals(2, IndexCompactor.getTier(16000));
+	}
+
+	@Test
+	public void merge() throws Exception {
+		long[][] games = IndexFixtures.newGames(NB_GAMES, NB_KEYS, MAX_PLIES, SEED);
+		List<File> segments = new ArrayList<>();
+		for (int s = 0; (s + 1) < FIRSTS.length; s++) {
+			File segment = tmp.resolve("segment-" + s + ".idx").toFile();
+			IndexFixtures.writeIndex(segment, games, FIRSTS[s], FIRSTS[s + 1]);
+			segments.add(segment);
+		}
+		File merged = tmp.resolve("merged.idx").toFile();
+		IndexMerger merger = new IndexMerger(IndexFixtures.BUFFER_SIZE);
+		assertEquals(NB_GAMES, merger.merge(segments, merged));
+
+		File reference = tmp.resolve("reference.idx").toFile();
+		IndexFixtures.writeIndex(reference, games, 0, NB_GAMES);
+		IndexFixtures.assertSameIndex(reference, merged);
+		try (IndexFileReader expected = new IndexFileReader(reference)) {
+			assertEquals(expected.getNbPositions(), merger.getNbPositions());
+		}
+		assertEquals(0, merger.getNbCollisions());
+	}
+}
@@ -0,0 +1,37 @@
+package name.herve.chess.pgnindexer;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.ParseException;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The values of the command line options rejected by
+ * {@link PGNIndexer#checkOptions(CommandLine)} before anything is done.
+ */
+public class PGNIndexerOptionsTest {
+	private static CommandLine parse(String... args) throws ParseException {
+		return new DefaultParser().parse(PGNIndexer.getOptions(), args);
+	}
+
+	@Test
+	public void invalid() throws Exception {
+		String[][] invalids = { { "-b", "0" }, { "-b", "3000000" }, { "-g", "x" }, { "-m", "-1" }, { "-c", "1.5" }, { "-e", "0" }, { "-s", "65536" },
+				{ "-w", "0" }, { "-w", "NaN" }, { "-r", "Infinity" }, { "-c", "8", "--cache-policy", "mru" }, { "-n", "--key-policy", "nope" },
+				{ "--key-policy", "placement" } };
+		for (String[] args : invalids) {
+			CommandLine command = parse(args);
+			assertThrows(ParseException.class, () -> PGNIndexer.checkOptions(command), String.join(" ", args));
+		}
+	}
+
+	@Test
+	public void valid() throws Exception {
+		PGNIndexer.checkOptions(parse("-p", "games", "-i", "games.idx", "-b", "64", "-g", "32", "-m", "2000", "-e", "512", "-r", "0.5", "-n", "--key-policy",
+				"placement-side"));
+		PGNIndexer.checkOptions(parse("-i", "games.idx", "-c", "64", "--cache-policy", "LFU", "-w", "30", "-s", "0"));
+		PGNIndexer.checkOptions(parse("-i", "games.idx", "--key-policy", "fide"));
+	}
+}
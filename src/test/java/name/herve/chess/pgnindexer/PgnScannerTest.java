@@ -0,0 +1,103 @@
+package name.herve.chess.pgnindexer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * The main line SAN tokens and the tags read by {@link PgnScanner} from
+ * movetexts mixing comments, variations, NAGs and escapes.
+ */
+public class PgnScannerTest {
+	private final static String TAGS = "[Event \"?\"]\n[Result \"*\"]\n\n";
+
+	private static PgnScanner scan(String pgn) {
+		ByteBuffer buf = ByteBuffer.wrap(pgn.getBytes(StandardCharsets.US_ASCII));
+		PgnScanner scanner = new PgnScanner();
+		scanner.reset(buf, 0, buf.limit());
+		return scanner;
+	}
+
+	private static List<String> sans(PgnScanner scanner) {
+		List<String> sans = new ArrayList<>();
+		int len;
+		while ((len = scanner.nextSan()) > 0) {
+			sans.add(new String(scanner.getSan(), 0, len, StandardCharsets.US_ASCII));
+		}
+		return sans;
+	}
+
+	private static List<String> sans(String movetext) {
+		PgnScanner scanner = scan(TAGS + movetext + "\n");
+		assertTrue(scanner.nextGame());
+		return sans(scanner);
+	}
+
+	@Test
+	public void castlingIsNotAResult() {
+		assertEquals(Arrays.asList("e4", "e5", "Nf3", "Nf6", "0-0", "0-0-0"), sans("1. e4 e5 2. Nf3 Nf6 3. 0-0 0-0-0 1-0"));
+		assertEquals(Arrays.asList("O-O", "O-O-O"), sans("1. O-O O-O-O 1/2-1/2"));
+	}
+
+	@Test
+	public void comments() {
+		assertEquals(Arrays.asList("e4", "e5", "Nf3", "Nc6"), sans("1. e4 {a comment with 2. d4 d5 (and) [brackets]} e5 2. Nf3 ; Nf6 until the end of the line\nNc6 *"));
+		assertEquals(Arrays.asList("d4", "d5"), sans("{a comment before the first move} 1. d4 {1-0} d5 *"));
+	}
+
+	@Test
+	public void escapes() {
+		PgnScanner scanner = scan("[Event \"A \\\"quoted\\\" name] and more\"]\n[Result \"0-1\"]\n[FEN \"4k3/8/8/8/8/8/8/4K2R w K - 0 1\"]\n\n"
+				+ "% an escaped line with 1. e4\n1. O-O Kd7\n%Kd8 again\n0-1\n\n[Event \"Next\"]\n\n1. d4 *\n");
+		assertTrue(scanner.nextGame());
+		assertEquals("4k3/8/8/8/8/8/8/4K2R w K - 0 1", scanner.getFen());
+		GameSummary summary = new GameSummary();
+		scanner.getSummary(summary);
+		assertEquals(GameSummary.BLACK_WINS, summary.getResult());
+		assertEquals(Arrays.asList("O-O", "Kd7"), sans(scanner));
+
+		assertTrue(scanner.nextGame());
+		assertNull(scanner.getFen());
+		assertEquals(Arrays.asList("d4"), sans(scanner));
+		assertFalse(scanner.nextGame());
+	}
+
+	@Test
+	public void gamesWithoutResult() {
+		PgnScanner scanner = scan(TAGS + "1. e4 e5\n\n[Event \"?\"]\n\n1. d4 d5 2. c4\n");
+		assertTrue(scanner.nextGame());
+		assertEquals(Arrays.asList("e4", "e5"), sans(scanner));
+		assertTrue(scanner.nextGame());
+		assertEquals(Arrays.asList("d4", "d5", "c4"), sans(scanner));
+		assertFalse(scanner.nextGame());
+	}
+
+	@Test
+	public void nags() {
+		assertEquals(Arrays.asList("e4", "e5", "Nf3", "Nc6"), sans("1. e4 $1 e5 $6 $14 2. Nf3$2 Nc6 $146 *"));
+		assertEquals(Arrays.asList("e4!", "e5?!", "Qh5+"), sans("1. e4! e5?! 2. Qh5+ *"));
+	}
+
+	@Test
+	public void skippedGames() {
+		PgnScanner scanner = scan(TAGS + "1. e4 {1-0} (1. d4 d5) e5 0-1\n\n[Event \"?\"]\n\n1. c4 *\n");
+		assertTrue(scanner.nextGame());
+		assertEquals(2, scanner.skipMovetext());
+		assertTrue(scanner.nextGame());
+		assertEquals(Arrays.asList("c4"), sans(scanner));
+	}
+
+	@Test
+	public void variations() {
+		assertEquals(Arrays.asList("e4", "e5", "Nf3"), sans("1. e4 (1. d4 d5 (1... Nf6 2. c4) 2. c4) 1... e5 (1... c5 2. Nf3 (2. Nc3)) 2. Nf3 *"));
+	}
+}
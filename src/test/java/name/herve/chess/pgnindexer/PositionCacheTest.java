@@ -0,0 +1,108 @@
+package name.herve.chess.pgnindexer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * The admission and eviction of the entries of {@link PositionCache}, and the
+ * generations keeping the lookups of a previous index out of the cache. The
+ * keys are multiples of 16, so that they all fall in the same segment.
+ */
+public class PositionCacheTest {
+	private static long key(int i) {
+		return (long) i * 16;
+	}
+
+	@Test
+	public void countThenGames() {
+		PositionCache cache = new PositionCache(10 * PositionCache.ENTRY_WEIGHT, PositionCache.Policy.LRU);
+		assertEquals(-1, cache.getCount(key(1)));
+		cache.putCount(key(1), 3, cache.getGeneration());
+		assertEquals(3, cache.getCount(key(1)));
+		// a count is not enough for the games
+		assertNull(cache.getGames(key(1)));
+		cache.putGames(key(1), new int[] { 4, 5, 6 }, cache.getGeneration());
+		assertArrayEquals(new int[] { 4, 5, 6 }, cache.getGames(key(1)));
+		// and is not put over them
+		cache.putCount(key(1), 3, cache.getGeneration());
+		assertArrayEquals(new int[] { 4, 5, 6 }, cache.getGames(key(1)));
+		assertEquals(1, cache.getSize());
+		assertEquals(PositionCache.ENTRY_WEIGHT + (3 * PersistenceToolbox.INT_NB_BYTES), cache.getWeight());
+		assertEquals(3, cache.getNbHits());
+		assertEquals(2, cache.getNbMisses());
+	}
+
+	@Test
+	public void generations() {
+		PositionCache cache = new PositionCache(10 * PositionCache.ENTRY_WEIGHT, PositionCache.Policy.LRU);
+		int generation = cache.getGeneration();
+		cache.putCount(key(1), 1, generation);
+		// the index changes while key 2 is looked up
+		cache.clear();
+		cache.putCount(key(2), 2, generation);
+		assertEquals(-1, cache.getCount(key(1)));
+		assertEquals(-1, cache.getCount(key(2)));
+		assertEquals(0, cache.getSize());
+		assertEquals(0, cache.getWeight());
+
+		cache.putCount(key(2), 2, cache.getGeneration());
+		assertEquals(2, cache.getCount(key(2)));
+	}
+
+	@Test
+	public void lfu() {
+		PositionCache cache = new PositionCache(3 * PositionCache.ENTRY_WEIGHT, PositionCache.Policy.LFU);
+		for (int i = 0; i < 3; i++) {
+			cache.putCount(key(i), i, cache.getGeneration());
+		}
+		cache.getCount(key(0));
+		cache.getCount(key(0));
+		cache.getCount(key(2));
+		cache.putCount(key(3), 3, cache.getGeneration());
+		assertEquals(-1, cache.getCount(key(1)));
+		// the newest entry is the least frequently used
+		cache.putCount(key(4), 4, cache.getGeneration());
+		assertEquals(-1, cache.getCount(key(3)));
+		assertEquals(0, cache.getCount(key(0)));
+		assertEquals(2, cache.getCount(key(2)));
+		assertEquals(4, cache.getCount(key(4)));
+		assertEquals(2, cache.getNbEvictions());
+	}
+
+	@Test
+	public void lru() {
+		PositionCache cache = new PositionCache(3 * PositionCache.ENTRY_WEIGHT, PositionCache.Policy.LRU);
+		for (int i = 0; i < 3; i++) {
+			cache.putCount(key(i), i, cache.getGeneration());
+		}
+		cache.getCount(key(0));
+		cache.putCount(key(3), 3, cache.getGeneration());
+		assertEquals(-1, cache.getCount(key(1)));
+		assertEquals(0, cache.getCount(key(0)));
+		assertEquals(2, cache.getCount(key(2)));
+		assertEquals(3, cache.getCount(key(3)));
+		assertEquals(3, cache.getSize());
+		assertEquals(1, cache.getNbEvictions());
+
+		// too large for the whole cache
+		cache.putGames(key(4), new int[3 * PositionCache.ENTRY_WEIGHT], cache.getGeneration());
+		assertNull(cache.getGames(key(4)));
+		assertEquals(3, cache.getSize());
+	}
+
+	@Test
+	public void otherSegments() {
+		PositionCache cache = new PositionCache(3 * PositionCache.ENTRY_WEIGHT, PositionCache.Policy.LRU);
+		for (int i = 0; i < 3; i++) {
+			cache.putCount(key(i), i, cache.getGeneration());
+		}
+		// a key of another segment, which has to evict from the first one
+		cache.putCount(1, 1, cache.getGeneration());
+		assertEquals(1, cache.getCount(1));
+		assertEquals(3, cache.getSize());
+		assertEquals(3 * PositionCache.ENTRY_WEIGHT, cache.getWeight());
+	}
+}
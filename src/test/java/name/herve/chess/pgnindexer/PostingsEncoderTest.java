@@ -0,0 +1,155 @@
+package name.herve.chess.pgnindexer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Round trips of the varints and of the posting lists written by
+ * {@link PostingsEncoder} and read back by {@link PostingsCursor}, with and
+ * without skip table.
+ */
+public class PostingsEncoderTest {
+	private final static int[] SIZES = { 0, 1, 2, PostingsEncoder.BLOCK_SIZE - 1, PostingsEncoder.BLOCK_SIZE, PostingsEncoder.BLOCK_SIZE + 1, 1000, 20000 };
+
+	@TempDir
+	public Path tmp;
+
+	private static byte[] concat(byte[] a, byte[] b, int bLength) {
+		byte[] res = Arrays.copyOf(a, a.length + bLength);
+		System.arraycopy(b, 0, res, a.length, bLength);
+		return res;
+	}
+
+	private static int[] newList(int nb, int maxGap, long seed) {
+		Random random = new Random(seed);
+		int[] values = new int[nb];
+		int v = 0;
+		for (int i = 0; i < nb; i++) {
+			v += 1 + random.nextInt(maxGap);
+			values[i] = v;
+		}
+		return values;
+	}
+
+	private PostingsCursor open(byte[] bytes, int offset, boolean compressed) throws IOException {
+		Path file = Files.createTempFile(tmp, "postings", ".bin");
+		Files.write(file, bytes);
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			// the mapping outlives the channel
+			MappedRegion region = new MappedRegion(channel, 0, bytes.length);
+			return new PostingsCursor(region, offset, bytes.length - offset, compressed);
+		}
+	}
+
+	private PostingsCursor open(int[] values) throws IOException {
+		PostingsEncoder encoder = new PostingsEncoder();
+		int length = encoder.encode(values, values.length);
+		// not at the start of the file, as in an index
+		byte[] bytes = new byte[length + 3];
+		System.arraycopy(encoder.getBytes(), 0, bytes, 3, length);
+		return open(bytes, 3, true);
+	}
+
+	@Test
+	public void advance() throws IOException {
+		for (int nb : SIZES) {
+			int[] values = newList(nb, 50, nb);
+			Random random = new Random(nb);
+			PostingsCursor cursor = open(values);
+			int target = 0;
+			int i = 0;
+			while (true) {
+				target += random.nextInt(nb < 1000 ? 40 : 2000);
+				while ((i < nb) && (values[i] < target)) {
+					i++;
+				}
+				int v = cursor.advance(target);
+				if (i == nb) {
+					assertEquals(-1, v);
+					break;
+				}
+				assertEquals(values[i], v, "advance(" + target + ") on " + nb + " values");
+			}
+		}
+	}
+
+	@Test
+	public void encodeAndStreamAgree() {
+		for (int nb : SIZES) {
+			int[] values = newList(nb, 1000, nb);
+			PostingsEncoder encoder = new PostingsEncoder();
+			int length = encoder.encode(values, nb);
+			byte[] encoded = Arrays.copyOf(encoder.getBytes(), length);
+
+			// as IndexFileWriter does for long lists, the blocks being drained as they grow
+			PostingsEncoder streaming = new PostingsEncoder();
+			byte[] drained = new byte[0];
+			streaming.start();
+			for (int i = 0; i < nb; i++) {
+				streaming.add(values[i]);
+				if ((i % 300) == 299) {
+					drained = concat(drained, streaming.getBlocks(), streaming.getBlocksLength());
+					streaming.drainBlocks();
+				}
+			}
+			int headerLength = streaming.finish();
+			byte[] streamed = concat(Arrays.copyOf(streaming.getBytes(), headerLength), drained, drained.length);
+			streamed = concat(streamed, streaming.getBlocks(), streaming.getBlocksLength());
+			assertArrayEquals(encoded, streamed, nb + " values");
+		}
+	}
+
+	@Test
+	public void next() throws IOException {
+		for (int nb : SIZES) {
+			for (int maxGap : new int[] { 1, 100, 1000000 }) {
+				int[] values = newList(nb, maxGap, nb + maxGap);
+				PostingsCursor cursor = open(values);
+				assertEquals(nb, cursor.getNbGames());
+				assertArrayEquals(values, cursor.toArray(), nb + " values up to " + maxGap + " apart");
+				assertEquals(-1, cursor.next());
+			}
+		}
+	}
+
+	@Test
+	public void rawInts() throws IOException {
+		int[] values = newList(1000, 100, 1);
+		byte[] bytes = new byte[values.length * PersistenceToolbox.INT_NB_BYTES];
+		ByteBuffer.wrap(bytes).asIntBuffer().put(values);
+		PostingsCursor cursor = open(bytes, 0, false);
+		assertEquals(values[0], cursor.next());
+		assertEquals(values[500], cursor.advance(values[500]));
+		assertEquals(values[501], cursor.advance(values[500] + 1));
+		assertEquals(-1, cursor.advance(values[999] + 1));
+	}
+
+	@Test
+	public void varints() {
+		int[] values = { 0, 1, 127, 128, 16383, 16384, (1 << 21) - 1, 1 << 21, (1 << 28) - 1, 1 << 28, Integer.MAX_VALUE, -1 };
+		int[] lengths = { 1, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 5 };
+		byte[] bytes = new byte[5];
+		for (int i = 0; i < values.length; i++) {
+			int end = PostingsEncoder.putVarint(bytes, 0, values[i]);
+			assertEquals(lengths[i], end, "length of " + values[i]);
+			int v = 0;
+			for (int p = 0; p < end; p++) {
+				assertEquals(p < (end - 1), bytes[p] < 0, "continuation bit of byte " + p + " of " + values[i]);
+				v |= (bytes[p] & 0x7F) << (7 * p);
+			}
+			assertEquals(values[i], v);
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package name.herve.chess.pgnindexer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * The shards written by {@link ShardedDatabaseWriter} from several threads,
+ * and the {@link DatabaseManifest} locating their games and their blocks.
+ */
+public class ShardedDatabaseWriterTest {
+	private final static int NB_GAMES_0 = DatabaseManifest.BLOCK_GAMES + 10;
+	private final static int NB_GAMES_1 = 3;
+
+	@TempDir
+	public Path tmp;
+
+	private static void assertGame(FileChannel fc, int game) throws Exception {
+		assertEquals(getGameId(game), PersistenceToolbox.loadString(fc));
+		assertArrayEquals(getPositions(game), PersistenceToolbox.loadFullLongArray(fc));
+	}
+
+	private static String getGameId(int game) {
+		return "[" + game + "]games.pgn";
+	}
+
+	private static long[] getPositions(int game) {
+		long[] positions = new long[game % 5];
+		for (int i = 0; i < positions.length; i++) {
+			positions[i] = ((long) game << 32) | i;
+		}
+		return positions;
+	}
+
+	@Test
+	public void singleShard() throws Exception {
+		// a database written before the manifests
+		File db = tmp.resolve("old.db").toFile();
+		Files.write(db.toPath(), new byte[] { 0, 0 });
+		DatabaseManifest manifest = DatabaseManifest.load(db);
+		assertEquals(1, manifest.getNbShards());
+		assertEquals(db, manifest.getShard(0));
+		assertEquals(-1, manifest.getNbGames(0));
+		assertEquals(1, manifest.getNbBlocks(0));
+		assertEquals(Long.MAX_VALUE, manifest.getBlockEnd(0, 0));
+		assertFalse(manifest.isNativeKeys());
+	}
+
+	@Test
+	public void write() throws Exception {
+		File db = tmp.resolve("games.db").toFile();
+		// the shards of a previous database, written by more threads
+		for (int s = 0; s < 3; s++) {
+			Files.write(DatabaseManifest.getShardFile(db, s).toPath(), new byte[] { 1 });
+		}
+
+		ShardedDatabaseWriter writer = new ShardedDatabaseWriter(db, IndexFixtures.BUFFER_SIZE);
+		writer.setNativeKeys(true);
+		writer.setKeyPolicy(CompactBoard.KeyPolicy.values()[CompactBoard.KeyPolicy.values().length - 1]);
+		long length = 0;
+		for (int g = 1; g <= NB_GAMES_0; g++) {
+			length += writer.write(getGameId(g), getPositions(g), getPositions(g).length);
+		}
+		Thread thread = new Thread(() -> {
+			try {
+				for (int g = 1; g <= NB_GAMES_1; g++) {
+					writer.write(getGameId(NB_GAMES_0 + g), getPositions(NB_GAMES_0 + g), getPositions(NB_GAMES_0 + g).length);
+				}
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		});
+		thread.start();
+		thread.join();
+		writer.close();
+
+		assertFalse(DatabaseManifest.getShardFile(db, 2).exists());
+		DatabaseManifest manifest = DatabaseManifest.load(db);
+		assertTrue(manifest.isNativeKeys());
+		assertEquals(CompactBoard.KeyPolicy.values()[CompactBoard.KeyPolicy.values().length - 1], manifest.getKeyPolicy());
+		assertEquals(2, manifest.getNbShards());
+		assertEquals(DatabaseManifest.getShardFile(db, 0).getAbsoluteFile(), manifest.getShard(0));
+		assertEquals(length, manifest.getShard(0).length());
+		assertEquals(NB_GAMES_0, manifest.getNbGames(0));
+		assertEquals(NB_GAMES_1, manifest.getNbGames(1));
+		assertEquals(NB_GAMES_0, manifest.getFirstGame(1));
+		assertEquals(2, manifest.getNbBlocks(0));
+		assertEquals(1, manifest.getNbBlocks(1));
+
+		try (RandomAccessFile raf = PersistenceToolbox.getFile(manifest.getShard(0), false)) {
+			FileChannel fc = raf.getChannel();
+			assertEquals(0, manifest.getBlockStart(0, 0));
+			assertGame(fc, 1);
+			fc.position(manifest.getBlockStart(0, 1));
+			assertEquals(manifest.getBlockStart(0, 1), manifest.getBlockEnd(0, 0));
+			assertGame(fc, DatabaseManifest.BLOCK_GAMES + 1);
+		}
+		try (RandomAccessFile raf = PersistenceToolbox.getFile(manifest.getShard(1), false)) {
+			FileChannel fc = raf.getChannel();
+			for (int g = 1; g <= NB_GAMES_1; g++) {
+				assertGame(fc, NB_GAMES_0 + g);
+			}
+			assertEquals(fc.size(), fc.position());
+		}
+	}
+}